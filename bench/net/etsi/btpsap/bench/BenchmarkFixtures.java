@@ -0,0 +1,234 @@
+/*
+ * Copyright 2016 Jan de Jongh, TNO.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package net.etsi.btpsap.bench;
+
+import java.util.concurrent.atomic.AtomicLong;
+import net.etsi.btpsap.BtpSapTypes;
+import net.etsi.btpsap.BtpSap_DataConf;
+import net.etsi.btpsap.BtpSap_DataIndContainer;
+import net.etsi.btpsap.BtpSap_DataReqContainer;
+import net.etsi.btpsap.BtpSap_DataResp;
+import net.etsi.btpsap.operational.AbstractBtpSapEntity;
+import net.etsi.btpsap.operational.BtpSapClient;
+import net.etsi.btpsap.operational.BtpSapServer;
+import net.etsi.btpsap.operational.OperationalBtpSap;
+import net.etsi.btpsap.operational.client.udp.tno.UdpTnoDataReq;
+
+/** Stub clients and servers, and canned requests and indications, shared by the benchmarks.
+ *
+ */
+public final class BenchmarkFixtures
+{
+
+  private BenchmarkFixtures ()
+  {
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // STUB CLIENT
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** A client that merely counts the indications it receives.
+   *
+   */
+  public static class StubClient
+  extends AbstractBtpSapEntity
+  implements BtpSapClient
+  {
+
+    public StubClient (final String name)
+    {
+      super (name);
+    }
+
+    private final AtomicLong indications = new AtomicLong ();
+
+    public final long getIndications ()
+    {
+      return this.indications.get ();
+    }
+
+    @Override
+    public void startBtpSapClient (final OperationalBtpSap btpSap)
+    {
+    }
+
+    @Override
+    public void stopBtpSapClient ()
+    {
+    }
+
+    @Override
+    public boolean isActiveBtpSapClient ()
+    {
+      return true;
+    }
+
+    @Override
+    public BtpSap_DataResp doIndication (final BtpSapServer server, final BtpSap_DataIndContainer indication)
+    {
+      this.indications.incrementAndGet ();
+      return null;
+    }
+
+    private volatile int clientId = -1;
+
+    @Override
+    public final int getBtpSapClientId ()
+    {
+      return this.clientId;
+    }
+
+    @Override
+    public final void setBtpSapClientId (final int clientId)
+    {
+      this.clientId = clientId;
+    }
+
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // STUB SERVER
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** A server that merely counts the requests it receives.
+   *
+   */
+  public static class StubServer
+  extends AbstractBtpSapEntity
+  implements BtpSapServer
+  {
+
+    public StubServer (final String name)
+    {
+      super (name);
+    }
+
+    private final AtomicLong requests = new AtomicLong ();
+
+    public final long getRequests ()
+    {
+      return this.requests.get ();
+    }
+
+    @Override
+    public void startBtpSapServer (final OperationalBtpSap btpSap)
+    {
+    }
+
+    @Override
+    public void stopBtpSapServer ()
+    {
+    }
+
+    @Override
+    public boolean isActiveBtpSapServer ()
+    {
+      return true;
+    }
+
+    @Override
+    public BtpSap_DataConf doRequest (final BtpSapClient client, final BtpSap_DataReqContainer request)
+    {
+      this.requests.incrementAndGet ();
+      return null;
+    }
+
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // REQUESTS / INDICATIONS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** Creates a BTP/UDP[TNO] request datagram (BTP-B, GN SHB).
+   *
+   * @param clientId      The client id.
+   * @param trafficClass  The traffic class.
+   * @param payloadLength The payload length.
+   *
+   * @return The request datagram.
+   *
+   */
+  public static byte[] createTnoRequestDatagram (final int clientId, final int trafficClass, final int payloadLength)
+  {
+    final byte[] datagram = new byte[UdpTnoDataReq.HEADER_SIZE + payloadLength];
+    datagram[0] = UdpTnoDataReq.MAGIC_1;
+    datagram[1] = UdpTnoDataReq.MAGIC_2;
+    datagram[2] = (byte) 1;
+    datagram[3] = (byte) clientId;
+    datagram[6] = (byte) 0x01; // BTP-B
+    datagram[7] = (byte) 0x10; // GN SHB
+    datagram[11] = (byte) trafficClass;
+    datagram[12] = (byte) (2001 >> 8);
+    datagram[13] = (byte) (2001 & 0xff);
+    datagram[56] = (byte) ((payloadLength >>> 24) & 0xff);
+    datagram[57] = (byte) ((payloadLength >>> 16) & 0xff);
+    datagram[58] = (byte) ((payloadLength >>> 8) & 0xff);
+    datagram[59] = (byte) (payloadLength & 0xff);
+    for (int i = 0; i < payloadLength; i++)
+      datagram[UdpTnoDataReq.HEADER_SIZE + i] = (byte) i;
+    return datagram;
+  }
+
+  public static BtpSap_DataReqContainer createRequest (final int trafficClass, final int payloadLength)
+  {
+    return new BtpSap_DataReqContainer (
+      BtpSapTypes.BtpType.BTP_B,                                   // btpType
+      500,                                                         // btpSrcPort
+      2001,                                                        // btpDstPort
+      0,                                                           // btpDstPortInfo
+      BtpSapTypes.GnTransportType.GN_SHB,                          // gnTransportType
+      null,                                                        // gnDst
+      BtpSapTypes.GnCommunicationsProfile.GN_COMPROF_ITSG5,        // gnCommProfile
+      null,                                                        // gnSecProfile
+      5000,                                                        // gnMaxLifetime_ms
+      null,                                                        // gnRepInterval_ms
+      null,                                                        // gnMaxRepTime_ms
+      1,                                                           // gnMaxHopLimit
+      new BtpSapTypes.DefaultGnTrafficClass ((byte) trafficClass), // gnTrafficClass
+      payloadLength,                                               // length
+      0,                                                           // offset
+      new byte[payloadLength]                                      // data
+    );
+  }
+
+  public static BtpSap_DataIndContainer createIndication (final int payloadLength)
+  {
+    return new BtpSap_DataIndContainer (
+      2001,                                             // btpSrcPort
+      2001,                                             // btpDstPort
+      null,                                             // btpDstPortInfo
+      null,                                             // gnDstAddress
+      null,                                             // gnSrcPV
+      null,                                             // gnSecReport
+      null,                                             // gnCertId
+      null,                                             // gnPermissions
+      new BtpSapTypes.DefaultGnTrafficClass ((byte) 2), // gnTrafficClass
+      null,                                             // gnRemLifetime_s
+      payloadLength,                                    // length
+      0,                                                // offset
+      new byte[payloadLength]                           // data
+    );
+  }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 Jan de Jongh, TNO.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package net.etsi.btpsap.bench;
+
+import java.util.concurrent.TimeUnit;
+import net.etsi.btpsap.BtpSap_DataReqContainer;
+import net.etsi.btpsap.operational.client.udp.tno.UdpTnoDataReq;
+import net.etsi.btpsap.operational.server.avgn.local.AvgnLocalServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmarks for the BTP header construction in {@link AvgnLocalServer#doRequest}.
+ *
+ * <p>
+ * Both a heap request and a (flyweight) request decoded from a datagram are used as source.
+ *
+ */
+@State (Scope.Thread)
+@BenchmarkMode ({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class BtpHeaderBenchmark
+{
+
+  @Param ({"64", "300", "1000"})
+  public int payloadLength;
+
+  private BtpSap_DataReqContainer heapRequest;
+
+  private UdpTnoDataReq flyweightRequest;
+
+  @Setup
+  public void setup ()
+  {
+    this.heapRequest = BenchmarkFixtures.createRequest (2, this.payloadLength);
+    final byte[] datagram = BenchmarkFixtures.createTnoRequestDatagram (7, 2, this.payloadLength);
+    this.flyweightRequest = new UdpTnoDataReq ();
+    if (! this.flyweightRequest.wrap (datagram, 0, datagram.length))
+      throw new IllegalStateException (this.flyweightRequest.getDecodeError ());
+  }
+
+  @Benchmark
+  public byte[] btpHeaderHeapRequest ()
+  {
+    return AvgnLocalServer.createBtpPacketData (this.heapRequest, false);
+  }
+
+  @Benchmark
+  public byte[] btpHeaderFlyweightRequest ()
+  {
+    return AvgnLocalServer.createBtpPacketData (this.flyweightRequest, false);
+  }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2016 Jan de Jongh, TNO.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package net.etsi.btpsap.bench;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import net.etsi.btpsap.BtpSap_DataConf;
+import net.etsi.btpsap.BtpSap_DataIndContainer;
+import net.etsi.btpsap.BtpSap_DataReqContainer;
+import net.etsi.btpsap.operational.BtpSapClient;
+import net.etsi.btpsap.operational.OperationalBtpSapServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** An in-process request/indication round trip through {@link OperationalBtpSapServer}.
+ *
+ * <p>
+ * A request from a stub client is routed (TC-based) to a loopback server,
+ * which indicates it straight back to the client as if it had been received over the air.
+ * Each invocation waits for the indication to arrive, so the latency (sample time) covers routing,
+ * dispatch (queueing) and indication fan-out.
+ *
+ */
+@State (Scope.Benchmark)
+@BenchmarkMode ({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class EndToEndBenchmark
+{
+
+  @Param ({"300"})
+  public int payloadLength;
+
+  private OperationalBtpSapServer btpSap;
+
+  private BenchmarkFixtures.StubClient client;
+
+  private BtpSap_DataReqContainer request;
+
+  /** A server that indicates each request back to its client.
+   *
+   */
+  private static final class LoopbackServer
+  extends BenchmarkFixtures.StubServer
+  {
+
+    private LoopbackServer (final OperationalBtpSapServer btpSap, final BtpSap_DataIndContainer indication)
+    {
+      super ("loopback");
+      this.btpSap = btpSap;
+      this.indication = indication;
+    }
+
+    private final OperationalBtpSapServer btpSap;
+
+    private final BtpSap_DataIndContainer indication;
+
+    @Override
+    public BtpSap_DataConf doRequest (final BtpSapClient client, final BtpSap_DataReqContainer request)
+    {
+      super.doRequest (client, request);
+      this.btpSap.doIndicationFromServer (this, this.indication, Collections.singleton (client));
+      return null;
+    }
+
+  }
+
+  @Setup
+  public void setup ()
+  {
+    this.btpSap = new OperationalBtpSapServer (false);
+    final LoopbackServer server = new LoopbackServer (this.btpSap, BenchmarkFixtures.createIndication (this.payloadLength));
+    this.btpSap.registerServer (server);
+    this.client = new BenchmarkFixtures.StubClient ("client");
+    this.btpSap.registerClient (this.client);
+    this.btpSap.getDb ().addTcRequestRouting (this.client, 0, 64, server);
+    this.request = BenchmarkFixtures.createRequest (2, this.payloadLength);
+    this.btpSap.startBtpSap ();
+  }
+
+  @TearDown
+  public void tearDown ()
+  {
+    this.btpSap.stopBtpSap ();
+  }
+
+  @Benchmark
+  public long requestIndicationRoundTrip ()
+  {
+    final long target = this.client.getIndications () + 1;
+    this.btpSap.doRequestFromClient (this.client, this.request, null);
+    long indications;
+    while ((indications = this.client.getIndications ()) < target)
+      Thread.yield ();
+    return indications;
+  }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2016 Jan de Jongh, TNO.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package net.etsi.btpsap.bench;
+
+import java.util.concurrent.TimeUnit;
+import net.etsi.btpsap.operational.BtpSapClient;
+import net.etsi.btpsap.operational.BtpSapServer;
+import net.etsi.btpsap.operational.OperationalBtpSapDB;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Benchmarks for the {@link OperationalBtpSapDB} lookups on the request path, with and without concurrent reconfiguration.
+ *
+ * <p>
+ * In the {@code contended} group, three threads do data-plane lookups while a fourth thread continuously
+ * changes the TC-based request routing of a client, as the CLI would.
+ *
+ */
+@State (Scope.Group)
+@BenchmarkMode ({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class RoutingBenchmark
+{
+
+  @Param ({"16", "256"})
+  public int numberOfClients;
+
+  private OperationalBtpSapDB db;
+
+  private BtpSapClient[] clients;
+
+  private BtpSapServer[] servers;
+
+  @Setup
+  public void setup ()
+  {
+    this.db = new OperationalBtpSapDB ();
+    this.servers = new BtpSapServer[4];
+    for (int s = 0; s < this.servers.length; s++)
+    {
+      this.servers[s] = new BenchmarkFixtures.StubServer ("server-" + s);
+      this.db.addServer (this.servers[s]);
+    }
+    this.clients = new BtpSapClient[this.numberOfClients];
+    for (int c = 0; c < this.clients.length; c++)
+    {
+      this.clients[c] = new BenchmarkFixtures.StubClient ("client-" + c);
+      this.db.addClient (this.clients[c]);
+      this.db.addTcRequestRouting (this.clients[c], 0, 32, this.servers[0]);
+      this.db.addTcRequestRouting (this.clients[c], 16, 64, this.servers[c % this.servers.length]);
+    }
+  }
+
+  @State (Scope.Thread)
+  public static class Cursor
+  {
+    private int next = 0;
+  }
+
+  private void lookup (final Cursor cursor, final Blackhole blackhole)
+  {
+    final int c = cursor.next++ % this.numberOfClients;
+    final BtpSapClient client = this.db.getClient (c);
+    blackhole.consume (this.db.containsClient (client));
+    blackhole.consume (this.db.getTcRequestTargets (client, cursor.next & 0x3f));
+  }
+
+  /** Data-plane lookups without concurrent reconfiguration.
+   *
+   */
+  @Benchmark
+  @Group ("uncontended")
+  public void lookupUncontended (final Cursor cursor, final Blackhole blackhole)
+  {
+    lookup (cursor, blackhole);
+  }
+
+  /** The (monitor-protected) {@link OperationalBtpSapDB#getTcRequestRouting(BtpSapClient, int)} for comparison.
+   *
+   */
+  @Benchmark
+  @Group ("legacy")
+  public void lookupLegacy (final Cursor cursor, final Blackhole blackhole)
+  {
+    final int c = cursor.next++ % this.numberOfClients;
+    blackhole.consume (this.db.getTcRequestRouting (this.clients[c], cursor.next & 0x3f));
+  }
+
+  @Benchmark
+  @Group ("contended")
+  @GroupThreads (3)
+  public void lookupContended (final Cursor cursor, final Blackhole blackhole)
+  {
+    lookup (cursor, blackhole);
+  }
+
+  @Benchmark
+  @Group ("contended")
+  @GroupThreads (1)
+  public void reconfigure (final Cursor cursor)
+  {
+    final BtpSapClient client = this.clients[0];
+    if ((cursor.next++ & 1) == 0)
+      this.db.addTcRequestRouting (client, 40, 48, this.servers[1]);
+    else
+      this.db.clearTcRequestRouting (client, this.servers[1]);
+  }
+
+}
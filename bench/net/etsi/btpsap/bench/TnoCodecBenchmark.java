@@ -0,0 +1,116 @@
+/*
+ * Copyright 2016 Jan de Jongh, TNO.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package net.etsi.btpsap.bench;
+
+import java.util.concurrent.TimeUnit;
+import net.etsi.btpsap.BtpSap_DataIndContainer;
+import net.etsi.btpsap.operational.client.udp.tno.UdpTnoDataInd;
+import net.etsi.btpsap.operational.client.udp.tno.UdpTnoDataReq;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Benchmarks for decoding BTP/UDP[TNO] request datagrams and encoding indication datagrams.
+ *
+ * <p>
+ * Run with {@code -prof gc} to obtain allocation rates; decoding is expected to be allocation-free.
+ *
+ */
+@State (Scope.Thread)
+@BenchmarkMode ({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+@Warmup (iterations = 5, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class TnoCodecBenchmark
+{
+
+  @Param ({"64", "300", "1000"})
+  public int payloadLength;
+
+  @Param ({"16"})
+  public int numberOfClients;
+
+  private byte[] requestDatagram;
+
+  private UdpTnoDataReq request;
+
+  private BtpSap_DataIndContainer indication;
+
+  private byte[] sendBuffer;
+
+  @Setup
+  public void setup ()
+  {
+    this.requestDatagram = BenchmarkFixtures.createTnoRequestDatagram (7, 2, this.payloadLength);
+    this.request = new UdpTnoDataReq ();
+    this.indication = BenchmarkFixtures.createIndication (this.payloadLength);
+    this.sendBuffer = new byte[UdpTnoDataInd.HEADER_SIZE + this.payloadLength + 4];
+  }
+
+  /** Decodes a request datagram and reads the fields used for routing and sending.
+   *
+   * <p>
+   * This is the decoding part of {@code UdpTnoClientProtocolHandler.udpPacket}.
+   *
+   */
+  @Benchmark
+  public void decodeRequest (final Blackhole blackhole)
+  {
+    if (! this.request.wrap (this.requestDatagram, 0, this.requestDatagram.length))
+      throw new IllegalStateException (this.request.getDecodeError ());
+    blackhole.consume (this.request.getClientId ());
+    blackhole.consume (this.request.getUnitsLow ());
+    blackhole.consume (this.request.getBtpType ());
+    blackhole.consume (this.request.getGnTransportType ());
+    blackhole.consume (this.request.getBtpDestinationPort ());
+    blackhole.consume (this.request.getGnTrafficClass ().toByte ());
+    blackhole.consume (this.request.getMaxLifeTime_ms ());
+    blackhole.consume (this.request.getLength ());
+  }
+
+  /** Encodes an indication (for a single client).
+   *
+   */
+  @Benchmark
+  public UdpTnoDataInd encodeIndication ()
+  {
+    this.indication.setEncoding (null);
+    return UdpTnoDataInd.encode (this.indication);
+  }
+
+  /** Encodes an indication once, and copies it out for a number of clients, as done upon fan-out.
+   *
+   */
+  @Benchmark
+  public void encodeIndicationFanOut (final Blackhole blackhole)
+  {
+    this.indication.setEncoding (null);
+    for (int c = 0; c < this.numberOfClients; c++)
+      blackhole.consume (UdpTnoDataInd.encode (this.indication).copyTo (c, this.sendBuffer, 0));
+  }
+
+}
@@ -150,4 +150,35 @@ public class BtpSap_DataIndContainer
     this.data = data;
   }
 
+  /** A cached (transport-specific) encoding of this indication; {@code null} if none.
+   * 
+   */
+  private volatile Object encoding = null;
+  
+  /** Returns the cached encoding of this indication, if any.
+   * 
+   * <p>
+   * The cache allows an indication that is fanned out to many clients to be encoded only once.
+   * 
+   * @return The cached encoding, {@code null} if none.
+   * 
+   */
+  public final Object getEncoding ()
+  {
+    return this.encoding;
+  }
+  
+  /** Caches an encoding of this indication.
+   * 
+   * <p>
+   * Since the indication is immutable, concurrent encoders may (harmlessly) overwrite each other's encodings.
+   * 
+   * @param encoding The encoding, must be immutable; may be {@code null} to clear the cache.
+   * 
+   */
+  public final void setEncoding (final Object encoding)
+  {
+    this.encoding = encoding;
+  }
+
 }
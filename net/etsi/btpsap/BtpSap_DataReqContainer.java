@@ -113,7 +113,105 @@ public class BtpSap_DataReqContainer
     this.offset = offset;
     this.data = data;
   }
+
+  /** Creates a self-contained copy of a request, including a copy of its payload.
+   * 
+   * <p>
+   * Unlike the original, which may be backed by a pooled (receive) buffer,
+   * the copy may be held on to indefinitely without retaining it.
+   * 
+   * @param request The request, non-{@code null}.
+   * 
+   * @return The copy.
+   * 
+   */
+  public static BtpSap_DataReqContainer copyOf (final BtpSap_DataReqContainer request)
+  {
+    if (request == null)
+      throw new IllegalArgumentException ();
+    final byte[] data = new byte[request.getLength ()];
+    if (request.getLength () > 0)
+      System.arraycopy (request.getData (), request.getOffset (), data, 0, request.getLength ());
+    return new BtpSap_DataReqContainer
+      (request.getBtpType (),
+       request.getBtpSrcPort (),
+       request.getBtpDestinationPort (),
+       request.getBtpDstPortInfo (),
+       request.getGnTransportType (),
+       copyOf (request.getGnDestination ()),
+       request.getGnCommunicationsProfile (),
+       copyOf (request.getGnSecurityProfile ()),
+       request.hasMaxLifetime () ? request.getMaxLifeTime_ms () : null,
+       request.hasRepInterval () ? request.getRepInterval_ms () : null,
+       request.hasMaxRepTime () ? request.getMaxRepTime_ms () : null,
+       request.getGnMaxHopLimit (),
+       new BtpSapTypes.DefaultGnTrafficClass (request.getGnTrafficClass ().toByte ()),
+       data.length,
+       0,
+       data);
+  }
   
+  private static GnDestination copyOf (final GnDestination gnDestination)
+  {
+    if (gnDestination == null)
+      return null;
+    switch (gnDestination.getGnDestinationType ())
+    {
+      case GN_DEST_UC:
+      {
+        final long address = gnDestination.getGnUnicastAddress ().toLong ();
+        final byte[] addressBytes = new byte[8];
+        for (int i = 0; i < 8; i++)
+          addressBytes[i] = (byte) (address >>> (56 - 8 * i));
+        return new BtpSapTypes.DefaultGnDestination (new BtpSapTypes.DefaultGnAddress (addressBytes));
+      }
+      case GN_DEST_GBC_AC:
+      {
+        final BtpSapTypes.GnArea area = gnDestination.getGnArea ();
+        return new BtpSapTypes.DefaultGnDestination (new BtpSapTypes.DefaultGnArea
+          (area.getAreaShape (),
+           area.getLatitude (), area.getLongitude (),
+           area.getDistanceA_m (), area.getDistanceB_m (),
+           area.getAngle_degrees ()));
+      }
+      default:
+        throw new IllegalArgumentException ();
+    }
+  }
+  
+  private static GnSecurityProfile copyOf (final GnSecurityProfile gnSecurityProfile)
+  {
+    if (gnSecurityProfile == null || gnSecurityProfile.getProfileBytes () == null)
+      return null;
+    return new BtpSapTypes.DefaultGnSecurityProfile (gnSecurityProfile.getProfileBytes ());
+  }
+
+  /** Creates an empty container, for use by flyweight subclasses that decode the request fields on demand.
+   *
+   * <p>
+   * Subclasses using this constructor must override all getters.
+   *
+   */
+  protected BtpSap_DataReqContainer ()
+  {
+    this.btpType = null;
+    this.btpSrcPort = null;
+    this.btpDstPort = 0;
+    this.btpDstPortInfo = null;
+    this.gnTransportType = null;
+    this.gnDst = null;
+    this.gnCommProfile = null;
+    this.gnSecProfile = null;
+    this.gnMaxLifetime_ms = null;
+    this.gnRepInterval_ms = null;
+    this.gnMaxRepTime_ms = null;
+    this.gnMaxHopLimit = 0;
+    this.gnTrafficClass = null;
+    this.length = 0;
+    this.offset = 0;
+    this.data = null;
+  }
+
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   //
   // BTP TYPE
@@ -122,7 +220,7 @@ public class BtpSap_DataReqContainer
   
   private final BtpType btpType;
   
-  public final BtpType getBtpType ()
+  public BtpType getBtpType ()
   {
     return this.btpType;
   }
@@ -135,10 +233,23 @@ public class BtpSap_DataReqContainer
   
   private final Integer btpSrcPort;
 
-  public final Integer getBtpSrcPort ()
+  public Integer getBtpSrcPort ()
   {
     return this.btpSrcPort;
   }
+
+  public boolean hasBtpSrcPort ()
+  {
+    return this.btpSrcPort != null;
+  }
+
+  public int getBtpSrcPortAsInt ()
+  {
+    if (this.btpSrcPort == null)
+      return 0;
+    else
+      return this.btpSrcPort;
+  }
   
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   //
@@ -148,7 +259,7 @@ public class BtpSap_DataReqContainer
   
   private final int btpDstPort;
   
-  public final int getBtpDestinationPort ()
+  public int getBtpDestinationPort ()
   {
     return this.btpDstPort;
   }
@@ -161,10 +272,23 @@ public class BtpSap_DataReqContainer
   
   private final Integer btpDstPortInfo;
 
-  public final Integer getBtpDstPortInfo ()
+  public Integer getBtpDstPortInfo ()
   {
     return this.btpDstPortInfo;
   }
+
+  public boolean hasBtpDstPortInfo ()
+  {
+    return this.btpDstPortInfo != null;
+  }
+
+  public int getBtpDstPortInfoAsInt ()
+  {
+    if (this.btpDstPortInfo == null)
+      return 0;
+    else
+      return this.btpDstPortInfo;
+  }
     
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   //
@@ -174,7 +298,7 @@ public class BtpSap_DataReqContainer
   
   private final GnTransportType gnTransportType;
   
-  public final GnTransportType getGnTransportType ()
+  public GnTransportType getGnTransportType ()
   {
     return this.gnTransportType;
   }
@@ -187,7 +311,7 @@ public class BtpSap_DataReqContainer
   
   private final GnDestination gnDst;
 
-  public final GnDestination getGnDestination ()
+  public GnDestination getGnDestination ()
   {
     return this.gnDst;
   }
@@ -199,7 +323,12 @@ public class BtpSap_DataReqContainer
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   
   private final GnCommunicationsProfile gnCommProfile;
-    
+
+  public GnCommunicationsProfile getGnCommunicationsProfile ()
+  {
+    return this.gnCommProfile;
+  }
+
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   //
   // GN SECURITY PROFILE [OPTIONAL]
@@ -207,7 +336,12 @@ public class BtpSap_DataReqContainer
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
     
   private final GnSecurityProfile gnSecProfile;
-  
+
+  public GnSecurityProfile getGnSecurityProfile ()
+  {
+    return this.gnSecProfile;
+  }
+
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   //
   // GN MAXIMUM LIFETIME [OPTIONAL]
@@ -216,12 +350,12 @@ public class BtpSap_DataReqContainer
   
   private final Integer gnMaxLifetime_ms;
   
-  public final boolean hasMaxLifetime ()
+  public boolean hasMaxLifetime ()
   {
     return this.gnMaxLifetime_ms != null;
   }
   
-  public final int getMaxLifeTime_ms ()
+  public int getMaxLifeTime_ms ()
   {
     if (this.gnMaxLifetime_ms == null)
       return 0;
@@ -235,7 +369,20 @@ public class BtpSap_DataReqContainer
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   
   private final Integer gnRepInterval_ms;
-  
+
+  public boolean hasRepInterval ()
+  {
+    return this.gnRepInterval_ms != null;
+  }
+
+  public int getRepInterval_ms ()
+  {
+    if (this.gnRepInterval_ms == null)
+      return 0;
+    else
+      return this.gnRepInterval_ms;
+  }
+
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   //
   // GN MAXIMUM REPITITION TIME [OPTIONAL]
@@ -243,7 +390,20 @@ public class BtpSap_DataReqContainer
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   
   private final Integer gnMaxRepTime_ms;
-  
+
+  public boolean hasMaxRepTime ()
+  {
+    return this.gnMaxRepTime_ms != null;
+  }
+
+  public int getMaxRepTime_ms ()
+  {
+    if (this.gnMaxRepTime_ms == null)
+      return 0;
+    else
+      return this.gnMaxRepTime_ms;
+  }
+
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   //
   // GN MAXIMUM HOP LIMIT
@@ -252,7 +412,7 @@ public class BtpSap_DataReqContainer
   
   private final int gnMaxHopLimit;
 
-  public final int getGnMaxHopLimit ()
+  public int getGnMaxHopLimit ()
   {
     return this.gnMaxHopLimit;
   }
@@ -265,7 +425,7 @@ public class BtpSap_DataReqContainer
   
   private final GnTrafficClass gnTrafficClass;
 
-  public final GnTrafficClass getGnTrafficClass ()
+  public GnTrafficClass getGnTrafficClass ()
   {
     return this.gnTrafficClass;
   }
@@ -281,7 +441,7 @@ public class BtpSap_DataReqContainer
    */
   private final int length;
   
-  public final int getLength ()
+  public int getLength ()
   {
     return this.length;
   }
@@ -291,16 +451,96 @@ public class BtpSap_DataReqContainer
    */
   private final int offset;
   
-  public final int getOffset ()
+  public int getOffset ()
   {
     return this.offset;
   }
   
   private final byte data[];
   
-  public final byte[] getData ()
+  public byte[] getData ()
   {
     return this.data;
   }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // ARRIVAL TIME [OPTIONAL]
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private boolean hasArrivalTime = false;
+  
+  private long arrivalTime_ns = 0L;
+  
+  /** Returns whether the arrival time of this request has been set (typically at ingress).
+   * 
+   * @return Whether the arrival time of this request has been set.
+   * 
+   */
+  public boolean hasArrivalTime ()
+  {
+    return this.hasArrivalTime;
+  }
+  
+  /** Returns the arrival time of this request, in terms of {@link System#nanoTime}.
+   * 
+   * @return The arrival time, zero if not set.
+   * 
+   */
+  public long getArrivalTime_ns ()
+  {
+    return this.arrivalTime_ns;
+  }
+  
+  /** Sets the arrival time of this request, in terms of {@link System#nanoTime}.
+   * 
+   * <p>
+   * Together with the maximum lifetime (if present), the arrival time determines the deadline of the request,
+   * after which it is no longer sent.
+   * 
+   * @param arrivalTime_ns The arrival time.
+   * 
+   */
+  public void setArrivalTime_ns (final long arrivalTime_ns)
+  {
+    this.arrivalTime_ns = arrivalTime_ns;
+    this.hasArrivalTime = true;
+  }
   
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // OWNERSHIP
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** Claims (shared) ownership of this request, and of the buffer holding its data.
+   *
+   * <p>
+   * Requests may be backed by pooled (receive) buffers, and are then only valid for the duration of the call
+   * in which they are handed over.
+   * Any party that holds on to a request beyond that call (e.g., by queueing it) must retain it,
+   * and {@link #release} it once it is done with it (e.g., after the request has been sent).
+   *
+   * <p>
+   * The default implementation does nothing.
+   *
+   * @return This request, for convenience.
+   *
+   */
+  public BtpSap_DataReqContainer retain ()
+  {
+    return this;
+  }
+
+  /** Gives up a claim of ownership obtained through {@link #retain}.
+   *
+   * <p>
+   * The default implementation does nothing.
+   *
+   */
+  public void release ()
+  {
+  }
+
 }
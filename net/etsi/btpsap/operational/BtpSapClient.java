@@ -18,4 +18,24 @@ extends BtpSapEntity
  
   BtpSap_DataResp doIndication (BtpSapServer server, BtpSap_DataIndContainer indication);
   
+  /** Returns the id assigned to this client by the database it is registered with.
+   * 
+   * <p>
+   * The id is kept on the client itself, so the data plane can resolve it without a (hash) lookup.
+   * A client can be registered with at most one database at a time.
+   * 
+   * @return The client id, -1 if not registered.
+   * 
+   * @see OperationalBtpSapDB#addClient
+   * 
+   */
+  int getBtpSapClientId ();
+  
+  /** Sets the id of this client; only to be called by the database upon (un)registration.
+   * 
+   * @param clientId The client id, -1 upon unregistration.
+   * 
+   */
+  void setBtpSapClientId (int clientId);
+  
 }
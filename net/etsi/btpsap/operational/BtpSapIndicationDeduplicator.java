@@ -0,0 +1,259 @@
+/*
+ * Copyright 2016 Jan de Jongh, TNO.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package net.etsi.btpsap.operational;
+
+import java.util.concurrent.TimeUnit;
+import net.etsi.btpsap.BtpSapTypes;
+import net.etsi.btpsap.BtpSap_DataIndContainer;
+
+/** Detects indications delivered to a client (from any server) before, within a time window.
+ *
+ * <p>
+ * With multiple servers attached to the same medium (e.g., a CCH and an SCH1 stack, or multiple radios),
+ * the same GN packet is often received more than once; the deduplicator allows it to be delivered to each client only once.
+ * Duplicates are detected per client, so a client receiving from only one of the servers still receives the packet.
+ *
+ * <p>
+ * Indications are identified by a 64-bit fingerprint of their source position, their BTP ports and their payload,
+ * computed once per indication (see {@link #fingerprint}), and combined with the client id into a key;
+ * keys are kept in a fixed-size open-addressing table, split into independently locked segments.
+ * A check probes a bounded number of slots, and therefore takes constant time (apart from hashing the payload).
+ * Entries expire after the window; if all slots probed are in use, the oldest entry is evicted,
+ * so under (very) heavy load a duplicate may go undetected, but the memory used is bounded.
+ *
+ */
+public class BtpSapIndicationDeduplicator
+{
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTANTS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  public final static long DEFAULT_WINDOW_MS = 1000L;
+
+  public final static int DEFAULT_CAPACITY = 8192;
+
+  /** The number of segments; each segment has its own lock.
+   *
+   */
+  private final static int SEGMENTS = 16;
+
+  /** The maximum number of slots probed per check.
+   *
+   */
+  private final static int MAX_PROBES = 8;
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTRUCTOR(S) / CLONING / FACTORY
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** Creates a deduplicator.
+   *
+   * @param window_ms The time window in milliseconds, strictly positive.
+   * @param capacity  The (total) number of keys held, a power of two of at least 128.
+   *
+   */
+  public BtpSapIndicationDeduplicator (final long window_ms, final int capacity)
+  {
+    if (window_ms <= 0 || capacity < SEGMENTS * MAX_PROBES || Integer.bitCount (capacity) != 1)
+      throw new IllegalArgumentException ();
+    this.window_ms = window_ms;
+    this.window_ns = TimeUnit.MILLISECONDS.toNanos (window_ms);
+    this.capacity = capacity;
+    this.segments = new Segment[SEGMENTS];
+    for (int s = 0; s < SEGMENTS; s++)
+      this.segments[s] = new Segment (capacity / SEGMENTS);
+  }
+
+  public BtpSapIndicationDeduplicator (final long window_ms)
+  {
+    this (window_ms, BtpSapIndicationDeduplicator.DEFAULT_CAPACITY);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return "BtpSapIndicationDeduplicator[" + this.window_ms + "ms, " + this.capacity + "]";
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // WINDOW / CAPACITY
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final long window_ms;
+
+  private final long window_ns;
+
+  private final int capacity;
+
+  public final long getWindow_ms ()
+  {
+    return this.window_ms;
+  }
+
+  public final int getCapacity ()
+  {
+    return this.capacity;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // FINGERPRINT
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final static long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+  private final static long FNV_PRIME = 0x100000001b3L;
+
+  private static long mix (final long hash, final long value)
+  {
+    return (hash ^ value) * FNV_PRIME;
+  }
+
+  /** Returns the (non-zero) fingerprint of given indication.
+   *
+   * @param indication The indication, non-{@code null}.
+   *
+   * @return The fingerprint; never zero.
+   *
+   */
+  public static long fingerprint (final BtpSap_DataIndContainer indication)
+  {
+    long hash = FNV_OFFSET_BASIS;
+    final BtpSapTypes.GnPositionVector srcPV = indication.getGnSrcPV ();
+    if (srcPV != null)
+    {
+      hash = mix (hash, Double.doubleToLongBits (srcPV.getLatitude ()));
+      hash = mix (hash, Double.doubleToLongBits (srcPV.getLongitude ()));
+    }
+    hash = mix (hash, indication.getBtpSrcPort () != null ? indication.getBtpSrcPort () : -1);
+    hash = mix (hash, indication.getBtpDstPort ());
+    hash = mix (hash, indication.getBtpDstPortInfo () != null ? indication.getBtpDstPortInfo () : -1);
+    hash = mix (hash, indication.getLength ());
+    final byte[] data = indication.getData ();
+    if (data != null)
+      for (int i = indication.getOffset (); i < indication.getOffset () + indication.getLength (); i++)
+        hash = mix (hash, data[i] & 0xff);
+    return spread (hash);
+  }
+
+  /** Returns the (non-zero) key of an indication fingerprint for given client.
+   *
+   */
+  private static long key (final long fingerprint, final int clientId)
+  {
+    return spread (mix (fingerprint, clientId));
+  }
+
+  /** Finalizes (MurmurHash3) a hash, spreading its bits over both segment and slot selection; never returns zero.
+   *
+   */
+  private static long spread (long hash)
+  {
+    hash ^= (hash >>> 33);
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= (hash >>> 33);
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= (hash >>> 33);
+    return hash != 0L ? hash : 1L;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // SEGMENT
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** An open-addressing (linear probing) table of keys and the times they were first seen.
+   *
+   * <p>
+   * A zero key denotes an empty slot.
+   *
+   */
+  private final class Segment
+  {
+
+    private Segment (final int size)
+    {
+      this.keys = new long[size];
+      this.times_ns = new long[size];
+      this.mask = size - 1;
+    }
+
+    private final long[] keys;
+
+    private final long[] times_ns;
+
+    private final int mask;
+
+    private synchronized boolean checkAndAdd (final long key, final long now_ns)
+    {
+      final long window_ns = BtpSapIndicationDeduplicator.this.window_ns;
+      final int first = (int) key & this.mask;
+      int victim = -1;
+      boolean victimLive = false;
+      for (int p = 0; p < MAX_PROBES; p++)
+      {
+        final int slot = (first + p) & this.mask;
+        final boolean live = this.keys[slot] != 0L && now_ns - this.times_ns[slot] <= window_ns;
+        if (live && this.keys[slot] == key)
+          return true;
+        // Prefer the first empty or expired slot; otherwise evict the oldest entry probed.
+        if (victim < 0 || (victimLive && (! live || this.times_ns[slot] - this.times_ns[victim] < 0L)))
+        {
+          victim = slot;
+          victimLive = live;
+        }
+      }
+      this.keys[victim] = key;
+      this.times_ns[victim] = now_ns;
+      return false;
+    }
+
+  }
+
+  private final Segment[] segments;
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CHECK
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** Checks whether an indication was delivered to given client within the window, and registers it if not.
+   *
+   * @param fingerprint The fingerprint of the indication, see {@link #fingerprint}.
+   * @param clientId    The client id.
+   * @param now_ns      The current time, as from {@link System#nanoTime}.
+   *
+   * @return Whether the indication is a duplicate for the client (and should be suppressed).
+   *
+   */
+  public final boolean isDuplicate (final long fingerprint, final int clientId, final long now_ns)
+  {
+    final long key = key (fingerprint, clientId);
+    return this.segments[(int) (key >>> 60) & (SEGMENTS - 1)].checkAndAdd (key, now_ns);
+  }
+
+}
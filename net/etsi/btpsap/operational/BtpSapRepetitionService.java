@@ -0,0 +1,525 @@
+/*
+ * Copyright 2016 Jan de Jongh, TNO.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package net.etsi.btpsap.operational;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.etsi.btpsap.BtpSap_DataReqContainer;
+
+/** Repeats requests at their repetition interval ({@code gnRepInterval_ms}) until their maximum repetition time
+ *  ({@code gnMaxRepTime_ms}) has elapsed.
+ *
+ * <p>
+ * Repetitions are kept in a hashed timer wheel with a fixed tick;
+ * scheduling and cancelling a repetition takes constant time, irrespective of the number of repetitions.
+ * Repetitions are also linked per client, so all repetitions of a client can be cancelled (e.g., when it disconnects)
+ * in time proportional to their number.
+ *
+ * <p>
+ * Repeated requests are (self-contained) copies of the original, see {@link BtpSap_DataReqContainer#copyOf}.
+ * Upon expiry of its interval, a repetition is handed to the {@link OperationalBtpSapServer} for dispatching,
+ * which re-issues it to the servers of the original request (as far as they are still registered).
+ *
+ */
+public class BtpSapRepetitionService
+{
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // LOG
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private static final Logger LOG = Logger.getLogger (BtpSapRepetitionService.class.getName ());
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTRUCTOR(S) / CLONING / FACTORY
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  public BtpSapRepetitionService (final OperationalBtpSapServer btpSap, final long tick_ms, final int wheelSize)
+  {
+    if (btpSap == null || tick_ms <= 0 || wheelSize <= 0 || Integer.bitCount (wheelSize) != 1)
+      throw new IllegalArgumentException ();
+    this.btpSap = btpSap;
+    this.tick_ns = TimeUnit.MILLISECONDS.toNanos (tick_ms);
+    this.wheel = new Repetition[wheelSize];
+    for (int b = 0; b < wheelSize; b++)
+      this.wheel[b] = new Repetition ();
+    this.mask = wheelSize - 1;
+  }
+
+  public BtpSapRepetitionService (final OperationalBtpSapServer btpSap)
+  {
+    this (btpSap, BtpSapRepetitionService.DEFAULT_TICK_MS, BtpSapRepetitionService.DEFAULT_WHEEL_SIZE);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return "BtpSapRepetitionService[" + this.btpSap + "]";
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // OperationalBtpSapServer
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final OperationalBtpSapServer btpSap;
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // REPETITION
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** A repeating request, doubly linked into both its wheel bucket and the list of its client.
+   *
+   * <p>
+   * The sentinels of the bucket and client lists are (empty) repetitions as well.
+   *
+   */
+  private static final class Repetition
+  {
+
+    private Repetition ()
+    {
+      this.client = null;
+      this.servers = null;
+      this.request = null;
+      this.interval_ticks = 0L;
+      this.lastTick = 0L;
+      this.bucketPrev = this;
+      this.bucketNext = this;
+      this.clientPrev = this;
+      this.clientNext = this;
+    }
+
+    private Repetition
+    (final BtpSapClient client,
+     final BtpSapServer[] servers,
+     final BtpSap_DataReqContainer request,
+     final long interval_ticks,
+     final long lastTick)
+    {
+      this.client = client;
+      this.servers = servers;
+      this.request = request;
+      this.interval_ticks = interval_ticks;
+      this.lastTick = lastTick;
+    }
+
+    private final BtpSapClient client;
+
+    private final BtpSapServer[] servers;
+
+    private final BtpSap_DataReqContainer request;
+
+    private final long interval_ticks;
+
+    /** The last tick at which the request may be repeated.
+     *
+     */
+    private final long lastTick;
+
+    /** The tick at which the request is to be repeated next.
+     *
+     */
+    private long nextTick;
+
+    private Repetition bucketPrev, bucketNext;
+
+    private Repetition clientPrev, clientNext;
+
+    private void linkAfter (final Repetition bucket)
+    {
+      this.bucketPrev = bucket;
+      this.bucketNext = bucket.bucketNext;
+      bucket.bucketNext.bucketPrev = this;
+      bucket.bucketNext = this;
+    }
+
+    private void unlink ()
+    {
+      this.bucketPrev.bucketNext = this.bucketNext;
+      this.bucketNext.bucketPrev = this.bucketPrev;
+      this.bucketPrev = null;
+      this.bucketNext = null;
+    }
+
+    private void linkClientAfter (final Repetition clientList)
+    {
+      this.clientPrev = clientList;
+      this.clientNext = clientList.clientNext;
+      clientList.clientNext.clientPrev = this;
+      clientList.clientNext = this;
+    }
+
+    private void unlinkClient ()
+    {
+      this.clientPrev.clientNext = this.clientNext;
+      this.clientNext.clientPrev = this.clientPrev;
+      this.clientPrev = null;
+      this.clientNext = null;
+    }
+
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // TIMER WHEEL
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  public final static long DEFAULT_TICK_MS = 10L;
+
+  public final static int DEFAULT_WHEEL_SIZE = 512;
+
+  private final long tick_ns;
+
+  private final ReentrantLock lock = new ReentrantLock ();
+
+  // Guarded by lock; the bucket sentinels.
+  private final Repetition[] wheel;
+
+  private final int mask;
+
+  // Guarded by lock; the client-list sentinels.
+  private final Map<BtpSapClient, Repetition> clientRepetitions = new IdentityHashMap<> ();
+
+  // Guarded by lock.
+  private long currentTick = 0L;
+
+  // Guarded by lock.
+  private int numberOfRepetitions = 0;
+
+  /** Returns the number of requests currently being repeated.
+   *
+   * @return The number of requests currently being repeated.
+   *
+   */
+  public final int getNumberOfRepetitions ()
+  {
+    this.lock.lock ();
+    try
+    {
+      return this.numberOfRepetitions;
+    }
+    finally
+    {
+      this.lock.unlock ();
+    }
+  }
+
+  /** Inserts a repetition into the wheel; with the lock held.
+   *
+   */
+  private void insert (final Repetition repetition, final long tick)
+  {
+    repetition.nextTick = tick;
+    repetition.linkAfter (this.wheel[(int) tick & this.mask]);
+  }
+
+  /** Removes a repetition from the wheel and from the list of its client; with the lock held.
+   *
+   */
+  private void remove (final Repetition repetition)
+  {
+    repetition.unlink ();
+    final Repetition clientList = this.clientRepetitions.get (repetition.client);
+    repetition.unlinkClient ();
+    if (clientList != null && clientList.clientNext == clientList)
+      this.clientRepetitions.remove (repetition.client);
+    this.numberOfRepetitions--;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // COUNTERS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final AtomicLong scheduledCount = new AtomicLong ();
+
+  public final long getScheduledCount ()
+  {
+    return this.scheduledCount.get ();
+  }
+
+  private final AtomicLong repeatedCount = new AtomicLong ();
+
+  /** Returns the number of times a request was repeated.
+   *
+   * @return The number of repetitions issued.
+   *
+   */
+  public final long getRepeatedCount ()
+  {
+    return this.repeatedCount.get ();
+  }
+
+  private final AtomicLong cancelledCount = new AtomicLong ();
+
+  public final long getCancelledCount ()
+  {
+    return this.cancelledCount.get ();
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // SCHEDULE / CANCEL
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** Returns whether a request is to be repeated, i.e., whether it has a non-zero repetition interval and maximum repetition time.
+   *
+   * @param request The request, non-{@code null}.
+   *
+   * @return Whether the request is to be repeated.
+   *
+   */
+  public static boolean isRepeated (final BtpSap_DataReqContainer request)
+  {
+    return request.hasRepInterval () && request.getRepInterval_ms () > 0
+      && request.hasMaxRepTime () && request.getMaxRepTime_ms () > 0;
+  }
+
+  /** Schedules the repetitions of a request that has just been issued (for the first time).
+   *
+   * <p>
+   * The request is copied; the caller need not retain it.
+   * Requests that are not to be repeated (see {@link #isRepeated}) are ignored.
+   *
+   * @param client  The client, non-{@code null}.
+   * @param servers The servers to which the request has been issued, non-{@code null}.
+   * @param request The request, non-{@code null}.
+   *
+   * @return Whether repetitions have been scheduled.
+   *
+   */
+  public final boolean schedule (final BtpSapClient client, final BtpSapServer[] servers, final BtpSap_DataReqContainer request)
+  {
+    if (client == null || servers == null || request == null)
+      throw new IllegalArgumentException ();
+    if (! this.started || ! isRepeated (request) || servers.length == 0)
+      return false;
+    final long interval_ticks = Math.max (1L, TimeUnit.MILLISECONDS.toNanos (request.getRepInterval_ms ()) / this.tick_ns);
+    final long maxRepTime_ticks = TimeUnit.MILLISECONDS.toNanos (request.getMaxRepTime_ms ()) / this.tick_ns;
+    if (interval_ticks > maxRepTime_ticks)
+      return false;
+    final BtpSap_DataReqContainer copy = BtpSap_DataReqContainer.copyOf (request);
+    this.lock.lock ();
+    try
+    {
+      final Repetition repetition
+        = new Repetition (client, servers, copy, interval_ticks, this.currentTick + maxRepTime_ticks);
+      insert (repetition, this.currentTick + interval_ticks);
+      Repetition clientList = this.clientRepetitions.get (client);
+      if (clientList == null)
+      {
+        clientList = new Repetition ();
+        this.clientRepetitions.put (client, clientList);
+      }
+      repetition.linkClientAfter (clientList);
+      this.numberOfRepetitions++;
+    }
+    finally
+    {
+      this.lock.unlock ();
+    }
+    this.scheduledCount.incrementAndGet ();
+    return true;
+  }
+
+  /** Cancels all repetitions of requests from given client.
+   *
+   * @param client The client.
+   *
+   * @return The number of repetitions cancelled.
+   *
+   */
+  public final int cancel (final BtpSapClient client)
+  {
+    int cancelled = 0;
+    this.lock.lock ();
+    try
+    {
+      final Repetition clientList = this.clientRepetitions.remove (client);
+      if (clientList == null)
+        return 0;
+      while (clientList.clientNext != clientList)
+      {
+        final Repetition repetition = clientList.clientNext;
+        repetition.unlink ();
+        repetition.unlinkClient ();
+        this.numberOfRepetitions--;
+        cancelled++;
+      }
+    }
+    finally
+    {
+      this.lock.unlock ();
+    }
+    this.cancelledCount.addAndGet (cancelled);
+    return cancelled;
+  }
+
+  /** Cancels all repetitions.
+   *
+   */
+  private void cancelAll ()
+  {
+    this.lock.lock ();
+    try
+    {
+      for (final Repetition bucket : this.wheel)
+      {
+        bucket.bucketNext = bucket;
+        bucket.bucketPrev = bucket;
+      }
+      this.clientRepetitions.clear ();
+      this.cancelledCount.addAndGet (this.numberOfRepetitions);
+      this.numberOfRepetitions = 0;
+    }
+    finally
+    {
+      this.lock.unlock ();
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // START / SHUTDOWN
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private volatile boolean started = false;
+
+  private Thread timerThread = null;
+
+  public final synchronized void start ()
+  {
+    if (this.started)
+      return;
+    this.started = true;
+    this.timerThread = new Thread (new Runnable ()
+    {
+      @Override
+      public void run ()
+      {
+        BtpSapRepetitionService.this.run ();
+      }
+    }, toString ());
+    this.timerThread.setDaemon (true);
+    this.timerThread.start ();
+  }
+
+  /** Stops the timer thread, and cancels all repetitions.
+   *
+   */
+  public final synchronized void shutdown ()
+  {
+    if (! this.started)
+      return;
+    this.started = false;
+    this.timerThread.interrupt ();
+    this.timerThread = null;
+    cancelAll ();
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // TIMER THREAD
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private void run ()
+  {
+    LOG.log (Level.INFO, "Timer for {0} starting!", this.btpSap);
+    final List<Repetition> due = new ArrayList<> ();
+    long nextTickTime_ns = System.nanoTime () + this.tick_ns;
+    while (this.started)
+    {
+      final long sleep_ns = nextTickTime_ns - System.nanoTime ();
+      if (sleep_ns > 0L)
+      {
+        try
+        {
+          TimeUnit.NANOSECONDS.sleep (sleep_ns);
+        }
+        catch (InterruptedException ie)
+        {
+          break;
+        }
+      }
+      nextTickTime_ns += this.tick_ns;
+      this.lock.lock ();
+      try
+      {
+        final long tick = ++this.currentTick;
+        final Repetition bucket = this.wheel[(int) tick & this.mask];
+        Repetition repetition = bucket.bucketNext;
+        while (repetition != bucket)
+        {
+          final Repetition next = repetition.bucketNext;
+          // Repetitions in the bucket may be due in later rounds of the wheel.
+          if (repetition.nextTick <= tick)
+          {
+            due.add (repetition);
+            if (tick + repetition.interval_ticks <= repetition.lastTick)
+            {
+              repetition.unlink ();
+              insert (repetition, tick + repetition.interval_ticks);
+            }
+            else
+              remove (repetition);
+          }
+          repetition = next;
+        }
+      }
+      finally
+      {
+        this.lock.unlock ();
+      }
+      for (int r = 0; r < due.size (); r++)
+      {
+        final Repetition repetition = due.get (r);
+        try
+        {
+          this.btpSap.doRepetition (repetition.client, repetition.servers, repetition.request);
+          this.repeatedCount.incrementAndGet ();
+        }
+        catch (RuntimeException re)
+        {
+          LOG.log (Level.WARNING, "Exception while repeating request from client {0}: {1}.", new Object[]{repetition.client, re});
+        }
+      }
+      due.clear ();
+    }
+    LOG.log (Level.INFO, "Timer for {0} terminating!", this.btpSap);
+  }
+
+}
@@ -16,6 +16,19 @@ extends BtpSapEntity
   
   boolean isActiveBtpSapServer ();
   
+  /** Sends a request from a client.
+   *
+   * <p>
+   * The request (and the buffer holding its data) is only valid for the duration of this call;
+   * implementations that send it asynchronously must {@link BtpSap_DataReqContainer#retain} it,
+   * and {@link BtpSap_DataReqContainer#release} it once it has been sent.
+   *
+   * @param client  The client.
+   * @param request The request.
+   *
+   * @return The confirmation, may be {@code null}.
+   *
+   */
   BtpSap_DataConf doRequest (BtpSapClient client, BtpSap_DataReqContainer request);
   
 }
@@ -0,0 +1,1057 @@
+/*
+ * Copyright 2016 Jan de Jongh, TNO.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package net.etsi.btpsap.operational;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.etsi.btpsap.BtpSapTypes;
+import net.etsi.btpsap.BtpSap_DataReqContainer;
+import net.etsi.btpsap.operational.events.EventRing;
+import net.etsi.btpsap.operational.events.EventType;
+import net.etsi.btpsap.operational.metrics.DropReason;
+import net.etsi.btpsap.operational.metrics.EntityMetrics;
+
+/** A bounded request queue with a dedicated sender thread in front of a single {@link BtpSapServer}.
+ *
+ * <p>
+ * The dispatcher decouples the (ingress) threads submitting requests from the (possibly slow) server,
+ * and allows requests targeting multiple servers to be sent in parallel.
+ * Submitted requests are retained while queued, and released once sent (or dropped).
+ * Since retained requests may hold on to pooled (receive) buffers, the number of requests retained is limited
+ * (see {@link #setRetainedLimit}); beyond that limit, requests are copied upon submission,
+ * so a slow server cannot exhaust the buffer pools of the client protocol handlers.
+ *
+ * <p>
+ * The order in which queued requests are sent is determined by the {@link SchedulingPolicy}.
+ * Requests with a (non-zero) maximum lifetime have a deadline, being their arrival time plus their maximum lifetime;
+ * requests that have passed their deadline are dropped (as expired) instead of being sent.
+ *
+ * <p>
+ * Under traffic-class scheduling, requests are queued per GN traffic class (the 6-bit TC ID);
+ * lower TC IDs have higher priority.
+ *
+ * <p>
+ * What happens upon submission to a full queue is determined by the {@link OverflowPolicy}.
+ * Expired requests are purged from a full queue before the overflow policy applies.
+ *
+ */
+public class BtpSapServerDispatcher
+{
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // LOG
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private static final Logger LOG = Logger.getLogger (BtpSapServerDispatcher.class.getName ());
+
+  private static final EventRing EVENTS = EventRing.getDefault ();
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTRUCTOR(S) / CLONING / FACTORY
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  public BtpSapServerDispatcher
+  (final BtpSapServer server,
+   final int queueCapacity,
+   final OverflowPolicy overflowPolicy,
+   final SchedulingPolicy schedulingPolicy)
+  {
+    if (server == null || queueCapacity <= 0 || overflowPolicy == null || schedulingPolicy == null)
+      throw new IllegalArgumentException ();
+    this.server = server;
+    this.queueCapacity = queueCapacity;
+    this.overflowPolicy = overflowPolicy;
+    this.schedulingPolicy = schedulingPolicy;
+    this.tcWeights = new int[BtpSapServerDispatcher.NUMBER_OF_TCS];
+    for (int tc = 0; tc < BtpSapServerDispatcher.NUMBER_OF_TCS; tc++)
+      this.tcWeights[tc] = getDefaultTcWeight (tc);
+    this.queue = createJobQueue (schedulingPolicy, this.tcWeights);
+  }
+
+  public BtpSapServerDispatcher (final BtpSapServer server, final int queueCapacity, final OverflowPolicy overflowPolicy)
+  {
+    this (server, queueCapacity, overflowPolicy, BtpSapServerDispatcher.DEFAULT_SCHEDULING_POLICY);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return "BtpSapServerDispatcher[" + this.server + "]";
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // SERVER
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final BtpSapServer server;
+
+  public final BtpSapServer getServer ()
+  {
+    return this.server;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // OVERFLOW POLICY
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** The ways of dealing with submissions to a full queue.
+   *
+   */
+  public enum OverflowPolicy
+  {
+    /** Drop the request submitted.
+     *
+     */
+    DROP_NEWEST,
+    /** Drop queued request(s) to make room for the request submitted.
+     *
+     * <p>
+     * Dropped are the request(s) first in line under FIFO and EDF scheduling,
+     * and those first in line in the lowest-priority traffic class under traffic-class scheduling.
+     *
+     */
+    DROP_OLDEST,
+    /** Block the submitting thread until there is room in the queue.
+     *
+     */
+    BLOCK
+  }
+
+  public final static OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.DROP_NEWEST;
+
+  private volatile OverflowPolicy overflowPolicy;
+
+  public final OverflowPolicy getOverflowPolicy ()
+  {
+    return this.overflowPolicy;
+  }
+
+  public final void setOverflowPolicy (final OverflowPolicy overflowPolicy)
+  {
+    if (overflowPolicy == null)
+      throw new IllegalArgumentException ();
+    this.overflowPolicy = overflowPolicy;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // SCHEDULING POLICY
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** The orders in which queued requests are sent.
+   *
+   */
+  public enum SchedulingPolicy
+  {
+    /** Send requests in order of submission.
+     *
+     */
+    FIFO,
+    /** Send requests in order of deadline (Earliest Deadline First); requests without deadline are sent last, in order of submission.
+     *
+     */
+    EDF,
+    /** Send requests in order of traffic-class priority, and, within a traffic class, in EDF order.
+     *
+     * <p>
+     * A request is only sent if no request of a higher-priority traffic class is queued.
+     *
+     */
+    TC_STRICT,
+    /** Send requests from the (non-empty) traffic classes in proportion to their weights, and, within a traffic class, in EDF order.
+     *
+     * <p>
+     * Unlike {@link #TC_STRICT}, lower-priority traffic classes are not starved.
+     *
+     * @see #setTcWeight
+     *
+     */
+    TC_WEIGHTED
+  }
+
+  public final static SchedulingPolicy DEFAULT_SCHEDULING_POLICY = SchedulingPolicy.EDF;
+
+  private SchedulingPolicy schedulingPolicy;
+
+  public final SchedulingPolicy getSchedulingPolicy ()
+  {
+    this.lock.lock ();
+    try
+    {
+      return this.schedulingPolicy;
+    }
+    finally
+    {
+      this.lock.unlock ();
+    }
+  }
+
+  /** Sets the scheduling policy; requests already queued are rescheduled.
+   *
+   * @param schedulingPolicy The scheduling policy, non-{@code null}.
+   *
+   */
+  public final void setSchedulingPolicy (final SchedulingPolicy schedulingPolicy)
+  {
+    if (schedulingPolicy == null)
+      throw new IllegalArgumentException ();
+    this.lock.lock ();
+    try
+    {
+      if (schedulingPolicy == this.schedulingPolicy)
+        return;
+      final JobQueue newQueue = createJobQueue (schedulingPolicy, this.tcWeights);
+      Job job;
+      while ((job = this.queue.poll ()) != null)
+        newQueue.add (job);
+      this.schedulingPolicy = schedulingPolicy;
+      this.queue = newQueue;
+    }
+    finally
+    {
+      this.lock.unlock ();
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // TRAFFIC CLASSES
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  public final static int NUMBER_OF_TCS = OperationalBtpSapDB.NUMBER_OF_ROUTED_TCS;
+
+  /** Returns the traffic class (the 6-bit TC ID) of a request; requests without traffic class are taken to be in traffic class 0.
+   *
+   * @param request The request, non-{@code null}.
+   *
+   * @return The traffic class, between zero (inclusive) and {@link #NUMBER_OF_TCS} (exclusive).
+   *
+   */
+  public static int getTrafficClass (final BtpSap_DataReqContainer request)
+  {
+    final BtpSapTypes.GnTrafficClass trafficClass = request.getGnTrafficClass ();
+    return trafficClass == null ? 0 : (trafficClass.toByte () & (BtpSapServerDispatcher.NUMBER_OF_TCS - 1));
+  }
+
+  /** Returns the default weight of a traffic class under {@link SchedulingPolicy#TC_WEIGHTED} scheduling.
+   *
+   * <p>
+   * The weight halves with each traffic class from 8 (traffic class 0) down to 1 (traffic classes 3 and up).
+   *
+   * @param tc The traffic class.
+   *
+   * @return The default weight.
+   *
+   */
+  public static int getDefaultTcWeight (final int tc)
+  {
+    return 8 >> Math.min (tc, 3);
+  }
+
+  // Guarded by lock; shared with the (traffic-class) job queue.
+  private final int[] tcWeights;
+
+  public final int getTcWeight (final int tc)
+  {
+    if (tc < 0 || tc >= BtpSapServerDispatcher.NUMBER_OF_TCS)
+      throw new IllegalArgumentException ();
+    this.lock.lock ();
+    try
+    {
+      return this.tcWeights[tc];
+    }
+    finally
+    {
+      this.lock.unlock ();
+    }
+  }
+
+  /** Sets the weight of a traffic class under {@link SchedulingPolicy#TC_WEIGHTED} scheduling.
+   *
+   * @param tc     The traffic class.
+   * @param weight The weight, strictly positive.
+   *
+   */
+  public final void setTcWeight (final int tc, final int weight)
+  {
+    if (tc < 0 || tc >= BtpSapServerDispatcher.NUMBER_OF_TCS || weight <= 0)
+      throw new IllegalArgumentException ();
+    this.lock.lock ();
+    try
+    {
+      this.tcWeights[tc] = weight;
+    }
+    finally
+    {
+      this.lock.unlock ();
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // QUEUE
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  public final static int DEFAULT_QUEUE_CAPACITY = 1024;
+
+  private final int queueCapacity;
+
+  public final int getQueueCapacity ()
+  {
+    return this.queueCapacity;
+  }
+
+  /** The default maximum number of queued requests retained (instead of copied).
+   *
+   * <p>
+   * A quarter of the default capacity of the receive buffer pool of the BTP/UDP[TNO] client protocol handler.
+   *
+   */
+  public final static int DEFAULT_RETAINED_LIMIT = 64;
+
+  private volatile int retainedLimit = BtpSapServerDispatcher.DEFAULT_RETAINED_LIMIT;
+
+  public final int getRetainedLimit ()
+  {
+    return this.retainedLimit;
+  }
+
+  /** Sets the maximum number of queued requests retained (instead of copied).
+   *
+   * <p>
+   * Requests submitted while this number of queued requests is retained, are copied instead,
+   * releasing the (pooled) buffer holding the original request right away.
+   * The limit should be well below the capacity of the buffer pools of the client protocol handlers,
+   * divided by the number of servers.
+   * A limit of zero copies all requests.
+   *
+   * @param retainedLimit The limit, non-negative.
+   *
+   */
+  public final void setRetainedLimit (final int retainedLimit)
+  {
+    if (retainedLimit < 0)
+      throw new IllegalArgumentException ();
+    this.retainedLimit = retainedLimit;
+  }
+
+  // Guarded by lock.
+  private int retainedCount = 0;
+
+  private final ReentrantLock lock = new ReentrantLock ();
+
+  private final Condition notEmpty = this.lock.newCondition ();
+
+  private final Condition notFull = this.lock.newCondition ();
+
+  // Guarded by lock.
+  private JobQueue queue;
+
+  private volatile int queueDepth = 0;
+
+  public final int getQueueDepth ()
+  {
+    return this.queueDepth;
+  }
+
+  /** A queued request.
+   *
+   */
+  private static final class Job
+  {
+
+    private final BtpSapClient client;
+
+    private final BtpSap_DataReqContainer request;
+
+    /** Whether the request is retained (as opposed to a copy).
+     *
+     */
+    private final boolean retained;
+
+    /** The deadline, in terms of {@link System#nanoTime}; {@link Long#MAX_VALUE} if none.
+     *
+     */
+    private final long deadline_ns;
+
+    /** The submission sequence number, to keep the order of submission among requests with equal deadlines.
+     *
+     */
+    private final long sequence;
+
+    private final int tc;
+
+    private Job
+    (final BtpSapClient client,
+     final BtpSap_DataReqContainer request,
+     final boolean retained,
+     final long deadline_ns,
+     final long sequence,
+     final int tc)
+    {
+      this.client = client;
+      this.request = request;
+      this.retained = retained;
+      this.deadline_ns = deadline_ns;
+      this.sequence = sequence;
+      this.tc = tc;
+    }
+
+    private boolean isExpired (final long now_ns)
+    {
+      return BtpSapServerDispatcher.isExpired (this.deadline_ns, now_ns);
+    }
+
+  }
+
+  /** The (non-thread-safe) queue discipline, guarded by the lock of the dispatcher.
+   *
+   */
+  private static abstract class JobQueue
+  {
+
+    abstract void add (Job job);
+
+    /** Removes and returns the job first in line.
+     *
+     */
+    abstract Job poll ();
+
+    /** Returns (without removing) the job first in line.
+     *
+     */
+    abstract Job peek ();
+
+    abstract int size ();
+
+    /** Removes and returns the job to sacrifice in order to make room (under {@link OverflowPolicy#DROP_OLDEST}).
+     *
+     * <p>
+     * The default implementation returns the job first in line.
+     *
+     */
+    Job evict ()
+    {
+      return poll ();
+    }
+
+  }
+
+  private static final class FifoJobQueue
+  extends JobQueue
+  {
+
+    private final ArrayDeque<Job> jobs = new ArrayDeque<> ();
+
+    @Override
+    final void add (final Job job)
+    {
+      this.jobs.addLast (job);
+    }
+
+    @Override
+    final Job poll ()
+    {
+      return this.jobs.pollFirst ();
+    }
+
+    @Override
+    final Job peek ()
+    {
+      return this.jobs.peekFirst ();
+    }
+
+    @Override
+    final int size ()
+    {
+      return this.jobs.size ();
+    }
+
+  }
+
+  private static final class EdfJobQueue
+  extends JobQueue
+  {
+
+    private final PriorityQueue<Job> jobs = new PriorityQueue<> (16, new Comparator<Job> ()
+    {
+      @Override
+      public int compare (final Job job1, final Job job2)
+      {
+        // Deadlines are compared as nanoTime values, i.e., through their difference.
+        if (job1.deadline_ns != job2.deadline_ns)
+        {
+          if (job1.deadline_ns == Long.MAX_VALUE)
+            return 1;
+          if (job2.deadline_ns == Long.MAX_VALUE)
+            return -1;
+          return job1.deadline_ns - job2.deadline_ns < 0L ? -1 : 1;
+        }
+        return Long.compare (job1.sequence, job2.sequence);
+      }
+    });
+
+    @Override
+    final void add (final Job job)
+    {
+      this.jobs.add (job);
+    }
+
+    @Override
+    final Job poll ()
+    {
+      return this.jobs.poll ();
+    }
+
+    @Override
+    final Job peek ()
+    {
+      return this.jobs.peek ();
+    }
+
+    @Override
+    final int size ()
+    {
+      return this.jobs.size ();
+    }
+
+  }
+
+  /** Per-traffic-class EDF queues, served in strict-priority or (smooth) weighted round-robin order.
+   *
+   */
+  private static final class TcJobQueue
+  extends JobQueue
+  {
+
+    private TcJobQueue (final boolean strict, final int[] weights)
+    {
+      this.strict = strict;
+      this.weights = weights;
+    }
+
+    private final boolean strict;
+
+    private final int[] weights;
+
+    private final EdfJobQueue[] classes = new EdfJobQueue[BtpSapServerDispatcher.NUMBER_OF_TCS];
+
+    /** The set of non-empty traffic classes, as a bit mask.
+     *
+     */
+    private long nonEmpty = 0L;
+
+    private int size = 0;
+
+    /** The current (running) weights in the smooth weighted round-robin.
+     *
+     */
+    private final long[] current = new long[BtpSapServerDispatcher.NUMBER_OF_TCS];
+
+    /** Selects the traffic class to serve next; applies the weighted round-robin step if so requested.
+     *
+     */
+    private int select (final boolean commit)
+    {
+      if (this.nonEmpty == 0L)
+        return -1;
+      if (this.strict)
+        return Long.numberOfTrailingZeros (this.nonEmpty);
+      int selected = -1;
+      long selectedCurrent = Long.MIN_VALUE;
+      long totalWeight = 0L;
+      for (long mask = this.nonEmpty; mask != 0L; mask &= mask - 1)
+      {
+        final int tc = Long.numberOfTrailingZeros (mask);
+        final long tcCurrent = this.current[tc] + this.weights[tc];
+        totalWeight += this.weights[tc];
+        if (commit)
+          this.current[tc] = tcCurrent;
+        if (tcCurrent > selectedCurrent)
+        {
+          selected = tc;
+          selectedCurrent = tcCurrent;
+        }
+      }
+      if (commit)
+        this.current[selected] -= totalWeight;
+      return selected;
+    }
+
+    private Job remove (final int tc)
+    {
+      final Job job = this.classes[tc].poll ();
+      this.size--;
+      if (this.classes[tc].size () == 0)
+      {
+        this.nonEmpty &= ~(1L << tc);
+        this.current[tc] = 0L;
+      }
+      return job;
+    }
+
+    @Override
+    final void add (final Job job)
+    {
+      if (this.classes[job.tc] == null)
+        this.classes[job.tc] = new EdfJobQueue ();
+      this.classes[job.tc].add (job);
+      this.nonEmpty |= 1L << job.tc;
+      this.size++;
+    }
+
+    @Override
+    final Job poll ()
+    {
+      final int tc = select (true);
+      return tc < 0 ? null : remove (tc);
+    }
+
+    @Override
+    final Job peek ()
+    {
+      final int tc = select (false);
+      return tc < 0 ? null : this.classes[tc].peek ();
+    }
+
+    @Override
+    final int size ()
+    {
+      return this.size;
+    }
+
+    @Override
+    final Job evict ()
+    {
+      return this.nonEmpty == 0L ? null : remove (63 - Long.numberOfLeadingZeros (this.nonEmpty));
+    }
+
+  }
+
+  private static JobQueue createJobQueue (final SchedulingPolicy schedulingPolicy, final int[] tcWeights)
+  {
+    switch (schedulingPolicy)
+    {
+      case FIFO:
+        return new FifoJobQueue ();
+      case EDF:
+        return new EdfJobQueue ();
+      case TC_STRICT:
+        return new TcJobQueue (true, tcWeights);
+      case TC_WEIGHTED:
+        return new TcJobQueue (false, tcWeights);
+      default:
+        throw new RuntimeException ();
+    }
+  }
+
+  private long nextSequence = 0L;
+
+  /** Returns the deadline of a request, in terms of {@link System#nanoTime}.
+   *
+   * <p>
+   * Requests without arrival time are considered to arrive now.
+   * A maximum lifetime of zero is taken as "unspecified".
+   *
+   * @return The deadline, {@link Long#MAX_VALUE} if none.
+   *
+   */
+  private static long getDeadline_ns (final BtpSap_DataReqContainer request, final long now_ns)
+  {
+    if (! request.hasMaxLifetime () || request.getMaxLifeTime_ms () <= 0)
+      return Long.MAX_VALUE;
+    final long arrivalTime_ns = request.hasArrivalTime () ? request.getArrivalTime_ns () : now_ns;
+    return arrivalTime_ns + TimeUnit.MILLISECONDS.toNanos (request.getMaxLifeTime_ms ());
+  }
+
+  private static boolean isExpired (final long deadline_ns, final long now_ns)
+  {
+    return deadline_ns != Long.MAX_VALUE && now_ns - deadline_ns > 0L;
+  }
+
+  /** Accounts for the removal of a job from the queue, and returns it; with the lock held.
+   *
+   */
+  private Job removed (final Job job)
+  {
+    if (job != null && job.retained)
+      this.retainedCount--;
+    return job;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // COUNTERS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final AtomicLong sentCount = new AtomicLong ();
+
+  public final long getSentCount ()
+  {
+    return this.sentCount.get ();
+  }
+
+  private final AtomicLong droppedNewestCount = new AtomicLong ();
+
+  public final long getDroppedNewestCount ()
+  {
+    return this.droppedNewestCount.get ();
+  }
+
+  private final AtomicLong droppedOldestCount = new AtomicLong ();
+
+  public final long getDroppedOldestCount ()
+  {
+    return this.droppedOldestCount.get ();
+  }
+
+  private final AtomicLong copiedCount = new AtomicLong ();
+
+  /** Returns the number of requests copied upon submission, because the retained limit was reached.
+   *
+   * @return The number of copied requests.
+   *
+   * @see #setRetainedLimit
+   *
+   */
+  public final long getCopiedCount ()
+  {
+    return this.copiedCount.get ();
+  }
+
+  private final AtomicLong expiredCount = new AtomicLong ();
+
+  /** Returns the number of requests dropped because they passed their deadline.
+   *
+   * @return The number of expired requests.
+   *
+   */
+  public final long getExpiredCount ()
+  {
+    return this.expiredCount.get ();
+  }
+
+  private final AtomicLong blockedCount = new AtomicLong ();
+
+  /** Returns the number of submissions that had to wait for room in the queue (under {@link OverflowPolicy#BLOCK}).
+   *
+   * @return The number of blocked submissions.
+   *
+   */
+  public final long getBlockedCount ()
+  {
+    return this.blockedCount.get ();
+  }
+
+  private final AtomicLong failedCount = new AtomicLong ();
+
+  /** Returns the number of requests for which the server threw an exception.
+   *
+   * @return The number of failed requests.
+   *
+   */
+  public final long getFailedCount ()
+  {
+    return this.failedCount.get ();
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // METRICS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private volatile EntityMetrics metrics = null;
+
+  /** Sets the (additional) metrics to update for requests expired.
+   *
+   * @param metrics The metrics, may be {@code null}.
+   *
+   */
+  public final void setMetrics (final EntityMetrics metrics)
+  {
+    this.metrics = metrics;
+  }
+
+  private void expired ()
+  {
+    this.expiredCount.incrementAndGet ();
+    final EntityMetrics metrics = this.metrics;
+    if (metrics != null)
+      metrics.drop (DropReason.EXPIRED);
+  }
+
+  private void expired (final Job job)
+  {
+    expired ();
+    job.request.release ();
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // SUBMIT
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** Submits a request for sending to our server.
+   *
+   * <p>
+   * The request is retained (once) until it has been sent or dropped,
+   * or copied if the number of queued requests retained has reached the limit (see {@link #setRetainedLimit}).
+   * A request that has already passed its deadline is dropped (as expired) immediately.
+   *
+   * @param client  The client, non-{@code null}.
+   * @param request The request, non-{@code null}.
+   *
+   * @return Whether the request was queued; if not, it was dropped.
+   *
+   */
+  public final boolean submit (final BtpSapClient client, final BtpSap_DataReqContainer request)
+  {
+    if (client == null || request == null)
+      throw new IllegalArgumentException ();
+    if (! this.started)
+    {
+      this.droppedNewestCount.incrementAndGet ();
+      return false;
+    }
+    final long now_ns = System.nanoTime ();
+    final long deadline_ns = getDeadline_ns (request, now_ns);
+    final int tc = getTrafficClass (request);
+    if (isExpired (deadline_ns, now_ns))
+    {
+      expired ();
+      return false;
+    }
+    this.lock.lock ();
+    try
+    {
+      if (this.queue.size () >= this.queueCapacity)
+        purgeExpired (now_ns);
+      if (this.queue.size () >= this.queueCapacity)
+        switch (this.overflowPolicy)
+        {
+          case DROP_NEWEST:
+            this.droppedNewestCount.incrementAndGet ();
+            return false;
+          case DROP_OLDEST:
+            while (this.queue.size () >= this.queueCapacity)
+            {
+              this.droppedOldestCount.incrementAndGet ();
+              removed (this.queue.evict ()).request.release ();
+            }
+            break;
+          case BLOCK:
+            this.blockedCount.incrementAndGet ();
+            while (this.queue.size () >= this.queueCapacity && this.started)
+              this.notFull.await ();
+            break;
+          default:
+            throw new RuntimeException ();
+        }
+      // Do not leave the request behind in case we were shut down (concurrently).
+      if (! this.started)
+      {
+        this.droppedNewestCount.incrementAndGet ();
+        return false;
+      }
+      final Job job;
+      if (this.retainedCount < this.retainedLimit)
+      {
+        job = new Job (client, request.retain (), true, deadline_ns, this.nextSequence++, tc);
+        this.retainedCount++;
+      }
+      else
+      {
+        final BtpSap_DataReqContainer copy = BtpSap_DataReqContainer.copyOf (request);
+        if (request.hasArrivalTime ())
+          copy.setArrivalTime_ns (request.getArrivalTime_ns ());
+        job = new Job (client, copy, false, deadline_ns, this.nextSequence++, tc);
+        this.copiedCount.incrementAndGet ();
+      }
+      this.queue.add (job);
+      this.queueDepth = this.queue.size ();
+      this.notEmpty.signal ();
+      return true;
+    }
+    catch (InterruptedException ie)
+    {
+      Thread.currentThread ().interrupt ();
+      this.droppedNewestCount.incrementAndGet ();
+      return false;
+    }
+    finally
+    {
+      this.lock.unlock ();
+    }
+  }
+
+  /** Drops expired requests first in line; with the lock held.
+   *
+   * <p>
+   * Under {@link SchedulingPolicy#EDF}, this removes all expired requests.
+   *
+   */
+  private void purgeExpired (final long now_ns)
+  {
+    final int size = this.queue.size ();
+    Job job;
+    while ((job = this.queue.peek ()) != null && job.isExpired (now_ns))
+      expired (removed (this.queue.poll ()));
+    this.queueDepth = this.queue.size ();
+    if (this.queue.size () < size)
+      this.notFull.signalAll ();
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // START / SHUTDOWN
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private volatile boolean started = false;
+
+  private Thread senderThread = null;
+
+  public final synchronized void start ()
+  {
+    if (this.started)
+      return;
+    this.started = true;
+    this.senderThread = new Thread (new Runnable ()
+    {
+      @Override
+      public void run ()
+      {
+        BtpSapServerDispatcher.this.send ();
+      }
+    }, toString ());
+    this.senderThread.start ();
+  }
+
+  /** Stops the sender thread, and releases all requests still queued.
+   *
+   */
+  public final synchronized void shutdown ()
+  {
+    if (! this.started)
+      return;
+    this.started = false;
+    this.senderThread.interrupt ();
+    this.senderThread = null;
+    this.lock.lock ();
+    try
+    {
+      Job job;
+      while ((job = removed (this.queue.poll ())) != null)
+      {
+        this.droppedNewestCount.incrementAndGet ();
+        job.request.release ();
+      }
+      this.queueDepth = 0;
+      this.notFull.signalAll ();
+    }
+    finally
+    {
+      this.lock.unlock ();
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // SENDER
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** Takes the next (unexpired) job to send, blocking if needed.
+   *
+   */
+  private Job take () throws InterruptedException
+  {
+    this.lock.lockInterruptibly ();
+    try
+    {
+      while (true)
+      {
+        while (this.queue.size () == 0)
+          this.notEmpty.await ();
+        final Job job = removed (this.queue.poll ());
+        this.queueDepth = this.queue.size ();
+        this.notFull.signal ();
+        if (! job.isExpired (System.nanoTime ()))
+          return job;
+        expired (job);
+      }
+    }
+    finally
+    {
+      this.lock.unlock ();
+    }
+  }
+
+  private void send ()
+  {
+    LOG.log (Level.INFO, "Sender for {0} starting!", this.server);
+    while (this.started)
+    {
+      final Job job;
+      try
+      {
+        job = take ();
+      }
+      catch (InterruptedException ie)
+      {
+        break;
+      }
+      try
+      {
+        this.server.doRequest (job.client, job.request);
+        this.sentCount.incrementAndGet ();
+      }
+      catch (RuntimeException re)
+      {
+        this.failedCount.incrementAndGet ();
+        EVENTS.publish (LOG, EventType.SERVER_ERROR, this, this.server, re, 0L);
+      }
+      finally
+      {
+        job.request.release ();
+      }
+    }
+    LOG.log (Level.INFO, "Sender for {0} terminating!", this.server);
+  }
+
+}
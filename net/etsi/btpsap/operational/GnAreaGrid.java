@@ -0,0 +1,388 @@
+/*
+ * Copyright 2016 Jan de Jongh, TNO.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.etsi.btpsap.operational;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import net.etsi.btpsap.BtpSapTypes.GnArea;
+
+/** An immutable spatial index of geo-fenced clients on a uniform latitude/longitude grid.
+ *
+ * <p>
+ * Each fence (the areas of a single client) is entered into all grid cells its bounding boxes overlap,
+ * so a lookup only tests the fences registered in the cell holding the position at hand.
+ * Fences covering too many cells, or crossing a pole or the anti-meridian, are kept aside and tested for each lookup.
+ *
+ * <p>
+ * Area containment follows the geometric function of ETSI EN 302 931 on a local (equirectangular) projection
+ * around the center of the area; distance A and distance B are the half axes (or half sides) of the area,
+ * and the angle is the azimuth of the long side (clockwise from north).
+ *
+ */
+public final class GnAreaGrid
+{
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTANTS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** The size of a grid cell in degrees latitude and longitude.
+   *
+   */
+  public final static double CELL_SIZE_DEGREES = 0.01;
+
+  /** The maximum number of cells a single fence is entered into; larger fences are tested for each lookup.
+   *
+   */
+  public final static int MAX_CELLS_PER_FENCE = 4096;
+
+  /** The (mean) length of a degree of latitude in meters.
+   *
+   */
+  private final static double METERS_PER_DEGREE = 6371000.0 * Math.PI / 180.0;
+
+  private final static Fence[] NO_FENCES = new Fence[0];
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // GEOMETRY
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** Returns whether given area holds given position.
+   *
+   * @param area      The area, non-{@code null}.
+   * @param latitude  The latitude of the position (degrees).
+   * @param longitude The longitude of the position (degrees).
+   *
+   * @return Whether the area holds the position (including its border).
+   *
+   */
+  public static boolean contains (final GnArea area, final double latitude, final double longitude)
+  {
+    final double dNorth_m = (latitude - area.getLatitude ()) * METERS_PER_DEGREE;
+    final double dEast_m = (longitude - area.getLongitude ()) * METERS_PER_DEGREE
+      * Math.cos (Math.toRadians (area.getLatitude ()));
+    final double angle = Math.toRadians (area.getAngle_degrees ());
+    final double x = (dNorth_m * Math.cos (angle) + dEast_m * Math.sin (angle)) / area.getDistanceA_m ();
+    switch (area.getAreaShape ())
+    {
+      case CIRCLE:
+        return dNorth_m * dNorth_m + dEast_m * dEast_m <= (double) area.getDistanceA_m () * area.getDistanceA_m ();
+      case RECTANGLE:
+      {
+        final double y = (dEast_m * Math.cos (angle) - dNorth_m * Math.sin (angle)) / area.getDistanceB_m ();
+        return x * x <= 1.0 && y * y <= 1.0;
+      }
+      case ELLIPSE:
+      {
+        final double y = (dEast_m * Math.cos (angle) - dNorth_m * Math.sin (angle)) / area.getDistanceB_m ();
+        return x * x + y * y <= 1.0;
+      }
+      default:
+        throw new RuntimeException ();
+    }
+  }
+
+  /** Returns the distance from the center of given area to its farthest point in meters.
+   *
+   */
+  private static double getRadius_m (final GnArea area)
+  {
+    final double a = area.getDistanceA_m ();
+    final double b = area.getDistanceB_m ();
+    switch (area.getAreaShape ())
+    {
+      case CIRCLE:
+        return a;
+      case RECTANGLE:
+        return Math.sqrt (a * a + b * b);
+      case ELLIPSE:
+        return Math.max (a, b);
+      default:
+        throw new RuntimeException ();
+    }
+  }
+
+  private static int cell (final double degrees)
+  {
+    return (int) Math.floor (degrees / CELL_SIZE_DEGREES);
+  }
+
+  private static long cellKey (final int latitudeCell, final int longitudeCell)
+  {
+    return (((long) latitudeCell) << 32) | (longitudeCell & 0xffffffffL);
+  }
+
+  /** Adds the keys of all cells overlapping the bounding box of given area.
+   *
+   * @return False if the area crosses a pole or the anti-meridian, or covers too many cells
+   *           (in which case the cells added are meaningless).
+   *
+   */
+  private static boolean addCells (final GnArea area, final Set<Long> cells)
+  {
+    final double radius_deg = getRadius_m (area) / METERS_PER_DEGREE;
+    final double cosLatitude = Math.cos (Math.toRadians (area.getLatitude ()));
+    if (cosLatitude <= 0.0)
+      return false;
+    final double latitudeMin = area.getLatitude () - radius_deg;
+    final double latitudeMax = area.getLatitude () + radius_deg;
+    final double longitudeMin = area.getLongitude () - radius_deg / cosLatitude;
+    final double longitudeMax = area.getLongitude () + radius_deg / cosLatitude;
+    if (latitudeMin < -90.0 || latitudeMax > 90.0 || longitudeMin < -180.0 || longitudeMax > 180.0)
+      return false;
+    final int latitudeCellMin = cell (latitudeMin);
+    final int latitudeCellMax = cell (latitudeMax);
+    final int longitudeCellMin = cell (longitudeMin);
+    final int longitudeCellMax = cell (longitudeMax);
+    if ((long) (latitudeCellMax - latitudeCellMin + 1) * (longitudeCellMax - longitudeCellMin + 1) > MAX_CELLS_PER_FENCE)
+      return false;
+    for (int latitudeCell = latitudeCellMin; latitudeCell <= latitudeCellMax; latitudeCell++)
+      for (int longitudeCell = longitudeCellMin; longitudeCell <= longitudeCellMax; longitudeCell++)
+        cells.add (cellKey (latitudeCell, longitudeCell));
+    return cells.size () <= MAX_CELLS_PER_FENCE;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // FENCE
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** The areas of a single client, together with its port/traffic-class subscriptions.
+   *
+   */
+  public final static class Fence
+  {
+
+    private Fence
+    (final BtpSapClient client, final GnArea[] areas, final OperationalBtpSapDB.IndicationSubscription[] subscriptions)
+    {
+      this.client = client;
+      this.areas = areas;
+      this.subscriptions = subscriptions;
+    }
+
+    private final BtpSapClient client;
+
+    private final GnArea[] areas;
+
+    private final OperationalBtpSapDB.IndicationSubscription[] subscriptions;
+
+    public final BtpSapClient getClient ()
+    {
+      return this.client;
+    }
+
+    /** Returns whether any of the areas of this fence holds given position.
+     *
+     * @param latitude  The latitude of the position (degrees).
+     * @param longitude The longitude of the position (degrees).
+     *
+     * @return Whether any of the areas holds the position.
+     *
+     */
+    public final boolean contains (final double latitude, final double longitude)
+    {
+      for (final GnArea area : this.areas)
+        if (GnAreaGrid.contains (area, latitude, longitude))
+          return true;
+      return false;
+    }
+
+    /** Returns whether the client is interested in given BTP destination port and traffic class.
+     *
+     * <p>
+     * A client without port/traffic-class subscriptions is interested in all ports and traffic classes.
+     *
+     * @param port The BTP destination port.
+     * @param tc   The traffic class (only the least-significant 6 bits are relevant), negative if absent.
+     *
+     * @return Whether the client is interested.
+     *
+     */
+    public final boolean matches (final int port, final int tc)
+    {
+      if (this.subscriptions.length == 0)
+        return true;
+      for (final OperationalBtpSapDB.IndicationSubscription subscription : this.subscriptions)
+        if (subscription.matches (port, tc))
+          return true;
+      return false;
+    }
+
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTRUCTOR(S) / FACTORIES / CLONING
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** Creates the index.
+   *
+   * @param areas         The areas per client; clients without areas are ignored.
+   * @param subscriptions The port/traffic-class subscriptions per client (absent or empty: all ports and traffic classes).
+   *
+   */
+  GnAreaGrid
+  (final Map<BtpSapClient, List<GnArea>> areas,
+   final Map<BtpSapClient, List<OperationalBtpSapDB.IndicationSubscription>> subscriptions)
+  {
+    final Map<Long, List<Fence>> cellFences = new LinkedHashMap<> ();
+    final List<Fence> largeFences = new ArrayList<> ();
+    for (final Entry<BtpSapClient, List<GnArea>> entry : areas.entrySet ())
+    {
+      if (entry.getValue ().isEmpty ())
+        continue;
+      final List<OperationalBtpSapDB.IndicationSubscription> clientSubscriptions = subscriptions.get (entry.getKey ());
+      final Fence fence = new Fence
+        (entry.getKey (),
+         entry.getValue ().toArray (new GnArea[entry.getValue ().size ()]),
+         clientSubscriptions == null
+           ? new OperationalBtpSapDB.IndicationSubscription[0]
+           : clientSubscriptions.toArray (new OperationalBtpSapDB.IndicationSubscription[clientSubscriptions.size ()]));
+      final Set<Long> cells = new LinkedHashSet<> ();
+      boolean small = true;
+      for (final GnArea area : entry.getValue ())
+        if (! addCells (area, cells))
+        {
+          small = false;
+          break;
+        }
+      if (! small)
+        largeFences.add (fence);
+      else
+        for (final Long cell : cells)
+        {
+          if (! cellFences.containsKey (cell))
+            cellFences.put (cell, new ArrayList<Fence> ());
+          cellFences.get (cell).add (fence);
+        }
+    }
+    // Open addressing (linear probing) on a power-of-two table at most half full.
+    int capacity = 2;
+    while (capacity < 2 * cellFences.size ())
+      capacity <<= 1;
+    this.cellKeys = new long[capacity];
+    this.cellFences = new Fence[capacity][];
+    for (final Entry<Long, List<Fence>> entry : cellFences.entrySet ())
+    {
+      int slot = slot (entry.getKey ());
+      while (this.cellFences[slot] != null)
+        slot = (slot + 1) & (capacity - 1);
+      this.cellKeys[slot] = entry.getKey ();
+      this.cellFences[slot] = entry.getValue ().toArray (new Fence[entry.getValue ().size ()]);
+    }
+    this.largeFences = largeFences.isEmpty () ? NO_FENCES : largeFences.toArray (new Fence[largeFences.size ()]);
+    this.empty = cellFences.isEmpty () && largeFences.isEmpty ();
+  }
+
+  /** Creates an empty index.
+   *
+   */
+  GnAreaGrid ()
+  {
+    this (Collections.<BtpSapClient, List<GnArea>>emptyMap (),
+      Collections.<BtpSapClient, List<OperationalBtpSapDB.IndicationSubscription>>emptyMap ());
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CELLS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final long[] cellKeys;
+
+  private final Fence[][] cellFences;
+
+  private final Fence[] largeFences;
+
+  private final boolean empty;
+
+  private int slot (final long cellKey)
+  {
+    long hash = cellKey * 0x9e3779b97f4a7c15L;
+    hash ^= (hash >>> 32);
+    return (int) hash & (this.cellKeys.length - 1);
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // LOOKUP
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** Returns whether this index holds no fences at all.
+   *
+   * @return Whether this index is empty.
+   *
+   */
+  public final boolean isEmpty ()
+  {
+    return this.empty;
+  }
+
+  /** Returns the fences registered in the grid cell holding given position.
+   *
+   * <p>
+   * The fences returned may or may not hold the position;
+   * together with {@link #getLargeFences}, they are the only fences that possibly do.
+   * Each client appears at most once.
+   *
+   * @param latitude  The latitude of the position (degrees).
+   * @param longitude The longitude of the position (degrees).
+   *
+   * @return The fences registered in the cell; the array is shared and must not be modified.
+   *
+   */
+  public final Fence[] getCellFences (final double latitude, final double longitude)
+  {
+    final long cellKey = cellKey (cell (latitude), cell (longitude));
+    int slot = slot (cellKey);
+    while (this.cellFences[slot] != null)
+    {
+      if (this.cellKeys[slot] == cellKey)
+        return this.cellFences[slot];
+      slot = (slot + 1) & (this.cellKeys.length - 1);
+    }
+    return NO_FENCES;
+  }
+
+  /** Returns the fences not entered in the grid, to be tested for each position.
+   *
+   * <p>
+   * Their clients never appear in {@link #getCellFences}.
+   *
+   * @return The large fences; the array is shared and must not be modified.
+   *
+   */
+  public final Fence[] getLargeFences ()
+  {
+    return this.largeFences;
+  }
+
+}
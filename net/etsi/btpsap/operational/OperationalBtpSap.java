@@ -20,6 +20,7 @@ import net.etsi.btpsap.BtpSap_DataConf;
 import net.etsi.btpsap.BtpSap_DataIndContainer;
 import net.etsi.btpsap.BtpSap_DataReqContainer;
 import net.etsi.btpsap.BtpSap_DataResp;
+import net.etsi.btpsap.operational.metrics.BtpSapMetrics;
 
 /**
  *
@@ -36,8 +37,45 @@ public interface OperationalBtpSap
   
   OperationalBtpSapDB getDb ();
 
+  /** Returns the metrics (counters) of this BTP SAP and its clients, servers and protocol handlers.
+   *
+   * @return The metrics, non-{@code null}.
+   *
+   */
+  BtpSapMetrics getMetrics ();
+
+  /** Routes a request from a client to one or more servers.
+   *
+   * <p>
+   * Ownership of the request is not transferred: the request is only valid for the duration of this call,
+   * unless retained (see {@link BtpSap_DataReqContainer#retain}).
+   * Implementations may send the request to the servers asynchronously (retaining it while doing so).
+   *
+   * @param client  The client.
+   * @param request The request.
+   * @param servers The servers (units) explicitly requested, {@code null} or empty for TC-based request routing.
+   *
+   * @return The confirmation, may be {@code null}.
+   *
+   */
   BtpSap_DataConf doRequestFromClient (BtpSapClient client, BtpSap_DataReqContainer request, Set<BtpSapServer> servers);
   
+  /** Passes a request from a client to the servers (units) selected by a unit mask.
+   *
+   * <p>
+   * Bit {@code s} of the mask selects the server with index {@code s} in the current snapshot of the database
+   * (see {@link OperationalBtpSapDB.Snapshot#getServers(long)}).
+   * Otherwise, this method behaves as {@link #doRequestFromClient(BtpSapClient, BtpSap_DataReqContainer, Set)}.
+   *
+   * @param client   The client.
+   * @param request  The request.
+   * @param unitMask The unit mask, zero for TC-based request routing.
+   *
+   * @return The confirmation, may be {@code null}.
+   *
+   */
+  BtpSap_DataConf doRequestFromClient (BtpSapClient client, BtpSap_DataReqContainer request, long unitMask);
+  
   BtpSap_DataResp doIndicationFromServer (BtpSapServer server, BtpSap_DataIndContainer indication, Set<BtpSapClient> clients);
   
   void registerServerProtocolHandler (BtpSapServerProtocolHandler handler);
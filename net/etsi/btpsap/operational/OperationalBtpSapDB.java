@@ -1,18 +1,25 @@
 package net.etsi.btpsap.operational;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import net.etsi.btpsap.BtpSapTypes;
 
 /**
  *
@@ -119,6 +126,8 @@ implements BtpSapEntity.Listener
     {
       this.servers.add (server);
       server.registerListener (this);
+      publishSnapshot ();
+      compileTcRequestRouting ();
       fireChanged ();
     }
   }
@@ -129,6 +138,8 @@ implements BtpSapEntity.Listener
       throw new IllegalArgumentException ();
     server.unregisterListener (this);
     this.servers.remove (server);
+    publishSnapshot ();
+    compileTcRequestRouting ();
     fireChanged ();
   }
   
@@ -137,11 +148,10 @@ implements BtpSapEntity.Listener
     return new LinkedHashSet<> (this.servers);
   }
   
-  public final synchronized int getServerId (final BtpSapServer server)
+  public final int getServerId (final BtpSapServer server)
   {
-    if (server == null || ! this.servers.contains (server))
-      return -1;
-    return new ArrayList<> (this.servers).indexOf (server) + 1;
+    final int serverIndex = getSnapshot ().getServerIndex (server);
+    return serverIndex >= 0 ? serverIndex + 1 : -1;
   }
   
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -150,77 +160,337 @@ implements BtpSapEntity.Listener
   //
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   
-  public final static int MAX_CLIENTS = 256;
+  /** The maximum number of clients; client ids range from zero (inclusive) to this number (exclusive).
+   * 
+   * <p>
+   * Client ids fit in 16 bits, as in (version 3) TNO request datagrams.
+   * 
+   */
+  public final static int MAX_CLIENTS = 65536;
+  
+  /** A registered client, with its compiled (per-client) routing tables; immutable, replaced upon each change.
+   * 
+   */
+  private final static class ClientEntry
+  {
+    
+    private ClientEntry
+    (final BtpSapClient client,
+     final BtpSapServer[][] tcRequestTargets,
+     final Map<BtpSapServer, String> indicationRouting)
+    {
+      this.client = client;
+      this.tcRequestTargets = tcRequestTargets;
+      this.indicationRouting = indicationRouting;
+    }
+    
+    private final BtpSapClient client;
+    
+    // tc & 0x3f -> servers, or null; null if the client has no TC-based request routing.
+    private final BtpSapServer[][] tcRequestTargets;
+    
+    // null if the client has no indication routing.
+    private final Map<BtpSapServer, String> indicationRouting;
+    
+  }
+  
+  // client id -> client entry; readable without holding the monitor.
+  private final AtomicReferenceArray<ClientEntry> clientSlots = new AtomicReferenceArray<> (MAX_CLIENTS);
   
-  private final Set<BtpSapClient> clients = new LinkedHashSet<> ();
+  private final BitSet usedClientIds = new BitSet (MAX_CLIENTS);
   
-  private final Map<BtpSapClient, Integer> clientIdMap = new HashMap<> ();
+  // One plus the highest client id in use.
+  private volatile int clientIdLimit = 0;
   
   private synchronized int nextClientId ()
   {
-    for (int id = 0; id < MAX_CLIENTS; id++)
-      if (! this.clientIdMap.containsValue (id))
-        return id;
-    return -1;
+    final int id = this.usedClientIds.nextClearBit (0);
+    return id < MAX_CLIENTS ? id : -1;
   }
   
+  /** Registers a client, and assigns it the lowest client id not in use.
+   * 
+   * <p>
+   * The cost is independent of the number of clients registered:
+   * only the routing tables of the new client are compiled.
+   * 
+   * @param client The client, non-{@code null}.
+   * 
+   * @return Whether the client is registered; {@code false} if all client ids are in use,
+   *         or if the client is registered with another database.
+   * 
+   */
   public final synchronized boolean addClient (final BtpSapClient client)
   {
     if (client == null)
       throw new IllegalArgumentException ();
-    if (this.clients.contains (client))
+    if (containsClient (client))
       return true;
+    if (client.getBtpSapClientId () >= 0)
+    {
+      LOG.log (Level.WARNING, "Client {0} is registered with another database!", client);
+      return false;
+    }
     final int clientId = nextClientId ();
     if (clientId < 0)
       return false;
-    this.clients.add (client);
-    this.clientIdMap.put (client, clientId);
+    this.usedClientIds.set (clientId);
+    // Assign the id before publishing the client, so the data plane never sees the client without its id.
+    client.setBtpSapClientId (clientId);
+    this.clientSlots.set (clientId, compileClientEntry (client));
+    if (clientId >= this.clientIdLimit)
+      this.clientIdLimit = clientId + 1;
     client.registerListener (this);
     fireChanged ();
     return true;
   }
   
-  public final synchronized BtpSapClient getClient (final int clientId)
+  /** Returns the client with given id.
+   * 
+   * <p>
+   * This method does not take the monitor of this object; it is intended for the data plane.
+   * 
+   * @param clientId The client id.
+   * 
+   * @return The client, {@code null} if the id is out of range or not in use.
+   * 
+   */
+  public final BtpSapClient getClient (final int clientId)
   {
-    if (clientId < 0 || clientId >= MAX_CLIENTS || ! this.clientIdMap.values ().contains (clientId))
+    if (clientId < 0 || clientId >= MAX_CLIENTS)
       // XXX Throw exception??
       return null;
-    for (final Entry<BtpSapClient, Integer> entry : this.clientIdMap.entrySet ())
-      if (entry.getValue () == clientId)
-        return entry.getKey ();
-    throw new RuntimeException ();
+    final ClientEntry clientEntry = this.clientSlots.get (clientId);
+    return clientEntry != null ? clientEntry.client : null;
+  }
+  
+  /** Returns one plus the highest client id in use, i.e., an upper bound (exclusive) on the ids of registered clients.
+   * 
+   * <p>
+   * This method does not take the monitor of this object; it is intended for the data plane.
+   * Since the lowest free client id is assigned upon registration, client ids are dense.
+   * 
+   * @return One plus the highest client id in use, zero if there are no clients.
+   * 
+   */
+  public final int getClientIdLimit ()
+  {
+    return this.clientIdLimit;
+  }
+  
+  private ClientEntry getClientEntry (final BtpSapClient client)
+  {
+    final int clientId = client.getBtpSapClientId ();
+    if (clientId < 0 || clientId >= MAX_CLIENTS)
+      return null;
+    final ClientEntry clientEntry = this.clientSlots.get (clientId);
+    return (clientEntry != null && clientEntry.client == client) ? clientEntry : null;
   }
   
-  public final synchronized int getClientId (final BtpSapClient client)
+  /** Returns the id of given client.
+   * 
+   * <p>
+   * This method does not take the monitor of this object; it is intended for the data plane.
+   * 
+   * @param client The client, non-{@code null}.
+   * 
+   * @return The client id, -1 if the client is not registered.
+   * 
+   */
+  public final int getClientId (final BtpSapClient client)
   {
     if (client == null)
       throw new IllegalArgumentException ();
-    if (this.clientIdMap.containsKey (client))
-      return this.clientIdMap.get (client);
-    else
-      return -1;
+    return getClientEntry (client) != null ? client.getBtpSapClientId () : -1;
+  }
+  
+  /** Returns whether given client is registered.
+   * 
+   * <p>
+   * This method does not take the monitor of this object; it is intended for the data plane.
+   * 
+   * @param client The client.
+   * 
+   * @return Whether the client is registered.
+   * 
+   */
+  public final boolean containsClient (final BtpSapClient client)
+  {
+    return client != null && getClientEntry (client) != null;
   }
   
   public final synchronized void removeClient (final BtpSapClient client)
   {
-    if (client == null || ! this.clients.contains (client))
+    if (! containsClient (client))
     {
       LOG.log (Level.WARNING, "Unknown or null client {0}.", client);
       return;
     }
-    if (! this.clientIdMap.containsKey (client))
-      throw new RuntimeException ();
     client.unregisterListener (this);
-    this.clients.remove (client);
-    this.clientIdMap.remove (client);
+    final int clientId = client.getBtpSapClientId ();
+    this.clientSlots.set (clientId, null);
+    this.usedClientIds.clear (clientId);
+    this.clientIdLimit = this.usedClientIds.length ();
+    client.setBtpSapClientId (-1);
     this.tcRequestRouting.remove (client);
     this.indicationRouting.remove (client);
+    final boolean subscribed = this.indicationSubscriptions.remove (client) != null;
+    final boolean geoFenced = this.indicationGeoFences.remove (client) != null;
+    if (subscribed || geoFenced)
+      compileIndicationSubscriptions ();
     fireChanged ();
   }
   
   public final synchronized Set<BtpSapClient> getClients ()
   {
-    return new LinkedHashSet<> (this.clients);
+    final Set<BtpSapClient> clients = new LinkedHashSet<> ();
+    for (int clientId = this.usedClientIds.nextSetBit (0); clientId >= 0; clientId = this.usedClientIds.nextSetBit (clientId + 1))
+      clients.add (this.clientSlots.get (clientId).client);
+    return clients;
+  }
+  
+  /** Compiles the routing tables of a client (registered or being registered), resolved against the registered servers.
+   * 
+   */
+  private ClientEntry compileClientEntry (final BtpSapClient client)
+  {
+    final NavigableMap<Integer, Set<BtpSapServer>> tcRequestRouting_client = this.tcRequestRouting.get (client);
+    final Map<BtpSapServer, String> indicationRouting_client = this.indicationRouting.get (client);
+    return new ClientEntry
+      (client,
+       tcRequestRouting_client != null ? compileTcRequestTargets (tcRequestRouting_client) : null,
+       indicationRouting_client != null ? new HashMap<> (indicationRouting_client) : null);
+  }
+  
+  /** Recompiles and publishes the routing tables of a client, if registered; with the monitor held.
+   * 
+   */
+  private void recompileClientEntry (final BtpSapClient client)
+  {
+    if (containsClient (client))
+      this.clientSlots.set (client.getBtpSapClientId (), compileClientEntry (client));
+  }
+  
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // SNAPSHOT
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** An immutable, versioned snapshot of the registered servers.
+   * 
+   * <p>
+   * Snapshots are published by the database upon each change to its servers (but not to its clients),
+   * and allow the data plane to check membership and resolve servers without taking the database monitor,
+   * and without copying.
+   * 
+   * <p>
+   * Servers are indexed in order of registration, starting with zero.
+   * The server index doubles as the unit (bit) number in unit masks; see {@link #MAX_UNITS}.
+   * 
+   */
+  public final static class Snapshot
+  {
+    
+    private Snapshot (final long version, final Set<BtpSapServer> servers)
+    {
+      this.version = version;
+      this.servers = Collections.unmodifiableSet (new LinkedHashSet<> (servers));
+      this.serverArray = this.servers.toArray (new BtpSapServer[this.servers.size ()]);
+      this.serverIndices = new IdentityHashMap<> ();
+      for (int s = 0; s < this.serverArray.length; s++)
+        this.serverIndices.put (this.serverArray[s], s);
+    }
+    
+    /** The maximum number of servers addressable in a unit mask.
+     * 
+     */
+    public final static int MAX_UNITS = 64;
+    
+    private final long version;
+    
+    /** Returns the version of this snapshot; strictly increasing with each publication.
+     * 
+     * @return The version.
+     * 
+     */
+    public final long getVersion ()
+    {
+      return this.version;
+    }
+    
+    private final Set<BtpSapServer> servers;
+    
+    private final BtpSapServer[] serverArray;
+    
+    private final Map<BtpSapServer, Integer> serverIndices;
+    
+    public final Set<BtpSapServer> getServers ()
+    {
+      return this.servers;
+    }
+    
+    public final int getNumberOfServers ()
+    {
+      return this.serverArray.length;
+    }
+    
+    public final BtpSapServer getServer (final int serverIndex)
+    {
+      return this.serverArray[serverIndex];
+    }
+    
+    public final boolean containsServer (final BtpSapServer server)
+    {
+      return server != null && this.serverIndices.containsKey (server);
+    }
+    
+    public final int getServerIndex (final BtpSapServer server)
+    {
+      final Integer serverIndex = (server != null ? this.serverIndices.get (server) : null);
+      return serverIndex != null ? serverIndex : -1;
+    }
+    
+    /** Returns the servers selected by a unit mask.
+     * 
+     * <p>
+     * Bit {@code s} of the mask selects the server with index {@code s}; bits without a server are ignored.
+     * 
+     * @param unitMask The unit mask.
+     * 
+     * @return A new array holding the selected servers, in order of their index.
+     * 
+     */
+    public final BtpSapServer[] getServers (final long unitMask)
+    {
+      final long mask = (this.serverArray.length >= MAX_UNITS ? unitMask : unitMask & ((1L << this.serverArray.length) - 1));
+      final BtpSapServer[] servers = new BtpSapServer[Long.bitCount (mask)];
+      int i = 0;
+      for (long m = mask; m != 0L; m &= m - 1)
+        servers[i++] = this.serverArray[Long.numberOfTrailingZeros (m)];
+      return servers;
+    }
+    
+  }
+  
+  private volatile Snapshot snapshot = new Snapshot (0L, Collections.<BtpSapServer>emptySet ());
+  
+  /** Returns the current snapshot of registered servers.
+   * 
+   * <p>
+   * This method does not take the monitor of this object; it is intended for the data plane.
+   * 
+   * @return The current snapshot, non-{@code null}.
+   * 
+   */
+  public final Snapshot getSnapshot ()
+  {
+    return this.snapshot;
+  }
+  
+  private void publishSnapshot ()
+  {
+    this.snapshot = new Snapshot (this.snapshot.getVersion () + 1, this.servers);
   }
   
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -284,6 +554,7 @@ implements BtpSapEntity.Listener
     if (client != null && this.tcRequestRouting.containsKey (client))
     {
       this.tcRequestRouting.remove (client);
+      recompileClientEntry (client);
       fireChanged ();
     }
   }
@@ -299,6 +570,7 @@ implements BtpSapEntity.Listener
     for (final Set<BtpSapServer> servers : this.tcRequestRouting.get (client).values ())
       servers.remove (server);
     canonicalizeTcRequestRouting (this.tcRequestRouting.get (client));
+    recompileClientEntry (client);
     fireChanged ();
   }
   
@@ -330,6 +602,7 @@ implements BtpSapEntity.Listener
     for (Set<BtpSapServer> serverSet : tcRequestRouting_client.subMap (tcLow, tcHigh).values ())
       serverSet.add (server);
     canonicalizeTcRequestRouting (tcRequestRouting_client);
+    recompileClientEntry (client);
     fireChanged ();
   }
   
@@ -356,6 +629,77 @@ implements BtpSapEntity.Listener
     }
   }
   
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // TC-BASED REQUEST ROUTING [COMPILED]
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  public final static int NUMBER_OF_ROUTED_TCS = 64;
+  
+  private final static BtpSapServer[] NO_SERVERS = new BtpSapServer[0];
+  
+  /** Rebuilds and publishes the (immutable) TC-based request-routing tables of all registered clients.
+   * 
+   * <p>
+   * Must be called (with the monitor held) after each change to the servers;
+   * changes to the TC-based request routing of a single client only recompile the tables of that client.
+   * 
+   */
+  private void compileTcRequestRouting ()
+  {
+    for (final BtpSapClient client : this.tcRequestRouting.keySet ())
+      recompileClientEntry (client);
+  }
+  
+  /** Compiles the TC-based request-routing table of a client, resolved against the registered servers.
+   * 
+   */
+  private BtpSapServer[][] compileTcRequestTargets (final NavigableMap<Integer, Set<BtpSapServer>> tcRequestRouting_client)
+  {
+    final BtpSapServer[][] targets = new BtpSapServer[NUMBER_OF_ROUTED_TCS][];
+    Set<BtpSapServer> prevSet = null;
+    BtpSapServer[] prevTargets = null;
+    for (int tc = 0; tc < NUMBER_OF_ROUTED_TCS; tc++)
+    {
+      final Entry<Integer, Set<BtpSapServer>> floorEntry = tcRequestRouting_client.floorEntry (tc);
+      if (floorEntry == null)
+        continue;
+      if (floorEntry.getValue () != prevSet)
+      {
+        final List<BtpSapServer> resolved = new ArrayList<> (floorEntry.getValue ());
+        resolved.retainAll (this.servers);
+        prevSet = floorEntry.getValue ();
+        prevTargets = resolved.isEmpty () ? NO_SERVERS : resolved.toArray (new BtpSapServer[resolved.size ()]);
+      }
+      targets[tc] = prevTargets;
+    }
+    return targets;
+  }
+  
+  /** Returns the (registered) servers to which requests with given traffic class from given client are to be routed.
+   * 
+   * <p>
+   * Unlike {@link #getTcRequestRouting(BtpSapClient, int)}, this method does not take the monitor of this object;
+   * it is intended for the data plane.
+   * Only the least-significant 6 bits of the traffic class are relevant for routing.
+   * 
+   * @param client The client.
+   * @param tc     The traffic class.
+   * 
+   * @return The servers to route to, {@code null} if no routing is present for the client and traffic class,
+   *         or if the client is not registered.
+   *         The array is shared and must not be modified.
+   * 
+   */
+  public final BtpSapServer[] getTcRequestTargets (final BtpSapClient client, final int tc)
+  {
+    final ClientEntry clientEntry = (client != null ? getClientEntry (client) : null);
+    if (clientEntry == null || clientEntry.tcRequestTargets == null)
+      return null;
+    return clientEntry.tcRequestTargets[tc & 0x3f];
+  }
+  
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   //
   // INDICATION ROUTING
@@ -392,35 +736,455 @@ implements BtpSapEntity.Listener
     return null;
   }
   
-  public final synchronized void setIndicationRouting
+  public final void setIndicationRouting
   (final BtpSapClient client, final BtpSapServer server, final String clientString)
   {
     if (client == null)
       throw new IllegalArgumentException ();
-    if (! this.indicationRouting.containsKey (client))
-      this.indicationRouting.put (client, new LinkedHashMap<BtpSapServer, String> ());
-    this.indicationRouting.get (client).put (server, clientString);
-    fireChanged ();
+    synchronized (this)
+    {
+      if (! this.indicationRouting.containsKey (client))
+        this.indicationRouting.put (client, new LinkedHashMap<BtpSapServer, String> ());
+      this.indicationRouting.get (client).put (server, clientString);
+      recompileClientEntry (client);
+      fireChanged ();
+    }
+    fireIndicationRoutingChanged (client);
   }
   
-  public final synchronized void removeIndicationRouting (final BtpSapClient client, final BtpSapServer server)
+  public final void removeIndicationRouting (final BtpSapClient client, final BtpSapServer server)
   {
     if (client == null || server == null)
       throw new IllegalArgumentException ();
-    if (! this.indicationRouting.containsKey (client))
-      this.indicationRouting.put (client, new LinkedHashMap<BtpSapServer, String> ());
-    this.indicationRouting.get (client).remove (server);
+    synchronized (this)
+    {
+      if (! this.indicationRouting.containsKey (client))
+        this.indicationRouting.put (client, new LinkedHashMap<BtpSapServer, String> ());
+      this.indicationRouting.get (client).remove (server);
+      recompileClientEntry (client);
+      fireChanged ();
+    }
+    fireIndicationRoutingChanged (client);
+  }
+  
+  public final void removeIndicationRouting (final BtpSapClient client)
+  {
+    if (client == null)
+      throw new IllegalArgumentException ();
+    synchronized (this)
+    {
+      this.indicationRouting.remove (client);
+      recompileClientEntry (client);
+      fireChanged ();
+    }
+    fireIndicationRoutingChanged (client);
+  }
+  
+  /** A client that is notified of changes to its indication routing.
+   * 
+   * <p>
+   * Allows clients to compile their indication routing into routes of their own
+   * upon changes (instead of on the data plane).
+   * Notifications are delivered on the thread changing the indication routing, without the monitor of the database;
+   * they may therefore arrive out of order, and implementations should (re)read the indication routing.
+   * 
+   */
+  public interface IndicationRoutingListener
+  {
+    void indicationRoutingChanged ();
+  }
+  
+  private static void fireIndicationRoutingChanged (final BtpSapClient client)
+  {
+    if (client instanceof IndicationRoutingListener)
+      ((IndicationRoutingListener) client).indicationRoutingChanged ();
+  }
+  
+  /** Returns whether given client routes indications from given server (to any destination).
+   * 
+   * <p>
+   * Unlike {@link #getIndicationRouting(BtpSapClient, BtpSapServer)}, this method does not take the monitor of this object;
+   * it is intended for the data plane.
+   * Clients without indication routing in the database (e.g., clients routing indications themselves)
+   * are considered to route indications from all servers.
+   * 
+   * @param client The client.
+   * @param server The server.
+   * 
+   * @return Whether the client routes indications from the server.
+   * 
+   */
+  public final boolean isIndicationRouted (final BtpSapClient client, final BtpSapServer server)
+  {
+    final ClientEntry clientEntry = (client != null ? getClientEntry (client) : null);
+    final Map<BtpSapServer, String> routing = (clientEntry != null ? clientEntry.indicationRouting : null);
+    if (routing == null)
+      return true;
+    return (routing.containsKey (server) ? routing.get (server) : routing.get (null)) != null;
+  }
+  
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // INDICATION SUBSCRIPTIONS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** A subscription of a client to indications with BTP destination ports in a range and traffic classes in a mask.
+   * 
+   * <p>
+   * Clients without subscriptions receive all indications (from servers they have an indication route for);
+   * clients with one or more subscriptions only receive indications matching at least one of them.
+   * 
+   */
+  public final static class IndicationSubscription
+  {
+    
+    /** Creates a subscription.
+     * 
+     * @param portLow  The lowest BTP destination port (inclusive), between zero and 65535.
+     * @param portHigh The highest BTP destination port (inclusive), between portLow and 65535.
+     * @param tcMask   The traffic classes (bit {@code tc & 0x3f}), non-zero; all ones also matches indications
+     *                 without traffic class.
+     * 
+     */
+    public IndicationSubscription (final int portLow, final int portHigh, final long tcMask)
+    {
+      if (portLow < 0 || portHigh < portLow || portHigh > 65535 || tcMask == 0L)
+        throw new IllegalArgumentException ();
+      this.portLow = portLow;
+      this.portHigh = portHigh;
+      this.tcMask = tcMask;
+    }
+    
+    private final int portLow;
+    
+    private final int portHigh;
+    
+    private final long tcMask;
+    
+    public final int getPortLow ()
+    {
+      return this.portLow;
+    }
+    
+    public final int getPortHigh ()
+    {
+      return this.portHigh;
+    }
+    
+    public final long getTcMask ()
+    {
+      return this.tcMask;
+    }
+    
+    /** Returns whether this subscription covers given BTP destination port and traffic class.
+     * 
+     * @param port The BTP destination port.
+     * @param tc   The traffic class (only the least-significant 6 bits are relevant), negative if absent.
+     * 
+     * @return Whether this subscription covers the port and traffic class.
+     * 
+     */
+    public final boolean matches (final int port, final int tc)
+    {
+      return this.portLow <= port && port <= this.portHigh
+        && (tc < 0 ? this.tcMask == -1L : (this.tcMask & (1L << (tc & 0x3f))) != 0L);
+    }
+    
+    @Override
+    public final String toString ()
+    {
+      return "ports " + this.portLow + "-" + this.portHigh + ", tcMask 0x" + Long.toHexString (this.tcMask);
+    }
+    
+  }
+  
+  private final Map<BtpSapClient, List<IndicationSubscription>> indicationSubscriptions = new LinkedHashMap<> ();
+  
+  public final synchronized void addIndicationSubscription (final BtpSapClient client, final IndicationSubscription subscription)
+  {
+    if (client == null || subscription == null || ! containsClient (client))
+      throw new IllegalArgumentException ();
+    if (! this.indicationSubscriptions.containsKey (client))
+      this.indicationSubscriptions.put (client, new ArrayList<IndicationSubscription> ());
+    this.indicationSubscriptions.get (client).add (subscription);
+    compileIndicationSubscriptions ();
     fireChanged ();
   }
   
-  public final synchronized void removeIndicationRouting (final BtpSapClient client)
+  /** Removes all subscriptions of given client; the client receives all indications again.
+   * 
+   * @param client The client, non-{@code null}.
+   * 
+   */
+  public final synchronized void clearIndicationSubscriptions (final BtpSapClient client)
   {
     if (client == null)
       throw new IllegalArgumentException ();
-    this.indicationRouting.remove (client);
+    if (this.indicationSubscriptions.remove (client) != null)
+    {
+      compileIndicationSubscriptions ();
+      fireChanged ();
+    }
+  }
+  
+  public final synchronized List<IndicationSubscription> getIndicationSubscriptions (final BtpSapClient client)
+  {
+    if (client == null)
+      throw new IllegalArgumentException ();
+    if (! this.indicationSubscriptions.containsKey (client))
+      return Collections.emptyList ();
+    return Collections.unmodifiableList (new ArrayList<> (this.indicationSubscriptions.get (client)));
+  }
+  
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // INDICATION GEO FENCES
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final Map<BtpSapClient, List<BtpSapTypes.GnArea>> indicationGeoFences = new LinkedHashMap<> ();
+  
+  /** Restricts the indications for given client to those with a source position inside (one of its) areas.
+   * 
+   * <p>
+   * A client with one or more areas no longer receives indications without source position;
+   * its port/traffic-class subscriptions (if any) still apply.
+   * 
+   * @param client The client, non-{@code null}.
+   * @param area   The area, non-{@code null}, with positive distance(s) and a center within latitude/longitude range;
+   *                 it is copied.
+   * 
+   */
+  public final synchronized void addIndicationGeoFence (final BtpSapClient client, final BtpSapTypes.GnArea area)
+  {
+    if (client == null || area == null || area.getAreaShape () == null || ! containsClient (client))
+      throw new IllegalArgumentException ();
+    if (area.getDistanceA_m () <= 0
+      || (area.getAreaShape () != BtpSapTypes.GnAreaShape.CIRCLE && area.getDistanceB_m () <= 0)
+      || ! (area.getLatitude () >= -90.0 && area.getLatitude () <= 90.0)
+      || ! (area.getLongitude () >= -180.0 && area.getLongitude () <= 180.0))
+      throw new IllegalArgumentException ();
+    if (! this.indicationGeoFences.containsKey (client))
+      this.indicationGeoFences.put (client, new ArrayList<BtpSapTypes.GnArea> ());
+    this.indicationGeoFences.get (client).add (new BtpSapTypes.DefaultGnArea (area.getAreaShape (),
+      area.getLatitude (), area.getLongitude (), area.getDistanceA_m (), area.getDistanceB_m (), area.getAngle_degrees ()));
+    compileIndicationSubscriptions ();
     fireChanged ();
   }
   
+  public final synchronized void clearIndicationGeoFences (final BtpSapClient client)
+  {
+    if (client == null)
+      throw new IllegalArgumentException ();
+    if (this.indicationGeoFences.remove (client) != null)
+    {
+      compileIndicationSubscriptions ();
+      fireChanged ();
+    }
+  }
+  
+  public final synchronized List<BtpSapTypes.GnArea> getIndicationGeoFences (final BtpSapClient client)
+  {
+    if (client == null)
+      throw new IllegalArgumentException ();
+    if (! this.indicationGeoFences.containsKey (client))
+      return Collections.emptyList ();
+    return Collections.unmodifiableList (new ArrayList<> (this.indicationGeoFences.get (client)));
+  }
+  
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // INDICATION SUBSCRIPTIONS [COMPILED]
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** A client in the subscription index, with the traffic classes it subscribed to for a range of ports.
+   * 
+   */
+  public final static class IndicationSubscriber
+  {
+    
+    private IndicationSubscriber (final BtpSapClient client, final long tcMask)
+    {
+      this.client = client;
+      this.tcMask = tcMask;
+    }
+    
+    private final BtpSapClient client;
+    
+    private final long tcMask;
+    
+    public final BtpSapClient getClient ()
+    {
+      return this.client;
+    }
+    
+    /** Returns whether this subscriber is interested in given traffic class.
+     * 
+     * @param tc The traffic class (only the least-significant 6 bits are relevant), negative if absent.
+     * 
+     * @return Whether this subscriber is interested.
+     * 
+     */
+    public final boolean matches (final int tc)
+    {
+      return tc < 0 ? this.tcMask == -1L : (this.tcMask & (1L << (tc & 0x3f))) != 0L;
+    }
+    
+  }
+  
+  /** An immutable inverted index from BTP destination ports to subscribed clients.
+   * 
+   * <p>
+   * The port space is cut into segments at the boundaries of all subscribed port ranges;
+   * each segment holds the clients subscribed to (all of) its ports, each once, with the union of their traffic-class masks.
+   * A lookup is a binary search on the segment boundaries.
+   * 
+   * <p>
+   * Geo-fenced clients are not in the port index;
+   * they are found through a {@link GnAreaGrid} on the source position of the indication.
+   * 
+   * <p>
+   * Clients without subscriptions and geo fences (i.e., those receiving all indications) are not in the index at all;
+   * the index only marks the ids of the clients that are,
+   * so that (un)registering clients without subscriptions leaves the index untouched.
+   * 
+   */
+  public final static class IndicationSubscriptionIndex
+  {
+    
+    private IndicationSubscriptionIndex
+    (final long[] subscribedClientIds,
+     final int[] segmentStarts,
+     final IndicationSubscriber[][] segmentSubscribers,
+     final GnAreaGrid geoFences)
+    {
+      this.subscribedClientIds = subscribedClientIds;
+      this.segmentStarts = segmentStarts;
+      this.segmentSubscribers = segmentSubscribers;
+      this.geoFences = geoFences;
+    }
+    
+    // Bit set of the ids of clients with subscriptions or geo fences.
+    private final long[] subscribedClientIds;
+    
+    private final int[] segmentStarts;
+    
+    private final IndicationSubscriber[][] segmentSubscribers;
+    
+    private final GnAreaGrid geoFences;
+    
+    /** Returns whether the client with given id has subscriptions or geo fences,
+     *  i.e., whether it is found through this index instead of receiving all indications.
+     * 
+     * @param clientId The client id.
+     * 
+     * @return Whether the client has subscriptions or geo fences.
+     * 
+     */
+    public final boolean isSubscribed (final int clientId)
+    {
+      final int word = clientId >>> 6;
+      return word < this.subscribedClientIds.length && (this.subscribedClientIds[word] & (1L << clientId)) != 0L;
+    }
+    
+    /** Returns the subscribers for given BTP destination port.
+     * 
+     * @param port The port.
+     * 
+     * @return The subscribers (each client at most once); the array is shared and must not be modified.
+     * 
+     */
+    public final IndicationSubscriber[] getSubscribers (final int port)
+    {
+      int segment = Arrays.binarySearch (this.segmentStarts, port);
+      if (segment < 0)
+        segment = -segment - 2;
+      return segment >= 0 ? this.segmentSubscribers[segment] : NO_SUBSCRIBERS;
+    }
+    
+    /** Returns the spatial index of geo-fenced clients.
+     * 
+     * @return The spatial index of geo-fenced clients, non-{@code null}.
+     * 
+     */
+    public final GnAreaGrid getGeoFences ()
+    {
+      return this.geoFences;
+    }
+    
+  }
+  
+  private final static IndicationSubscriber[] NO_SUBSCRIBERS = new IndicationSubscriber[0];
+  
+  private volatile IndicationSubscriptionIndex indicationSubscriptionIndex
+    = new IndicationSubscriptionIndex (new long[0], new int[0], new IndicationSubscriber[0][], new GnAreaGrid ());
+  
+  /** Rebuilds and publishes the (immutable) indication subscription index.
+   * 
+   * <p>
+   * Must be called (with the monitor held) after each change to indication subscriptions or to geo fences,
+   * and upon removal of a client with subscriptions or geo fences.
+   * 
+   */
+  private void compileIndicationSubscriptions ()
+  {
+    final BitSet subscribedClientIds = new BitSet ();
+    for (final BtpSapClient client : this.indicationSubscriptions.keySet ())
+      subscribedClientIds.set (client.getBtpSapClientId ());
+    for (final BtpSapClient client : this.indicationGeoFences.keySet ())
+      subscribedClientIds.set (client.getBtpSapClientId ());
+    final TreeSet<Integer> boundaries = new TreeSet<> ();
+    for (final Entry<BtpSapClient, List<IndicationSubscription>> entry : this.indicationSubscriptions.entrySet ())
+      for (final IndicationSubscription subscription : entry.getValue ())
+      {
+        boundaries.add (subscription.getPortLow ());
+        boundaries.add (subscription.getPortHigh () + 1);
+      }
+    final int[] segmentStarts = new int[boundaries.size ()];
+    final IndicationSubscriber[][] segmentSubscribers = new IndicationSubscriber[segmentStarts.length][];
+    int segment = 0;
+    for (final int segmentStart : boundaries)
+    {
+      final List<IndicationSubscriber> subscribers = new ArrayList<> ();
+      for (final Entry<BtpSapClient, List<IndicationSubscription>> entry : this.indicationSubscriptions.entrySet ())
+      {
+        if (this.indicationGeoFences.containsKey (entry.getKey ()))
+          continue;
+        long tcMask = 0L;
+        for (final IndicationSubscription subscription : entry.getValue ())
+          if (subscription.getPortLow () <= segmentStart && segmentStart <= subscription.getPortHigh ())
+            tcMask |= subscription.getTcMask ();
+        if (tcMask != 0L)
+          subscribers.add (new IndicationSubscriber (entry.getKey (), tcMask));
+      }
+      segmentStarts[segment] = segmentStart;
+      segmentSubscribers[segment] = subscribers.isEmpty ()
+        ? NO_SUBSCRIBERS
+        : subscribers.toArray (new IndicationSubscriber[subscribers.size ()]);
+      segment++;
+    }
+    this.indicationSubscriptionIndex = new IndicationSubscriptionIndex
+      (subscribedClientIds.toLongArray (),
+       segmentStarts,
+       segmentSubscribers,
+       new GnAreaGrid (this.indicationGeoFences, this.indicationSubscriptions));
+  }
+  
+  /** Returns the current indication subscription index.
+   * 
+   * <p>
+   * This method does not take the monitor of this object; it is intended for the data plane.
+   * 
+   * @return The current index, non-{@code null}.
+   * 
+   */
+  public final IndicationSubscriptionIndex getIndicationSubscriptionIndex ()
+  {
+    return this.indicationSubscriptionIndex;
+  }
+  
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   //
   // BtpSapEntity.Listener
@@ -2,17 +2,23 @@ package net.etsi.btpsap.operational;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedHashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import net.etsi.btpsap.operational.events.EventRing;
+import net.etsi.btpsap.operational.events.EventType;
 import net.etsi.btpsap.BtpSapTypes;
 import net.etsi.btpsap.BtpSap_DataConf;
 import net.etsi.btpsap.BtpSap_DataIndContainer;
 import net.etsi.btpsap.BtpSap_DataReqContainer;
 import net.etsi.btpsap.BtpSap_DataResp;
+import net.etsi.btpsap.operational.metrics.BtpSapMetrics;
+import net.etsi.btpsap.operational.metrics.DropReason;
+import net.etsi.btpsap.operational.metrics.EntityMetrics;
 
 /**
  *
@@ -24,12 +30,16 @@ implements OperationalBtpSap, OperationalBtpSapDB.Listener
 
   private static final Logger LOGGER = Logger.getLogger (OperationalBtpSapServer.class.getName ());
 
+  private static final EventRing EVENTS = EventRing.getDefault ();
+
   public OperationalBtpSapServer (final boolean useUI)
   {
     super ("BtpSapServer");
     this.useUI = useUI;
     this.db = new OperationalBtpSapDB ();
     this.db.registerListener (this);
+    this.metrics = new BtpSapMetrics (getName ());
+    this.repetitionService = new BtpSapRepetitionService (this);
   }
   
   private final boolean useUI;
@@ -42,6 +52,14 @@ implements OperationalBtpSap, OperationalBtpSapDB.Listener
     return this.db;
   }
   
+  private final BtpSapMetrics metrics;
+  
+  @Override
+  public final BtpSapMetrics getMetrics ()
+  {
+    return this.metrics;
+  }
+  
   private volatile boolean started = false;
   
   @Override
@@ -56,6 +74,8 @@ implements OperationalBtpSap, OperationalBtpSapDB.Listener
     if (! this.started)
     {
       this.started = true;
+      this.metrics.registerMBeans ();
+      this.repetitionService.start ();
     }
   }
 
@@ -65,12 +85,301 @@ implements OperationalBtpSap, OperationalBtpSapDB.Listener
     if (this.started)
     {
       this.started = false;
+      this.repetitionService.shutdown ();
+      for (final BtpSapServerDispatcher dispatcher : this.dispatchers.values ())
+        dispatcher.shutdown ();
+      this.dispatchers = Collections.emptyMap ();
+      this.metrics.unregisterMBeans ();
+    }
+  }
+  
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // REPETITION
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  
+  private final BtpSapRepetitionService repetitionService;
+  
+  public final BtpSapRepetitionService getRepetitionService ()
+  {
+    return this.repetitionService;
+  }
+  
+  /** Re-issues a (repeated) request to those of given servers that are still registered.
+   * 
+   * <p>
+   * Called by the repetition service.
+   * 
+   */
+  final void doRepetition (final BtpSapClient client, final BtpSapServer[] servers, final BtpSap_DataReqContainer request)
+  {
+    final OperationalBtpSapDB.Snapshot snapshot = getDb ().getSnapshot ();
+    if (! this.started || ! getDb ().containsClient (client))
+      return;
+    // Each repetition has its own lifetime.
+    request.setArrivalTime_ns (System.nanoTime ());
+    for (final BtpSapServer server : servers)
+      if (snapshot.containsServer (server))
+        dispatch (server, client, request);
+  }
+  
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // INDICATION DEDUPLICATION
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  
+  // Null if disabled (the default).
+  private volatile BtpSapIndicationDeduplicator indicationDeduplicator = null;
+  
+  public final synchronized long getIndicationDedupWindow_ms ()
+  {
+    return this.indicationDeduplicator != null ? this.indicationDeduplicator.getWindow_ms () : 0L;
+  }
+  
+  /** Enables (or disables) suppression of duplicate indications, i.e., of indications delivered to the same client
+   *  (from any server) before, within given window.
+   * 
+   * <p>
+   * Duplicates are detected per client; a client receiving from only one of the servers that received the same packet
+   * is not affected.
+   * Suppressed duplicates are counted as {@link DropReason#DUPLICATE} drops (of the client and of the SAP).
+   * Setting the window discards the indications seen so far.
+   * 
+   * @param window_ms The window in milliseconds, zero to disable deduplication; non-negative.
+   * 
+   * @see BtpSapIndicationDeduplicator
+   * 
+   */
+  public final synchronized void setIndicationDedupWindow_ms (final long window_ms)
+  {
+    if (window_ms < 0)
+      throw new IllegalArgumentException ();
+    this.indicationDeduplicator = (window_ms > 0 ? new BtpSapIndicationDeduplicator (window_ms) : null);
+  }
+  
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // DISPATCHERS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  
+  // server -> dispatcher; copy-on-write, replaced with the monitor held.
+  private volatile Map<BtpSapServer, BtpSapServerDispatcher> dispatchers = Collections.emptyMap ();
+  
+  private int dispatchQueueCapacity = BtpSapServerDispatcher.DEFAULT_QUEUE_CAPACITY;
+  
+  private int dispatchRetainedLimit = BtpSapServerDispatcher.DEFAULT_RETAINED_LIMIT;
+  
+  private BtpSapServerDispatcher.OverflowPolicy dispatchOverflowPolicy = BtpSapServerDispatcher.DEFAULT_OVERFLOW_POLICY;
+  
+  private BtpSapServerDispatcher.SchedulingPolicy dispatchSchedulingPolicy = BtpSapServerDispatcher.DEFAULT_SCHEDULING_POLICY;
+  
+  // tc -> weight; null for the default weight.
+  private final Integer[] dispatchTcWeights = new Integer[BtpSapServerDispatcher.NUMBER_OF_TCS];
+  
+  public final synchronized int getDispatchQueueCapacity ()
+  {
+    return this.dispatchQueueCapacity;
+  }
+  
+  /** Sets the queue capacity for dispatchers created from now on.
+   * 
+   * @param dispatchQueueCapacity The capacity, strictly positive.
+   * 
+   */
+  public final synchronized void setDispatchQueueCapacity (final int dispatchQueueCapacity)
+  {
+    if (dispatchQueueCapacity <= 0)
+      throw new IllegalArgumentException ();
+    this.dispatchQueueCapacity = dispatchQueueCapacity;
+  }
+  
+  public final synchronized int getDispatchRetainedLimit ()
+  {
+    return this.dispatchRetainedLimit;
+  }
+  
+  /** Sets the maximum number of queued requests retained (instead of copied) by each (current and future) dispatcher.
+   * 
+   * @param dispatchRetainedLimit The limit, non-negative.
+   * 
+   * @see BtpSapServerDispatcher#setRetainedLimit
+   * 
+   */
+  public final synchronized void setDispatchRetainedLimit (final int dispatchRetainedLimit)
+  {
+    if (dispatchRetainedLimit < 0)
+      throw new IllegalArgumentException ();
+    this.dispatchRetainedLimit = dispatchRetainedLimit;
+    for (final BtpSapServerDispatcher dispatcher : this.dispatchers.values ())
+      dispatcher.setRetainedLimit (dispatchRetainedLimit);
+  }
+  
+  public final synchronized BtpSapServerDispatcher.OverflowPolicy getDispatchOverflowPolicy ()
+  {
+    return this.dispatchOverflowPolicy;
+  }
+  
+  /** Sets the overflow policy of all (current and future) dispatchers.
+   * 
+   * @param dispatchOverflowPolicy The overflow policy, non-{@code null}.
+   * 
+   */
+  public final synchronized void setDispatchOverflowPolicy (final BtpSapServerDispatcher.OverflowPolicy dispatchOverflowPolicy)
+  {
+    if (dispatchOverflowPolicy == null)
+      throw new IllegalArgumentException ();
+    this.dispatchOverflowPolicy = dispatchOverflowPolicy;
+    for (final BtpSapServerDispatcher dispatcher : this.dispatchers.values ())
+      dispatcher.setOverflowPolicy (dispatchOverflowPolicy);
+  }
+  
+  public final synchronized BtpSapServerDispatcher.SchedulingPolicy getDispatchSchedulingPolicy ()
+  {
+    return this.dispatchSchedulingPolicy;
+  }
+  
+  /** Sets the scheduling policy of all (current and future) dispatchers.
+   * 
+   * @param dispatchSchedulingPolicy The scheduling policy, non-{@code null}.
+   * 
+   */
+  public final synchronized void setDispatchSchedulingPolicy
+  (final BtpSapServerDispatcher.SchedulingPolicy dispatchSchedulingPolicy)
+  {
+    if (dispatchSchedulingPolicy == null)
+      throw new IllegalArgumentException ();
+    this.dispatchSchedulingPolicy = dispatchSchedulingPolicy;
+    for (final BtpSapServerDispatcher dispatcher : this.dispatchers.values ())
+      dispatcher.setSchedulingPolicy (dispatchSchedulingPolicy);
+  }
+  
+  public final synchronized int getDispatchTcWeight (final int tc)
+  {
+    if (tc < 0 || tc >= BtpSapServerDispatcher.NUMBER_OF_TCS)
+      throw new IllegalArgumentException ();
+    return this.dispatchTcWeights[tc] != null
+      ? this.dispatchTcWeights[tc]
+      : BtpSapServerDispatcher.getDefaultTcWeight (tc);
+  }
+  
+  /** Sets the weight of a traffic class for all (current and future) dispatchers.
+   * 
+   * <p>
+   * The weights only apply under {@link BtpSapServerDispatcher.SchedulingPolicy#TC_WEIGHTED} scheduling.
+   * 
+   * @param tc     The traffic class.
+   * @param weight The weight, strictly positive.
+   * 
+   */
+  public final synchronized void setDispatchTcWeight (final int tc, final int weight)
+  {
+    if (tc < 0 || tc >= BtpSapServerDispatcher.NUMBER_OF_TCS || weight <= 0)
+      throw new IllegalArgumentException ();
+    this.dispatchTcWeights[tc] = weight;
+    for (final BtpSapServerDispatcher dispatcher : this.dispatchers.values ())
+      dispatcher.setTcWeight (tc, weight);
+  }
+  
+  /** Returns the dispatcher for given server, if present.
+   * 
+   * @param server The server.
+   * 
+   * @return The dispatcher, {@code null} if the server has not been sent requests (since the last start).
+   * 
+   */
+  public final BtpSapServerDispatcher getDispatcher (final BtpSapServer server)
+  {
+    return this.dispatchers.get (server);
+  }
+  
+  public final Map<BtpSapServer, BtpSapServerDispatcher> getDispatchers ()
+  {
+    return this.dispatchers;
+  }
+  
+  private BtpSapServerDispatcher getOrCreateDispatcher (final BtpSapServer server)
+  {
+    final BtpSapServerDispatcher dispatcher = this.dispatchers.get (server);
+    if (dispatcher != null)
+      return dispatcher;
+    synchronized (this)
+    {
+      if (! this.started)
+        return null;
+      // The metrics exist as long as the server is registered; never resurrect an unregistered server.
+      final EntityMetrics serverMetrics = this.metrics.getIfPresent (server);
+      if (serverMetrics == null)
+        return null;
+      if (! this.dispatchers.containsKey (server))
+      {
+        final BtpSapServerDispatcher newDispatcher = new BtpSapServerDispatcher
+          (server, this.dispatchQueueCapacity, this.dispatchOverflowPolicy, this.dispatchSchedulingPolicy);
+        newDispatcher.setMetrics (serverMetrics);
+        newDispatcher.setRetainedLimit (this.dispatchRetainedLimit);
+        for (int tc = 0; tc < BtpSapServerDispatcher.NUMBER_OF_TCS; tc++)
+          if (this.dispatchTcWeights[tc] != null)
+            newDispatcher.setTcWeight (tc, this.dispatchTcWeights[tc]);
+        newDispatcher.start ();
+        serverMetrics.setQueueDepthGauge (new EntityMetrics.Gauge ()
+        {
+          @Override
+          public long get ()
+          {
+            return newDispatcher.getQueueDepth ();
+          }
+        });
+        final Map<BtpSapServer, BtpSapServerDispatcher> newDispatchers = new IdentityHashMap<> (this.dispatchers);
+        newDispatchers.put (server, newDispatcher);
+        this.dispatchers = Collections.unmodifiableMap (newDispatchers);
+      }
+      return this.dispatchers.get (server);
     }
   }
   
+  private synchronized void removeDispatcher (final BtpSapServer server)
+  {
+    if (this.dispatchers.containsKey (server))
+    {
+      final Map<BtpSapServer, BtpSapServerDispatcher> newDispatchers = new IdentityHashMap<> (this.dispatchers);
+      newDispatchers.remove (server).shutdown ();
+      this.dispatchers = Collections.unmodifiableMap (newDispatchers);
+    }
+  }
+  
+  /** Hands a request over to the dispatcher of given server.
+   * 
+   */
+  private void dispatch (final BtpSapServer server, final BtpSapClient client, final BtpSap_DataReqContainer request)
+  {
+    final BtpSapServerDispatcher dispatcher = getOrCreateDispatcher (server);
+    final EntityMetrics serverMetrics = this.metrics.lookup (server);
+    if (dispatcher == null)
+      serverMetrics.drop (this.started ? DropReason.UNKNOWN_SERVER : DropReason.INACTIVE);
+    else if (dispatcher.submit (client, request))
+      serverMetrics.request (request.getLength ());
+    else
+      serverMetrics.drop (DropReason.QUEUE_FULL);
+  }
+  
   @Override
   public final BtpSap_DataConf doRequestFromClient
   (final BtpSapClient client, final BtpSap_DataReqContainer request, final Set<BtpSapServer> servers)
+  {
+    return doRequestFromClient (client, request, servers, 0L);
+  }
+  
+  @Override
+  public final BtpSap_DataConf doRequestFromClient
+  (final BtpSapClient client, final BtpSap_DataReqContainer request, final long unitMask)
+  {
+    return doRequestFromClient (client, request, null, unitMask);
+  }
+  
+  private BtpSap_DataConf doRequestFromClient
+  (final BtpSapClient client, final BtpSap_DataReqContainer request, final Set<BtpSapServer> servers, final long unitMask)
   {
     if (client == null)
     {
@@ -82,39 +391,61 @@ implements OperationalBtpSap, OperationalBtpSapDB.Listener
       LOGGER.log (Level.WARNING, "Null request from client {0}!", client);
       return null;
     }
-    if (! getDb ().getClients ().contains (client))
+    // Server membership checks and resolution are done against a single (immutable) snapshot of the database.
+    final OperationalBtpSapDB.Snapshot snapshot = getDb ().getSnapshot ();
+    if (! getDb ().containsClient (client))
     {
-      LOGGER.log (Level.WARNING, "Unknown client {0}!", client);
+      this.metrics.getSapMetrics ().drop (DropReason.UNKNOWN_CLIENT);
+      EVENTS.publish (LOGGER, EventType.UNKNOWN_CLIENT, this, client);
       return null;
     }
-    synchronized (this)
+    if (! this.started)
     {
-      if (! this.started)
-      {
-        LOGGER.log (Level.WARNING, "BtpSap Server {0} not active!", this);
-        return null;
-      }
+      EVENTS.publish (LOGGER, EventType.INACTIVE, this, client);
+      return null;
     }
-    LOGGER.log (Level.INFO, "Doing request from client {0}.", client);
-    final Set<BtpSapServer> serversToRequest = new LinkedHashSet<> ();
+    EVENTS.publish (LOGGER, EventType.REQUEST, this, client);
+    final EntityMetrics clientMetrics = this.metrics.lookup (client);
+    clientMetrics.request (request.getLength ());
+    this.metrics.getSapMetrics ().request (request.getLength ());
     if (servers != null && ! servers.isEmpty ())
     {
-      serversToRequest.addAll (servers);
-      serversToRequest.retainAll (getDb ().getServers ());
+      for (final BtpSapServer server : servers)
+        if (snapshot.containsServer (server))
+          dispatch (server, client, request);
+      if (BtpSapRepetitionService.isRepeated (request))
+        this.repetitionService.schedule (client, servers.toArray (new BtpSapServer[servers.size ()]), request);
+    }
+    else if (unitMask != 0L)
+    {
+      // Resolve the unit mask against the server array of the snapshot; no allocation unless the request is repeated.
+      final int numberOfServers = snapshot.getNumberOfServers ();
+      for (long m = unitMask; m != 0L; m &= m - 1)
+      {
+        final int s = Long.numberOfTrailingZeros (m);
+        if (s >= numberOfServers)
+          break;
+        dispatch (snapshot.getServer (s), client, request);
+      }
+      if (BtpSapRepetitionService.isRepeated (request))
+        this.repetitionService.schedule (client, snapshot.getServers (unitMask), request);
     }
     else
     {
       // serversToRequest.addAll (getDb ().getServers ());
       final BtpSapTypes.GnTrafficClass tcObject = request.getGnTrafficClass ();
-      if (tcObject != null)
+      // Lock-free lookup in the (precompiled) TC routing tables.
+      final BtpSapServer[] serversForTc = (tcObject != null ? getDb ().getTcRequestTargets (client, tcObject.toByte ()) : null);
+      if (serversForTc == null || serversForTc.length == 0)
+        clientMetrics.drop (DropReason.NO_ROUTE);
+      else
       {
-        final Set<BtpSapServer> serversForTc = getDb ().getTcRequestRouting (client, tcObject.toByte () & 0x3f);
-        if (serversForTc != null)
-          serversToRequest.addAll (serversForTc);
+        for (final BtpSapServer server : serversForTc)
+          dispatch (server, client, request);
+        if (BtpSapRepetitionService.isRepeated (request))
+          this.repetitionService.schedule (client, serversForTc, request);
       }
     }
-    for (final BtpSapServer server : serversToRequest)
-      server.doRequest (client, request);
     return null;
   }
   
@@ -172,26 +503,85 @@ implements OperationalBtpSap, OperationalBtpSapDB.Listener
   {
     if (server == null || indication == null)
       return null;
-    if (! getDb ().getServers ().contains (server))
+    final OperationalBtpSapDB.Snapshot snapshot = getDb ().getSnapshot ();
+    if (! snapshot.containsServer (server))
       return null;
-    synchronized (this)
-    {
-      if (! this.started)
-        return null;
-    }
-    final Set<BtpSapClient> clientsToIndicate = new LinkedHashSet<> ();
+    if (! this.started)
+      return null;
+    this.metrics.lookup (server).indication (indication.getLength ());
+    this.metrics.getSapMetrics ().indication (indication.getLength ());
+    // Zero if deduplication is disabled; otherwise computed once for all clients indicated.
+    final long fingerprint = (this.indicationDeduplicator != null ? BtpSapIndicationDeduplicator.fingerprint (indication) : 0L);
     if (clients != null)
     {
-      clientsToIndicate.addAll (clients);
-      clientsToIndicate.retainAll (getDb ().getClients ());
+      for (final BtpSapClient client : clients)
+        if (getDb ().containsClient (client))
+          indicate (client, server, indication, fingerprint);
     }
     else
-      clientsToIndicate.addAll (getDb ().getClients ());
-    for (final BtpSapClient client : clientsToIndicate)
-      client.doIndication (server, indication);
+    {
+      // Clients without subscriptions receive everything; the others are found through the (inverted) subscription index,
+      // or, if geo-fenced, through the spatial index on the source position.
+      final OperationalBtpSapDB db = getDb ();
+      final OperationalBtpSapDB.IndicationSubscriptionIndex index = db.getIndicationSubscriptionIndex ();
+      final int clientIdLimit = db.getClientIdLimit ();
+      for (int clientId = 0; clientId < clientIdLimit; clientId++)
+        if (! index.isSubscribed (clientId))
+        {
+          final BtpSapClient client = db.getClient (clientId);
+          if (client != null)
+            indicate (client, server, indication, fingerprint);
+        }
+      final OperationalBtpSapDB.IndicationSubscriber[] subscribers = index.getSubscribers (indication.getBtpDstPort ());
+      if (subscribers.length > 0)
+      {
+        final BtpSapTypes.GnTrafficClass tcObject = indication.getGnTrafficClass ();
+        final int tc = (tcObject != null ? tcObject.toByte () & 0x3f : -1);
+        for (final OperationalBtpSapDB.IndicationSubscriber subscriber : subscribers)
+          if (subscriber.matches (tc))
+            indicate (subscriber.getClient (), server, indication, fingerprint);
+      }
+      final GnAreaGrid geoFences = index.getGeoFences ();
+      final BtpSapTypes.GnPositionVector srcPV = indication.getGnSrcPV ();
+      if (srcPV != null && ! geoFences.isEmpty ())
+      {
+        final int port = indication.getBtpDstPort ();
+        final BtpSapTypes.GnTrafficClass tcObject = indication.getGnTrafficClass ();
+        final int tc = (tcObject != null ? tcObject.toByte () & 0x3f : -1);
+        final double latitude = srcPV.getLatitude ();
+        final double longitude = srcPV.getLongitude ();
+        for (final GnAreaGrid.Fence fence : geoFences.getCellFences (latitude, longitude))
+          if (fence.matches (port, tc) && fence.contains (latitude, longitude))
+            indicate (fence.getClient (), server, indication, fingerprint);
+        for (final GnAreaGrid.Fence fence : geoFences.getLargeFences ())
+          if (fence.matches (port, tc) && fence.contains (latitude, longitude))
+            indicate (fence.getClient (), server, indication, fingerprint);
+      }
+    }
     return null;    
   }
 
+  private void indicate
+  (final BtpSapClient client, final BtpSapServer server, final BtpSap_DataIndContainer indication, final long fingerprint)
+  {
+    if (fingerprint != 0L)
+    {
+      final BtpSapIndicationDeduplicator indicationDeduplicator = this.indicationDeduplicator;
+      // Only deliveries the client actually routes count; a client may receive from just one of the servers.
+      if (indicationDeduplicator != null
+        && getDb ().isIndicationRouted (client, server)
+        && indicationDeduplicator.isDuplicate (fingerprint, client.getBtpSapClientId (), System.nanoTime ()))
+      {
+        this.metrics.lookup (client).drop (DropReason.DUPLICATE);
+        this.metrics.getSapMetrics ().drop (DropReason.DUPLICATE);
+        EVENTS.publish (LOGGER, EventType.DUPLICATE_INDICATION, this, client);
+        return;
+      }
+    }
+    this.metrics.lookup (client).indication (indication.getLength ());
+    client.doIndication (server, indication);
+  }
+
   @Override
   public void changed (final AbstractBtpSapEntity entity)
   {
@@ -202,12 +592,14 @@ implements OperationalBtpSap, OperationalBtpSapDB.Listener
   public void registerServerProtocolHandler (final BtpSapServerProtocolHandler handler)
   {
     getDb ().addServerProtocolHandler (handler);
+    this.metrics.get (EntityMetrics.Kind.SERVER_PROTOCOL_HANDLER, handler);
   }
   
   @Override
   public void unregisterServerProtocolHandler (final BtpSapServerProtocolHandler handler)
   {
     getDb ().removeServerProtocolHandler (handler);
+    this.metrics.remove (handler);
   }
   
   @Override
@@ -220,12 +612,14 @@ implements OperationalBtpSap, OperationalBtpSapDB.Listener
   public void registerClientProtocolHandler (final BtpSapClientProtocolHandler handler)
   {
     getDb ().addClientProtocolHandler (handler);
+    this.metrics.get (EntityMetrics.Kind.CLIENT_PROTOCOL_HANDLER, handler);
   }
   
   @Override
   public void unregisterClientProtocolHandler (final BtpSapClientProtocolHandler handler)
   {
     getDb ().removeClientProtocolHandler (handler);
+    this.metrics.remove (handler);
   }
   
   @Override
@@ -238,12 +632,15 @@ implements OperationalBtpSap, OperationalBtpSapDB.Listener
   public void registerServer (final BtpSapServer server)
   {
     getDb ().addServer (server);
+    this.metrics.get (EntityMetrics.Kind.SERVER, server);
   }
   
   @Override
   public void unregisterServer (final BtpSapServer server)
   {
     getDb ().removeServer (server);
+    removeDispatcher (server);
+    this.metrics.remove (server);
   }
   
   @Override
@@ -255,13 +652,19 @@ implements OperationalBtpSap, OperationalBtpSapDB.Listener
   @Override
   public boolean registerClient (final BtpSapClient client)
   {
-    return getDb ().addClient (client);
+    // Create (and register) the metrics up front, keeping JMX registration off the data path.
+    if (! getDb ().addClient (client))
+      return false;
+    this.metrics.get (EntityMetrics.Kind.CLIENT, client);
+    return true;
   }
   
   @Override
   public void unregisterClient (final BtpSapClient client)
   {
     getDb ().removeClient (client);
+    this.repetitionService.cancel (client);
+    this.metrics.remove (client);
   }
   
   @Override
@@ -0,0 +1,578 @@
+/*
+ * Copyright 2016 Jan de Jongh, TNO.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.etsi.btpsap.operational.client.shm.tno;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.etsi.btpsap.BtpSapTypes.GnCertificateId;
+import net.etsi.btpsap.BtpSapTypes.GnDestination;
+import net.etsi.btpsap.BtpSapTypes.GnPermissions;
+import net.etsi.btpsap.BtpSapTypes.GnPositionVector;
+import net.etsi.btpsap.BtpSapTypes.GnSecurityReport;
+import net.etsi.btpsap.BtpSapTypes.GnTrafficClass;
+import net.etsi.btpsap.operational.AbstractBtpSapEntity;
+import net.etsi.btpsap.operational.BtpSapClient;
+import net.etsi.btpsap.operational.BtpSapClientProtocolHandler;
+import net.etsi.btpsap.operational.OperationalBtpSap;
+import net.etsi.btpsap.operational.client.udp.tno.UdpTnoClientProtocolHandler;
+import net.etsi.btpsap.operational.client.udp.tno.UdpTnoDataInd;
+import net.etsi.btpsap.operational.client.udp.tno.UdpTnoRxBuffer;
+import net.etsi.btpsap.operational.client.udp.tno.UdpTnoRxBufferPool;
+import net.etsi.btpsap.operational.events.EventRing;
+import net.etsi.btpsap.operational.events.EventType;
+import net.etsi.btpsap.operational.metrics.DropReason;
+import net.etsi.btpsap.operational.metrics.EntityMetrics;
+
+/** A client protocol handler exchanging BTP/UDP[TNO] PDUs with co-located clients through shared-memory rings.
+ *
+ * <p>
+ * The handler complements a {@link UdpTnoClientProtocolHandler}, the control handler:
+ * clients connect and register through the TCP CLI of the control handler as usual,
+ * and then attach (memory-mapped) {@link ShmTnoRing}s created by this handler
+ * ({@code shm_requests <name>} for requests, {@code receive <unit|*> shm://<name>} for indications).
+ * Ring names are plain file names, resolved against the (single) ring directory of the handler;
+ * the handler only creates new files in that directory, and only removes the files it created itself.
+ * Requests are taken from the request rings by a single poller thread, and decoded by the control handler
+ * exactly as if received through UDP; indications are written straight into the indication rings
+ * by the threads delivering them.
+ *
+ * <p>
+ * The poller thread spins on the request rings for a while after finding them empty, then yields, and finally parks
+ * for {@link #IDLE_PARK_NS} between polls.
+ *
+ */
+public class ShmTnoClientProtocolHandler
+extends AbstractBtpSapEntity
+implements BtpSapClientProtocolHandler
+{
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // LOG
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private static final Logger LOG = Logger.getLogger (ShmTnoClientProtocolHandler.class.getName ());
+
+  private static final EventRing EVENTS = EventRing.getDefault ();
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTRUCTOR(S) / CLONING / FACTORY
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  public ShmTnoClientProtocolHandler
+  (final OperationalBtpSap btpSap, final UdpTnoClientProtocolHandler controlHandler, final Path ringDirectory)
+  {
+    super ("BTP/SHM[TNO][" + controlHandler + "]");
+    if (btpSap == null || controlHandler == null || ringDirectory == null)
+      throw new IllegalArgumentException ();
+    this.btpSap = btpSap;
+    this.controlHandler = controlHandler;
+    this.ringDirectory = ringDirectory.toAbsolutePath ().normalize ();
+  }
+
+  public ShmTnoClientProtocolHandler (final OperationalBtpSap btpSap, final UdpTnoClientProtocolHandler controlHandler)
+  {
+    this (btpSap, controlHandler, ShmTnoClientProtocolHandler.DEFAULT_RING_DIRECTORY);
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // OperationalBtpSap
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final OperationalBtpSap btpSap;
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CONTROL HANDLER
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final UdpTnoClientProtocolHandler controlHandler;
+
+  public final UdpTnoClientProtocolHandler getControlHandler ()
+  {
+    return this.controlHandler;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // DEFAULTS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** The URL scheme (prefix) of indication routes to shared-memory rings.
+   *
+   */
+  public final static String URL_SCHEME = "shm://";
+
+  /** The default directory holding the ring files.
+   *
+   */
+  public final static Path DEFAULT_RING_DIRECTORY = Paths.get ("/dev/shm/btpsap");
+
+  /** The maximum length of a ring name.
+   *
+   */
+  public final static int MAX_RING_NAME_LENGTH = 64;
+
+  /** The number of empty polls of all request rings after which the poller thread starts yielding.
+   *
+   */
+  public final static int IDLE_SPINS = 10000;
+
+  /** The number of yields after which the poller thread starts parking.
+   *
+   */
+  public final static int IDLE_YIELDS = 100;
+
+  public final static long IDLE_PARK_NS = 50000L;
+
+  /** The maximum number of requests taken from a single request ring before moving on to the next.
+   *
+   */
+  public final static int BURST_SIZE = 64;
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // RECEIVE BUFFER POOL
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final UdpTnoRxBufferPool rxBufferPool = new UdpTnoRxBufferPool ();
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // METRICS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** Returns the metrics of this handler, as registered with the BTP SAP.
+   *
+   * <p>
+   * Indications are counted upon writing them into a ring;
+   * requests are counted (upon decoding) by the control handler.
+   *
+   * @return The metrics of this handler.
+   *
+   */
+  protected final EntityMetrics getMetrics ()
+  {
+    return this.btpSap.getMetrics ().lookup (this);
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // RING DIRECTORY
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final Path ringDirectory;
+
+  public final Path getRingDirectory ()
+  {
+    return this.ringDirectory;
+  }
+
+  /** Resolves a ring name against the ring directory.
+   *
+   * <p>
+   * Ring names consist of (ASCII) letters, digits, {@code '.'}, {@code '_'} and {@code '-'}, and do not start with a dot;
+   * in particular, absolute names, path separators and {@code ".."} are rejected.
+   *
+   * @param name The ring name.
+   *
+   * @return The path of the ring file.
+   *
+   * @throws IllegalArgumentException If the name is {@code null} or illegal.
+   *
+   */
+  public final Path resolveRingName (final String name)
+  {
+    if (name == null || name.isEmpty () || name.length () > ShmTnoClientProtocolHandler.MAX_RING_NAME_LENGTH
+      || name.charAt (0) == '.')
+      throw new IllegalArgumentException ();
+    for (int i = 0; i < name.length (); i++)
+    {
+      final char c = name.charAt (i);
+      if (! ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '.' || c == '_' || c == '-'))
+        throw new IllegalArgumentException ();
+    }
+    final Path path = this.ringDirectory.resolve (name).normalize ();
+    if (! this.ringDirectory.equals (path.getParent ()))
+      throw new IllegalArgumentException ();
+    return path;
+  }
+
+  private Path toPath (final String url)
+  {
+    if (url == null || ! url.startsWith (ShmTnoClientProtocolHandler.URL_SCHEME))
+      throw new IllegalArgumentException ();
+    return resolveRingName (url.substring (ShmTnoClientProtocolHandler.URL_SCHEME.length ()));
+  }
+
+  private ShmTnoRing createRing (final Path path, final int capacity) throws IOException
+  {
+    Files.createDirectories (this.ringDirectory);
+    return ShmTnoRing.create (path, capacity);
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // RINGS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private static final class AttachedRing
+  {
+
+    private final BtpSapClient client;
+
+    private final ShmTnoRing ring;
+
+    private AttachedRing (final BtpSapClient client, final ShmTnoRing ring)
+    {
+      this.client = client;
+      this.ring = ring;
+    }
+
+  }
+
+  /** The request rings (copy-on-write; only the poller thread consumes from them).
+   *
+   */
+  private volatile AttachedRing[] requestRings = new AttachedRing[0];
+
+  /** The indication rings, keyed by their indication route (URL).
+   *
+   */
+  private final Map<String, AttachedRing> indicationRings = new ConcurrentHashMap<> ();
+
+  /** Creates a request ring for given client in a new file in the ring directory, and starts polling it for requests.
+   *
+   * <p>
+   * Any existing request ring of the client is detached first.
+   *
+   * @param client   The client, non-{@code null}.
+   * @param name     The name of the ring, see {@link #resolveRingName}; the file must not exist.
+   * @param capacity The capacity of the ring, see {@link ShmTnoRing#create}.
+   *
+   * @return The ring.
+   *
+   * @throws IOException If the ring cannot be created.
+   * @throws IllegalArgumentException If the name is illegal.
+   *
+   */
+  public final synchronized ShmTnoRing attachRequestRing (final BtpSapClient client, final String name, final int capacity)
+    throws IOException
+  {
+    if (client == null)
+      throw new IllegalArgumentException ();
+    final Path path = resolveRingName (name);
+    detachRequestRing (client);
+    final ShmTnoRing ring = createRing (path, capacity);
+    final AttachedRing[] requestRings = Arrays.copyOf (this.requestRings, this.requestRings.length + 1);
+    requestRings[requestRings.length - 1] = new AttachedRing (client, ring);
+    this.requestRings = requestRings;
+    LOG.log (Level.INFO, "{0}: Attached request ring {1} for client {2}.", new Object[]{this, ring, client});
+    return ring;
+  }
+
+  /** Stops polling the request ring of given client (if any), and removes its file.
+   *
+   * @param client The client, non-{@code null}.
+   *
+   */
+  public final synchronized void detachRequestRing (final BtpSapClient client)
+  {
+    if (client == null)
+      throw new IllegalArgumentException ();
+    final List<AttachedRing> requestRings = new ArrayList<> (Arrays.asList (this.requestRings));
+    for (int r = requestRings.size () - 1; r >= 0; r--)
+      if (requestRings.get (r).client == client)
+        removeFile (requestRings.remove (r).ring);
+    this.requestRings = requestRings.toArray (new AttachedRing[requestRings.size ()]);
+  }
+
+  /** Creates an indication ring for given client for an indication route, unless it exists already.
+   *
+   * @param client   The client, non-{@code null}.
+   * @param url      The indication route, {@value #URL_SCHEME} followed by the name of the ring, see {@link #resolveRingName}.
+   * @param capacity The capacity of the ring, see {@link ShmTnoRing#create}.
+   *
+   * @return The ring.
+   *
+   * @throws IOException If the ring cannot be created (e.g., because its file exists).
+   * @throws IllegalArgumentException If the url is illegal, or the ring is in use by another client.
+   *
+   */
+  public final synchronized ShmTnoRing attachIndicationRing (final BtpSapClient client, final String url, final int capacity)
+    throws IOException
+  {
+    if (client == null)
+      throw new IllegalArgumentException ();
+    final Path path = toPath (url);
+    final AttachedRing attachedRing = this.indicationRings.get (url);
+    if (attachedRing != null)
+    {
+      if (attachedRing.client != client)
+        throw new IllegalArgumentException ();
+      return attachedRing.ring;
+    }
+    final ShmTnoRing ring = createRing (path, capacity);
+    this.indicationRings.put (url, new AttachedRing (client, ring));
+    LOG.log (Level.INFO, "{0}: Attached indication ring {1} for client {2}.", new Object[]{this, ring, client});
+    return ring;
+  }
+
+  /** Detaches all rings of given client, and removes their files (all of which were created by this handler).
+   *
+   * @param client The client, non-{@code null}.
+   *
+   */
+  public final synchronized void detach (final BtpSapClient client)
+  {
+    detachRequestRing (client);
+    for (final Map.Entry<String, AttachedRing> entry : new ArrayList<> (this.indicationRings.entrySet ()))
+      if (entry.getValue ().client == client)
+      {
+        this.indicationRings.remove (entry.getKey ());
+        removeFile (entry.getValue ().ring);
+      }
+  }
+
+  private void removeFile (final ShmTnoRing ring)
+  {
+    try
+    {
+      Files.deleteIfExists (ring.getPath ());
+    }
+    catch (IOException ioe)
+    {
+      LOG.log (Level.WARNING, "{0}: IOException while removing ring {1}: {2}.", new Object[]{this, ring, ioe.getMessage ()});
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // INDICATION
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** Writes an encoded indication for a client into the indication ring of given route.
+   *
+   * <p>
+   * Concurrent writers (i.e., different units delivering indications) to the same ring are serialized.
+   *
+   * @param clientId   The client id.
+   * @param url        The indication route ({@value #URL_SCHEME} followed by the name of the ring).
+   * @param indication The encoded indication, non-{@code null}.
+   *
+   * @return Whether the indication was written; if not, it was dropped (no ring for the route, or ring full).
+   *
+   */
+  public final boolean indicate (final int clientId, final String url, final UdpTnoDataInd indication)
+  {
+    final EntityMetrics metrics = getMetrics ();
+    final AttachedRing attachedRing = this.indicationRings.get (url);
+    if (attachedRing == null)
+    {
+      metrics.drop (DropReason.NO_ROUTE);
+      EVENTS.publish (LOG, EventType.NO_ROUTE, this, null, url, 0L);
+      return false;
+    }
+    final boolean offered;
+    synchronized (attachedRing.ring)
+    {
+      offered = attachedRing.ring.offer (clientId, indication);
+    }
+    if (! offered)
+    {
+      metrics.drop (DropReason.QUEUE_FULL);
+      EVENTS.publish (LOG, EventType.QUEUE_FULL, this, attachedRing.ring, "indication", 0L);
+      return false;
+    }
+    metrics.indication (indication.getLength ());
+    return true;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // POLLER
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private volatile Thread poller = null;
+
+  private final class Poller
+  implements Runnable
+  {
+
+    private UdpTnoRxBuffer rxBuffer = null;
+
+    /** Takes at most a burst of requests from a ring, and returns the number taken.
+     *
+     */
+    private int poll (final ShmTnoRing ring)
+    {
+      final UdpTnoRxBufferPool pool = ShmTnoClientProtocolHandler.this.rxBufferPool;
+      int taken = 0;
+      while (taken < ShmTnoClientProtocolHandler.BURST_SIZE)
+      {
+        if (this.rxBuffer == null)
+        {
+          // Back-pressure: leave requests in the ring while all buffers are retained further down the pipeline.
+          this.rxBuffer = pool.tryAcquire ();
+          if (this.rxBuffer == null)
+            break;
+        }
+        final int length = ring.poll (this.rxBuffer.getBuffer (), 0);
+        if (length == 0)
+          break;
+        taken++;
+        if (length < 0)
+        {
+          getMetrics ().drop (DropReason.DECODE_ERROR);
+          EVENTS.publish (LOG, EventType.DECODE_ERROR, ShmTnoClientProtocolHandler.this, ring, "Record too large", -length);
+          continue;
+        }
+        final UdpTnoRxBuffer rxBuffer = this.rxBuffer;
+        this.rxBuffer = null;
+        try
+        {
+          rxBuffer.getPacket ().setLength (length);
+          ShmTnoClientProtocolHandler.this.controlHandler.udpPacket (rxBuffer);
+        }
+        finally
+        {
+          // Returns the buffer to the pool, unless it was retained further down the request pipeline.
+          rxBuffer.release ();
+        }
+      }
+      return taken;
+    }
+
+    @Override
+    public final void run ()
+    {
+      LOG.log (Level.INFO, "{0}: Poller starting!", ShmTnoClientProtocolHandler.this);
+      int idle = 0;
+      while (! Thread.interrupted ())
+      {
+        int taken = 0;
+        for (final AttachedRing attachedRing : ShmTnoClientProtocolHandler.this.requestRings)
+          try
+          {
+            taken += poll (attachedRing.ring);
+          }
+          catch (RuntimeException re)
+          {
+            EVENTS.publish (LOG, EventType.SERVER_ERROR, ShmTnoClientProtocolHandler.this, attachedRing.ring,
+              re.getMessage (), 0L);
+            detachRequestRing (attachedRing.client);
+          }
+        if (taken > 0)
+          idle = 0;
+        else if (idle < ShmTnoClientProtocolHandler.IDLE_SPINS)
+          idle++;
+        else if (idle < ShmTnoClientProtocolHandler.IDLE_SPINS + ShmTnoClientProtocolHandler.IDLE_YIELDS)
+        {
+          idle++;
+          Thread.yield ();
+        }
+        else
+          LockSupport.parkNanos (ShmTnoClientProtocolHandler.IDLE_PARK_NS);
+      }
+      if (this.rxBuffer != null)
+        this.rxBuffer.release ();
+      LOG.log (Level.INFO, "{0}: Poller terminating!", ShmTnoClientProtocolHandler.this);
+    }
+
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // BtpSapClientProtocolHandler
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  @Override
+  public final synchronized void startBtpSapClientProtocolHandler (final OperationalBtpSap btpSap)
+  {
+    if (this.poller != null)
+      return;
+    getMetrics ();
+    this.controlHandler.setSharedMemoryHandler (this);
+    this.poller = new Thread (new Poller (), toString () + "-poller");
+    this.poller.setDaemon (true);
+    this.poller.start ();
+  }
+
+  @Override
+  public final synchronized void stopBtpSapClientProtocolHandler ()
+  {
+    if (this.poller == null)
+      return;
+    this.controlHandler.setSharedMemoryHandler (null);
+    this.poller.interrupt ();
+    this.poller = null;
+    for (final AttachedRing attachedRing : this.requestRings)
+      removeFile (attachedRing.ring);
+    this.requestRings = new AttachedRing[0];
+    for (final AttachedRing attachedRing : this.indicationRings.values ())
+      removeFile (attachedRing.ring);
+    this.indicationRings.clear ();
+  }
+
+  @Override
+  public final synchronized boolean isActiveBtpSapClientProtocolHandler ()
+  {
+    return this.poller != null;
+  }
+
+  @Override
+  public void BTPDataIndication
+  (final Integer btpSrcPort,
+    final int btpDstPort,
+    final Integer btpDstPortInfo,
+    final GnDestination gnDstAddress,
+    final GnPositionVector gnSrcPV,
+    final GnSecurityReport gnSecReport,
+    final GnCertificateId gnCertId,
+    final GnPermissions gnPermissions,
+    final GnTrafficClass gnTrafficClass,
+    final Integer gnRemLifetime_s,
+    final int length,
+    final byte[] data) throws IllegalArgumentException
+  {
+    throw new UnsupportedOperationException ();
+  }
+
+}
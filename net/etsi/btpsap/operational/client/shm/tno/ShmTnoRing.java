@@ -0,0 +1,383 @@
+/*
+ * Copyright 2016 Jan de Jongh, TNO.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.etsi.btpsap.operational.client.shm.tno;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import net.etsi.btpsap.operational.client.udp.tno.UdpTnoDataInd;
+
+/** A single-producer/single-consumer ring of variable-length records in a memory-mapped file.
+ *
+ * <p>
+ * The ring is meant for exchanging BTP/UDP[TNO] PDUs with a co-located process (typically through a file under /dev/shm),
+ * one ring per direction.
+ * Each record holds a single datagram in TNO layout (a request datagram of version 1 or 2, or an indication PDU).
+ *
+ * <p>
+ * File layout (all integers in native byte order):
+ * <ul>
+ * <li>[0, 64): magic (int, {@link #MAGIC}), version (int, 1), capacity in bytes of the record area (int, power of two);
+ * <li>[64, 128): the tail: the total number of bytes ever produced (long, written by the producer only);
+ * <li>[128, 192): the head: the total number of bytes ever consumed (long, written by the consumer only);
+ * <li>[192, 192 + capacity): the record area.
+ * </ul>
+ * Each record consists of its length (int, positive), followed by its bytes, padded to a multiple of 8 bytes.
+ * A record never wraps; if it does not fit before the end of the record area, the producer writes a
+ * padding record (length {@link #PADDING}) and continues at the start of the area.
+ * The tail is published with release semantics after the record has been written,
+ * and the head with release semantics after the record has been read;
+ * both are read with acquire semantics by the other side.
+ *
+ * <p>
+ * The ring itself does not enforce the single producer and single consumer;
+ * callers with multiple producer (or consumer) threads must serialize them (e.g., by synchronizing on the ring).
+ *
+ */
+public final class ShmTnoRing
+{
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTRUCTOR(S) / CLONING / FACTORY
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private ShmTnoRing (final Path path, final MappedByteBuffer buffer, final int capacity)
+  {
+    this.path = path;
+    this.buffer = buffer;
+    this.capacity = capacity;
+    this.mask = capacity - 1;
+    this.producerView = buffer.duplicate ();
+    this.consumerView = buffer.duplicate ();
+  }
+
+  /** Creates a new (empty) ring in a new file.
+   *
+   * <p>
+   * The file must not exist; existing files are never overwritten.
+   *
+   * @param path     The path of the file, non-{@code null}.
+   * @param capacity The capacity in bytes of the record area; a power of two of at least {@link #MIN_CAPACITY}.
+   *
+   * @return The ring.
+   *
+   * @throws IOException If the file cannot be created (e.g., because it exists) or mapped.
+   *
+   */
+  public static ShmTnoRing create (final Path path, final int capacity) throws IOException
+  {
+    if (path == null || capacity < ShmTnoRing.MIN_CAPACITY || Integer.bitCount (capacity) != 1
+      || capacity > ShmTnoRing.MAX_CAPACITY)
+      throw new IllegalArgumentException ();
+    try (final FileChannel channel = FileChannel.open (path,
+      StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE))
+    {
+      final MappedByteBuffer buffer = channel.map (FileChannel.MapMode.READ_WRITE, 0, ShmTnoRing.HEADER_SIZE + capacity);
+      buffer.order (ByteOrder.nativeOrder ());
+      buffer.putInt (ShmTnoRing.OFFSET_CAPACITY, capacity);
+      buffer.putInt (ShmTnoRing.OFFSET_VERSION, ShmTnoRing.VERSION);
+      LONG.setRelease (buffer, ShmTnoRing.OFFSET_TAIL, 0L);
+      LONG.setRelease (buffer, ShmTnoRing.OFFSET_HEAD, 0L);
+      INT.setRelease (buffer, ShmTnoRing.OFFSET_MAGIC, ShmTnoRing.MAGIC);
+      return new ShmTnoRing (path, buffer, capacity);
+    }
+  }
+
+  /** Opens an existing ring in given file.
+   *
+   * @param path The path of the file, non-{@code null}.
+   *
+   * @return The ring.
+   *
+   * @throws IOException If the file cannot be opened or mapped, or does not hold a valid ring.
+   *
+   */
+  public static ShmTnoRing open (final Path path) throws IOException
+  {
+    if (path == null)
+      throw new IllegalArgumentException ();
+    try (final FileChannel channel = FileChannel.open (path, StandardOpenOption.READ, StandardOpenOption.WRITE))
+    {
+      if (channel.size () < ShmTnoRing.HEADER_SIZE)
+        throw new IOException ("Not a ring (too small): " + path + "!");
+      final MappedByteBuffer header = channel.map (FileChannel.MapMode.READ_WRITE, 0, ShmTnoRing.HEADER_SIZE);
+      header.order (ByteOrder.nativeOrder ());
+      if ((int) INT.getAcquire (header, ShmTnoRing.OFFSET_MAGIC) != ShmTnoRing.MAGIC
+        || header.getInt (ShmTnoRing.OFFSET_VERSION) != ShmTnoRing.VERSION)
+        throw new IOException ("Not a ring (magic or version mismatch): " + path + "!");
+      final int capacity = header.getInt (ShmTnoRing.OFFSET_CAPACITY);
+      if (capacity < ShmTnoRing.MIN_CAPACITY || Integer.bitCount (capacity) != 1 || capacity > ShmTnoRing.MAX_CAPACITY
+        || channel.size () < ShmTnoRing.HEADER_SIZE + capacity)
+        throw new IOException ("Not a ring (illegal capacity): " + path + "!");
+      final MappedByteBuffer buffer = channel.map (FileChannel.MapMode.READ_WRITE, 0, ShmTnoRing.HEADER_SIZE + capacity);
+      buffer.order (ByteOrder.nativeOrder ());
+      return new ShmTnoRing (path, buffer, capacity);
+    }
+  }
+
+  private final Path path;
+
+  public final Path getPath ()
+  {
+    return this.path;
+  }
+
+  @Override
+  public final String toString ()
+  {
+    return "ShmTnoRing[" + this.path + "]";
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // LAYOUT
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  public final static int MAGIC = 0x3d953d95;
+
+  public final static int VERSION = 1;
+
+  public final static int HEADER_SIZE = 192;
+
+  public final static int MIN_CAPACITY = 4096;
+
+  public final static int MAX_CAPACITY = 1 << 30;
+
+  public final static int DEFAULT_CAPACITY = 1 << 20;
+
+  /** The length of a padding record, marking the remainder of the record area as unused.
+   *
+   */
+  public final static int PADDING = -1;
+
+  private final static int OFFSET_MAGIC = 0;
+  private final static int OFFSET_VERSION = 4;
+  private final static int OFFSET_CAPACITY = 8;
+  private final static int OFFSET_TAIL = 64;
+  private final static int OFFSET_HEAD = 128;
+
+  private final static int RECORD_HEADER_SIZE = 4;
+
+  private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle (int[].class, ByteOrder.nativeOrder ());
+
+  private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle (long[].class, ByteOrder.nativeOrder ());
+
+  private static int align (final int length)
+  {
+    return (ShmTnoRing.RECORD_HEADER_SIZE + length + 7) & ~7;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // BUFFER
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final MappedByteBuffer buffer;
+
+  private final int capacity;
+
+  private final int mask;
+
+  private final ByteBuffer producerView;
+
+  private final ByteBuffer consumerView;
+
+  public final int getCapacity ()
+  {
+    return this.capacity;
+  }
+
+  /** Returns the maximum length of a single record.
+   *
+   * @return The maximum length of a single record.
+   *
+   */
+  public final int getMaxRecordLength ()
+  {
+    return this.capacity / 2 - ShmTnoRing.RECORD_HEADER_SIZE;
+  }
+
+  /** Returns the number of bytes (including record headers and padding) currently in the ring.
+   *
+   * @return The number of bytes in the ring.
+   *
+   */
+  public final int size ()
+  {
+    return (int) ((long) LONG.getAcquire (this.buffer, ShmTnoRing.OFFSET_TAIL)
+      - (long) LONG.getAcquire (this.buffer, ShmTnoRing.OFFSET_HEAD));
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // PRODUCER
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** The consumer position as last seen by the producer; avoids reading the (contended) head on every offer.
+   *
+   */
+  private long cachedHead = 0L;
+
+  /** Reserves room for a record of given length, returning the offset in the buffer of its bytes, or -1 if full.
+   *
+   */
+  private int reserve (final long tail, final int length)
+  {
+    if (length <= 0 || length > getMaxRecordLength ())
+      throw new IllegalArgumentException ();
+    final int index = (int) (tail & this.mask);
+    final int toEnd = this.capacity - index;
+    final int aligned = ShmTnoRing.align (length);
+    final int required = (aligned <= toEnd ? aligned : toEnd + aligned);
+    if (tail + required - this.cachedHead > this.capacity)
+    {
+      this.cachedHead = (long) LONG.getAcquire (this.buffer, ShmTnoRing.OFFSET_HEAD);
+      if (tail + required - this.cachedHead > this.capacity)
+        return -1;
+    }
+    if (aligned > toEnd)
+    {
+      this.buffer.putInt (ShmTnoRing.HEADER_SIZE + index, ShmTnoRing.PADDING);
+      return ShmTnoRing.HEADER_SIZE;
+    }
+    return ShmTnoRing.HEADER_SIZE + index;
+  }
+
+  private void publish (final long tail, final int recordOffset, final int length)
+  {
+    this.buffer.putInt (recordOffset, length);
+    final int index = (int) (tail & this.mask);
+    final long newTail = (recordOffset == ShmTnoRing.HEADER_SIZE && index != 0)
+      ? tail + (this.capacity - index) + ShmTnoRing.align (length)
+      : tail + ShmTnoRing.align (length);
+    LONG.setRelease (this.buffer, ShmTnoRing.OFFSET_TAIL, newTail);
+  }
+
+  /** Appends a record to the ring (producer side).
+   *
+   * @param source The source array, non-{@code null}.
+   * @param offset The offset of the record in the source array.
+   * @param length The length of the record, strictly positive.
+   *
+   * @return Whether the record was appended; {@code false} if the ring is full.
+   *
+   */
+  public final boolean offer (final byte[] source, final int offset, final int length)
+  {
+    if (source == null || offset < 0 || length < 0 || offset + length > source.length)
+      throw new IllegalArgumentException ();
+    final long tail = (long) LONG.getOpaque (this.buffer, ShmTnoRing.OFFSET_TAIL);
+    final int recordOffset = reserve (tail, length);
+    if (recordOffset < 0)
+      return false;
+    this.producerView.position (recordOffset + ShmTnoRing.RECORD_HEADER_SIZE);
+    this.producerView.put (source, offset, length);
+    publish (tail, recordOffset, length);
+    return true;
+  }
+
+  /** Appends an encoded indication for given client to the ring (producer side).
+   *
+   * @param clientId   The client id, patched into the indication while copying.
+   * @param indication The encoded indication, non-{@code null}.
+   *
+   * @return Whether the indication was appended; {@code false} if the ring is full.
+   *
+   */
+  public final boolean offer (final int clientId, final UdpTnoDataInd indication)
+  {
+    if (indication == null)
+      throw new IllegalArgumentException ();
+    final int length = indication.getLength (clientId);
+    final long tail = (long) LONG.getOpaque (this.buffer, ShmTnoRing.OFFSET_TAIL);
+    final int recordOffset = reserve (tail, length);
+    if (recordOffset < 0)
+      return false;
+    this.producerView.position (recordOffset + ShmTnoRing.RECORD_HEADER_SIZE);
+    indication.putTo (clientId, this.producerView);
+    publish (tail, recordOffset, length);
+    return true;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSUMER
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** The producer position as last seen by the consumer; avoids reading the (contended) tail on every poll.
+   *
+   */
+  private long cachedTail = 0L;
+
+  /** Removes the next record from the ring, copying it into given array (consumer side).
+   *
+   * <p>
+   * A record that does not fit into the array is removed nonetheless; its length is returned negated.
+   *
+   * @param target The target array, non-{@code null}.
+   * @param offset The offset in the target array.
+   *
+   * @return The length of the record copied, zero if the ring is empty,
+   *         or {@code -length} if the record (of given length) was too large for the array and was discarded.
+   *
+   */
+  public final int poll (final byte[] target, final int offset)
+  {
+    if (target == null || offset < 0 || offset > target.length)
+      throw new IllegalArgumentException ();
+    long head = (long) LONG.getOpaque (this.buffer, ShmTnoRing.OFFSET_HEAD);
+    if (head == this.cachedTail)
+    {
+      this.cachedTail = (long) LONG.getAcquire (this.buffer, ShmTnoRing.OFFSET_TAIL);
+      if (head == this.cachedTail)
+        return 0;
+    }
+    int index = (int) (head & this.mask);
+    int length = this.buffer.getInt (ShmTnoRing.HEADER_SIZE + index);
+    if (length == ShmTnoRing.PADDING)
+    {
+      head += this.capacity - index;
+      index = 0;
+      length = this.buffer.getInt (ShmTnoRing.HEADER_SIZE);
+    }
+    if (length <= 0 || length > getMaxRecordLength ())
+      throw new IllegalStateException ("Corrupt ring: " + this + "!");
+    final int result;
+    if (length <= target.length - offset)
+    {
+      this.consumerView.position (ShmTnoRing.HEADER_SIZE + index + ShmTnoRing.RECORD_HEADER_SIZE);
+      this.consumerView.get (target, offset, length);
+      result = length;
+    }
+    else
+      result = -length;
+    LONG.setRelease (this.buffer, ShmTnoRing.OFFSET_HEAD, head + ShmTnoRing.align (length));
+    return result;
+  }
+
+}
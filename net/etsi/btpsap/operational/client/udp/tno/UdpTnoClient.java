@@ -17,24 +17,31 @@
 package net.etsi.btpsap.operational.client.udp.tno;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketException;
+import java.net.SocketAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import net.etsi.btpsap.BtpSapTypes;
 import net.etsi.btpsap.BtpSap_DataIndContainer;
 import net.etsi.btpsap.BtpSap_DataResp;
 import net.etsi.btpsap.operational.AbstractBtpSapEntity;
 import net.etsi.btpsap.operational.BtpSapClient;
 import net.etsi.btpsap.operational.BtpSapServer;
 import net.etsi.btpsap.operational.OperationalBtpSap;
+import net.etsi.btpsap.operational.OperationalBtpSapDB;
+import net.etsi.btpsap.operational.client.shm.tno.ShmTnoClientProtocolHandler;
+import net.etsi.btpsap.operational.events.EventRing;
+import net.etsi.btpsap.operational.events.EventType;
+import net.etsi.btpsap.operational.metrics.DropReason;
+import net.etsi.btpsap.operational.metrics.EntityMetrics;
 
 /**
  *
@@ -42,11 +49,13 @@ import net.etsi.btpsap.operational.OperationalBtpSap;
  */
 public class UdpTnoClient
 extends AbstractBtpSapEntity
-implements BtpSapClient
+implements BtpSapClient, OperationalBtpSapDB.IndicationRoutingListener
 {
 
   private static final Logger LOG = Logger.getLogger (UdpTnoClient.class.getName ());
 
+  private static final EventRing EVENTS = EventRing.getDefault ();
+
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   //
   // CONSTRUCTOR(S) / CLONING / FACTORY
@@ -54,6 +63,7 @@ implements BtpSapClient
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   
   public UdpTnoClient (final OperationalBtpSap btpSap, final UdpTnoClientProtocolHandler handler, final Socket clientTcpSocket)
+    throws IOException
   {
     super ("UdpTnoClient[" + clientTcpSocket.getInetAddress () + ":" + clientTcpSocket.getPort () + "]");
     if (btpSap == null || handler == null || clientTcpSocket == null)
@@ -63,6 +73,51 @@ implements BtpSapClient
     this.udpTnoTcpClientServer = new UdpTnoTcpClientServer (this.btpSap, this, clientTcpSocket);
   }
 
+  /** Creates a client connected through a (control) socket channel, e.g., a Unix domain socket.
+   *
+   * @param btpSap        The BTP SAP, non-{@code null}.
+   * @param handler       The protocol handler, non-{@code null}.
+   * @param clientChannel The (blocking) control channel, non-{@code null}.
+   * @param name          The name of the client.
+   *
+   */
+  public UdpTnoClient
+  (final OperationalBtpSap btpSap,
+    final UdpTnoClientProtocolHandler handler,
+    final SocketChannel clientChannel,
+    final String name)
+  {
+    super ("UdpTnoClient[" + name + "]");
+    if (btpSap == null || handler == null || clientChannel == null)
+      throw new IllegalArgumentException ();
+    this.btpSap = btpSap;
+    this.handler = handler;
+    this.udpTnoTcpClientServer = new UdpTnoTcpClientServer (this.btpSap, this, clientChannel);
+  }
+
+  /** Creates a client connected through a session of a {@link UdpTnoNioCliServer}.
+   *
+   * @param btpSap  The BTP SAP, non-{@code null}.
+   * @param handler The protocol handler, non-{@code null}.
+   * @param session The (control) session, non-{@code null}.
+   * @param name    The name of the client.
+   *
+   */
+  public UdpTnoClient
+  (final OperationalBtpSap btpSap,
+    final UdpTnoClientProtocolHandler handler,
+    final UdpTnoNioCliServer.Session session,
+    final String name)
+  {
+    super ("UdpTnoClient[" + name + "]");
+    if (btpSap == null || handler == null || session == null)
+      throw new IllegalArgumentException ();
+    this.btpSap = btpSap;
+    this.handler = handler;
+    this.udpTnoTcpClientServer = new UdpTnoTcpClientServer (this.btpSap, this, session);
+    this.session = session;
+  }
+
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   //
   // OperationalBtpSap
@@ -78,6 +133,11 @@ implements BtpSapClient
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   
   private final UdpTnoClientProtocolHandler handler;
+
+  final UdpTnoClientProtocolHandler getHandler ()
+  {
+    return this.handler;
+  }
   
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   //
@@ -95,10 +155,35 @@ implements BtpSapClient
   
   private Thread udpTnoTcpClientServerThread = null;
 
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // UdpTnoTcpClientServer Session
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  
+  private UdpTnoNioCliServer.Session session = null;
+  
+  private boolean sessionStarted = false;
+
   @Override
   public synchronized void startBtpSapClient (OperationalBtpSap btpSap)
   {
-    if (this.udpTnoTcpClientServerThread == null)
+    if (this.session != null)
+    {
+      if (! this.sessionStarted)
+        try
+        {
+          this.session.start (this.udpTnoTcpClientServer);
+          this.sessionStarted = true;
+        }
+        catch (IOException ioe)
+        {
+          LOG.log (Level.WARNING, "Unable to start session {0} of {1}: {2}.",
+            new Object[]{this.session, this, ioe.getMessage ()});
+          this.udpTnoTcpClientServer.shutdown ();
+        }
+    }
+    else if (this.udpTnoTcpClientServerThread == null)
     {
       this.udpTnoTcpClientServerThread = new Thread (this.udpTnoTcpClientServer);
       this.udpTnoTcpClientServerThread.start ();
@@ -108,7 +193,7 @@ implements BtpSapClient
   @Override
   public synchronized void stopBtpSapClient ()
   {
-    if (this.udpTnoTcpClientServerThread != null)
+    if (this.udpTnoTcpClientServerThread != null || this.sessionStarted)
     {
       this.udpTnoTcpClientServer.shutdown ();
       this.udpTnoTcpClientServer = null;
@@ -118,46 +203,111 @@ implements BtpSapClient
   @Override
   public boolean isActiveBtpSapClient ()
   {
-    return this.udpTnoTcpClientServerThread != null;
+    return this.udpTnoTcpClientServerThread != null || this.sessionStarted;
   }
   
   protected synchronized void disconnect ()
   {
     this.udpTnoTcpClientServerThread = null;
+    this.sessionStarted = false;
+    // Not under the indication-routes lock; compilations take the database monitor while holding it.
+    final IndicationRoutes indicationRoutes = this.indicationRoutes;
+    this.indicationRoutes = null;
+    releaseStreams (indicationRoutes, null);
     this.btpSap.unregisterClient (this);
+    final ShmTnoClientProtocolHandler sharedMemoryHandler = this.handler.getSharedMemoryHandler ();
+    if (sharedMemoryHandler != null)
+      sharedMemoryHandler.detach (this);
     // XXX Should remove all listeners for gc!!!...
   }
 
   
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   //
-  // INDICATION SOCKET
+  // CLIENT ID
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  // Assigned (and cleared) by the database of the BTP SAP upon (un)registration.
+  private volatile int clientId = -1;
+  
+  @Override
+  public final int getBtpSapClientId ()
+  {
+    return this.clientId;
+  }
+  
+  @Override
+  public final void setBtpSapClientId (final int clientId)
+  {
+    this.clientId = clientId;
+  }
+  
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // METRICS
   //
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
-  private DatagramSocket indSocket = null;
+  private EntityMetrics getMetrics ()
+  {
+    return this.btpSap.getMetrics ().lookup (this);
+  }
   
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // INDICATION FORMAT
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private volatile UdpTnoIndicationEgress.Coalescing indicationCoalescing = null;
+
+  /** Returns the coalescing settings for indications to this client, as negotiated over the TCP CLI.
+   *
+   * @return The coalescing settings for (version 2) coalesced indication datagrams,
+   *         or {@code null} for (version 1) datagrams carrying a single indication (the default).
+   *
+   */
+  public final UdpTnoIndicationEgress.Coalescing getIndicationCoalescing ()
+  {
+    return this.indicationCoalescing;
+  }
+
+  /** Sets the coalescing settings for indications to this client.
+   *
+   * @param indicationCoalescing The new settings, {@code null} to revert to (version 1) datagrams.
+   *
+   */
+  public final void setIndicationCoalescing (final UdpTnoIndicationEgress.Coalescing indicationCoalescing)
+  {
+    this.indicationCoalescing = indicationCoalescing;
+  }
+
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   //
   // INDICATION
   //
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
-  final Map<String, InetSocketAddress> urlMapper = new HashMap<> ();
+  final Map<String, SocketAddress> urlMapper = new HashMap<> ();
   
-  private synchronized InetSocketAddress getInetSocketAddress (final String url)
+  private synchronized SocketAddress getSocketAddress (final String url)
   {
     if (url == null)
     {
       LOG.log (Level.WARNING, "Null URL?");
       return null;      
     }
+    // Stream destinations (e.g., Unix domain socket paths) are case sensitive, and resolved by the handler.
+    final SocketAddress streamDestination = this.handler.getStreamDestination (url);
+    if (streamDestination != null)
+      return streamDestination;
     if (this.urlMapper.containsKey (url.trim ().toLowerCase ()))
       return this.urlMapper.get (url.trim ().toLowerCase ());
     // URL has to start with udp://.
     if (! url.trim ().toLowerCase ().startsWith ("udp://"))
     {
-      LOG.log (Level.WARNING, "Illegal URL for indications: {0}; has to start with \'udp://\'.", url);
+      LOG.log (Level.WARNING, "Illegal URL for indications: {0}; has to start with \'udp://\' (or a scheme of the handler).", url);
       this.urlMapper.put (url.trim ().toLowerCase (), null);
       return null;
     }
@@ -209,180 +359,165 @@ implements BtpSapClient
     }
   }
   
-  private final static byte MAGIC_1 = (byte) (Integer.parseInt ("3d", 16) & 0xff);
-  private final static byte MAGIC_2 = (byte) (Integer.parseInt ("94", 16) & 0xff);
-  
-  private byte [] formatIndication (final BtpSap_DataIndContainer indication)
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // INDICATION ROUTES
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** A resolved indication route.
+   * 
+   */
+  private static final class IndicationRoute
   {
-    if (indication == null)
-      return null;
-    final int length = indication.getLength ();
-    final int unpaddedSize = 80 + length;
-    // XXX Clumsy way of doing this...
-    int paddedSize = unpaddedSize;
-    while (paddedSize % 4 != 0)
-      paddedSize++;
-    final int size = paddedSize;
-    final byte[] pdu = new byte[size];
-    pdu[0] = MAGIC_1;
-    pdu[1] = MAGIC_2;
-    pdu[2] = (byte) 1;
-    pdu[3] = (byte) this.btpSap.getClientId (this); // XXX What if this fails??
-    pdu[4] = (byte) 0; // Units...
-    pdu[5] = (byte) 0;
-    pdu[6] = (byte) 0; // XXX Btp Flags...
-    pdu[7] = (byte) 0; // XXX Gn SubType
-    final Integer btpSrcPort = indication.getBtpSrcPort ();
-    if (btpSrcPort != null)
-    {
-      pdu[8] = (byte) ((btpSrcPort & 0xff00) >> 8);
-      pdu[9] = (byte) (btpSrcPort & 0x00ff);
-    }
-    else
-    {
-      pdu[8] = (byte) 0;
-      pdu[9] = (byte) 0;      
-    }
-    pdu[10] = (byte) 0; // XXX Rem Lifetime...
-    if (indication.getGnTrafficClass () != null && (indication.getGnTrafficClass () instanceof BtpSapTypes.DefaultGnTrafficClass))
-      pdu[11] = ((BtpSapTypes.DefaultGnTrafficClass) indication.getGnTrafficClass ()).getTrafficClassByte ();
-    else
-      pdu[11] = (byte) 0; // We do not know...
-    final int btpDstPort = indication.getBtpDstPort ();
-    pdu[12] = (byte) ((btpDstPort & 0xff00) >> 8);
-    pdu[13] = (byte) (btpDstPort & 0x00ff);
-    final Integer btpDstPortInfo = indication.getBtpDstPortInfo ();
-    if (btpDstPortInfo != null)
-    {
-      pdu[14] = (byte) ((btpDstPortInfo & 0xff00) >> 8);
-      pdu[15] = (byte) (btpDstPortInfo & 0x00ff);
-    }
-    else
+
+    private IndicationRoute (final String url, final SocketAddress socketAddress)
     {
-      pdu[14] = (byte) 0;
-      pdu[15] = (byte) 0;      
+      this.url = url;
+      this.sharedMemory = url.startsWith (ShmTnoClientProtocolHandler.URL_SCHEME);
+      this.socketAddress = socketAddress;
     }
-    // XXX Dst Latitude OR DstGnUc
-    pdu[16] = (byte) 0;
-    pdu[17] = (byte) 0;
-    pdu[18] = (byte) 0;
-    pdu[19] = (byte) 0;
-    pdu[20] = (byte) 0;
-    pdu[21] = (byte) 0;
-    pdu[22] = (byte) 0;
-    pdu[23] = (byte) 0;
-    // XXX Dst Longitude
-    pdu[24] = (byte) 0;
-    pdu[25] = (byte) 0;
-    pdu[26] = (byte) 0;
-    pdu[27] = (byte) 0;
-    pdu[28] = (byte) 0;
-    pdu[29] = (byte) 0;
-    pdu[30] = (byte) 0;
-    pdu[31] = (byte) 0;
-    // XXX DST Distance A
-    pdu[32] = (byte) 0;
-    pdu[33] = (byte) 0;
-    // XXX DST Distance B
-    pdu[34] = (byte) 0;
-    pdu[35] = (byte) 0;
-    // XXX DST Angle
-    pdu[36] = (byte) 0;
-    pdu[37] = (byte) 0;
-    // RESERVED_1
-    pdu[38] = (byte) 0;
-    pdu[39] = (byte) 0;
-    // XXX SRC_GN_ADDRESS
-    pdu[40] = (byte) 0;
-    pdu[41] = (byte) 0;
-    pdu[42] = (byte) 0;
-    pdu[43] = (byte) 0;
-    pdu[44] = (byte) 0;
-    pdu[45] = (byte) 0;
-    pdu[46] = (byte) 0;
-    pdu[47] = (byte) 0;
-    final BtpSapTypes.GnPositionVector gnSrcPV = indication.getGnSrcPV ();
-    // SRC_LATITUDE
-    if (gnSrcPV != null)
+
+    private final String url;
+
+    private final boolean sharedMemory;
+
+    // Null for shared-memory routes, and for URLs that could not be resolved.
+    private final SocketAddress socketAddress;
+
+  }
+
+  /** The compiled indication routes of this client, keyed by server (unit).
+   * 
+   * <p>
+   * The routes do not depend on the servers registered (a server without route of its own takes the default route),
+   * so they only need recompiling upon changes in the indication routing of this client.
+   * 
+   */
+  private static final class IndicationRoutes
+  {
+
+    private IndicationRoutes (final BtpSapServer[] servers, final IndicationRoute[] routes, final IndicationRoute defaultRoute)
     {
-      final long latBits = Double.doubleToLongBits (indication.getGnSrcPV ().getLatitude ());
-      pdu[48] = (byte) ((latBits >> 56) & 0xff);
-      pdu[49] = (byte) ((latBits >> 48) & 0xff);
-      pdu[50] = (byte) ((latBits >> 40) & 0xff);
-      pdu[51] = (byte) ((latBits >> 32) & 0xff);
-      pdu[52] = (byte) ((latBits >> 24) & 0xff);
-      pdu[53] = (byte) ((latBits >> 16) & 0xff);
-      pdu[54] = (byte) ((latBits >>  8) & 0xff);
-      pdu[55] = (byte) ((latBits      ) & 0xff);      
+      this.servers = servers;
+      this.routes = routes;
+      this.defaultRoute = defaultRoute;
     }
-    else
+
+    // The servers with a route (or an explicit absence thereof) of their own; parallel to routes.
+    private final BtpSapServer[] servers;
+
+    // Null for servers explicitly without route.
+    private final IndicationRoute[] routes;
+
+    // The route for all other servers, may be null.
+    private final IndicationRoute defaultRoute;
+
+    /** Returns the route for given server; a scan over (typically) a handful of servers, without locking or hashing.
+     * 
+     */
+    private IndicationRoute getRoute (final BtpSapServer server)
     {
-      pdu[48] = (byte) 0;
-      pdu[49] = (byte) 0;
-      pdu[50] = (byte) 0;
-      pdu[51] = (byte) 0;
-      pdu[52] = (byte) 0;
-      pdu[53] = (byte) 0;
-      pdu[54] = (byte) 0;
-      pdu[55] = (byte) 0;
+      for (int s = 0; s < this.servers.length; s++)
+        if (this.servers[s] == server)
+          return this.routes[s];
+      return this.defaultRoute;
     }
-    // SRC_LONGITUDE
-    if (gnSrcPV != null)
+
+    /** Returns all routes, including the default route.
+     * 
+     */
+    private IndicationRoute[] getRoutes ()
     {
-      final long lonBits = Double.doubleToLongBits (indication.getGnSrcPV ().getLongitude ());
-      pdu[56] = (byte) ((lonBits >> 56) & 0xff);
-      pdu[57] = (byte) ((lonBits >> 48) & 0xff);
-      pdu[58] = (byte) ((lonBits >> 40) & 0xff);
-      pdu[59] = (byte) ((lonBits >> 32) & 0xff);
-      pdu[60] = (byte) ((lonBits >> 24) & 0xff);
-      pdu[61] = (byte) ((lonBits >> 16) & 0xff);
-      pdu[62] = (byte) ((lonBits >>  8) & 0xff);
-      pdu[63] = (byte) ((lonBits      ) & 0xff);      
+      final IndicationRoute[] allRoutes = Arrays.copyOf (this.routes, this.routes.length + 1);
+      allRoutes[this.routes.length] = this.defaultRoute;
+      return allRoutes;
     }
-    else
+
+  }
+
+  private volatile IndicationRoutes indicationRoutes = null;
+
+  // Serializes compilations; distinct from the monitor of this object, which is taken by the database
+  // (through the listener registration) while holding its own monitor.
+  private final Object indicationRoutesLock = new Object ();
+
+  /** Compiles the indication routing of this client in the database into resolved routes.
+   * 
+   * <p>
+   * Invoked by the database after each change to the indication routing of this client
+   * (e.g., upon the {@code receive} and {@code close} CLI commands);
+   * changes in the registered clients and servers do not affect the compiled routes.
+   * Never invoked from the data path, since it takes the database monitor, and may resolve host names.
+   * 
+   */
+  @Override
+  public final void indicationRoutingChanged ()
+  {
+    synchronized (this.indicationRoutesLock)
     {
-      pdu[56] = (byte) 0;
-      pdu[57] = (byte) 0;
-      pdu[58] = (byte) 0;
-      pdu[59] = (byte) 0;
-      pdu[60] = (byte) 0;
-      pdu[61] = (byte) 0;
-      pdu[62] = (byte) 0;
-      pdu[63] = (byte) 0;
+      // Disconnected (or not yet registered); do not revive the routes.
+      if (this.clientId < 0)
+        return;
+      final Map<BtpSapServer, String> routing = this.btpSap.getDb ().getIndicationRouting (this);
+      final int numberOfServers = (routing != null ? routing.size () - (routing.containsKey (null) ? 1 : 0) : 0);
+      final BtpSapServer[] servers = new BtpSapServer[numberOfServers];
+      final IndicationRoute[] routes = new IndicationRoute[numberOfServers];
+      IndicationRoute defaultRoute = null;
+      if (routing != null)
+      {
+        int s = 0;
+        for (final Map.Entry<BtpSapServer, String> entry : routing.entrySet ())
+        {
+          final IndicationRoute route = compileIndicationRoute (entry.getValue ());
+          if (entry.getKey () == null)
+            defaultRoute = route;
+          else
+          {
+            servers[s] = entry.getKey ();
+            routes[s] = route;
+            s++;
+          }
+        }
+      }
+      final IndicationRoutes indicationRoutes = new IndicationRoutes (servers, routes, defaultRoute);
+      releaseStreams (this.indicationRoutes, indicationRoutes);
+      this.indicationRoutes = indicationRoutes;
     }
-    // SECURITY REPORT LENGTH
-    // [+ SECURITY REPORT]
-    pdu[64] = (byte) 0;
-    pdu[65] = (byte) 0;
-    pdu[66] = (byte) 0;
-    pdu[67] = (byte) 0;
-    // CERTIFICATE ID LENGTH
-    // [+ CERTIFICATE ID]
-    pdu[68] = (byte) 0;
-    pdu[69] = (byte) 0;
-    pdu[70] = (byte) 0;
-    pdu[71] = (byte) 0;
-    // PERMISSIONS LENGTH
-    // [+ PERMISSIONS]
-    pdu[72] = (byte) 0;
-    pdu[73] = (byte) 0;
-    pdu[74] = (byte) 0;
-    pdu[75] = (byte) 0;
-    // PAYLOAD
-    pdu[76] = (byte) ((length & 0xff000000) >>> 24);
-    pdu[77] = (byte) ((length & 0x00ff0000) >>> 16);
-    pdu[78] = (byte) ((length & 0x0000ff00) >>> 8);
-    pdu[79] = (byte) (length & 0x000000ff);
-    final byte[] data_src = indication.getData ();
-    final int offset_src = indication.getOffset ();
-    System.arraycopy (data_src, offset_src, pdu, 80, length);
-    // 32-bit padding.
-    for (int i = 80 + length; i < size; i++)
-      pdu[i] = (byte) 0;
-    LOG.log (Level.INFO, "Encoded received BTP packet for client!");
-    return pdu;
   }
-  
+
+  private IndicationRoute compileIndicationRoute (final String url)
+  {
+    if (url == null)
+      return null;
+    return new IndicationRoute (url, url.startsWith (ShmTnoClientProtocolHandler.URL_SCHEME) ? null : getSocketAddress (url));
+  }
+
+  /** Releases the (stream) destinations of old indication routes that are not in new ones from the egress.
+   * 
+   */
+  private void releaseStreams (final IndicationRoutes oldRoutes, final IndicationRoutes newRoutes)
+  {
+    if (oldRoutes == null)
+      return;
+    final Set<SocketAddress> destinations = new HashSet<> ();
+    for (final IndicationRoute route : oldRoutes.getRoutes ())
+      if (route != null && route.socketAddress != null && ! (route.socketAddress instanceof InetSocketAddress))
+        destinations.add (route.socketAddress);
+    if (newRoutes != null)
+      for (final IndicationRoute route : newRoutes.getRoutes ())
+        if (route != null && route.socketAddress != null)
+          destinations.remove (route.socketAddress);
+    for (final SocketAddress destination : destinations)
+      this.handler.getIndicationEgress ().release (destination);
+  }
+
+  private IndicationRoute getIndicationRoute (final BtpSapServer server)
+  {
+    final IndicationRoutes indicationRoutes = this.indicationRoutes;
+    return indicationRoutes != null ? indicationRoutes.getRoute (server) : null;
+  }
+
   @Override
   public final BtpSap_DataResp doIndication (final BtpSapServer server, final BtpSap_DataIndContainer indication)
   {
@@ -396,54 +531,49 @@ implements BtpSapClient
       LOG.log (Level.SEVERE, "Null indication!");
       return null;
     }
-    final String indDestUrl = this.btpSap.getDb ().getIndicationRouting (this, server);
-    if (indDestUrl == null)
+    final IndicationRoute route = getIndicationRoute (server);
+    if (route == null)
     {
-      LOG.log (Level.WARNING, "Client {0} drops indication!", this);
+      getMetrics ().drop (DropReason.NO_ROUTE);
+      EVENTS.publish (LOG, EventType.NO_ROUTE, this, null, "no indication routing", 0L);
       return null;
     }
     // At this point, we have a URL to which to send the properly formatted indication.
-    // First, get the peer socket address.
-    final InetSocketAddress inetSocketAddress = getInetSocketAddress (indDestUrl);
-    if (inetSocketAddress == null)
-    {
-      LOG.log (Level.WARNING, "Unable to get socket for {0}!", indDestUrl);
-      return null;      
-    }
-    // Then, appropriately format the data.
-    final byte [] formattedInd = formatIndication (indication);
-    // Create the datagram socket if needed.
-    synchronized (this)
+    // Shared-memory rings are written directly (counting drops on the shared-memory handler).
+    if (route.sharedMemory)
     {
-      try
-      {
-        if (this.indSocket == null)
-          this.indSocket = new DatagramSocket ();    
-      }
-      catch (SocketException se)
+      final ShmTnoClientProtocolHandler sharedMemoryHandler = this.handler.getSharedMemoryHandler ();
+      final int clientId = this.clientId;
+      if (sharedMemoryHandler == null || clientId < 0)
       {
-        LOG.log (Level.SEVERE, "Unable to create datagram socket for indications!");
-        this.indSocket = null;
+        getMetrics ().drop (DropReason.NO_ROUTE);
+        EVENTS.publish (LOG, EventType.NO_ROUTE, this, null, route.url, 0L);
         return null;
       }
+      sharedMemoryHandler.indicate (clientId, route.url, UdpTnoDataInd.encode (indication));
+      return null;
     }
-    try
+    // Otherwise, use the (resolved) peer socket address.
+    final SocketAddress socketAddress = route.socketAddress;
+    if (socketAddress == null)
     {
-      // Subsequently, construct the datagram (packet).
-      final DatagramPacket packet = new DatagramPacket (formattedInd, 0, formattedInd.length, inetSocketAddress);
-      // Finally, send the datagram.
-      LOG.log (Level.INFO, "Sending received BTP Packet to client {0}!", inetSocketAddress);
-      this.indSocket.send (packet);
+      getMetrics ().drop (DropReason.NO_ROUTE);
+      EVENTS.publish (LOG, EventType.NO_ROUTE, this, null, route.url, 0L);
+      return null;      
     }
-    catch (SocketException se)
+    final int clientId = this.clientId;
+    if (clientId < 0)
     {
-      LOG.log (Level.SEVERE, "Unable to create datagram packet for indication!");
+      EVENTS.publish (LOG, EventType.NO_ROUTE, this, null, "not registered", 0L);
       return null;
     }
-    catch (IOException ioe)
+    // Then, appropriately format the data; this is done only once for all clients indicated.
+    final UdpTnoDataInd formattedInd = UdpTnoDataInd.encode (indication);
+    // Finally, hand the datagram over to the (shared) egress of our protocol handler.
+    if (! this.handler.getIndicationEgress ().enqueue (clientId, formattedInd, socketAddress, this.indicationCoalescing))
     {
-      LOG.log (Level.SEVERE, "IOException while sending datagram packet for indication!");
-      return null;
+      getMetrics ().drop (DropReason.QUEUE_FULL);
+      EVENTS.publish (LOG, EventType.QUEUE_FULL, this, socketAddress, "indication", 0L);
     }
     // XXX For now...
     return null;
@@ -15,13 +15,13 @@
  */
 package net.etsi.btpsap.operational.client.udp.tno;
 
+import java.io.IOException;
 import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.LinkedHashSet;
-import java.util.List;
-import java.util.Set;
+import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import net.etsi.btpsap.operational.OperationalBtpSap;
@@ -32,10 +32,13 @@ import net.etsi.btpsap.BtpSapTypes.GnPermissions;
 import net.etsi.btpsap.BtpSapTypes.GnPositionVector;
 import net.etsi.btpsap.BtpSapTypes.GnSecurityReport;
 import net.etsi.btpsap.BtpSapTypes.GnTrafficClass;
-import net.etsi.btpsap.BtpSap_DataReqContainer;
 import net.etsi.btpsap.operational.AbstractBtpSapEntity;
 import net.etsi.btpsap.operational.BtpSapClient;
-import net.etsi.btpsap.operational.BtpSapServer;
+import net.etsi.btpsap.operational.client.shm.tno.ShmTnoClientProtocolHandler;
+import net.etsi.btpsap.operational.events.EventRing;
+import net.etsi.btpsap.operational.events.EventType;
+import net.etsi.btpsap.operational.metrics.DropReason;
+import net.etsi.btpsap.operational.metrics.EntityMetrics;
 
 /**
  *
@@ -53,6 +56,8 @@ implements BtpSapClientProtocolHandler
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   
   private static final Logger LOG = Logger.getLogger (UdpTnoClientProtocolHandler.class.getName ());
+
+  private static final EventRing EVENTS = EventRing.getDefault ();
   
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   //
@@ -62,7 +67,18 @@ implements BtpSapClientProtocolHandler
   
   public UdpTnoClientProtocolHandler (final OperationalBtpSap btpSap, final int tcpAcceptPort, final int udpServerPort)
   {
-    super ("BTP/UDP[TNO][tcp:" + tcpAcceptPort + ", udp:" + udpServerPort + "]");
+    this ("BTP/UDP[TNO][tcp:" + tcpAcceptPort + ", udp:" + udpServerPort + "]", btpSap, tcpAcceptPort, udpServerPort);
+  }
+
+  /** Creates a handler with given name, for subclasses serving clients on other transports.
+   *
+   * @see UdpTnoUdsClientProtocolHandler
+   *
+   */
+  protected UdpTnoClientProtocolHandler
+  (final String name, final OperationalBtpSap btpSap, final int tcpAcceptPort, final int udpServerPort)
+  {
+    super (name);
     if (btpSap == null)
       throw new IllegalArgumentException ();
     this.btpSap = btpSap;
@@ -115,6 +131,88 @@ implements BtpSapClientProtocolHandler
   
   private final int udpServerPort;
   
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // TRANSPORT
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  
+  /** Returns whether this handler serves local clients on Unix domain sockets (instead of TCP and UDP).
+   * 
+   * @return Whether this handler serves local clients on Unix domain sockets; {@code false} by default.
+   * 
+   * @see UdpTnoUdsClientProtocolHandler
+   * 
+   */
+  public boolean isUnixDomain ()
+  {
+    return false;
+  }
+  
+  /** Returns the address the (NIO) control server binds to.
+   * 
+   * @return The address; the TCP accept port (on the wildcard address) by default.
+   * 
+   */
+  protected SocketAddress getControlAddress ()
+  {
+    return new InetSocketAddress (this.tcpAcceptPort);
+  }
+  
+  /** Opens an (unbound) server channel for the (NIO) control server.
+   * 
+   * @param address The address the channel is to be bound to, see {@link #getControlAddress}.
+   * 
+   * @return The channel; a TCP server channel by default.
+   * 
+   * @throws IOException If the channel cannot be opened.
+   * 
+   */
+  protected ServerSocketChannel openControlChannel (final SocketAddress address) throws IOException
+  {
+    return ServerSocketChannel.open ();
+  }
+  
+  /** Releases the address of the (NIO) control server after its channel is closed.
+   * 
+   * @param address The address, see {@link #getControlAddress}.
+   * 
+   * @throws IOException If the address cannot be released.
+   * 
+   */
+  protected void releaseControlAddress (final SocketAddress address) throws IOException
+  {
+  }
+  
+  /** Returns the name of a new client connected to the (NIO) control server.
+   * 
+   * @param session The session of the client.
+   * 
+   * @return The name; the remote address of the session by default.
+   * 
+   */
+  protected String getClientName (final UdpTnoNioCliServer.Session session)
+  {
+    return session.getRemoteAddress ().toString ();
+  }
+  
+  /** Returns the (stream) destination of an indication route with a URL other than {@code udp://}.
+   * 
+   * <p>
+   * Streams are opened through the stream-channel factory of the indication egress.
+   * 
+   * @param url The URL.
+   * 
+   * @return The destination, {@code null} if the URL is illegal or its scheme unsupported; always {@code null} by default.
+   * 
+   * @see UdpTnoIndicationEgress#setStreamChannelFactory
+   * 
+   */
+  protected SocketAddress getStreamDestination (final String url)
+  {
+    return null;
+  }
+  
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   //
   // TCP ACCEPT SERVER
@@ -123,6 +221,97 @@ implements BtpSapClientProtocolHandler
   
   private UdpTnoTcpAcceptServer tcpAcceptServer = null;
   
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // NIO CLI SERVER
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  
+  private UdpTnoNioCliServer nioCliServer = null;
+  
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CONTROL MODE
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** The ways in which (CLI) control connections are served.
+   * 
+   */
+  public enum ControlMode
+  {
+    /** A thread accepting connections, and a thread per connection doing blocking reads.
+     * 
+     * @see UdpTnoTcpAcceptServer
+     * @see UdpTnoUdsAcceptServer
+     * 
+     */
+    THREADED,
+    /** A single thread accepting and serving all connections through a selector.
+     * 
+     * @see UdpTnoNioCliServer
+     * 
+     */
+    NIO
+  }
+  
+  private ControlMode controlMode = ControlMode.NIO;
+  
+  public final synchronized ControlMode getControlMode ()
+  {
+    return this.controlMode;
+  }
+  
+  /** Sets the control mode; takes effect upon the next start of this handler.
+   * 
+   * @param controlMode The control mode, non-{@code null}.
+   * 
+   */
+  public final synchronized void setControlMode (final ControlMode controlMode)
+  {
+    if (controlMode == null)
+      throw new IllegalArgumentException ();
+    this.controlMode = controlMode;
+  }
+  
+  private void startControlServer ()
+  {
+    if (isControlServerActive ())
+      return;
+    switch (this.controlMode)
+    {
+      case THREADED:
+        startThreadedControlServer ();
+        break;
+      case NIO:
+        this.nioCliServer = new UdpTnoNioCliServer (getControlAddress (), this);
+        new Thread (this.nioCliServer, this.nioCliServer.toString ()).start ();
+        break;
+      default:
+        throw new RuntimeException ();
+    }
+  }
+  
+  /** Starts the control server for {@link ControlMode#THREADED}; invoked with the monitor of this object held.
+   * 
+   * <p>
+   * Subclasses overriding this method must also override {@link #stopServers} and {@link #isControlServerActive}.
+   * 
+   */
+  protected void startThreadedControlServer ()
+  {
+    this.tcpAcceptServer = new UdpTnoTcpAcceptServer (this.tcpAcceptPort, this);
+    new Thread (this.tcpAcceptServer).start ();
+  }
+  
+  /** Returns whether a control server is active; invoked with the monitor of this object held.
+   * 
+   */
+  protected boolean isControlServerActive ()
+  {
+    return this.tcpAcceptServer != null || this.nioCliServer != null;
+  }
+  
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   //
   // UDP SERVER
@@ -131,6 +320,200 @@ implements BtpSapClientProtocolHandler
 
   private UdpTnoUdpServer udpServer = null;
   
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // NIO UDP SERVER
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private UdpTnoNioUdpServer nioUdpServer = null;
+  
+  protected final synchronized UdpTnoNioUdpServer getNioUdpServer ()
+  {
+    return this.nioUdpServer;
+  }
+  
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // INGRESS MODE
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** The ways in which request datagrams can be received.
+   * 
+   */
+  public enum IngressMode
+  {
+    /** A single thread doing blocking reception on a datagram socket.
+     * 
+     */
+    BLOCKING,
+    /** One or more reader threads, each draining bursts of datagrams from a (non-blocking) datagram channel.
+     * 
+     * @see UdpTnoNioUdpServer
+     * 
+     */
+    NIO
+  }
+  
+  private IngressMode ingressMode = IngressMode.BLOCKING;
+  
+  public final synchronized IngressMode getIngressMode ()
+  {
+    return this.ingressMode;
+  }
+  
+  /** Sets the ingress mode; takes effect upon the next start of this handler.
+   * 
+   * @param ingressMode The ingress mode, non-{@code null}.
+   * 
+   */
+  public final synchronized void setIngressMode (final IngressMode ingressMode)
+  {
+    if (ingressMode == null)
+      throw new IllegalArgumentException ();
+    this.ingressMode = ingressMode;
+  }
+  
+  private int nioReaders = 1;
+  
+  public final synchronized int getNioReaders ()
+  {
+    return this.nioReaders;
+  }
+  
+  /** Sets the number of reader threads in {@link IngressMode#NIO} mode; takes effect upon the next start of this handler.
+   * 
+   * @param nioReaders The number of reader threads, strictly positive.
+   * 
+   */
+  public final synchronized void setNioReaders (final int nioReaders)
+  {
+    if (nioReaders <= 0)
+      throw new IllegalArgumentException ();
+    this.nioReaders = nioReaders;
+  }
+  
+  public final static int DEFAULT_NIO_BURST_SIZE = 64;
+  
+  private int nioBurstSize = UdpTnoClientProtocolHandler.DEFAULT_NIO_BURST_SIZE;
+  
+  public final synchronized int getNioBurstSize ()
+  {
+    return this.nioBurstSize;
+  }
+  
+  /** Sets the maximum number of datagrams a reader drains per wake-up in {@link IngressMode#NIO} mode;
+   *  takes effect upon the next start of this handler.
+   * 
+   * @param nioBurstSize The burst size, strictly positive.
+   * 
+   */
+  public final synchronized void setNioBurstSize (final int nioBurstSize)
+  {
+    if (nioBurstSize <= 0)
+      throw new IllegalArgumentException ();
+    this.nioBurstSize = nioBurstSize;
+  }
+  
+  private int socketReceiveBufferSize = 0;
+  
+  public final synchronized int getSocketReceiveBufferSize ()
+  {
+    return this.socketReceiveBufferSize;
+  }
+  
+  /** Sets the socket receive buffer size for request datagrams; takes effect upon the next start of this handler.
+   * 
+   * @param socketReceiveBufferSize The size in bytes, zero for the system default.
+   * 
+   */
+  public final synchronized void setSocketReceiveBufferSize (final int socketReceiveBufferSize)
+  {
+    if (socketReceiveBufferSize < 0)
+      throw new IllegalArgumentException ();
+    this.socketReceiveBufferSize = socketReceiveBufferSize;
+  }
+  
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // RECEIVE BUFFER POOL
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final UdpTnoRxBufferPool rxBufferPool = new UdpTnoRxBufferPool ();
+  
+  protected final UdpTnoRxBufferPool getRxBufferPool ()
+  {
+    return this.rxBufferPool;
+  }
+  
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // INDICATION EGRESS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final UdpTnoIndicationEgress indicationEgress = new UdpTnoIndicationEgress
+    (toString (), UdpTnoIndicationEgress.DEFAULT_NUMBER_OF_LANES, UdpTnoIndicationEgress.DEFAULT_QUEUE_CAPACITY);
+  
+  /** Returns the egress shared by all clients of this handler for sending indication datagrams.
+   * 
+   * @return The indication egress; started and stopped along with this handler.
+   * 
+   */
+  public final UdpTnoIndicationEgress getIndicationEgress ()
+  {
+    return this.indicationEgress;
+  }
+  
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // SHARED-MEMORY HANDLER
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private volatile ShmTnoClientProtocolHandler sharedMemoryHandler = null;
+
+  /** Returns the (started) shared-memory handler that uses this handler for control, if any.
+   *
+   * @return The shared-memory handler, {@code null} if none.
+   *
+   */
+  public final ShmTnoClientProtocolHandler getSharedMemoryHandler ()
+  {
+    return this.sharedMemoryHandler;
+  }
+
+  /** Sets the shared-memory handler that uses this handler for control; invoked by that handler only.
+   *
+   * @param sharedMemoryHandler The shared-memory handler, {@code null} to clear.
+   *
+   */
+  public final void setSharedMemoryHandler (final ShmTnoClientProtocolHandler sharedMemoryHandler)
+  {
+    this.sharedMemoryHandler = sharedMemoryHandler;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // METRICS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** Returns the metrics of this handler, as registered with the BTP SAP.
+   * 
+   * <p>
+   * Requests are counted upon reception (before routing), indications upon sending.
+   * 
+   * @return The metrics of this handler.
+   * 
+   */
+  protected final EntityMetrics getMetrics ()
+  {
+    return this.btpSap.getMetrics ().lookup (this);
+  }
+  
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   //
   // HEX REPRESENTATION UTILITY METHODS
@@ -162,44 +545,102 @@ implements BtpSapClientProtocolHandler
   {
     synchronized (this)
     {
-      if (this.tcpAcceptServer == null)
+      final EntityMetrics metrics = getMetrics ();
+      metrics.setQueueDepthGauge (new EntityMetrics.Gauge ()
       {
-        this.tcpAcceptServer = new UdpTnoTcpAcceptServer (this.tcpAcceptPort, this);
-        new Thread (this.tcpAcceptServer).start ();
+        @Override
+        public long get ()
+        {
+          return UdpTnoClientProtocolHandler.this.indicationEgress.getQueueDepth ()
+            + (UdpTnoClientProtocolHandler.this.rxBufferPool.getCapacity ()
+               - UdpTnoClientProtocolHandler.this.rxBufferPool.getAvailable ());
+        }
+      });
+      this.indicationEgress.setMetrics (metrics);
+      try
+      {
+        this.indicationEgress.start ();
       }
-      if (this.udpServer == null)
+      catch (IOException ioe)
       {
-        this.udpServer = new UdpTnoUdpServer (this.udpServerPort, this);
-        new Thread (this.udpServer).start ();
+        LOG.log (Level.SEVERE, "Unable to start indication egress: {0}!", ioe.getMessage ());
       }
+      startControlServer ();
+      startDataServer ();
     }
   }
 
+  /** Starts the server receiving request datagrams; invoked with the monitor of this object held.
+   * 
+   * <p>
+   * Subclasses overriding this method must also override {@link #stopServers}.
+   * 
+   */
+  protected void startDataServer ()
+  {
+    if (this.udpServer == null && this.nioUdpServer == null)
+    {
+      switch (this.ingressMode)
+      {
+        case BLOCKING:
+          this.udpServer = new UdpTnoUdpServer (this.udpServerPort, this);
+          new Thread (this.udpServer).start ();
+          break;
+        case NIO:
+          this.nioUdpServer = new UdpTnoNioUdpServer
+            (this.udpServerPort, this, this.nioReaders, this.socketReceiveBufferSize, this.nioBurstSize);
+          this.nioUdpServer.start ();
+          break;
+        default:
+          throw new RuntimeException ();
+      }
+    }
+  }
+  
   @Override
   public final void stopBtpSapClientProtocolHandler ()
   {
     synchronized (this)
     {
-      if (this.tcpAcceptServer != null)
-      {
-        this.tcpAcceptServer.shutdown ();
-        this.tcpAcceptServer = null;
-      }
-      if (this.udpServer != null)
-      {
-        this.udpServer.shutdown ();
-        this.udpServer = null;
-      }
+      stopServers ();
+      this.indicationEgress.shutdown ();
+    }
+  }
+
+  /** Stops the control and data servers; invoked with the monitor of this object held.
+   * 
+   */
+  protected void stopServers ()
+  {
+    if (this.tcpAcceptServer != null)
+    {
+      this.tcpAcceptServer.shutdown ();
+      this.tcpAcceptServer = null;
+    }
+    if (this.nioCliServer != null)
+    {
+      this.nioCliServer.shutdown ();
+      this.nioCliServer = null;
+    }
+    if (this.udpServer != null)
+    {
+      this.udpServer.shutdown ();
+      this.udpServer = null;
+    }
+    if (this.nioUdpServer != null)
+    {
+      this.nioUdpServer.shutdown ();
+      this.nioUdpServer = null;
     }
   }
 
   @Override
   public final synchronized boolean isActiveBtpSapClientProtocolHandler ()
   {
-    return this.tcpAcceptServer != null;
+    return isControlServerActive ();
   }
 
-  protected final boolean newClient (final Socket clientTcpSocket)
+  protected final boolean newClient (final Socket clientTcpSocket) throws IOException
   {
     final UdpTnoClient client = new UdpTnoClient (this.btpSap, this, clientTcpSocket);
     if (! this.btpSap.registerClient (client))
@@ -208,342 +649,143 @@ implements BtpSapClientProtocolHandler
     return true;
   }
   
-  private Set<BtpSapServer> createUnitsSet (final int unitsHigh, final int unitsLow)
-  {
-    final List<BtpSapServer> allServers = new ArrayList<> (this.btpSap.getRegisteredServers ());
-    final Set<BtpSapServer> unitsSelected = new LinkedHashSet<> ();
-    if ((unitsLow & 0x01) != 0 && allServers.size () >= 1)
-      unitsSelected.add (allServers.get (0));
-    if ((unitsLow & 0x02) != 0 && allServers.size () >= 2)
-      unitsSelected.add (allServers.get (1));
-    if ((unitsLow & 0x04) != 0 && allServers.size () >= 3)
-      unitsSelected.add (allServers.get (2));
-    if ((unitsLow & 0x08) != 0 && allServers.size () >= 4)
-      unitsSelected.add (allServers.get (3));
-    if ((unitsLow & 0x10) != 0 && allServers.size () >= 5)
-      unitsSelected.add (allServers.get (4));
-    if ((unitsLow & 0x20) != 0 && allServers.size () >= 6)
-      unitsSelected.add (allServers.get (5));
-    if ((unitsLow & 0x40) != 0 && allServers.size () >= 7)
-      unitsSelected.add (allServers.get (6));
-    if ((unitsLow & 0x80) != 0 && allServers.size () >= 8)
-      unitsSelected.add (allServers.get (7));
-    if ((unitsHigh & 0x01) != 0 && allServers.size () >= 9)
-      unitsSelected.add (allServers.get (8));
-    if ((unitsHigh & 0x02) != 0 && allServers.size () >= 10)
-      unitsSelected.add (allServers.get (9));
-    if ((unitsHigh & 0x04) != 0 && allServers.size () >= 11)
-      unitsSelected.add (allServers.get (10));
-    if ((unitsHigh & 0x08) != 0 && allServers.size () >= 12)
-      unitsSelected.add (allServers.get (11));
-    if ((unitsHigh & 0x10) != 0 && allServers.size () >= 13)
-      unitsSelected.add (allServers.get (12));
-    if ((unitsHigh & 0x20) != 0 && allServers.size () >= 14)
-      unitsSelected.add (allServers.get (13));
-    if ((unitsHigh & 0x40) != 0 && allServers.size () >= 15)
-      unitsSelected.add (allServers.get (14));
-    if ((unitsHigh & 0x80) != 0 && allServers.size () >= 16)
-      unitsSelected.add (allServers.get (15));
-    return unitsSelected;
-  }
-  
-  private final static byte MAGIC_1 = (byte) (Integer.parseInt ("3d", 16) & 0xff);
-  private final static byte MAGIC_2 = (byte) (Integer.parseInt ("93", 16) & 0xff);
-  
-  protected final void udpPacket (final DatagramPacket udpPacket)
-  {
-    if (udpPacket == null || udpPacket.getData () == null)
+  protected final boolean newClient (final SocketChannel clientChannel, final String name)
+  {
+    final UdpTnoClient client = new UdpTnoClient (this.btpSap, this, clientChannel, name);
+    if (! this.btpSap.registerClient (client))
+      return false;
+    client.startBtpSapClient (this.btpSap);
+    return true;
+  }
+  
+  protected final boolean newClient (final UdpTnoNioCliServer.Session session)
+  {
+    final UdpTnoClient client = new UdpTnoClient (this.btpSap, this, session, getClientName (session));
+    if (! this.btpSap.registerClient (client))
+      return false;
+    client.startBtpSapClient (this.btpSap);
+    return true;
+  }
+  
+  /** Decodes a request datagram and passes it to the BTP SAP.
+   *
+   * <p>
+   * The request view is owned by the caller (through its receive buffer), and is reused for subsequent datagrams.
+   * It is only valid for the duration of this call, unless retained (see {@link UdpTnoDataReq#retain}).
+   *
+   * @param udpPacket The datagram received.
+   * @param request   The (reusable) request view to decode into.
+   *
+   */
+  protected final void udpPacket (final DatagramPacket udpPacket, final UdpTnoDataReq request)
+  {
+    if (udpPacket == null || udpPacket.getData () == null || request == null)
     {
       LOG.log (Level.SEVERE, "Received null UDP packet, or one with null data buffer!");
       return;
     }
-    final byte[] data = udpPacket.getData ();
-    final int offset = udpPacket.getOffset ();
-    if (udpPacket.getLength () < 60)
-    {
-      LOG.log (Level.WARNING, "Received UDP packet with invalid size!");
-      return;
-    }
-    // Check magic: 0x3d93.
-    if (data[offset] != MAGIC_1 || data[offset + 1] != MAGIC_2)
+    // Stamp the arrival time as early as possible; it determines the deadline of the request.
+    request.setArrivalTime_ns (System.nanoTime ());
+    final EntityMetrics metrics = getMetrics ();
+    if (! request.wrap (udpPacket.getData (), udpPacket.getOffset (), udpPacket.getLength ()))
     {
-      LOG.log (Level.WARNING, "Received UDP packet with magic mismatch (!= 0x3d93)!");
-      return;
-    }
-    // Check version: only 0x01 supported.
-    if (data[offset + 2] != 1)
-    {
-      LOG.log (Level.WARNING, "Received UDP packet with unsupported version number: {0}.", data[offset + 2]);
+      metrics.drop (DropReason.DECODE_ERROR);
+      EVENTS.publish (LOG, EventType.DECODE_ERROR, this, null, request.getDecodeError (), 0L);
       return;
     }
     // Check client.
-    final int clientId = data[offset + 3] & 0xff;
+    final int clientId = request.getClientId ();
     final BtpSapClient client = this.btpSap.getDb ().getClient (clientId);
     if (client == null)
     {
-      LOG.log (Level.WARNING, "Received UDP packet from unregistered client (number): {0}.", clientId);
+      metrics.drop (DropReason.UNKNOWN_CLIENT);
+      EVENTS.publish (LOG, EventType.UNREGISTERED_CLIENT_ID, this, clientId);
       return;
     }
-    LOG.log (Level.FINE, "Received data from client {0}.", clientId);
-    this.btpSap.getDb ().getClient (clientId);
-    // Extract set of units (servers) to which the request applies.
-    final int unitsHigh = data[offset + 4] & 0xff;
-    final int unitsLow  = data[offset + 5] & 0xff;
-    final Set<BtpSapServer> units = createUnitsSet (unitsHigh, unitsLow);
-    boolean error = false;
-    final List<String> errorMessages = new ArrayList<> ();
-    final byte btpFlags = data[offset + 6];
-    final int communicationsProfileBits = (((int) btpFlags) & 0xff) >> 4;
-    final GnCommunicationsProfile gnCommunicationsProfile;
-    switch (communicationsProfileBits)
-    {
-      case 0:
-        gnCommunicationsProfile = GnCommunicationsProfile.GN_COMPROF_ITSG5;
-        break;
-      case 1:
-        gnCommunicationsProfile = GnCommunicationsProfile.GN_COMPROF_CELLULAR;
-        break;
-      default:
-        gnCommunicationsProfile = null;
-        error = true;
-        errorMessages.add ("Unknown Communications Profile: " + communicationsProfileBits + ".");
-        break;
-    }
-    final int btpTypeBits = (((int) btpFlags) & 0x0f);
-    final BtpType btpType;
-    switch (btpTypeBits)
-    {
-      case 0:
-        btpType = BtpType.BTP_A;
-        break;
-      case 1:
-        btpType = BtpType.BTP_B;
-        break;
-      default:
-        btpType = null;
-        error = true;
-        errorMessages.add ("Unknown BTP Type: " + btpTypeBits + ".");
-        break;
-    }
-    final byte gnTypeByte = data[offset + 7];
-    final int gnTypeNibble = (((int) gnTypeByte) & 0xff) >> 4;
-    final GnTransportType gnTransportType;
-    switch (gnTypeNibble)
-    {
-      case 0:
-        gnTransportType = GnTransportType.GN_UC;
-        break;
-      case 1:
-        gnTransportType = GnTransportType.GN_SHB;
-        break;
-      case 2:
-        gnTransportType = GnTransportType.GN_TSB;
-        break;
-      case 3:
-        gnTransportType = GnTransportType.GN_GBC;
-        break;
-      case 4:
-        gnTransportType = GnTransportType.GN_AC;
-        break;
-      default:
-        gnTransportType = null;
-        error = true;
-        errorMessages.add ("Unknown GeoNetworking Transport Type: " + gnTypeNibble + ".");
-        break;
-    }
-    final int sourcePort = ((data[offset + 8] & 0xff) << 8) + (data[offset + 9] & 0xff);
-    final byte lifeTimeByte = data[offset + 10];
-    final int lifeTimeMultiplier = (((int) lifeTimeByte) & 0xff) >> 2;
-    final int lifeTimeBaseBits = ((int) lifeTimeByte) & 0x03;
-    final int lifeTimeBase_ms;
-    switch (lifeTimeBaseBits)
-    {
-      case 0:
-        lifeTimeBase_ms = 50;
-        break;
-      case 1:
-        lifeTimeBase_ms = 1000;
-        break;
-      case 2:
-        lifeTimeBase_ms = 10000;
-        break;
-      case 3:
-        lifeTimeBase_ms = 100000;
-        break;
-      default:
-        lifeTimeBase_ms = 0;
-        error = true;
-        errorMessages.add ("Unknown Lifetime Base: " + lifeTimeBaseBits + ".");
-        break;
-    }
-    final int lifetime_ms = lifeTimeMultiplier * lifeTimeBase_ms;
-    final byte tcByte = data[offset + 11];
-    final GnTrafficClass gnTrafficClass = new DefaultGnTrafficClass (tcByte);
-    final int destinationPort = ((data[offset + 12] & 0xff) << 8) + (data[offset + 13] & 0xff);
-    final int destinationPortInfo = ((data[offset + 14] & 0xff) << 8) + (data[offset + 15] & 0xff);
-    final int hopLimit = data[offset + 16] & 0xff;
-    final byte repIntervalByte = data[offset + 17];
-    final int repIntervalMultiplier = (((int) repIntervalByte) & 0xff) >> 2;
-    final int repIntervalBaseBits = ((int) repIntervalByte) & 0x03;
-    final int repIntervalBase_ms;
-    switch (repIntervalBaseBits)
-    {
-      case 0:
-        repIntervalBase_ms = 50;
-        break;
-      case 1:
-        repIntervalBase_ms = 1000;
-        break;
-      case 2:
-        repIntervalBase_ms = 10000;
-        break;
-      case 3:
-        repIntervalBase_ms = 100000;
-        break;
-      default:
-        repIntervalBase_ms = 0;
-        error = true;
-        errorMessages.add ("Unknown Repitition Interval Base: " + repIntervalBaseBits + ".");
-        break;
-    }
-    final int repInterval_ms = repIntervalMultiplier * repIntervalBase_ms;
-    final byte repTimeByte = data[offset + 18];
-    final int repTimeMultiplier = (((int) repTimeByte) & 0xff) >> 2;
-    final int repTimeBaseBits = ((int) repTimeByte) & 0x03;
-    final int repTimeBase_ms;
-    switch (repTimeBaseBits)
+    metrics.request (udpPacket.getLength ());
+    doRequestFromClient (client, request);
+  }
+
+  /** Decodes a request datagram held in a pooled receive buffer and passes its request(s) to the BTP SAP.
+   *
+   * <p>
+   * Both (version 1 or 3) datagrams carrying a single request, and (version 2) batched datagrams carrying
+   * multiple requests are accepted; see {@link UdpTnoDataReq#V2_HEADER_SIZE} and {@link UdpTnoDataReq#V3_HEADER_SIZE}.
+   * The requests in a batched datagram are decoded and passed to the BTP SAP in a single pass,
+   * each through a request view of its own on the receive buffer.
+   * Decoding stops at the first invalid request; the requests preceding it have been passed to the BTP SAP already.
+   *
+   * <p>
+   * Co-located transports (e.g., {@link ShmTnoClientProtocolHandler}) pass their datagrams through this method as well.
+   *
+   * @param rxBuffer The receive buffer holding the datagram, owned by the caller for the duration of this call.
+   *
+   */
+  public final void udpPacket (final UdpTnoRxBuffer rxBuffer)
+  {
+    final DatagramPacket udpPacket = rxBuffer.getPacket ();
+    final byte[] data = udpPacket.getData ();
+    final int offset = udpPacket.getOffset ();
+    final int length = udpPacket.getLength ();
+    if (length < UdpTnoDataReq.V2_HEADER_SIZE || data[offset + 2] != 2)
     {
-      case 0:
-        repTimeBase_ms = 50;
-        break;
-      case 1:
-        repTimeBase_ms = 1000;
-        break;
-      case 2:
-        repTimeBase_ms = 10000;
-        break;
-      case 3:
-        repTimeBase_ms = 100000;
-        break;
-      default:
-        repTimeBase_ms = 0;
-        error = true;
-        errorMessages.add ("Unknown Repitition Time Base: " + repTimeBaseBits + ".");
-        break;
+      udpPacket (udpPacket, rxBuffer.getRequest ());
+      return;
     }
-    final int repTime_ms = repTimeMultiplier * repTimeBase_ms;
-    // final byte reserved1Byte = data[offset + 19];
-    // System.err.println ("RESERVED_1: " + (((int) reserved1Byte) & 0xff) + ".");
-    final GnDestination gnDestination;
-    if (gnTransportType == null)
-      gnDestination = null;
-    else
-      switch (gnTransportType)
-      {
-        case GN_UC:
-          final byte[] gnAddressBytes = Arrays.copyOfRange (data, 20, 28);
-          // XXX Error checking on gnAddressBytes??
-          final GnAddress gnAddress = new DefaultGnAddress (gnAddressBytes);
-          gnDestination = new DefaultGnDestination (gnAddress);
-          break;
-        case GN_SHB:
-          gnDestination = null;
-          break;
-        case GN_TSB:
-          gnDestination = null;
-          break;
-        case GN_GBC:
-        case GN_AC:
-          final int gnSubTypeNibble = (((int) gnTypeByte) & 0x0f);
-          final GnAreaShape gnAreaShape;
-          switch (gnSubTypeNibble)
-          {
-            case 0:
-              gnAreaShape = GnAreaShape.CIRCLE;
-              break;
-            case 1:
-              gnAreaShape = GnAreaShape.RECTANGLE;
-              break;
-            case 2:
-              gnAreaShape = GnAreaShape.ELLIPSE;
-              break;
-            default:
-              gnAreaShape = null;
-              error = true;
-              errorMessages.add ("Unknown GeoNetworking SubType: " + gnSubTypeNibble + ".");
-              break;
-          }
-          final long latBits = ((long) (data[offset + 20] & 0xff) << 56)
-                             + ((long) (data[offset + 21] & 0xff) << 48)
-                             + ((long) (data[offset + 22] & 0xff) << 40)
-                             + ((long) (data[offset + 23] & 0xff) << 32)
-                             + ((long) (data[offset + 24] & 0xff) << 24)
-                             + ((long) (data[offset + 25] & 0xff) << 16)
-                             + ((long) (data[offset + 26] & 0xff) << 8)
-                             + ((long) (data[offset + 27] & 0xff));
-          final double latitude = Double.longBitsToDouble (latBits);
-          final long lonBits = ((long) (data[offset + 28] & 0xff) << 56)
-                             + ((long) (data[offset + 29] & 0xff) << 48)
-                             + ((long) (data[offset + 30] & 0xff) << 40)
-                             + ((long) (data[offset + 31] & 0xff) << 32)
-                             + ((long) (data[offset + 32] & 0xff) << 24)
-                             + ((long) (data[offset + 33] & 0xff) << 16)
-                             + ((long) (data[offset + 34] & 0xff) << 8)
-                             + ((long) (data[offset + 35] & 0xff));
-          final double longitude = Double.longBitsToDouble (lonBits);
-          final int dA = ((data[offset + 36] & 0xff) << 8) + (data[offset + 37] & 0xff);
-          final int dB = ((data[offset + 38] & 0xff) << 8) + (data[offset + 39] & 0xff);
-          final int angle = ((data[offset + 40] & 0xff) << 8) + (data[offset + 41] & 0xff);
-          if (error)
-            gnDestination = null;
-          else
-            gnDestination = new DefaultGnDestination (new DefaultGnArea (gnAreaShape, latitude, longitude, dA, dB, angle));
-          break;
-        default:
-          gnDestination = null;
-          break;
-      }
-    // final int reserved2Int = ((data[offset + 42] & 0xff) << 8) + (data[offset + 43] & 0xff);
-    // System.err.println ("RESERVED_2: " + reserved2Int + ".");
-    final GnSecurityProfile gnSecurityProfile = new DefaultGnSecurityProfile (data, 44);
-    final long payloadLength = ((long) (data[offset + 56] & 0xff) << 24)
-                             + ((long) (data[offset + 57] & 0xff) << 16)
-                             + ((long) (data[offset + 58] & 0xff) << 8)
-                             + ((long) (data[offset + 59] & 0xff));
-    if (udpPacket.getLength () != 60 + payloadLength)
+    final long arrivalTime_ns = System.nanoTime ();
+    final EntityMetrics metrics = getMetrics ();
+    if (data[offset] != UdpTnoDataReq.MAGIC_1 || data[offset + 1] != UdpTnoDataReq.MAGIC_2)
     {
-      error = true;
-      errorMessages.add ("UDP Packet Length and Payload Length MISMATCH: UDP packet lenght = " + udpPacket.getLength ()
-        + ", payload length encoded in packet = " + payloadLength + " [SHOULD BE EXACTLY 60 LESS THAN UDP PACKET SIZE]!");
+      metrics.drop (DropReason.DECODE_ERROR);
+      EVENTS.publish (LOG, EventType.DECODE_ERROR, this, null, "Magic mismatch (!= 0x3d93)!", 0L);
+      return;
     }
-    // System.err.println ("Payload:");
-    // System.err.println (Arrays.toString (Arrays.copyOfRange (data, (int) 60, (int) (60 + payloadLength))));
-    if (error)
+    final int clientId = ((data[offset + UdpTnoDataReq.V2_OFFSET_CLIENT_ID_HIGH] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    final int count = ((data[offset + UdpTnoDataReq.V2_OFFSET_COUNT] & 0xff) << 8)
+                    | (data[offset + UdpTnoDataReq.V2_OFFSET_COUNT + 1] & 0xff);
+    final BtpSapClient client = this.btpSap.getDb ().getClient (clientId);
+    if (client == null)
     {
-      LOG.log (Level.WARNING, "Error decoding BTP/UDP[TNO] packet from client {0}:", client);
-      for (final String errorMessage : errorMessages)
-        LOG.log (Level.WARNING, errorMessage);
+      metrics.drop (DropReason.UNKNOWN_CLIENT);
+      EVENTS.publish (LOG, EventType.UNREGISTERED_CLIENT_ID, this, clientId);
+      return;
     }
-    else
+    final int end = offset + length;
+    int position = offset + UdpTnoDataReq.V2_HEADER_SIZE;
+    for (int r = 0; r < count; r++)
     {
-      final BtpSap_DataReqContainer reqContainer;
-      try
+      final UdpTnoDataReq request = rxBuffer.getRequest (r);
+      request.setArrivalTime_ns (arrivalTime_ns);
+      if (! request.wrapBatched (data, position, end - position))
       {
-        reqContainer = new BtpSap_DataReqContainer
-          (btpType, sourcePort, destinationPort, destinationPortInfo,
-           gnTransportType, gnDestination, gnCommunicationsProfile, gnSecurityProfile,
-           lifetime_ms, repInterval_ms, repTime_ms, hopLimit, gnTrafficClass,
-           (int) payloadLength, 60, data);
+        metrics.drop (DropReason.DECODE_ERROR);
+        EVENTS.publish (LOG, EventType.DECODE_ERROR, this, null, request.getDecodeError (), 0L);
+        return;
       }
-      catch (IllegalArgumentException iae)
+      if (request.getClientId () != clientId)
       {
-        LOG.log (Level.WARNING, "Error creating BTP Request Container: Illegal Argument (dropping request from client {0}): {1}.",
-          new Object[] {client, iae.getMessage ()});
+        request.clear ();
+        metrics.drop (DropReason.DECODE_ERROR);
+        EVENTS.publish (LOG, EventType.DECODE_ERROR, this, null, "Client id mismatch in batched UDP Packet!", 0L);
         return;
       }
-      this.btpSap.doRequestFromClient (client, reqContainer, units);
+      metrics.request (request.getPduLength ());
+      doRequestFromClient (client, request);
+      position += request.getPaddedLength ();
+    }
+    if (position != end)
+    {
+      metrics.drop (DropReason.DECODE_ERROR);
+      EVENTS.publish (LOG, EventType.DECODE_ERROR, this, null, "Trailing bytes in batched UDP Packet!", 0L);
     }
   }
+
+  private void doRequestFromClient (final BtpSapClient client, final UdpTnoDataReq request)
+  {
+    EVENTS.publish (LOG, EventType.REQUEST_RECEIVED, this, request.getClientId ());
+    // The unit mask selects the servers to which the request applies; none means TC-based routing.
+    this.btpSap.doRequestFromClient (client, request, request.getUnitMask ());
+  }
   
   @Override
   public void BTPDataIndication
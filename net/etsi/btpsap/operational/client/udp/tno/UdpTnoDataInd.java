@@ -15,11 +15,415 @@
  */
 package net.etsi.btpsap.operational.client.udp.tno;
 
-/**
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+import net.etsi.btpsap.BtpSapTypes;
+import net.etsi.btpsap.BtpSap_DataIndContainer;
+import net.etsi.btpsap.operational.events.EventRing;
+import net.etsi.btpsap.operational.events.EventType;
+
+/** An indication encoded (once) as BTP/UDP[TNO] indication datagram, shared among all destination clients.
+ *
+ * <p>
+ * The encoding is immutable, except for the client-id byte, which is left zero and is patched
+ * for each destination while copying the datagram into a send buffer.
+ * Client ids beyond {@link #MAX_V1_CLIENT_ID} do not fit in that byte;
+ * for those clients, the datagram is copied as a (version 3) PDU instead, see {@link #V3_HEADER_SIZE}.
  *
+ * <p>
+ * Encodings are cached on the indication itself, see {@link #encode}.
  *
  */
-public class UdpTnoDataInd
+public final class UdpTnoDataInd
 {
 
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // LOG
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private static final Logger LOG = Logger.getLogger (UdpTnoDataInd.class.getName ());
+
+  private static final EventRing EVENTS = EventRing.getDefault ();
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTRUCTOR(S) / CLONING / FACTORY
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private UdpTnoDataInd (final byte[] pdu)
+  {
+    this.pdu = pdu;
+  }
+
+  /** Returns the encoding of given indication, encoding it if not done so before.
+   *
+   * <p>
+   * The encoding is cached on the indication (through {@link BtpSap_DataIndContainer#setEncoding}),
+   * so that fanning out an indication to many clients encodes (and copies the payload) only once.
+   *
+   * @param indication The indication, non-{@code null}.
+   *
+   * @return The encoding of the indication.
+   *
+   */
+  public static UdpTnoDataInd encode (final BtpSap_DataIndContainer indication)
+  {
+    if (indication == null)
+      throw new IllegalArgumentException ();
+    final Object encoding = indication.getEncoding ();
+    if (encoding instanceof UdpTnoDataInd)
+      return (UdpTnoDataInd) encoding;
+    final UdpTnoDataInd udpTnoDataInd = new UdpTnoDataInd (formatIndication (indication));
+    indication.setEncoding (udpTnoDataInd);
+    return udpTnoDataInd;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // PROTOCOL CONSTANTS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  public final static int HEADER_SIZE = 80;
+
+  public final static byte MAGIC_1 = (byte) (Integer.parseInt ("3d", 16) & 0xff);
+  public final static byte MAGIC_2 = (byte) (Integer.parseInt ("94", 16) & 0xff);
+
+  public final static int OFFSET_CLIENT_ID = 3;
+
+  private final static int OFFSET_UNITS = 4;
+
+  /** The largest client id that fits in a version 1 PDU.
+   *
+   */
+  public final static int MAX_V1_CLIENT_ID = 0xff;
+
+  /** The size of the header of a (version 2) coalesced indication datagram.
+   *
+   * <p>
+   * A version 2 datagram consists of this header, followed by one or more (version 1 or 3) indication PDUs back to back.
+   * Each PDU is self-delimiting through its payload length and 32-bit padding.
+   * The header holds the magic, the version (2), the low 8 bits of the client id, the number of PDUs (16-bit, big endian),
+   * and the high 8 bits of the client id; the last byte is reserved (zero).
+   * The high 8 bits of the client id (formerly reserved) are zero for client ids up to {@link #MAX_V1_CLIENT_ID},
+   * to which version 1 PDUs are sent; the datagram carries version 3 PDUs to other clients.
+   *
+   */
+  public final static int V2_HEADER_SIZE = 8;
+
+  public final static int V2_OFFSET_COUNT = 4;
+
+  public final static int V2_OFFSET_CLIENT_ID_HIGH = 6;
+
+  /** The size of the header of a (version 3) indication PDU.
+   *
+   * <p>
+   * A version 3 PDU widens the client id to 16 bits, as in (version 3) request PDUs;
+   * it is sent instead of a version 1 PDU to clients with ids beyond {@link #MAX_V1_CLIENT_ID}.
+   * It starts with the magic, the version (3), a reserved byte (zero), the client id (16-bit, big endian)
+   * and two reserved bytes (zero); the remainder equals a version 1 PDU from its units (offset 4) onwards,
+   * shifted by 4 bytes.
+   *
+   */
+  public final static int V3_HEADER_SIZE = 84;
+
+  private final static int V3_OFFSET_CLIENT_ID = 4;
+
+  private final static int V3_SHIFT = UdpTnoDataInd.V3_HEADER_SIZE - UdpTnoDataInd.HEADER_SIZE;
+
+  /** Puts the header of a (version 2) coalesced indication datagram into a byte buffer (at its position).
+   *
+   * @param clientId The client id.
+   * @param count    The number of indications in the datagram.
+   * @param buffer   The buffer to put into.
+   *
+   * @throws IllegalArgumentException If the count is out of range.
+   * @throws java.nio.BufferOverflowException If the header does not fit.
+   *
+   */
+  public static void putV2Header (final int clientId, final int count, final ByteBuffer buffer)
+  {
+    if (count <= 0 || count > 0xffff)
+      throw new IllegalArgumentException ();
+    buffer.put (UdpTnoDataInd.MAGIC_1);
+    buffer.put (UdpTnoDataInd.MAGIC_2);
+    buffer.put ((byte) 2);
+    buffer.put ((byte) (clientId & 0x00ff));
+    buffer.put ((byte) ((count & 0xff00) >> 8));
+    buffer.put ((byte) (count & 0x00ff));
+    buffer.put ((byte) ((clientId & 0xff00) >> 8));
+    buffer.put ((byte) 0);
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // PDU
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final byte[] pdu;
+
+  /** Returns the length of the encoded (version 1) datagram (including padding).
+   *
+   * @return The length of the encoded datagram.
+   *
+   */
+  public final int getLength ()
+  {
+    return this.pdu.length;
+  }
+
+  /** Returns the length of the datagram (including padding) for given client.
+   *
+   * @param clientId The client id.
+   *
+   * @return The length of the datagram for the client; larger than {@link #getLength} for version 3 PDUs.
+   *
+   */
+  public final int getLength (final int clientId)
+  {
+    return clientId > UdpTnoDataInd.MAX_V1_CLIENT_ID ? this.pdu.length + UdpTnoDataInd.V3_SHIFT : this.pdu.length;
+  }
+
+  /** Copies the encoded datagram into a byte array for given client.
+   *
+   * @param clientId The client id.
+   * @param buffer   The buffer to copy into.
+   * @param offset   The offset in the buffer.
+   *
+   * @return The number of bytes copied, see {@link #getLength(int)}.
+   *
+   * @throws IndexOutOfBoundsException If the datagram does not fit.
+   *
+   */
+  public final int copyTo (final int clientId, final byte[] buffer, final int offset)
+  {
+    if (clientId > UdpTnoDataInd.MAX_V1_CLIENT_ID)
+    {
+      System.arraycopy (this.pdu, UdpTnoDataInd.OFFSET_UNITS,
+        buffer, offset + UdpTnoDataInd.OFFSET_UNITS + UdpTnoDataInd.V3_SHIFT,
+        this.pdu.length - UdpTnoDataInd.OFFSET_UNITS);
+      buffer[offset] = UdpTnoDataInd.MAGIC_1;
+      buffer[offset + 1] = UdpTnoDataInd.MAGIC_2;
+      buffer[offset + 2] = (byte) 3;
+      buffer[offset + 3] = (byte) 0;
+      buffer[offset + UdpTnoDataInd.V3_OFFSET_CLIENT_ID] = (byte) ((clientId & 0xff00) >> 8);
+      buffer[offset + UdpTnoDataInd.V3_OFFSET_CLIENT_ID + 1] = (byte) (clientId & 0x00ff);
+      buffer[offset + UdpTnoDataInd.V3_OFFSET_CLIENT_ID + 2] = (byte) 0;
+      buffer[offset + UdpTnoDataInd.V3_OFFSET_CLIENT_ID + 3] = (byte) 0;
+      return this.pdu.length + UdpTnoDataInd.V3_SHIFT;
+    }
+    System.arraycopy (this.pdu, 0, buffer, offset, this.pdu.length);
+    buffer[offset + UdpTnoDataInd.OFFSET_CLIENT_ID] = (byte) clientId;
+    return this.pdu.length;
+  }
+
+  /** Puts the encoded datagram for given client into a byte buffer (at its position).
+   *
+   * @param clientId The client id.
+   * @param buffer   The buffer to put into.
+   *
+   * @throws java.nio.BufferOverflowException If the datagram does not fit.
+   *
+   * @see #getLength(int)
+   *
+   */
+  public final void putTo (final int clientId, final ByteBuffer buffer)
+  {
+    if (clientId > UdpTnoDataInd.MAX_V1_CLIENT_ID)
+    {
+      buffer.put (UdpTnoDataInd.MAGIC_1);
+      buffer.put (UdpTnoDataInd.MAGIC_2);
+      buffer.put ((byte) 3);
+      buffer.put ((byte) 0);
+      buffer.put ((byte) ((clientId & 0xff00) >> 8));
+      buffer.put ((byte) (clientId & 0x00ff));
+      buffer.put ((byte) 0);
+      buffer.put ((byte) 0);
+      buffer.put (this.pdu, UdpTnoDataInd.OFFSET_UNITS, this.pdu.length - UdpTnoDataInd.OFFSET_UNITS);
+      return;
+    }
+    final int position = buffer.position ();
+    buffer.put (this.pdu);
+    buffer.put (position + UdpTnoDataInd.OFFSET_CLIENT_ID, (byte) clientId);
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // ENCODING
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private static byte [] formatIndication (final BtpSap_DataIndContainer indication)
+  {
+    final int length = indication.getLength ();
+    final int unpaddedSize = UdpTnoDataInd.HEADER_SIZE + length;
+    // XXX Clumsy way of doing this...
+    int paddedSize = unpaddedSize;
+    while (paddedSize % 4 != 0)
+      paddedSize++;
+    final int size = paddedSize;
+    final byte[] pdu = new byte[size];
+    pdu[0] = UdpTnoDataInd.MAGIC_1;
+    pdu[1] = UdpTnoDataInd.MAGIC_2;
+    pdu[2] = (byte) 1;
+    pdu[3] = (byte) 0; // Client id; patched per destination.
+    pdu[4] = (byte) 0; // Units...
+    pdu[5] = (byte) 0;
+    pdu[6] = (byte) 0; // XXX Btp Flags...
+    pdu[7] = (byte) 0; // XXX Gn SubType
+    final Integer btpSrcPort = indication.getBtpSrcPort ();
+    if (btpSrcPort != null)
+    {
+      pdu[8] = (byte) ((btpSrcPort & 0xff00) >> 8);
+      pdu[9] = (byte) (btpSrcPort & 0x00ff);
+    }
+    else
+    {
+      pdu[8] = (byte) 0;
+      pdu[9] = (byte) 0;      
+    }
+    pdu[10] = (byte) 0; // XXX Rem Lifetime...
+    if (indication.getGnTrafficClass () != null && (indication.getGnTrafficClass () instanceof BtpSapTypes.DefaultGnTrafficClass))
+      pdu[11] = ((BtpSapTypes.DefaultGnTrafficClass) indication.getGnTrafficClass ()).getTrafficClassByte ();
+    else
+      pdu[11] = (byte) 0; // We do not know...
+    final int btpDstPort = indication.getBtpDstPort ();
+    pdu[12] = (byte) ((btpDstPort & 0xff00) >> 8);
+    pdu[13] = (byte) (btpDstPort & 0x00ff);
+    final Integer btpDstPortInfo = indication.getBtpDstPortInfo ();
+    if (btpDstPortInfo != null)
+    {
+      pdu[14] = (byte) ((btpDstPortInfo & 0xff00) >> 8);
+      pdu[15] = (byte) (btpDstPortInfo & 0x00ff);
+    }
+    else
+    {
+      pdu[14] = (byte) 0;
+      pdu[15] = (byte) 0;      
+    }
+    // XXX Dst Latitude OR DstGnUc
+    pdu[16] = (byte) 0;
+    pdu[17] = (byte) 0;
+    pdu[18] = (byte) 0;
+    pdu[19] = (byte) 0;
+    pdu[20] = (byte) 0;
+    pdu[21] = (byte) 0;
+    pdu[22] = (byte) 0;
+    pdu[23] = (byte) 0;
+    // XXX Dst Longitude
+    pdu[24] = (byte) 0;
+    pdu[25] = (byte) 0;
+    pdu[26] = (byte) 0;
+    pdu[27] = (byte) 0;
+    pdu[28] = (byte) 0;
+    pdu[29] = (byte) 0;
+    pdu[30] = (byte) 0;
+    pdu[31] = (byte) 0;
+    // XXX DST Distance A
+    pdu[32] = (byte) 0;
+    pdu[33] = (byte) 0;
+    // XXX DST Distance B
+    pdu[34] = (byte) 0;
+    pdu[35] = (byte) 0;
+    // XXX DST Angle
+    pdu[36] = (byte) 0;
+    pdu[37] = (byte) 0;
+    // RESERVED_1
+    pdu[38] = (byte) 0;
+    pdu[39] = (byte) 0;
+    // XXX SRC_GN_ADDRESS
+    pdu[40] = (byte) 0;
+    pdu[41] = (byte) 0;
+    pdu[42] = (byte) 0;
+    pdu[43] = (byte) 0;
+    pdu[44] = (byte) 0;
+    pdu[45] = (byte) 0;
+    pdu[46] = (byte) 0;
+    pdu[47] = (byte) 0;
+    final BtpSapTypes.GnPositionVector gnSrcPV = indication.getGnSrcPV ();
+    // SRC_LATITUDE
+    if (gnSrcPV != null)
+    {
+      final long latBits = Double.doubleToLongBits (indication.getGnSrcPV ().getLatitude ());
+      pdu[48] = (byte) ((latBits >> 56) & 0xff);
+      pdu[49] = (byte) ((latBits >> 48) & 0xff);
+      pdu[50] = (byte) ((latBits >> 40) & 0xff);
+      pdu[51] = (byte) ((latBits >> 32) & 0xff);
+      pdu[52] = (byte) ((latBits >> 24) & 0xff);
+      pdu[53] = (byte) ((latBits >> 16) & 0xff);
+      pdu[54] = (byte) ((latBits >>  8) & 0xff);
+      pdu[55] = (byte) ((latBits      ) & 0xff);      
+    }
+    else
+    {
+      pdu[48] = (byte) 0;
+      pdu[49] = (byte) 0;
+      pdu[50] = (byte) 0;
+      pdu[51] = (byte) 0;
+      pdu[52] = (byte) 0;
+      pdu[53] = (byte) 0;
+      pdu[54] = (byte) 0;
+      pdu[55] = (byte) 0;
+    }
+    // SRC_LONGITUDE
+    if (gnSrcPV != null)
+    {
+      final long lonBits = Double.doubleToLongBits (indication.getGnSrcPV ().getLongitude ());
+      pdu[56] = (byte) ((lonBits >> 56) & 0xff);
+      pdu[57] = (byte) ((lonBits >> 48) & 0xff);
+      pdu[58] = (byte) ((lonBits >> 40) & 0xff);
+      pdu[59] = (byte) ((lonBits >> 32) & 0xff);
+      pdu[60] = (byte) ((lonBits >> 24) & 0xff);
+      pdu[61] = (byte) ((lonBits >> 16) & 0xff);
+      pdu[62] = (byte) ((lonBits >>  8) & 0xff);
+      pdu[63] = (byte) ((lonBits      ) & 0xff);      
+    }
+    else
+    {
+      pdu[56] = (byte) 0;
+      pdu[57] = (byte) 0;
+      pdu[58] = (byte) 0;
+      pdu[59] = (byte) 0;
+      pdu[60] = (byte) 0;
+      pdu[61] = (byte) 0;
+      pdu[62] = (byte) 0;
+      pdu[63] = (byte) 0;
+    }
+    // SECURITY REPORT LENGTH
+    // [+ SECURITY REPORT]
+    pdu[64] = (byte) 0;
+    pdu[65] = (byte) 0;
+    pdu[66] = (byte) 0;
+    pdu[67] = (byte) 0;
+    // CERTIFICATE ID LENGTH
+    // [+ CERTIFICATE ID]
+    pdu[68] = (byte) 0;
+    pdu[69] = (byte) 0;
+    pdu[70] = (byte) 0;
+    pdu[71] = (byte) 0;
+    // PERMISSIONS LENGTH
+    // [+ PERMISSIONS]
+    pdu[72] = (byte) 0;
+    pdu[73] = (byte) 0;
+    pdu[74] = (byte) 0;
+    pdu[75] = (byte) 0;
+    // PAYLOAD
+    pdu[76] = (byte) ((length & 0xff000000) >>> 24);
+    pdu[77] = (byte) ((length & 0x00ff0000) >>> 16);
+    pdu[78] = (byte) ((length & 0x0000ff00) >>> 8);
+    pdu[79] = (byte) (length & 0x000000ff);
+    final byte[] data_src = indication.getData ();
+    final int offset_src = indication.getOffset ();
+    System.arraycopy (data_src, offset_src, pdu, 80, length);
+    // 32-bit padding.
+    for (int i = 80 + length; i < size; i++)
+      pdu[i] = (byte) 0;
+    EVENTS.publish (LOG, EventType.INDICATION_ENCODED, null, null);
+    return pdu;
+  }
+
 }
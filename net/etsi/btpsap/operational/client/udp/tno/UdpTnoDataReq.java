@@ -15,11 +15,699 @@
  */
 package net.etsi.btpsap.operational.client.udp.tno;
 
-/**
+import java.util.Arrays;
+import net.etsi.btpsap.BtpSapTypes;
+import net.etsi.btpsap.BtpSapTypes.BtpType;
+import net.etsi.btpsap.BtpSapTypes.GnAddress;
+import net.etsi.btpsap.BtpSapTypes.GnArea;
+import net.etsi.btpsap.BtpSapTypes.GnAreaShape;
+import net.etsi.btpsap.BtpSapTypes.GnCommunicationsProfile;
+import net.etsi.btpsap.BtpSapTypes.GnDestination;
+import net.etsi.btpsap.BtpSapTypes.GnDestinationType;
+import net.etsi.btpsap.BtpSapTypes.GnSecurityProfile;
+import net.etsi.btpsap.BtpSapTypes.GnTrafficClass;
+import net.etsi.btpsap.BtpSapTypes.GnTransportType;
+import net.etsi.btpsap.BtpSap_DataReqContainer;
+
+/** A flyweight view on a BTP/UDP[TNO] request PDU.
+ *
+ * <p>
+ * The view decodes its fields straight from the (datagram) buffer it wraps, on demand,
+ * and does not copy or allocate anything per request.
+ * Instances are meant to be reused: a call to {@link #wrap} replaces the contents of the view,
+ * and invalidates all objects previously obtained from it (destination, area, traffic class, etc.).
  *
+ * <p>
+ * The buffer must not be modified while the view is in use.
+ * Views obtained from a {@link UdpTnoRxBuffer} share the ownership (reference count) of that buffer;
+ * see {@link #retain} and {@link #release}.
  *
  */
 public class UdpTnoDataReq
+extends BtpSap_DataReqContainer
 {
 
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTRUCTOR(S) / CLONING / FACTORY
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  public UdpTnoDataReq ()
+  {
+    this (null);
+  }
+
+  /** Creates a view backed by a pooled receive buffer.
+   *
+   * @param owner The receive buffer owning this view, may be {@code null} for unpooled use.
+   *
+   */
+  UdpTnoDataReq (final UdpTnoRxBuffer owner)
+  {
+    super ();
+    this.owner = owner;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // OWNER (RECEIVE BUFFER)
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final UdpTnoRxBuffer owner;
+
+  @Override
+  public final BtpSap_DataReqContainer retain ()
+  {
+    if (this.owner != null)
+      this.owner.retain ();
+    return this;
+  }
+
+  @Override
+  public final void release ()
+  {
+    if (this.owner != null)
+      this.owner.release ();
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // PDU LAYOUT
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  public final static int HEADER_SIZE = 60;
+
+  public final static byte MAGIC_1 = (byte) (Integer.parseInt ("3d", 16) & 0xff);
+  public final static byte MAGIC_2 = (byte) (Integer.parseInt ("93", 16) & 0xff);
+
+  private final static int OFFSET_VERSION = 2;
+  private final static int OFFSET_CLIENT_ID = 3;
+  private final static int OFFSET_UNITS_HIGH = 4;
+  private final static int OFFSET_UNITS_LOW = 5;
+  private final static int OFFSET_BTP_FLAGS = 6;
+  private final static int OFFSET_GN_TYPE = 7;
+  private final static int OFFSET_SRC_PORT = 8;
+  private final static int OFFSET_LIFETIME = 10;
+  private final static int OFFSET_TC = 11;
+  private final static int OFFSET_DST_PORT = 12;
+  private final static int OFFSET_DST_PORT_INFO = 14;
+  private final static int OFFSET_HOP_LIMIT = 16;
+  private final static int OFFSET_REP_INTERVAL = 17;
+  private final static int OFFSET_REP_TIME = 18;
+  private final static int OFFSET_GN_ADDRESS = 20;
+  private final static int OFFSET_LATITUDE = 20;
+  private final static int OFFSET_LONGITUDE = 28;
+  private final static int OFFSET_DISTANCE_A = 36;
+  private final static int OFFSET_DISTANCE_B = 38;
+  private final static int OFFSET_ANGLE = 40;
+  private final static int OFFSET_SECURITY_PROFILE = 44;
+  private final static int OFFSET_PAYLOAD_LENGTH = 56;
+
+  /** The size of the header of a (version 2) batched request datagram.
+   *
+   * <p>
+   * A version 2 datagram consists of this header, followed by one or more (version 1) request PDUs back to back,
+   * each padded to a multiple of 4 bytes.
+   * The header holds the magic, the version (2), the low 8 bits of the client id, the number of PDUs (16-bit, big endian),
+   * and the high 8 bits of the client id (formerly reserved; zero for client ids below 256); the last byte is reserved (zero).
+   * All PDUs in the datagram must carry the client id of the header.
+   *
+   */
+  public final static int V2_HEADER_SIZE = 8;
+
+  public final static int V2_OFFSET_COUNT = 4;
+
+  public final static int V2_OFFSET_CLIENT_ID_HIGH = 6;
+
+  /** The size of the header of a (version 3) request PDU.
+   *
+   * <p>
+   * A version 3 PDU widens the client id to 16 bits and the unit bitmap to 64 bits (see {@link #getUnitMask}).
+   * It starts with the magic, the version (3), a reserved byte (zero), the client id (16-bit, big endian)
+   * and the unit mask (64-bit, big endian); the remainder of the header equals that of a version 1 PDU
+   * from its BTP flags (offset 6) onwards, shifted by 8 bytes.
+   * Version 3 PDUs may also be batched in (version 2) datagrams.
+   *
+   */
+  public final static int V3_HEADER_SIZE = 68;
+
+  private final static int V3_OFFSET_CLIENT_ID = 4;
+  private final static int V3_OFFSET_UNIT_MASK = 6;
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // BUFFER
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private byte[] buffer = null;
+
+  private int pduOffset = 0;
+
+  private int version = 0;
+
+  private int headerSize = 0;
+
+  // The offset of the (version 1) fields from the BTP flags onwards, minus their version 1 offset.
+  private int fieldBase = 0;
+
+  private int pduLength = 0;
+
+  private int paddedLength = 0;
+
+  private String decodeError = null;
+
+  /** Wraps (and validates) a request PDU.
+   *
+   * <p>
+   * Upon failure, the view is left empty, and the reason can be obtained from {@link #getDecodeError}.
+   *
+   * @param buffer The buffer holding the PDU, non-{@code null}.
+   * @param offset The offset of the PDU in the buffer.
+   * @param length The length of the PDU in the buffer.
+   *
+   * @return Whether the PDU is valid.
+   *
+   */
+  public final boolean wrap (final byte[] buffer, final int offset, final int length)
+  {
+    return wrap (buffer, offset, length, false);
+  }
+
+  /** Wraps (and validates) the next request PDU in a (version 2) batched request datagram.
+   *
+   * <p>
+   * The PDU starts at given offset, and its length is taken from its payload-length field.
+   * Upon success, {@link #getPaddedLength} yields the offset of the next PDU (if any) relative to this one.
+   *
+   * @param buffer    The buffer holding the PDU, non-{@code null}.
+   * @param offset    The offset of the PDU in the buffer.
+   * @param available The number of bytes from the offset up to the end of the datagram.
+   *
+   * @return Whether the PDU is valid.
+   *
+   * @see #V2_HEADER_SIZE
+   *
+   */
+  public final boolean wrapBatched (final byte[] buffer, final int offset, final int available)
+  {
+    return wrap (buffer, offset, available, true);
+  }
+
+  private boolean wrap (final byte[] buffer, final int offset, final int length, final boolean batched)
+  {
+    clear ();
+    if (buffer == null || offset < 0 || length < 0 || offset + length > buffer.length)
+      return fail ("Illegal buffer, offset or length!");
+    if (length < HEADER_SIZE)
+      return fail ("Invalid size!");
+    if (buffer[offset] != MAGIC_1 || buffer[offset + 1] != MAGIC_2)
+      return fail ("Magic mismatch (!= 0x3d93)!");
+    // Check version: only 0x01 and 0x03 supported.
+    final int version = buffer[offset + OFFSET_VERSION];
+    if (version != 1 && version != 3)
+      return fail ("Unsupported version number: " + version + ".");
+    final int headerSize = (version == 3 ? V3_HEADER_SIZE : HEADER_SIZE);
+    if (length < headerSize)
+      return fail ("Invalid size!");
+    final int base = offset + headerSize - HEADER_SIZE;
+    final int communicationsProfileBits = (buffer[base + OFFSET_BTP_FLAGS] & 0xff) >> 4;
+    if (communicationsProfileBits > 1)
+      return fail ("Unknown Communications Profile: " + communicationsProfileBits + ".");
+    final int btpTypeBits = buffer[base + OFFSET_BTP_FLAGS] & 0x0f;
+    if (btpTypeBits > 1)
+      return fail ("Unknown BTP Type: " + btpTypeBits + ".");
+    final int gnTypeNibble = (buffer[base + OFFSET_GN_TYPE] & 0xff) >> 4;
+    if (gnTypeNibble > 4)
+      return fail ("Unknown GeoNetworking Transport Type: " + gnTypeNibble + ".");
+    final int gnSubTypeNibble = buffer[base + OFFSET_GN_TYPE] & 0x0f;
+    if ((gnTypeNibble == 3 || gnTypeNibble == 4) && gnSubTypeNibble > 2)
+      return fail ("Unknown GeoNetworking SubType: " + gnSubTypeNibble + ".");
+    final long payloadLength = ((long) (buffer[base + OFFSET_PAYLOAD_LENGTH] & 0xff) << 24)
+                             + ((long) (buffer[base + OFFSET_PAYLOAD_LENGTH + 1] & 0xff) << 16)
+                             + ((long) (buffer[base + OFFSET_PAYLOAD_LENGTH + 2] & 0xff) << 8)
+                             + ((long) (buffer[base + OFFSET_PAYLOAD_LENGTH + 3] & 0xff));
+    if (batched)
+    {
+      if (headerSize + payloadLength > length)
+        return fail ("Payload Length exceeds remainder of batched UDP Packet: remainder = " + length
+          + ", payload length encoded in PDU = " + payloadLength + "!");
+      final int pduLength = (int) (headerSize + payloadLength);
+      setPdu (buffer, offset, version, headerSize, base);
+      this.pduLength = pduLength;
+      // 32-bit padding; the padding of the last PDU in a datagram may be omitted.
+      this.paddedLength = Math.min ((pduLength + 3) & ~3, length);
+      return true;
+    }
+    if (length != headerSize + payloadLength)
+      return fail ("UDP Packet Length and Payload Length MISMATCH: UDP packet length = " + length
+        + ", payload length encoded in packet = " + payloadLength
+        + " [SHOULD BE EXACTLY " + headerSize + " LESS THAN UDP PACKET SIZE]!");
+    setPdu (buffer, offset, version, headerSize, base);
+    this.pduLength = length;
+    this.paddedLength = length;
+    return true;
+  }
+
+  private void setPdu (final byte[] buffer, final int offset, final int version, final int headerSize, final int base)
+  {
+    this.buffer = buffer;
+    this.pduOffset = offset;
+    this.version = version;
+    this.headerSize = headerSize;
+    this.fieldBase = base;
+  }
+
+  /** Empties the view, releasing its reference to the buffer.
+   *
+   */
+  public final void clear ()
+  {
+    this.buffer = null;
+    this.pduOffset = 0;
+    this.version = 0;
+    this.headerSize = 0;
+    this.fieldBase = 0;
+    this.pduLength = 0;
+    this.paddedLength = 0;
+    this.decodeError = null;
+  }
+
+  /** Returns the length of the wrapped PDU.
+   *
+   * @return The length of the wrapped PDU, zero if the view is empty.
+   *
+   */
+  public final int getPduLength ()
+  {
+    return this.pduLength;
+  }
+
+  /** Returns the length of the wrapped PDU including its padding in a batched datagram.
+   *
+   * @return The length of the wrapped PDU including padding, zero if the view is empty.
+   *
+   * @see #wrapBatched
+   *
+   */
+  public final int getPaddedLength ()
+  {
+    return this.paddedLength;
+  }
+
+  private boolean fail (final String decodeError)
+  {
+    this.decodeError = decodeError;
+    return false;
+  }
+
+  /** Returns the reason the last call to {@link #wrap} failed.
+   *
+   * @return The reason the last call to {@link #wrap} failed, {@code null} if it succeeded.
+   *
+   */
+  public final String getDecodeError ()
+  {
+    return this.decodeError;
+  }
+
+  private int u8 (final int fieldOffset)
+  {
+    return this.buffer[this.fieldBase + fieldOffset] & 0xff;
+  }
+
+  private int headerU8 (final int headerOffset)
+  {
+    return this.buffer[this.pduOffset + headerOffset] & 0xff;
+  }
+
+  private int u16 (final int fieldOffset)
+  {
+    return (u8 (fieldOffset) << 8) + u8 (fieldOffset + 1);
+  }
+
+  private long u64 (final int fieldOffset)
+  {
+    long result = 0;
+    for (int i = 0; i < 8; i++)
+    {
+      result <<= 8;
+      result |= u8 (fieldOffset + i);
+    }
+    return result;
+  }
+
+  private static int decodeTime_ms (final int timeByte)
+  {
+    final int multiplier = timeByte >> 2;
+    switch (timeByte & 0x03)
+    {
+      case 0:
+        return multiplier * 50;
+      case 1:
+        return multiplier * 1000;
+      case 2:
+        return multiplier * 10000;
+      default:
+        return multiplier * 100000;
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CLIENT ID / UNITS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** Returns the version of the wrapped PDU.
+   *
+   * @return The version of the wrapped PDU (1 or 3), zero if the view is empty.
+   *
+   */
+  public final int getVersion ()
+  {
+    return this.version;
+  }
+
+  public final int getClientId ()
+  {
+    if (this.version == 3)
+      return (headerU8 (V3_OFFSET_CLIENT_ID) << 8) | headerU8 (V3_OFFSET_CLIENT_ID + 1);
+    return headerU8 (OFFSET_CLIENT_ID);
+  }
+
+  /** Returns the units (servers) explicitly requested, as a bitmap.
+   *
+   * <p>
+   * Bit {@code s} selects the server with index {@code s}; zero means TC-based request routing.
+   * Version 1 PDUs address 16 units, version 3 PDUs 64.
+   *
+   * @return The unit mask.
+   *
+   * @see net.etsi.btpsap.operational.OperationalBtpSapDB.Snapshot#getServers(long)
+   *
+   */
+  public final long getUnitMask ()
+  {
+    if (this.version == 3)
+    {
+      long unitMask = 0L;
+      for (int i = 0; i < 8; i++)
+        unitMask = (unitMask << 8) | headerU8 (V3_OFFSET_UNIT_MASK + i);
+      return unitMask;
+    }
+    return (headerU8 (OFFSET_UNITS_HIGH) << 8) | headerU8 (OFFSET_UNITS_LOW);
+  }
+
+  public final int getUnitsHigh ()
+  {
+    return (int) (getUnitMask () >>> 8) & 0xff;
+  }
+
+  public final int getUnitsLow ()
+  {
+    return (int) getUnitMask () & 0xff;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // BtpSap_DataReqContainer
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  @Override
+  public final BtpType getBtpType ()
+  {
+    return ((u8 (OFFSET_BTP_FLAGS) & 0x0f) == 0) ? BtpType.BTP_A : BtpType.BTP_B;
+  }
+
+  @Override
+  public final Integer getBtpSrcPort ()
+  {
+    return u16 (OFFSET_SRC_PORT);
+  }
+
+  @Override
+  public final boolean hasBtpSrcPort ()
+  {
+    return true;
+  }
+
+  @Override
+  public final int getBtpSrcPortAsInt ()
+  {
+    return u16 (OFFSET_SRC_PORT);
+  }
+
+  @Override
+  public final int getBtpDestinationPort ()
+  {
+    return u16 (OFFSET_DST_PORT);
+  }
+
+  @Override
+  public final Integer getBtpDstPortInfo ()
+  {
+    return u16 (OFFSET_DST_PORT_INFO);
+  }
+
+  @Override
+  public final boolean hasBtpDstPortInfo ()
+  {
+    return true;
+  }
+
+  @Override
+  public final int getBtpDstPortInfoAsInt ()
+  {
+    return u16 (OFFSET_DST_PORT_INFO);
+  }
+
+  @Override
+  public final GnTransportType getGnTransportType ()
+  {
+    switch (u8 (OFFSET_GN_TYPE) >> 4)
+    {
+      case 0:
+        return GnTransportType.GN_UC;
+      case 1:
+        return GnTransportType.GN_SHB;
+      case 2:
+        return GnTransportType.GN_TSB;
+      case 3:
+        return GnTransportType.GN_GBC;
+      default:
+        return GnTransportType.GN_AC;
+    }
+  }
+
+  @Override
+  public final GnDestination getGnDestination ()
+  {
+    switch (getGnTransportType ())
+    {
+      case GN_UC:
+      case GN_GBC:
+      case GN_AC:
+        return this.destinationView;
+      default:
+        return null;
+    }
+  }
+
+  @Override
+  public final GnCommunicationsProfile getGnCommunicationsProfile ()
+  {
+    return ((u8 (OFFSET_BTP_FLAGS) >> 4) == 0)
+      ? GnCommunicationsProfile.GN_COMPROF_ITSG5
+      : GnCommunicationsProfile.GN_COMPROF_CELLULAR;
+  }
+
+  @Override
+  public final GnSecurityProfile getGnSecurityProfile ()
+  {
+    return this.securityProfileView;
+  }
+
+  @Override
+  public final boolean hasMaxLifetime ()
+  {
+    return true;
+  }
+
+  @Override
+  public final int getMaxLifeTime_ms ()
+  {
+    return decodeTime_ms (u8 (OFFSET_LIFETIME));
+  }
+
+  @Override
+  public final boolean hasRepInterval ()
+  {
+    return true;
+  }
+
+  @Override
+  public final int getRepInterval_ms ()
+  {
+    return decodeTime_ms (u8 (OFFSET_REP_INTERVAL));
+  }
+
+  @Override
+  public final boolean hasMaxRepTime ()
+  {
+    return true;
+  }
+
+  @Override
+  public final int getMaxRepTime_ms ()
+  {
+    return decodeTime_ms (u8 (OFFSET_REP_TIME));
+  }
+
+  @Override
+  public final int getGnMaxHopLimit ()
+  {
+    return u8 (OFFSET_HOP_LIMIT);
+  }
+
+  @Override
+  public final GnTrafficClass getGnTrafficClass ()
+  {
+    return this.trafficClassView;
+  }
+
+  @Override
+  public final int getLength ()
+  {
+    return this.pduLength - this.headerSize;
+  }
+
+  @Override
+  public final int getOffset ()
+  {
+    return this.pduOffset + this.headerSize;
+  }
+
+  @Override
+  public final byte[] getData ()
+  {
+    return this.buffer;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // VIEWS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final GnTrafficClass trafficClassView = new GnTrafficClass ()
+  {
+    @Override
+    public final byte toByte ()
+    {
+      return (byte) u8 (OFFSET_TC);
+    }
+  };
+
+  private final GnSecurityProfile securityProfileView = new GnSecurityProfile ()
+  {
+    @Override
+    public final byte[] getProfileBytes ()
+    {
+      final int from = UdpTnoDataReq.this.fieldBase + OFFSET_SECURITY_PROFILE;
+      return Arrays.copyOfRange (UdpTnoDataReq.this.buffer, from, from + 12);
+    }
+  };
+
+  private final GnAddress addressView = new GnAddress ()
+  {
+    @Override
+    public final long toLong ()
+    {
+      return u64 (OFFSET_GN_ADDRESS);
+    }
+  };
+
+  private final GnArea areaView = new GnArea ()
+  {
+
+    @Override
+    public final GnAreaShape getAreaShape ()
+    {
+      switch (u8 (OFFSET_GN_TYPE) & 0x0f)
+      {
+        case 0:
+          return GnAreaShape.CIRCLE;
+        case 1:
+          return GnAreaShape.RECTANGLE;
+        default:
+          return GnAreaShape.ELLIPSE;
+      }
+    }
+
+    @Override
+    public final double getLatitude ()
+    {
+      return Double.longBitsToDouble (u64 (OFFSET_LATITUDE));
+    }
+
+    @Override
+    public final double getLongitude ()
+    {
+      return Double.longBitsToDouble (u64 (OFFSET_LONGITUDE));
+    }
+
+    @Override
+    public final int getDistanceA_m ()
+    {
+      return u16 (OFFSET_DISTANCE_A);
+    }
+
+    @Override
+    public final int getDistanceB_m ()
+    {
+      return u16 (OFFSET_DISTANCE_B);
+    }
+
+    @Override
+    public final int getAngle_degrees ()
+    {
+      return u16 (OFFSET_ANGLE);
+    }
+
+  };
+
+  private final GnDestination destinationView = new GnDestination ()
+  {
+
+    @Override
+    public final GnDestinationType getGnDestinationType ()
+    {
+      return (getGnTransportType () == GnTransportType.GN_UC)
+        ? BtpSapTypes.GnDestinationType.GN_DEST_UC
+        : BtpSapTypes.GnDestinationType.GN_DEST_GBC_AC;
+    }
+
+    @Override
+    public final GnAddress getGnUnicastAddress () throws IllegalStateException
+    {
+      if (getGnDestinationType () != GnDestinationType.GN_DEST_UC)
+        throw new IllegalStateException ();
+      return UdpTnoDataReq.this.addressView;
+    }
+
+    @Override
+    public final GnArea getGnArea () throws IllegalStateException
+    {
+      if (getGnDestinationType () != GnDestinationType.GN_DEST_GBC_AC)
+        throw new IllegalStateException ();
+      return UdpTnoDataReq.this.areaView;
+    }
+
+  };
+
 }
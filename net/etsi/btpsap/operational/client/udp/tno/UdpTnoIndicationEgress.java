@@ -0,0 +1,952 @@
+/*
+ * Copyright 2016 Jan de Jongh, TNO.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.etsi.btpsap.operational.client.udp.tno;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.etsi.btpsap.operational.events.EventRing;
+import net.etsi.btpsap.operational.events.EventType;
+import net.etsi.btpsap.operational.metrics.DropReason;
+import net.etsi.btpsap.operational.metrics.EntityMetrics;
+
+/** The shared egress for BTP/UDP[TNO] indication datagrams of all clients of a protocol handler.
+ *
+ * <p>
+ * The egress consists of a small, fixed number of lanes, each with its own datagram channel,
+ * direct byte buffer, bounded queue and sender thread.
+ * Clients are assigned to lanes by client id, so indications to a single client are sent in order.
+ * Destinations other than IP socket addresses (i.e., Unix domain socket addresses) are served through
+ * (non-blocking) stream connections, opened by the lane on first use through the {@link StreamChannelFactory},
+ * on which each datagram is preceded by its length (32-bit, big endian).
+ * A lane never waits for a stream: datagrams to a stream whose socket buffer is full are dropped,
+ * and the rest of a partially written frame is written (before any other frame) once the stream accepts it.
+ * Streams are closed once released by their client, see {@link #release}.
+ * Clients merely enqueue their indications; the sender threads drain their queues in batches.
+ *
+ * <p>
+ * Indications enqueued with {@link Coalescing} settings are not sent one per datagram (version 1),
+ * but are packed per destination into (version 2) coalesced datagrams up to the MTU of the settings.
+ * A coalesced datagram is sent once it is full, or once its oldest indication has waited for the maximum delay.
+ *
+ */
+public class UdpTnoIndicationEgress
+{
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // LOG
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private static final Logger LOG = Logger.getLogger (UdpTnoIndicationEgress.class.getName ());
+
+  private static final EventRing EVENTS = EventRing.getDefault ();
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTRUCTOR(S) / CLONING / FACTORY
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  public UdpTnoIndicationEgress (final String name, final int numberOfLanes, final int queueCapacity)
+  {
+    if (numberOfLanes <= 0 || queueCapacity <= 0)
+      throw new IllegalArgumentException ();
+    this.name = name;
+    this.queueCapacity = queueCapacity;
+    this.lanes = new Lane[numberOfLanes];
+  }
+
+  private final String name;
+
+  @Override
+  public String toString ()
+  {
+    return "UdpTnoIndicationEgress[" + this.name + "]";
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // DEFAULTS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  public final static int DEFAULT_NUMBER_OF_LANES = 2;
+
+  public final static int DEFAULT_QUEUE_CAPACITY = 4096;
+
+  /** The maximum number of indications a sender drains from its queue at once.
+   *
+   */
+  public final static int MAX_BATCH_SIZE = 64;
+
+  /** The maximum number of (empty) coalescing buffers a sender keeps for reuse.
+   *
+   */
+  private final static int MAX_SPARE_PENDING = 16;
+
+  /** The interval at which a sender retries writing partially written frames to streams.
+   *
+   */
+  private final static long STREAM_RETRY_NS = TimeUnit.MILLISECONDS.toNanos (1L);
+
+  /** The maximum size of a single indication datagram.
+   *
+   */
+  public final static int MAX_DATAGRAM_SIZE = 65507;
+
+  /** The default MTU for coalesced indication datagrams (Ethernet MTU minus IPv4 and UDP headers).
+   *
+   */
+  public final static int DEFAULT_COALESCING_MTU = 1472;
+
+  /** The minimum MTU for coalesced indication datagrams; room for a single (version 3) indication without payload.
+   *
+   */
+  public final static int MIN_COALESCING_MTU = UdpTnoDataInd.V2_HEADER_SIZE + UdpTnoDataInd.V3_HEADER_SIZE;
+
+  public final static long DEFAULT_COALESCING_MAX_DELAY_MS = 1L;
+
+  public final static long MAX_COALESCING_MAX_DELAY_MS = 1000L;
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // COALESCING
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** Immutable settings for coalescing indications into (version 2) datagrams.
+   *
+   */
+  public static final class Coalescing
+  {
+
+    public Coalescing (final int mtu, final long maxDelay_ms)
+    {
+      if (mtu < UdpTnoIndicationEgress.MIN_COALESCING_MTU || mtu > UdpTnoIndicationEgress.MAX_DATAGRAM_SIZE
+        || maxDelay_ms < 0 || maxDelay_ms > UdpTnoIndicationEgress.MAX_COALESCING_MAX_DELAY_MS)
+        throw new IllegalArgumentException ();
+      this.mtu = mtu;
+      this.maxDelay_ms = maxDelay_ms;
+      this.maxDelay_ns = TimeUnit.MILLISECONDS.toNanos (maxDelay_ms);
+    }
+
+    private final int mtu;
+
+    public final int getMtu ()
+    {
+      return this.mtu;
+    }
+
+    private final long maxDelay_ms;
+
+    /** Returns the maximum time an indication is held back waiting for others to share its datagram.
+     *
+     * <p>
+     * With zero maximum delay, only indications that are already queued together are coalesced.
+     *
+     * @return The maximum delay in milliseconds.
+     *
+     */
+    public final long getMaxDelay_ms ()
+    {
+      return this.maxDelay_ms;
+    }
+
+    private final long maxDelay_ns;
+
+    @Override
+    public final String toString ()
+    {
+      return "mtu=" + this.mtu + ", maxDelay_ms=" + this.maxDelay_ms;
+    }
+
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // LANES
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final int queueCapacity;
+
+  private final Lane[] lanes;
+
+  public final int getNumberOfLanes ()
+  {
+    return this.lanes.length;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // COUNTERS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final AtomicLong sentCount = new AtomicLong ();
+
+  public final long getSentCount ()
+  {
+    return this.sentCount.get ();
+  }
+
+  private final AtomicLong queueFullCount = new AtomicLong ();
+
+  /** Returns the number of indications dropped because the queue of their lane was full (or the egress was stopped),
+   * or because the socket buffer of their stream was full.
+   *
+   * @return The number of indications dropped.
+   *
+   */
+  public final long getQueueFullCount ()
+  {
+    return this.queueFullCount.get ();
+  }
+
+  private final AtomicLong socketErrorCount = new AtomicLong ();
+
+  public final long getSocketErrorCount ()
+  {
+    return this.socketErrorCount.get ();
+  }
+
+  private final AtomicLong coalescedDatagramCount = new AtomicLong ();
+
+  /** Returns the number of (version 2) coalesced datagrams sent.
+   *
+   * <p>
+   * The indications in these datagrams are counted individually in {@link #getSentCount}.
+   *
+   * @return The number of coalesced datagrams sent.
+   *
+   */
+  public final long getCoalescedDatagramCount ()
+  {
+    return this.coalescedDatagramCount.get ();
+  }
+
+  public final int getQueueDepth ()
+  {
+    int queueDepth = 0;
+    for (final Lane lane : this.lanes)
+      if (lane != null)
+        queueDepth += lane.queue.size ();
+    return queueDepth;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // METRICS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private volatile EntityMetrics metrics = null;
+
+  /** Sets the (additional) metrics to update for indications sent and dropped.
+   *
+   * @param metrics The metrics, may be {@code null}.
+   *
+   */
+  public final void setMetrics (final EntityMetrics metrics)
+  {
+    this.metrics = metrics;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // START / SHUTDOWN
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private volatile boolean started = false;
+
+  public final synchronized void start () throws IOException
+  {
+    if (this.started)
+      return;
+    for (int l = 0; l < this.lanes.length; l++)
+    {
+      final Lane lane = new Lane (l);
+      this.lanes[l] = lane;
+      lane.thread = new Thread (lane, toString () + "-lane-" + l);
+      lane.thread.start ();
+    }
+    this.started = true;
+  }
+
+  public final synchronized void shutdown ()
+  {
+    LOG.log (Level.INFO, "UdpTnoIndicationEgress.shutdown on {0}.", this);
+    this.started = false;
+    for (int l = 0; l < this.lanes.length; l++)
+      if (this.lanes[l] != null)
+      {
+        this.lanes[l].close ();
+        this.lanes[l] = null;
+      }
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // ENQUEUE
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** Enqueues an indication datagram for sending.
+   *
+   * <p>
+   * The (shared) encoded indication is not copied until sent; its client-id byte is patched while copying.
+   *
+   * @param clientId    The client id (also used to select a lane).
+   * @param indication  The encoded indication, non-{@code null}.
+   * @param destination The destination (an IP or Unix domain socket address), non-{@code null}.
+   *
+   * @return Whether the indication was accepted; if not, it was dropped.
+   *
+   */
+  public final boolean enqueue (final int clientId, final UdpTnoDataInd indication, final SocketAddress destination)
+  {
+    return enqueue (clientId, indication, destination, null);
+  }
+
+  /** Enqueues an indication for sending, optionally coalescing it with others to the same destination.
+   *
+   * @param clientId    The client id (also used to select a lane).
+   * @param indication  The encoded indication, non-{@code null}.
+   * @param destination The destination, non-{@code null}.
+   * @param coalescing  The coalescing settings, {@code null} for a (version 1) datagram of its own.
+   *
+   * @return Whether the indication was accepted; if not, it was dropped.
+   *
+   */
+  public final boolean enqueue
+  (final int clientId, final UdpTnoDataInd indication, final SocketAddress destination, final Coalescing coalescing)
+  {
+    if (clientId < 0 || indication == null || destination == null)
+      throw new IllegalArgumentException ();
+    final int maxLength = UdpTnoIndicationEgress.MAX_DATAGRAM_SIZE - (coalescing == null ? 0 : UdpTnoDataInd.V2_HEADER_SIZE);
+    if (indication.getLength (clientId) > maxLength)
+      throw new IllegalArgumentException ();
+    final Lane lane = (this.started ? this.lanes[clientId % this.lanes.length] : null);
+    if (lane == null || ! lane.queue.offer (new Entry (clientId, indication, destination, coalescing)))
+    {
+      this.queueFullCount.incrementAndGet ();
+      final EntityMetrics metrics = this.metrics;
+      if (metrics != null)
+        metrics.drop (DropReason.QUEUE_FULL);
+      return false;
+    }
+    return true;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // RELEASE
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** Closes the stream connections (if any) to given destination, after sending the indications enqueued before.
+   *
+   * <p>
+   * Must be invoked when a client stops using a destination, i.e., upon changes to its indication routes and upon disconnect;
+   * a later indication to the destination opens a new connection.
+   * IP socket addresses are ignored.
+   *
+   * @param destination The destination, non-{@code null}.
+   *
+   */
+  public final void release (final SocketAddress destination)
+  {
+    if (destination == null)
+      throw new IllegalArgumentException ();
+    if (destination instanceof InetSocketAddress || ! this.started)
+      return;
+    for (int l = 0; l < this.lanes.length; l++)
+    {
+      final Lane lane = this.lanes[l];
+      if (lane != null)
+      {
+        lane.releases.add (destination);
+        // If the queue is full, the lane is awake anyway.
+        lane.queue.offer (UdpTnoIndicationEgress.WAKE_UP);
+      }
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // ENTRY
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private static final class Entry
+  {
+
+    private final int clientId;
+
+    private final UdpTnoDataInd indication;
+
+    private final SocketAddress destination;
+
+    private final Coalescing coalescing;
+
+    private Entry
+    (final int clientId, final UdpTnoDataInd indication, final SocketAddress destination, final Coalescing coalescing)
+    {
+      this.clientId = clientId;
+      this.indication = indication;
+      this.destination = destination;
+      this.coalescing = coalescing;
+    }
+
+  }
+
+  /** An entry without indication, merely waking up the sender of a lane.
+   *
+   */
+  private static final Entry WAKE_UP = new Entry (-1, null, null, null);
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // PENDING (COALESCED) DATAGRAM
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** A coalesced datagram under construction for a single destination; owned by a single lane.
+   *
+   */
+  private static final class Pending
+  {
+
+    private SocketAddress destination = null;
+
+    private byte[] body = new byte[UdpTnoIndicationEgress.DEFAULT_COALESCING_MTU - UdpTnoDataInd.V2_HEADER_SIZE];
+
+    private int clientId = -1;
+
+    private int mtu = 0;
+
+    private int length = 0;
+
+    private int count = 0;
+
+    private long deadline_ns = 0L;
+
+    private boolean fits (final Entry entry)
+    {
+      return this.count < 0xffff
+        && this.clientId == entry.clientId
+        && this.mtu == entry.coalescing.mtu
+        && UdpTnoDataInd.V2_HEADER_SIZE + this.length + entry.indication.getLength (entry.clientId) <= this.mtu;
+    }
+
+    private void open (final Entry entry, final long now_ns)
+    {
+      this.clientId = entry.clientId;
+      this.mtu = entry.coalescing.mtu;
+      if (this.body.length < this.mtu - UdpTnoDataInd.V2_HEADER_SIZE)
+        this.body = new byte[this.mtu - UdpTnoDataInd.V2_HEADER_SIZE];
+      this.length = 0;
+      this.count = 0;
+      this.deadline_ns = now_ns + entry.coalescing.maxDelay_ns;
+    }
+
+    private void add (final Entry entry)
+    {
+      this.length += entry.indication.copyTo (entry.clientId, this.body, this.length);
+      this.count++;
+    }
+
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // STREAM
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** A factory for the channels of stream connections to destinations other than IP socket addresses.
+   *
+   * <p>
+   * Keeps the egress itself independent of the (platform level of the) transports of such destinations.
+   *
+   * @see UdpTnoUdsClientProtocolHandler
+   *
+   */
+  public interface StreamChannelFactory
+  {
+
+    /** Opens an (unconnected) channel for a stream connection to given destination.
+     *
+     * @param destination The destination.
+     *
+     * @return The channel.
+     *
+     * @throws IOException If the channel cannot be opened, or the destination is not supported.
+     *
+     */
+    SocketChannel openStreamChannel (SocketAddress destination) throws IOException;
+
+  }
+
+  private volatile StreamChannelFactory streamChannelFactory = null;
+
+  public final StreamChannelFactory getStreamChannelFactory ()
+  {
+    return this.streamChannelFactory;
+  }
+
+  /** Sets the factory for stream channels; without one (the default), indications to stream destinations are dropped.
+   *
+   * @param streamChannelFactory The factory, may be {@code null}.
+   *
+   */
+  public final void setStreamChannelFactory (final StreamChannelFactory streamChannelFactory)
+  {
+    this.streamChannelFactory = streamChannelFactory;
+  }
+
+  /** A non-blocking stream connection to a (Unix domain socket) destination; owned by a single lane.
+   *
+   */
+  private static final class Stream
+  {
+
+    private Stream (final SocketAddress destination, final SocketChannel channel)
+    {
+      this.destination = destination;
+      this.channel = channel;
+    }
+
+    private final SocketAddress destination;
+
+    private final SocketChannel channel;
+
+    // The rest of a partially written frame, if it has remaining bytes; allocated upon first use.
+    private ByteBuffer remainder = null;
+
+    private boolean hasRemainder ()
+    {
+      return this.remainder != null && this.remainder.hasRemaining ();
+    }
+
+    /** Writes (as much as possible of) the rest of a partially written frame, and returns whether it was written entirely.
+     *
+     */
+    private boolean writeRemainder () throws IOException
+    {
+      if (! hasRemainder ())
+        return true;
+      this.channel.write (this.remainder);
+      return ! this.remainder.hasRemaining ();
+    }
+
+    private void setRemainder (final ByteBuffer[] frame)
+    {
+      if (this.remainder == null)
+        this.remainder = ByteBuffer.allocate (4 + UdpTnoIndicationEgress.MAX_DATAGRAM_SIZE);
+      this.remainder.clear ();
+      for (final ByteBuffer buffer : frame)
+        this.remainder.put (buffer);
+      this.remainder.flip ();
+    }
+
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // LANE
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final class Lane
+  implements Runnable
+  {
+
+    private final int index;
+
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<> (UdpTnoIndicationEgress.this.queueCapacity);
+
+    private final DatagramChannel channel;
+
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect (UdpTnoIndicationEgress.MAX_DATAGRAM_SIZE);
+
+    private final List<Entry> batch = new ArrayList<> (UdpTnoIndicationEgress.MAX_BATCH_SIZE);
+
+    // Only holds destinations with indications pending; entries are removed (and recycled) upon flushing.
+    private final Map<SocketAddress, Pending> pendingByDestination = new HashMap<> ();
+
+    private final ArrayDeque<Pending> sparePending = new ArrayDeque<> ();
+
+    private final Map<SocketAddress, Stream> streams = new HashMap<> ();
+
+    // The streams with the rest of a partially written frame.
+    private final List<Stream> blocked = new ArrayList<> ();
+
+    private final ConcurrentLinkedQueue<SocketAddress> releases = new ConcurrentLinkedQueue<> ();
+
+    private final ByteBuffer frameHeader = ByteBuffer.allocateDirect (4);
+
+    private final ByteBuffer[] frame = new ByteBuffer[]{this.frameHeader, this.sendBuffer};
+
+    private final List<Pending> open = new ArrayList<> ();
+
+    private volatile Thread thread = null;
+
+    private volatile boolean stop = false;
+
+    private Lane (final int index) throws IOException
+    {
+      this.index = index;
+      this.channel = DatagramChannel.open ();
+    }
+
+    private void close ()
+    {
+      this.stop = true;
+      if (this.thread != null && this.thread != Thread.currentThread ())
+        this.thread.interrupt ();
+      try
+      {
+        this.channel.close ();
+      }
+      catch (IOException ioe)
+      {
+        LOG.log (Level.WARNING, "UdpTnoIndicationEgress.shutdown on {0}: IOException while closing channel: {1}.",
+          new Object[]{UdpTnoIndicationEgress.this, ioe.getMessage ()});
+      }
+      // Streams are otherwise only accessed by the lane thread; closing them concurrently merely fails its writes.
+      synchronized (this.streams)
+      {
+        for (final Stream stream : this.streams.values ())
+          closeStream (stream);
+        this.streams.clear ();
+      }
+    }
+
+    private void closeStream (final Stream stream)
+    {
+      try
+      {
+        stream.channel.close ();
+      }
+      catch (IOException ioe)
+      {
+        // Ignore.
+      }
+    }
+
+    private Stream getStream (final SocketAddress destination) throws IOException
+    {
+      synchronized (this.streams)
+      {
+        Stream stream = this.streams.get (destination);
+        if (stream == null)
+        {
+          if (this.stop)
+            throw new IOException ("Lane stopped!");
+          final StreamChannelFactory streamChannelFactory = UdpTnoIndicationEgress.this.streamChannelFactory;
+          if (streamChannelFactory == null)
+            throw new IOException ("No stream transport for " + destination + "!");
+          final SocketChannel channel = streamChannelFactory.openStreamChannel (destination);
+          try
+          {
+            channel.configureBlocking (false);
+            channel.connect (destination);
+          }
+          catch (IOException ioe)
+          {
+            channel.close ();
+            throw ioe;
+          }
+          stream = new Stream (destination, channel);
+          this.streams.put (destination, stream);
+        }
+        return stream;
+      }
+    }
+
+    private void removeStream (final Stream stream)
+    {
+      synchronized (this.streams)
+      {
+        if (this.streams.get (stream.destination) == stream)
+          this.streams.remove (stream.destination);
+      }
+      this.blocked.remove (stream);
+      closeStream (stream);
+    }
+
+    /** Sends the contents of the send buffer as a single frame on the stream to given destination, connecting if needed.
+     *
+     * <p>
+     * The frame is dropped if the stream is still connecting, or cannot take (part of) the frame without blocking.
+     *
+     * @return Whether the frame was sent (or will be, in case it was written partially).
+     *
+     */
+    private boolean sendFrame (final SocketAddress destination) throws IOException
+    {
+      final Stream stream = getStream (destination);
+      try
+      {
+        if (stream.channel.isConnectionPending () && ! stream.channel.finishConnect ())
+          return false;
+        if (! stream.writeRemainder ())
+          return false;
+        this.blocked.remove (stream);
+        this.frameHeader.clear ();
+        this.frameHeader.putInt (this.sendBuffer.remaining ());
+        this.frameHeader.flip ();
+        if (stream.channel.write (this.frame) == 0)
+          return false;
+        if (this.sendBuffer.hasRemaining ())
+        {
+          // Keep the framing intact; the rest is written before any other frame.
+          stream.setRemainder (this.frame);
+          this.blocked.add (stream);
+        }
+        return true;
+      }
+      catch (IOException ioe)
+      {
+        // The framing may be broken; reconnect upon the next datagram.
+        removeStream (stream);
+        throw ioe;
+      }
+    }
+
+    private void retryBlocked ()
+    {
+      for (int i = this.blocked.size () - 1; i >= 0; i--)
+      {
+        final Stream stream = this.blocked.get (i);
+        try
+        {
+          if (stream.writeRemainder ())
+            this.blocked.remove (i);
+        }
+        catch (IOException ioe)
+        {
+          removeStream (stream);
+          UdpTnoIndicationEgress.this.socketErrorCount.incrementAndGet ();
+          if (! this.stop)
+            EVENTS.publish (LOG, EventType.SOCKET_ERROR, UdpTnoIndicationEgress.this, stream.destination, ioe.getMessage (), 0L);
+        }
+      }
+    }
+
+    private void processReleases ()
+    {
+      SocketAddress destination;
+      while ((destination = this.releases.poll ()) != null)
+      {
+        final Pending pending = this.pendingByDestination.get (destination);
+        if (pending != null)
+          flush (pending);
+        final Stream stream;
+        synchronized (this.streams)
+        {
+          stream = this.streams.get (destination);
+        }
+        if (stream != null)
+          removeStream (stream);
+      }
+    }
+
+    private void send (final Entry entry)
+    {
+      // Preserve ordering towards the destination in case its client just switched back to version 1.
+      final Pending pending = this.pendingByDestination.get (entry.destination);
+      if (pending != null)
+        flush (pending);
+      this.sendBuffer.clear ();
+      entry.indication.putTo (entry.clientId, this.sendBuffer);
+      this.sendBuffer.flip ();
+      sendBuffer (entry.destination, 1);
+    }
+
+    private void coalesce (final Entry entry, final long now_ns)
+    {
+      Pending pending = this.pendingByDestination.get (entry.destination);
+      if (pending != null && ! pending.fits (entry))
+      {
+        flush (pending);
+        pending = null;
+      }
+      if (UdpTnoDataInd.V2_HEADER_SIZE + entry.indication.getLength (entry.clientId) > entry.coalescing.mtu)
+      {
+        // Larger than the MTU by itself; send it in a datagram of its own (leaving fragmentation to IP).
+        this.sendBuffer.clear ();
+        UdpTnoDataInd.putV2Header (entry.clientId, 1, this.sendBuffer);
+        entry.indication.putTo (entry.clientId, this.sendBuffer);
+        this.sendBuffer.flip ();
+        sendBuffer (entry.destination, 1);
+        UdpTnoIndicationEgress.this.coalescedDatagramCount.incrementAndGet ();
+        return;
+      }
+      if (pending == null)
+      {
+        pending = this.sparePending.poll ();
+        if (pending == null)
+          pending = new Pending ();
+        pending.destination = entry.destination;
+        pending.open (entry, now_ns);
+        this.pendingByDestination.put (entry.destination, pending);
+        this.open.add (pending);
+      }
+      pending.add (entry);
+    }
+
+    private void flush (final Pending pending)
+    {
+      this.sendBuffer.clear ();
+      UdpTnoDataInd.putV2Header (pending.clientId, pending.count, this.sendBuffer);
+      this.sendBuffer.put (pending.body, 0, pending.length);
+      this.sendBuffer.flip ();
+      sendBuffer (pending.destination, pending.count);
+      UdpTnoIndicationEgress.this.coalescedDatagramCount.incrementAndGet ();
+      pending.count = 0;
+      pending.length = 0;
+      this.open.remove (pending);
+      this.pendingByDestination.remove (pending.destination);
+      pending.destination = null;
+      if (this.sparePending.size () < UdpTnoIndicationEgress.MAX_SPARE_PENDING)
+        this.sparePending.push (pending);
+    }
+
+    private void flushDue (final long now_ns)
+    {
+      for (int i = this.open.size () - 1; i >= 0; i--)
+      {
+        final Pending pending = this.open.get (i);
+        if (pending.deadline_ns - now_ns <= 0)
+          flush (pending);
+      }
+    }
+
+    private long getNextDeadline_ns ()
+    {
+      long nextDeadline_ns = this.open.get (0).deadline_ns;
+      for (int i = 1; i < this.open.size (); i++)
+        if (this.open.get (i).deadline_ns - nextDeadline_ns < 0)
+          nextDeadline_ns = this.open.get (i).deadline_ns;
+      return nextDeadline_ns;
+    }
+
+    private void sendBuffer (final SocketAddress destination, final int numberOfIndications)
+    {
+      final EntityMetrics metrics = UdpTnoIndicationEgress.this.metrics;
+      try
+      {
+        final int length = this.sendBuffer.remaining ();
+        if (destination instanceof InetSocketAddress)
+          this.channel.send (this.sendBuffer, destination);
+        else if (! sendFrame (destination))
+        {
+          UdpTnoIndicationEgress.this.queueFullCount.addAndGet (numberOfIndications);
+          if (metrics != null)
+            for (int i = 0; i < numberOfIndications; i++)
+              metrics.drop (DropReason.QUEUE_FULL);
+          EVENTS.publish (LOG, EventType.QUEUE_FULL, UdpTnoIndicationEgress.this, destination, "stream", numberOfIndications);
+          return;
+        }
+        UdpTnoIndicationEgress.this.sentCount.addAndGet (numberOfIndications);
+        if (metrics != null)
+          for (int i = 0; i < numberOfIndications; i++)
+            metrics.indication (length / numberOfIndications);
+      }
+      catch (IOException ioe)
+      {
+        UdpTnoIndicationEgress.this.socketErrorCount.addAndGet (numberOfIndications);
+        if (metrics != null)
+          for (int i = 0; i < numberOfIndications; i++)
+            metrics.drop (DropReason.SOCKET_ERROR);
+        if (! this.stop)
+          EVENTS.publish (LOG, EventType.SOCKET_ERROR, UdpTnoIndicationEgress.this, destination, ioe.getMessage (), 0L);
+      }
+    }
+
+    @Override
+    public final void run ()
+    {
+      LOG.log (Level.INFO, "UdpTnoIndicationEgress.run on {0}: Lane {1} starting!",
+        new Object[]{UdpTnoIndicationEgress.this, this.index});
+      while (! (this.stop || Thread.interrupted ()))
+      {
+        try
+        {
+          if (this.open.isEmpty () && this.blocked.isEmpty ())
+            this.batch.add (this.queue.take ());
+          else
+          {
+            long timeout_ns = (this.blocked.isEmpty () ? Long.MAX_VALUE : UdpTnoIndicationEgress.STREAM_RETRY_NS);
+            if (! this.open.isEmpty ())
+              timeout_ns = Math.min (timeout_ns, getNextDeadline_ns () - System.nanoTime ());
+            final Entry entry = (timeout_ns > 0 ? this.queue.poll (timeout_ns, TimeUnit.NANOSECONDS) : this.queue.poll ());
+            if (entry != null)
+              this.batch.add (entry);
+          }
+        }
+        catch (InterruptedException ie)
+        {
+          break;
+        }
+        if (! this.batch.isEmpty ())
+          this.queue.drainTo (this.batch, UdpTnoIndicationEgress.MAX_BATCH_SIZE - 1);
+        final long now_ns = System.nanoTime ();
+        for (int i = 0; i < this.batch.size (); i++)
+        {
+          final Entry entry = this.batch.get (i);
+          if (entry.indication == null)
+            continue;
+          if (entry.coalescing == null)
+            send (entry);
+          else
+            coalesce (entry, now_ns);
+        }
+        this.batch.clear ();
+        if (! this.open.isEmpty ())
+          flushDue (System.nanoTime ());
+        if (! this.blocked.isEmpty ())
+          retryBlocked ();
+        if (! this.releases.isEmpty ())
+          processReleases ();
+      }
+      LOG.log (Level.INFO, "UdpTnoIndicationEgress.run on {0}: Lane {1} terminating!",
+        new Object[]{UdpTnoIndicationEgress.this, this.index});
+    }
+
+  }
+
+}
@@ -0,0 +1,695 @@
+/*
+ * Copyright 2016 Jan de Jongh, TNO.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.etsi.btpsap.operational.client.udp.tno;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** Accepts and serves all (CLI) control connections of clients from a single thread through a selector.
+ *
+ * <p>
+ * The non-blocking counterpart of {@link UdpTnoTcpAcceptServer} (or {@link UdpTnoUdsAcceptServer})
+ * combined with a thread per {@link UdpTnoTcpClientServer}:
+ * each connection costs a {@link Session} holding a small input buffer and its pending output, instead of a thread.
+ * Pending connections are accepted in bursts, without creating threads.
+ *
+ * <p>
+ * The selector thread only does the I/O.
+ * Input is split into lines (of at most {@link #MAX_LINE_LENGTH} bytes) that are handed to the connection's
+ * {@link UdpTnoTcpClientServer} on one of a small, fixed number of worker threads ({@link #NUMBER_OF_WORKERS}),
+ * as is the registration of the client of a new connection;
+ * commands may take locks and resolve host names, which would otherwise stall all connections.
+ * The commands of a single connection are executed one at a time, in order.
+ * Output is written without blocking; a connection with more than {@link #MAX_PENDING_OUTPUT} bytes of output,
+ * or more than {@link #MAX_PENDING_COMMANDS} commands pending is not read from until its client (or worker) catches up.
+ *
+ * @see UdpTnoClientProtocolHandler.ControlMode#NIO
+ *
+ */
+public class UdpTnoNioCliServer
+implements Runnable
+{
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // LOG
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private static final Logger LOG = Logger.getLogger (UdpTnoNioCliServer.class.getName ());
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTANTS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** The maximum length in bytes of a command line; longer lines are discarded (with a message to the client).
+   *
+   */
+  public final static int MAX_LINE_LENGTH = 4096;
+
+  /** The amount of pending output in bytes beyond which a connection is no longer read from.
+   *
+   */
+  public final static int MAX_PENDING_OUTPUT = 1 << 16;
+
+  /** The number of commands pending execution beyond which a connection is no longer read from.
+   *
+   */
+  public final static int MAX_PENDING_COMMANDS = 16;
+
+  /** The number of worker threads executing commands and registering new clients.
+   *
+   */
+  public final static int NUMBER_OF_WORKERS = 4;
+
+  private final static int INPUT_BUFFER_SIZE = 512;
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTRUCTOR(S) / FACTORIES / CLONING
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** Creates the server.
+   *
+   * <p>
+   * The server channel is opened (and the address released after closing it) by the handler,
+   * see {@link UdpTnoClientProtocolHandler#openControlChannel}.
+   *
+   * @param address The address to bind to, e.g., an {@link InetSocketAddress} (TCP), non-{@code null}.
+   * @param handler The protocol handler, non-{@code null}.
+   *
+   */
+  public UdpTnoNioCliServer (final SocketAddress address, final UdpTnoClientProtocolHandler handler)
+  {
+    if (address == null || handler == null)
+      throw new IllegalArgumentException ();
+    this.address = address;
+    this.handler = handler;
+  }
+
+  private final SocketAddress address;
+
+  @Override
+  public String toString ()
+  {
+    return "UdpTnoNioCliServer[" + this.address + "]";
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // (PROTOCOL) HANDLER
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final UdpTnoClientProtocolHandler handler;
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // SERVER CHANNEL / SELECTOR
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private ServerSocketChannel serverChannel = null;
+
+  private Selector selector = null;
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // SESSION
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** A single control connection, serving as the connection of its {@link UdpTnoTcpClientServer}.
+   *
+   * <p>
+   * Closing the session writes its pending output (as far as possible without blocking), and closes the channel.
+   *
+   */
+  public final class Session
+  implements Closeable
+  {
+
+    private Session (final SocketChannel channel, final SocketAddress remoteAddress)
+    {
+      this.channel = channel;
+      this.remoteAddress = remoteAddress;
+    }
+
+    private final SocketChannel channel;
+
+    private final SocketAddress remoteAddress;
+
+    /** Returns the address of the remote end of the connection, as obtained upon accepting it.
+     *
+     * @return The remote address.
+     *
+     */
+    public final SocketAddress getRemoteAddress ()
+    {
+      return this.remoteAddress;
+    }
+
+    @Override
+    public String toString ()
+    {
+      return "Session[" + this.remoteAddress + "]";
+    }
+
+    private UdpTnoTcpClientServer cliServer = null;
+
+    private SelectionKey key = null;
+
+    private final ByteBuffer inputBuffer = ByteBuffer.allocate (UdpTnoNioCliServer.INPUT_BUFFER_SIZE);
+
+    private final byte[] line = new byte[UdpTnoNioCliServer.MAX_LINE_LENGTH];
+
+    private int lineLength = 0;
+
+    private boolean lineTooLong = false;
+
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream ();
+
+    private final PrintWriter out = new PrintWriter (this.output);
+
+    /** Starts serving this session; invoked from a worker thread (i.e., while registering the client).
+     *
+     * <p>
+     * The channel is registered with the selector by the selector thread.
+     *
+     * @param cliServer The CLI server of the session's client, non-{@code null}.
+     *
+     * @throws IOException If the channel is closed.
+     *
+     */
+    final void start (final UdpTnoTcpClientServer cliServer) throws IOException
+    {
+      if (cliServer == null || this.cliServer != null)
+        throw new IllegalArgumentException ();
+      if (! this.channel.isOpen ())
+        throw new IOException ("Channel closed!");
+      this.cliServer = cliServer;
+      cliServer.welcome (this.out);
+      UdpTnoTcpClientServer.prompt (this.out);
+      requestIo (this);
+    }
+
+    // The tasks (commands) of this session pending execution by a worker; guarded by its monitor.
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<> ();
+
+    // Whether this session is queued for, or being served by, a worker; guarded by the monitor of tasks.
+    private boolean scheduled = false;
+
+    private void submit (final Runnable task)
+    {
+      synchronized (this.tasks)
+      {
+        this.tasks.add (task);
+        if (! this.scheduled)
+        {
+          this.scheduled = true;
+          UdpTnoNioCliServer.this.work.add (this);
+        }
+      }
+    }
+
+    private int getPendingTasks ()
+    {
+      synchronized (this.tasks)
+      {
+        return this.tasks.size ();
+      }
+    }
+
+    /** Executes the pending tasks of this session, in order; invoked from a worker thread.
+     *
+     * <p>
+     * Yields the worker after {@link #MAX_PENDING_COMMANDS} tasks, in order not to starve other sessions.
+     *
+     */
+    private void runTasks ()
+    {
+      for (int t = 0; t < UdpTnoNioCliServer.MAX_PENDING_COMMANDS; t++)
+      {
+        final Runnable task;
+        synchronized (this.tasks)
+        {
+          task = this.tasks.poll ();
+          if (task == null)
+          {
+            this.scheduled = false;
+            return;
+          }
+        }
+        try
+        {
+          task.run ();
+        }
+        catch (RuntimeException re)
+        {
+          LOG.log (Level.WARNING, "UdpTnoNioCliServer on {0}: Exception while executing command on {1}: {2}.",
+            new Object[]{UdpTnoNioCliServer.this, this, re});
+        }
+        requestIo (this);
+      }
+      synchronized (this.tasks)
+      {
+        if (this.tasks.isEmpty ())
+          this.scheduled = false;
+        else
+          UdpTnoNioCliServer.this.work.add (this);
+      }
+    }
+
+    /** Reads all available input, and submits each complete line for execution.
+     *
+     * @return Whether the end of the input was reached.
+     *
+     */
+    private boolean read () throws IOException
+    {
+      while (this.channel.isOpen () && getPendingTasks () < UdpTnoNioCliServer.MAX_PENDING_COMMANDS)
+      {
+        this.inputBuffer.clear ();
+        final int read = this.channel.read (this.inputBuffer);
+        if (read < 0)
+          return true;
+        if (read == 0)
+          return false;
+        for (int i = 0; i < read && this.channel.isOpen (); i++)
+        {
+          final byte b = this.inputBuffer.get (i);
+          if (b == '\n')
+            line ();
+          else if (this.lineLength < this.line.length)
+            this.line[this.lineLength++] = b;
+          else
+            this.lineTooLong = true;
+        }
+        write ();
+        if (this.output.size () > UdpTnoNioCliServer.MAX_PENDING_OUTPUT)
+          return false;
+      }
+      return false;
+    }
+
+    private void line ()
+    {
+      if (this.lineTooLong)
+        submit (new Runnable ()
+        {
+          @Override
+          public void run ()
+          {
+            Session.this.out.println ("$$ Line too long!");
+            UdpTnoTcpClientServer.prompt (Session.this.out);
+          }
+        });
+      else
+      {
+        int length = this.lineLength;
+        if (length > 0 && this.line[length - 1] == '\r')
+          length--;
+        final String textFromClient = new String (this.line, 0, length, Charset.defaultCharset ());
+        submit (new Runnable ()
+        {
+          @Override
+          public void run ()
+          {
+            if (Session.this.cliServer.line (textFromClient, Session.this.out))
+              UdpTnoTcpClientServer.prompt (Session.this.out);
+          }
+        });
+      }
+      this.lineLength = 0;
+      this.lineTooLong = false;
+    }
+
+    /** Writes as much pending output as possible without blocking.
+     *
+     * <p>
+     * May be invoked from any thread; unlike {@link #updateInterestOps}.
+     *
+     */
+    private void write () throws IOException
+    {
+      synchronized (this.output)
+      {
+        this.out.flush ();
+        if (this.output.size () > 0 && this.channel.isOpen ())
+        {
+          final byte[] bytes = this.output.toByteArray ();
+          final int written = this.channel.write (ByteBuffer.wrap (bytes));
+          this.output.reset ();
+          this.output.write (bytes, written, bytes.length - written);
+        }
+      }
+    }
+
+    /** Updates the interest set according to the pending output and commands; invoked from the selector thread.
+     *
+     */
+    private void updateInterestOps ()
+    {
+      if (this.key == null || ! this.key.isValid ())
+        return;
+      final int pendingOutput;
+      synchronized (this.output)
+      {
+        pendingOutput = this.output.size ();
+      }
+      final boolean readable = pendingOutput <= UdpTnoNioCliServer.MAX_PENDING_OUTPUT
+        && getPendingTasks () < UdpTnoNioCliServer.MAX_PENDING_COMMANDS
+        && ! this.endOfInput;
+      this.key.interestOps ((pendingOutput > 0 ? SelectionKey.OP_WRITE : 0) | (readable ? SelectionKey.OP_READ : 0));
+    }
+
+    // Whether the end of the input was reached (or the connection failed); set by the selector thread.
+    private boolean endOfInput = false;
+
+    /** Shuts down the CLI server of this session (and disconnects its client) on a worker thread.
+     *
+     */
+    private void disconnect ()
+    {
+      this.endOfInput = true;
+      submit (new Runnable ()
+      {
+        @Override
+        public void run ()
+        {
+          if (Session.this.cliServer != null)
+            Session.this.cliServer.shutdown ();
+        }
+      });
+    }
+
+    @Override
+    public void close () throws IOException
+    {
+      synchronized (this.output)
+      {
+        try
+        {
+          write ();
+        }
+        catch (IOException ioe)
+        {
+          // Ignore; we are closing anyway.
+        }
+        this.channel.close ();
+      }
+      UdpTnoNioCliServer.this.selector.wakeup ();
+    }
+
+  }
+
+  private void serve (final SelectionKey key)
+  {
+    final Session session = (Session) key.attachment ();
+    try
+    {
+      if (key.isWritable ())
+        session.write ();
+      if (key.isValid () && key.isReadable () && session.read ())
+        session.disconnect ();
+    }
+    catch (IOException ioe)
+    {
+      LOG.log (Level.INFO, "UdpTnoNioCliServer.serve on {0}: IOException on {1}: {2}.",
+        new Object[]{this, session, ioe.getMessage ()});
+      session.disconnect ();
+    }
+    session.updateInterestOps ();
+  }
+
+  private void accept () throws IOException
+  {
+    SocketChannel clientChannel;
+    while ((clientChannel = this.serverChannel.accept ()) != null)
+    {
+      LOG.log (Level.INFO, "UdpTnoNioCliServer.run on {0}: New client: {1}.", new Object[]{this, clientChannel});
+      clientChannel.configureBlocking (false);
+      final Session session = new Session (clientChannel, clientChannel.getRemoteAddress ());
+      session.submit (new Runnable ()
+      {
+        @Override
+        public void run ()
+        {
+          register (session);
+        }
+      });
+    }
+  }
+
+  /** Registers the client of a new session with the handler (and the BTP SAP); invoked from a worker thread.
+   *
+   */
+  private void register (final Session session)
+  {
+    final SocketChannel clientChannel = session.channel;
+    if (this.serverChannel.isOpen () && this.handler.newClient (session))
+      return;
+    try
+    {
+      clientChannel.write (ByteBuffer.wrap ("client -1\n$$ Closing!\n".getBytes (StandardCharsets.US_ASCII)));
+    }
+    catch (IOException ioe)
+    {
+      LOG.log (Level.SEVERE, "Caught IOException while waving goodbye to client {0}: {1}",
+        new Object[]{clientChannel, ioe.getMessage ()});
+    }
+    try
+    {
+      clientChannel.close ();
+    }
+    catch (IOException ioe)
+    {
+      LOG.log (Level.SEVERE, "Caught IOException while waving goodbye through channel-close to client {0}: {1}",
+        new Object[]{clientChannel, ioe.getMessage ()});
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // WORKERS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  // The sessions with tasks pending execution, each queued at most once.
+  private final BlockingQueue<Session> work = new LinkedBlockingQueue<> ();
+
+  private final Thread[] workers = new Thread[UdpTnoNioCliServer.NUMBER_OF_WORKERS];
+
+  private void startWorkers ()
+  {
+    for (int w = 0; w < this.workers.length; w++)
+    {
+      this.workers[w] = new Thread (new Runnable ()
+      {
+        @Override
+        public void run ()
+        {
+          try
+          {
+            while (! Thread.currentThread ().isInterrupted ())
+              UdpTnoNioCliServer.this.work.take ().runTasks ();
+          }
+          catch (InterruptedException ie)
+          {
+            // Shutdown.
+          }
+        }
+      }, toString () + "-worker-" + w);
+      this.workers[w].start ();
+    }
+  }
+
+  private void stopWorkers ()
+  {
+    for (final Thread worker : this.workers)
+      if (worker != null)
+        worker.interrupt ();
+  }
+
+  // The sessions requiring I/O (or registration with the selector) after work done on a worker thread.
+  private final ConcurrentLinkedQueue<Session> pendingIo = new ConcurrentLinkedQueue<> ();
+
+  private void requestIo (final Session session)
+  {
+    this.pendingIo.add (session);
+    final Selector selector = this.selector;
+    if (selector != null)
+      selector.wakeup ();
+  }
+
+  /** Registers new sessions with the selector, and writes output of executed commands; invoked from the selector thread.
+   *
+   */
+  private void doPendingIo ()
+  {
+    Session session;
+    while ((session = this.pendingIo.poll ()) != null)
+    {
+      if (! session.channel.isOpen ())
+        continue;
+      try
+      {
+        if (session.key == null)
+          session.key = session.channel.register (this.selector, SelectionKey.OP_READ, session);
+        session.write ();
+      }
+      catch (IOException ioe)
+      {
+        LOG.log (Level.INFO, "UdpTnoNioCliServer.doPendingIo on {0}: IOException on {1}: {2}.",
+          new Object[]{this, session, ioe.getMessage ()});
+        session.disconnect ();
+      }
+      session.updateInterestOps ();
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // THREAD
+  //
+  // shutdown
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private Thread thread = null;
+
+  public final synchronized void shutdown ()
+  {
+    LOG.log (Level.INFO, "UdpTnoNioCliServer.shutdown on {0}.", this);
+    if (this.thread != null && this.thread.isAlive () && this.thread != Thread.currentThread ())
+    {
+      this.thread.interrupt ();
+    }
+    if (this.serverChannel != null)
+      try
+      {
+        this.serverChannel.close ();
+        this.handler.releaseControlAddress (this.address);
+        LOG.log (Level.INFO, "UdpTnoNioCliServer.shutdown on {0}: Server channel closed!", this);
+      }
+      catch (IOException ioe)
+      {
+        LOG.log (Level.WARNING, "UdpTnoNioCliServer.shutdown on {0}: IOException during server-channel close: {1}.",
+          new Object[]{this, ioe.getMessage ()});
+      }
+    if (this.selector != null)
+      this.selector.wakeup ();
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // Runnable
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  @Override
+  public final void run ()
+  {
+    LOG.log (Level.INFO, "UdpTnoNioCliServer.run on {0}: Starting!", this);
+    synchronized (this)
+    {
+      if (this.thread != null)
+        throw new RuntimeException ();
+      this.thread = Thread.currentThread ();
+      try
+      {
+        this.selector = Selector.open ();
+        this.serverChannel = this.handler.openControlChannel (this.address);
+        this.serverChannel.bind (this.address);
+        this.serverChannel.configureBlocking (false);
+        this.serverChannel.register (this.selector, SelectionKey.OP_ACCEPT);
+        startWorkers ();
+      }
+      catch (IOException ioe)
+      {
+        LOG.log (Level.WARNING, "UdpTnoNioCliServer.run on {0}: Cannot bind; terminating!", this);
+        shutdown ();
+        return;
+      }
+    }
+    LOG.log (Level.INFO, "UdpTnoNioCliServer.run on {0}: Bound!", this);
+    try
+    {
+      while (! Thread.currentThread ().isInterrupted () && this.serverChannel.isOpen ())
+      {
+        this.selector.select ();
+        doPendingIo ();
+        final Iterator<SelectionKey> keys = this.selector.selectedKeys ().iterator ();
+        while (keys.hasNext ())
+        {
+          final SelectionKey key = keys.next ();
+          keys.remove ();
+          if (! key.isValid ())
+            continue;
+          if (key.isAcceptable ())
+            accept ();
+          else
+            serve (key);
+        }
+      }
+    }
+    catch (IOException ioe)
+    {
+      if (this.serverChannel.isOpen ())
+        LOG.log (Level.WARNING, "UdpTnoNioCliServer.run on {0}: IOException: {1}.", new Object[]{this, ioe.getMessage ()});
+    }
+    finally
+    {
+      stopWorkers ();
+      for (final SelectionKey key : new ArrayList<> (this.selector.keys ()))
+        if (key.attachment () != null && ((Session) key.attachment ()).cliServer != null)
+          ((Session) key.attachment ()).cliServer.shutdown ();
+      try
+      {
+        this.selector.close ();
+      }
+      catch (IOException ioe)
+      {
+        // Ignore.
+      }
+    }
+    LOG.log (Level.INFO, "UdpTnoNioCliServer.run on {0}: Termination!", this);
+    shutdown ();
+  }
+
+}
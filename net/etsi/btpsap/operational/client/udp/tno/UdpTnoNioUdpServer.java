@@ -0,0 +1,406 @@
+/*
+ * Copyright 2016 Jan de Jongh, TNO.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.etsi.btpsap.operational.client.udp.tno;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.etsi.btpsap.operational.events.EventRing;
+import net.etsi.btpsap.operational.events.EventType;
+import net.etsi.btpsap.operational.metrics.DropReason;
+
+/** A multi-reader NIO ingress for BTP/UDP[TNO] request datagrams.
+ *
+ * <p>
+ * Each reader thread has its own selector, and drains up to a configurable number of datagrams (a burst)
+ * from its channel per wake-up.
+ * If the platform supports {@code SO_REUSEPORT}, each reader binds its own channel to the server port,
+ * and the kernel shards incoming datagrams among them.
+ * Otherwise, all readers share a single channel (registered with each of their selectors);
+ * reception itself is then serialized, but decoding and dispatching still proceed in parallel.
+ *
+ * <p>
+ * Datagrams are received into buffers from the protocol handler's {@link UdpTnoRxBufferPool}.
+ * Readers never wait for buffers: if the pool is exhausted, the datagram is dropped (and counted).
+ *
+ */
+public class UdpTnoNioUdpServer
+extends InetSocketAddress
+{
+
+  private static final long serialVersionUID = 1L;
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // LOG
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private static final Logger LOG = Logger.getLogger (UdpTnoNioUdpServer.class.getName ());
+
+  private static final EventRing EVENTS = EventRing.getDefault ();
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTRUCTOR(S) / FACTORIES / CLONING
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  public UdpTnoNioUdpServer
+  (final int port,
+   final UdpTnoClientProtocolHandler handler,
+   final int numberOfReaders,
+   final int socketReceiveBufferSize,
+   final int burstSize)
+  {
+    super (port);
+    if (handler == null || numberOfReaders <= 0 || socketReceiveBufferSize < 0 || burstSize <= 0)
+      throw new IllegalArgumentException ();
+    this.handler = handler;
+    this.socketReceiveBufferSize = socketReceiveBufferSize;
+    this.burstSize = burstSize;
+    this.readers = new Reader[numberOfReaders];
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // (PROTOCOL) HANDLER
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final UdpTnoClientProtocolHandler handler;
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // SOCKET RECEIVE BUFFER SIZE / BURST SIZE
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** The socket receive buffer size in bytes, zero for the system default.
+   *
+   */
+  private final int socketReceiveBufferSize;
+
+  private final int burstSize;
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // READERS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final Reader[] readers;
+
+  public final int getNumberOfReaders ()
+  {
+    return this.readers.length;
+  }
+
+  public final long getReceivedCount (final int reader)
+  {
+    final Reader r = this.readers[reader];
+    return (r != null) ? r.received.get () : 0L;
+  }
+
+  /** Returns the number of datagrams dropped by a reader because no receive buffer was available.
+   *
+   * @param reader The reader index.
+   *
+   * @return The number of datagrams dropped.
+   *
+   */
+  public final long getDroppedCount (final int reader)
+  {
+    final Reader r = this.readers[reader];
+    return (r != null) ? r.dropped.get () : 0L;
+  }
+
+  /** Returns the number of bursts in which a reader hit the burst limit, i.e., left datagrams pending on its channel.
+   *
+   * <p>
+   * A steadily increasing overrun count indicates that the reader cannot keep up with the offered load.
+   *
+   * @param reader The reader index.
+   *
+   * @return The number of overruns.
+   *
+   */
+  public final long getOverrunCount (final int reader)
+  {
+    final Reader r = this.readers[reader];
+    return (r != null) ? r.overruns.get () : 0L;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // START / SHUTDOWN
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private boolean started = false;
+
+  private static boolean setReusePort (final DatagramChannel channel) throws IOException
+  {
+    // StandardSocketOptions.SO_REUSEPORT requires Java 9 (the core targets Java 8),
+    // and is not supported on all platforms; look the option up by name.
+    for (final SocketOption<?> option : channel.supportedOptions ())
+      if ("SO_REUSEPORT".equals (option.name ()) && option.type () == Boolean.class)
+      {
+        @SuppressWarnings ("unchecked")
+        final SocketOption<Boolean> reusePort = (SocketOption<Boolean>) option;
+        channel.setOption (reusePort, true);
+        return true;
+      }
+    return false;
+  }
+
+  private DatagramChannel openChannel (final boolean reusePort) throws IOException
+  {
+    final DatagramChannel channel = DatagramChannel.open ();
+    try
+    {
+      if (reusePort && ! setReusePort (channel))
+      {
+        channel.close ();
+        return null;
+      }
+      if (this.socketReceiveBufferSize > 0)
+        channel.setOption (StandardSocketOptions.SO_RCVBUF, this.socketReceiveBufferSize);
+      channel.bind (this);
+      channel.configureBlocking (false);
+      return channel;
+    }
+    catch (IOException ioe)
+    {
+      channel.close ();
+      throw ioe;
+    }
+  }
+
+  public final synchronized void start ()
+  {
+    if (this.started)
+      throw new IllegalStateException ();
+    this.started = true;
+    try
+    {
+      DatagramChannel sharedChannel = null;
+      if (this.readers.length > 1)
+      {
+        final DatagramChannel firstChannel = openChannel (true);
+        if (firstChannel == null)
+        {
+          LOG.log (Level.WARNING, "UdpTnoNioUdpServer.start on {0}: SO_REUSEPORT not supported; readers share a single channel.",
+            this);
+          sharedChannel = openChannel (false);
+        }
+        else
+          this.readers[0] = new Reader (0, firstChannel, true);
+      }
+      else
+        sharedChannel = openChannel (false);
+      for (int r = 0; r < this.readers.length; r++)
+        if (this.readers[r] == null)
+        {
+          if (sharedChannel != null)
+            this.readers[r] = new Reader (r, sharedChannel, r == 0);
+          else
+            this.readers[r] = new Reader (r, openChannel (true), true);
+        }
+    }
+    catch (IOException ioe)
+    {
+      LOG.log (Level.WARNING, "UdpTnoNioUdpServer.start on {0}: Cannot bind ({1}); terminating!",
+        new Object[]{this, ioe.getMessage ()});
+      shutdown ();
+      return;
+    }
+    for (final Reader reader : this.readers)
+    {
+      final Thread thread = new Thread (reader, "UdpTnoNioUdpServer[" + getPort () + "]-reader-" + reader.index);
+      reader.thread = thread;
+      thread.start ();
+    }
+    LOG.log (Level.INFO, "UdpTnoNioUdpServer.start on {0}: Bound; {1} reader(s).", new Object[]{this, this.readers.length});
+  }
+
+  public final synchronized void shutdown ()
+  {
+    LOG.log (Level.INFO, "UdpTnoNioUdpServer.shutdown on {0}.", this);
+    for (final Reader reader : this.readers)
+      if (reader != null)
+        reader.close ();
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // READER
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final class Reader
+  implements Runnable
+  {
+
+    private final int index;
+
+    private final DatagramChannel channel;
+
+    /** Whether this reader owns (and should close) the channel.
+     *
+     */
+    private final boolean ownsChannel;
+
+    private final Selector selector;
+
+    private volatile Thread thread = null;
+
+    private volatile boolean stop = false;
+
+    private final AtomicLong received = new AtomicLong ();
+
+    private final AtomicLong dropped = new AtomicLong ();
+
+    private final AtomicLong overruns = new AtomicLong ();
+
+    /** Scratch buffer used to discard datagrams when no receive buffer is available.
+     *
+     */
+    private final ByteBuffer discardBuffer = ByteBuffer.allocate (UdpTnoRxBufferPool.DEFAULT_BUFFER_SIZE);
+
+    private Reader (final int index, final DatagramChannel channel, final boolean ownsChannel) throws IOException
+    {
+      this.index = index;
+      this.channel = channel;
+      this.ownsChannel = ownsChannel;
+      this.selector = Selector.open ();
+      this.channel.register (this.selector, SelectionKey.OP_READ);
+    }
+
+    private void close ()
+    {
+      this.stop = true;
+      try
+      {
+        this.selector.close ();
+      }
+      catch (IOException ioe)
+      {
+        LOG.log (Level.WARNING, "UdpTnoNioUdpServer.shutdown on {0}: IOException while closing selector: {1}.",
+          new Object[]{UdpTnoNioUdpServer.this, ioe.getMessage ()});
+      }
+      if (this.ownsChannel)
+        try
+        {
+          this.channel.close ();
+        }
+        catch (IOException ioe)
+        {
+          LOG.log (Level.WARNING, "UdpTnoNioUdpServer.shutdown on {0}: IOException while closing channel: {1}.",
+            new Object[]{UdpTnoNioUdpServer.this, ioe.getMessage ()});
+        }
+      final Thread thread = this.thread;
+      if (thread != null && thread != Thread.currentThread ())
+        thread.interrupt ();
+    }
+
+    /** Drains up to a burst of datagrams from the channel.
+     *
+     * @return The number of datagrams received (or dropped).
+     *
+     * @throws IOException If reception failed.
+     *
+     */
+    private int drain () throws IOException
+    {
+      final UdpTnoRxBufferPool pool = UdpTnoNioUdpServer.this.handler.getRxBufferPool ();
+      int count = 0;
+      while (count < UdpTnoNioUdpServer.this.burstSize)
+      {
+        final UdpTnoRxBuffer rxBuffer = pool.tryAcquire ();
+        if (rxBuffer == null)
+        {
+          this.discardBuffer.clear ();
+          if (this.channel.receive (this.discardBuffer) == null)
+            break;
+          this.dropped.incrementAndGet ();
+          UdpTnoNioUdpServer.this.handler.getMetrics ().drop (DropReason.NO_BUFFER);
+          EVENTS.publish (LOG, EventType.NO_BUFFER, UdpTnoNioUdpServer.this, null, "datagram", 0L);
+          count++;
+          continue;
+        }
+        try
+        {
+          if (this.channel.receive (rxBuffer.getByteBuffer ()) == null)
+            break;
+          rxBuffer.getPacket ().setLength (rxBuffer.getByteBuffer ().position ());
+          this.received.incrementAndGet ();
+          count++;
+          UdpTnoNioUdpServer.this.handler.udpPacket (rxBuffer);
+        }
+        finally
+        {
+          // Returns the buffer to the pool, unless it was retained further down the request pipeline.
+          rxBuffer.release ();
+        }
+      }
+      if (count == UdpTnoNioUdpServer.this.burstSize)
+        this.overruns.incrementAndGet ();
+      return count;
+    }
+
+    @Override
+    public final void run ()
+    {
+      LOG.log (Level.INFO, "UdpTnoNioUdpServer.run on {0}: Reader {1} starting!",
+        new Object[]{UdpTnoNioUdpServer.this, this.index});
+      while (! (this.stop || Thread.interrupted ()))
+      {
+        try
+        {
+          this.selector.select ();
+          this.selector.selectedKeys ().clear ();
+          drain ();
+        }
+        catch (ClosedSelectorException cse)
+        {
+          break;
+        }
+        catch (IOException ioe)
+        {
+          if (this.stop || Thread.interrupted ())
+            break;
+          UdpTnoNioUdpServer.this.handler.getMetrics ().drop (DropReason.SOCKET_ERROR);
+          EVENTS.publish (LOG, EventType.SOCKET_ERROR, UdpTnoNioUdpServer.this, null, ioe.getMessage (), 0L);
+        }
+      }
+      LOG.log (Level.INFO, "UdpTnoNioUdpServer.run on {0}: Reader {1} terminating!",
+        new Object[]{UdpTnoNioUdpServer.this, this.index});
+      close ();
+    }
+
+  }
+
+}
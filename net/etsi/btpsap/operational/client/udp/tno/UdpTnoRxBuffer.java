@@ -0,0 +1,176 @@
+/*
+ * Copyright 2016 Jan de Jongh, TNO.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.etsi.btpsap.operational.client.udp.tno;
+
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** A pooled, reference-counted receive buffer for BTP/UDP[TNO] request datagrams.
+ *
+ * <p>
+ * The buffer comes with its own (reusable) datagram packet and request view(s);
+ * additional views are created on demand for (version 2) datagrams carrying multiple requests.
+ * It is handed out by a {@link UdpTnoRxBufferPool} with a single claim of ownership (held by the receiving thread),
+ * and returns to its pool once all claims (see {@link UdpTnoDataReq#retain} and {@link UdpTnoDataReq#release})
+ * have been given up.
+ *
+ */
+public class UdpTnoRxBuffer
+{
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTRUCTOR(S) / CLONING / FACTORY
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  UdpTnoRxBuffer (final UdpTnoRxBufferPool pool, final int size)
+  {
+    if (pool == null || size < UdpTnoDataReq.HEADER_SIZE)
+      throw new IllegalArgumentException ();
+    this.pool = pool;
+    this.buffer = new byte[size];
+    this.packet = new DatagramPacket (this.buffer, this.buffer.length);
+    this.byteBuffer = ByteBuffer.wrap (this.buffer);
+    this.request = new UdpTnoDataReq (this);
+    this.requests[0] = this.request;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // POOL
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final UdpTnoRxBufferPool pool;
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // BUFFER / PACKET / REQUEST VIEW
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final byte[] buffer;
+
+  public final byte[] getBuffer ()
+  {
+    return this.buffer;
+  }
+
+  private final DatagramPacket packet;
+
+  public final DatagramPacket getPacket ()
+  {
+    return this.packet;
+  }
+
+  private final ByteBuffer byteBuffer;
+
+  /** Returns a byte buffer backed by (the whole of) this buffer, for reception through NIO channels.
+   *
+   * <p>
+   * After reception, the number of bytes received (the position of the byte buffer)
+   * must be set as the length of the datagram packet.
+   *
+   * @return The byte buffer.
+   *
+   */
+  public final ByteBuffer getByteBuffer ()
+  {
+    return this.byteBuffer;
+  }
+
+  private final UdpTnoDataReq request;
+
+  public final UdpTnoDataReq getRequest ()
+  {
+    return this.request;
+  }
+
+  private UdpTnoDataReq[] requests = new UdpTnoDataReq[1];
+
+  private int requestsInUse = 1;
+
+  /** Returns a request view on this buffer for the request at given index in a (version 2) batched datagram.
+   *
+   * <p>
+   * All views share the ownership (reference count) of this buffer; index zero yields {@link #getRequest}.
+   * Views are created (once) on demand, by the receiving thread only.
+   *
+   * @param index The index, non-negative.
+   *
+   * @return The request view.
+   *
+   */
+  public final UdpTnoDataReq getRequest (final int index)
+  {
+    if (index < 0)
+      throw new IllegalArgumentException ();
+    if (index == 0)
+      return this.request;
+    if (index >= this.requests.length)
+      this.requests = Arrays.copyOf (this.requests, Math.max (index + 1, 2 * this.requests.length));
+    if (this.requests[index] == null)
+      this.requests[index] = new UdpTnoDataReq (this);
+    if (index >= this.requestsInUse)
+      this.requestsInUse = index + 1;
+    return this.requests[index];
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // OWNERSHIP
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final AtomicInteger refCount = new AtomicInteger (0);
+
+  /** Prepares the buffer for reception, and hands it out with a single claim of ownership.
+   *
+   */
+  final void acquired ()
+  {
+    this.packet.setData (this.buffer, 0, this.buffer.length);
+    this.byteBuffer.clear ();
+    this.refCount.set (1);
+  }
+
+  public final void retain ()
+  {
+    if (this.refCount.getAndIncrement () <= 0)
+      throw new IllegalStateException ();
+  }
+
+  /** Gives up a claim of ownership, returning the buffer to its pool if it was the last one.
+   *
+   */
+  public final void release ()
+  {
+    final int refCount = this.refCount.decrementAndGet ();
+    if (refCount == 0)
+    {
+      for (int r = 0; r < this.requestsInUse; r++)
+        this.requests[r].clear ();
+      this.requestsInUse = 1;
+      this.pool.returnBuffer (this);
+    }
+    else if (refCount < 0)
+      throw new IllegalStateException ();
+  }
+
+}
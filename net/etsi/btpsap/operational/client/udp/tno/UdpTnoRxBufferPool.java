@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016 Jan de Jongh, TNO.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.etsi.btpsap.operational.client.udp.tno;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/** A bounded pool of preallocated {@link UdpTnoRxBuffer}s.
+ *
+ */
+public class UdpTnoRxBufferPool
+{
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTRUCTOR(S) / CLONING / FACTORY
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  public UdpTnoRxBufferPool (final int capacity, final int bufferSize)
+  {
+    if (capacity <= 0 || bufferSize < UdpTnoDataReq.HEADER_SIZE)
+      throw new IllegalArgumentException ();
+    this.capacity = capacity;
+    this.bufferSize = bufferSize;
+    this.buffers = new ArrayBlockingQueue<> (capacity);
+    for (int i = 0; i < capacity; i++)
+      this.buffers.add (new UdpTnoRxBuffer (this, bufferSize));
+  }
+
+  public UdpTnoRxBufferPool ()
+  {
+    this (UdpTnoRxBufferPool.DEFAULT_CAPACITY, UdpTnoRxBufferPool.DEFAULT_BUFFER_SIZE);
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CAPACITY / BUFFER SIZE
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  public final static int DEFAULT_CAPACITY = 256;
+
+  public final static int DEFAULT_BUFFER_SIZE = 4096;
+
+  private final int capacity;
+
+  public final int getCapacity ()
+  {
+    return this.capacity;
+  }
+
+  private final int bufferSize;
+
+  public final int getBufferSize ()
+  {
+    return this.bufferSize;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // BUFFERS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final BlockingQueue<UdpTnoRxBuffer> buffers;
+
+  /** Takes a buffer from the pool, waiting for one to become available if needed.
+   *
+   * @return The buffer, owned by the caller until released.
+   *
+   * @throws InterruptedException If interrupted while waiting.
+   *
+   */
+  public final UdpTnoRxBuffer acquire () throws InterruptedException
+  {
+    final UdpTnoRxBuffer buffer = this.buffers.take ();
+    buffer.acquired ();
+    return buffer;
+  }
+
+  /** Takes a buffer from the pool, if one is available.
+   *
+   * @return The buffer, owned by the caller until released, or {@code null} if the pool is exhausted.
+   *
+   */
+  public final UdpTnoRxBuffer tryAcquire ()
+  {
+    final UdpTnoRxBuffer buffer = this.buffers.poll ();
+    if (buffer != null)
+      buffer.acquired ();
+    return buffer;
+  }
+
+  public final int getAvailable ()
+  {
+    return this.buffers.size ();
+  }
+
+  final void returnBuffer (final UdpTnoRxBuffer buffer)
+  {
+    if (! this.buffers.offer (buffer))
+      throw new IllegalStateException ();
+  }
+
+}
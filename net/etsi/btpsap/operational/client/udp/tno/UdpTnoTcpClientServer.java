@@ -17,22 +17,35 @@
 package net.etsi.btpsap.operational.client.udp.tno;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketException;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import net.etsi.btpsap.BtpSapTypes;
 import net.etsi.btpsap.operational.BtpSapClient;
 import net.etsi.btpsap.operational.BtpSapServer;
 import net.etsi.btpsap.operational.OperationalBtpSap;
+import net.etsi.btpsap.operational.OperationalBtpSapDB;
+import net.etsi.btpsap.operational.client.shm.tno.ShmTnoClientProtocolHandler;
+import net.etsi.btpsap.operational.client.shm.tno.ShmTnoRing;
 
 /**
  *
@@ -57,19 +70,106 @@ implements Runnable
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   
   public UdpTnoTcpClientServer (final OperationalBtpSap btpSap, final UdpTnoClient client, final Socket clientTcpSocket)
+    throws IOException
   {
-    if (btpSap == null || client == null || clientTcpSocket == null)
+    this (btpSap, client, clientTcpSocket, clientTcpSocket.getInputStream (), clientTcpSocket.getOutputStream (),
+      UdpTnoTcpClientServer.isLocal (clientTcpSocket.getRemoteSocketAddress ()));
+  }
+  
+  /** Creates a CLI server on a (connected) socket channel, e.g., a Unix domain socket.
+   * 
+   * @param btpSap        The BTP SAP, non-{@code null}.
+   * @param client        The client, non-{@code null}.
+   * @param clientChannel The (blocking) channel connected to the client, non-{@code null}.
+   * 
+   */
+  public UdpTnoTcpClientServer (final OperationalBtpSap btpSap, final UdpTnoClient client, final SocketChannel clientChannel)
+  {
+    this (btpSap, client, clientChannel, Channels.newInputStream (clientChannel), Channels.newOutputStream (clientChannel),
+      UdpTnoTcpClientServer.isLocal (clientChannel));
+  }
+  
+  /** Creates a CLI server on a session of a {@link UdpTnoNioCliServer}.
+   * 
+   * <p>
+   * The CLI server is driven by the session (see {@link #welcome} and {@link #line}); it must not be run.
+   * 
+   * @param btpSap  The BTP SAP, non-{@code null}.
+   * @param client  The client, non-{@code null}.
+   * @param session The session with the client, non-{@code null}.
+   * 
+   */
+  public UdpTnoTcpClientServer
+  (final OperationalBtpSap btpSap, final UdpTnoClient client, final UdpTnoNioCliServer.Session session)
+  {
+    this (btpSap, client, session, null, null, UdpTnoTcpClientServer.isLocal (session.getRemoteAddress ()));
+  }
+  
+  private UdpTnoTcpClientServer
+  (final OperationalBtpSap btpSap,
+    final UdpTnoClient client,
+    final Closeable connection,
+    final InputStream inputStream,
+    final OutputStream outputStream,
+    final boolean local)
+  {
+    if (btpSap == null || client == null || connection == null)
       throw new IllegalArgumentException ();
     this.btpSap = btpSap;
     this.client = client;
-    this.clientTcpSocket = clientTcpSocket;
+    this.connection = connection;
+    this.inputStream = inputStream;
+    this.outputStream = outputStream;
+    this.local = local;
   }
   
   private OperationalBtpSap btpSap;
   
   private UdpTnoClient client;
   
-  private final Socket clientTcpSocket;
+  private final Closeable connection;
+  
+  /** Whether the client is connected through a Unix domain socket or a loopback address.
+   * 
+   * <p>
+   * Only local clients may use the shared-memory transport.
+   * 
+   */
+  private final boolean local;
+  
+  public final boolean isLocal ()
+  {
+    return this.local;
+  }
+  
+  private static boolean isLocal (final SocketAddress remoteAddress)
+  {
+    if (remoteAddress instanceof InetSocketAddress)
+    {
+      final InetAddress inetAddress = ((InetSocketAddress) remoteAddress).getAddress ();
+      return inetAddress != null && inetAddress.isLoopbackAddress ();
+    }
+    // Other (i.e., Unix domain socket) addresses are local by nature.
+    return remoteAddress != null;
+  }
+  
+  private static boolean isLocal (final SocketChannel clientChannel)
+  {
+    try
+    {
+      return UdpTnoTcpClientServer.isLocal (clientChannel.getRemoteAddress ());
+    }
+    catch (IOException ioe)
+    {
+      return false;
+    }
+  }
+  
+  private final InputStream inputStream;
+  
+  private final OutputStream outputStream;
+  
+  private volatile boolean closed = false;
 
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   //
@@ -88,10 +188,11 @@ implements Runnable
     {
       this.thread.interrupt ();
     }
-    if (this.clientTcpSocket != null)
+    this.closed = true;
+    if (this.connection != null)
       try
       {
-        this.clientTcpSocket.close ();
+        this.connection.close ();
         LOG.log (Level.INFO, "UdpTnoTcpClientServer.shutdown on {0}: Server socket closed!", this);
       }
       catch (IOException ioe)
@@ -123,22 +224,18 @@ implements Runnable
     LOG.log (Level.INFO, "UdpTnoTcpClientServer.run on {0}: Starting!", this);
     synchronized (this)
     {
-      if (this.thread != null || this.clientTcpSocket == null)
+      if (this.thread != null || this.connection == null || this.inputStream == null)
         throw new RuntimeException ();
       this.thread = Thread.currentThread ();
     }
-    final int clientId = this.btpSap.getDb ().getClientId (this.client);
-    if (clientId < 0)
-      throw new RuntimeException ();
     try
     {
-      final PrintWriter out = new PrintWriter (this.clientTcpSocket.getOutputStream (), true);
-      final BufferedReader in = new BufferedReader (new InputStreamReader (this.clientTcpSocket.getInputStream ()));
-      out.println ("client " + clientId);
-      out.println ("$$ Welcome to " + this + "!");
-      while (! (Thread.interrupted () || this.clientTcpSocket.isClosed ()))
+      final PrintWriter out = new PrintWriter (this.outputStream, true);
+      final BufferedReader in = new BufferedReader (new InputStreamReader (this.inputStream));
+      welcome (out);
+      while (! (Thread.interrupted () || this.closed))
       {
-        out.print ("$$ > ");
+        prompt (out);
         out.flush ();
         final String textFromClient = in.readLine ();
         if (textFromClient == null)
@@ -163,6 +260,45 @@ implements Runnable
     shutdown ();
   }
     
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // SESSION
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** Greets the client, starting with its client id.
+   * 
+   * @param out The writer to the client, non-{@code null}.
+   * 
+   */
+  final void welcome (final PrintWriter out)
+  {
+    final int clientId = this.btpSap.getDb ().getClientId (this.client);
+    if (clientId < 0)
+      throw new RuntimeException ();
+    out.println ("client " + clientId);
+    out.println ("$$ Welcome to " + this + "!");
+  }
+  
+  static void prompt (final PrintWriter out)
+  {
+    out.print ("$$ > ");
+  }
+  
+  /** Processes a single line of input from the client.
+   * 
+   * @param textFromClient The line, non-{@code null}.
+   * @param out            The writer to the client, non-{@code null}.
+   * 
+   * @return Whether the session is still open (i.e., the line did not end it).
+   * 
+   */
+  final boolean line (final String textFromClient, final PrintWriter out)
+  {
+    cli (textFromClient, out);
+    return ! this.closed;
+  }
+  
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   //
   // CLI [MAIN PARSER]
@@ -201,12 +337,24 @@ implements Runnable
         case "close":
           cli_close (splitTextFromClient, out);
           break;
+        case "subscribe":
+          cli_subscribe (splitTextFromClient, out);
+          break;
+        case "geofence":
+          cli_geofence (splitTextFromClient, out);
+          break;
         case "ind_routing":
           cli_ind_routing (splitTextFromClient, out);
           break;
         case "ind_routing_global":
           cli_ind_routing_global (splitTextFromClient, out);
           break;
+        case "ind_format":
+          cli_ind_format (splitTextFromClient, out);
+          break;
+        case "shm_requests":
+          cli_shm_requests (splitTextFromClient, out);
+          break;
         case "exit":
           cli_exit (splitTextFromClient, out);
           break;
@@ -234,11 +382,28 @@ implements Runnable
     out.println ("tc_req_routing <tcLow> <tcHigh> <unit> - "
       + "Add unit to TC-based Request Routing for given TC range (inclusive).");
     out.println ("tc_req_routing clear [<unit|*>]        - Clear TC-based Routing for all units (or for given unit).");
+    out.println ("subscribe                              - Show Indication Subscriptions (none: receive all indications).");
+    out.println ("subscribe <portLow> <portHigh> [<tcLow> <tcHigh>] - "
+      + "Subscribe to indications for given BTP destination-port range (and TC range) (inclusive).");
+    out.println ("subscribe clear                        - Clear Indication Subscriptions; receive all indications.");
+    out.println ("geofence                               - Show Indication Geo Fences (none: receive from anywhere).");
+    out.println ("geofence circle <lat> <lon> <r_m>      - "
+      + "Only receive indications with source position inside given circle (or another geo fence).");
+    out.println ("geofence rectangle|ellipse <lat> <lon> <a_m> <b_m> <angle> - "
+      + "Only receive indications with source position inside given rectangle/ellipse (or another geo fence).");
+    out.println ("geofence clear                         - Clear Indication Geo Fences.");
     out.println ("ind_routing                            - Show Indication Routing.");
     out.println ("ind_routing_global                     - Show Indication Routing for all clients (priviliged).");
     out.println ("receive <unit|*> url                   - "
-      + "Send indications from given unit (or all units) to given URL (udp://<address:port>).");
+      + "Send indications from given unit (or all units) to given URL (udp://<address:port>, unix://<path> or shm://<name>).");
     out.println ("close <unit|*>                         - Stop sending indications from given unit (or all units).");
+    out.println ("shm_requests <name>                    - "
+      + "Create a shared-memory ring with given name through which to send requests (local clients only).");
+    out.println ("shm_requests close                     - Remove the shared-memory ring for requests.");
+    out.println ("ind_format                             - Show Indication Format.");
+    out.println ("ind_format 1                           - Send each indication in a datagram of its own (default).");
+    out.println ("ind_format 2 [<mtu> [<maxDelay_ms>]]   - "
+      + "Coalesce indications into datagrams up to mtu bytes, holding each back at most maxDelay_ms.");
     out.println ("exit                                   - Exit as client.");
   }
   
@@ -434,6 +599,162 @@ implements Runnable
     }
   }
   
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CLI ['subscribe']
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private static int parseRangeBoundary (final String string, final int max, final String what, final PrintWriter out)
+  {
+    final int value;
+    try
+    {
+      value = Integer.parseInt (string);
+    }
+    catch (NumberFormatException nfe)
+    {
+      out.println ("$$ Illegal " + what + " specification: " + string + "!");
+      return -1;
+    }
+    if (value < 0 || value > max)
+    {
+      out.println ("$$ Illegal " + what + " specification (out of [0, " + max + "] range): " + string + "!");
+      return -1;
+    }
+    return value;
+  }
+  
+  private void cli_subscribe (final String[] splitTextFromClient, final PrintWriter out)
+  {
+    if (splitTextFromClient.length == 1)
+    {
+      final List<OperationalBtpSapDB.IndicationSubscription> subscriptions
+        = this.btpSap.getDb ().getIndicationSubscriptions (this.client);
+      if (subscriptions.isEmpty ())
+        out.println ("$$ * -> ALL.");
+      else
+        for (final OperationalBtpSapDB.IndicationSubscription subscription : subscriptions)
+          out.println ("$$ " + subscription + ".");
+    }
+    else if (splitTextFromClient.length == 2 && "clear".equalsIgnoreCase (splitTextFromClient[1].trim ()))
+      this.btpSap.getDb ().clearIndicationSubscriptions (this.client);
+    else if (splitTextFromClient.length == 3 || splitTextFromClient.length == 5)
+    {
+      final int portLow = parseRangeBoundary (splitTextFromClient[1], 65535, "port", out);
+      final int portHigh = parseRangeBoundary (splitTextFromClient[2], 65535, "port", out);
+      if (portLow < 0 || portHigh < 0)
+        return;
+      if (portLow > portHigh)
+      {
+        out.println ("$$ Illegal port range specification (upper boundary is stricly smaller than lower boundary): "
+          + "[" + splitTextFromClient[1] + ", " + splitTextFromClient[2] + "]!");
+        return;
+      }
+      long tcMask = -1L;
+      if (splitTextFromClient.length == 5)
+      {
+        final int tcLow = parseRangeBoundary (splitTextFromClient[3], 63, "traffic-class", out);
+        final int tcHigh = parseRangeBoundary (splitTextFromClient[4], 63, "traffic-class", out);
+        if (tcLow < 0 || tcHigh < 0)
+          return;
+        if (tcLow > tcHigh)
+        {
+          out.println ("$$ Illegal traffic-class range specification (upper boundary is stricly smaller than lower boundary): "
+            + "[" + splitTextFromClient[3] + ", " + splitTextFromClient[4] + "]!");
+          return;
+        }
+        tcMask = (tcHigh == 63 ? -1L : (1L << (tcHigh + 1)) - 1L) & ~((1L << tcLow) - 1L);
+      }
+      this.btpSap.getDb ().addIndicationSubscription
+        (this.client, new OperationalBtpSapDB.IndicationSubscription (portLow, portHigh, tcMask));
+    }
+    else
+      out.println ("$$ Illegal parameters!");
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CLI ['geofence']
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private void cli_geofence (final String[] splitTextFromClient, final PrintWriter out)
+  {
+    if (splitTextFromClient.length == 1)
+    {
+      final List<BtpSapTypes.GnArea> areas = this.btpSap.getDb ().getIndicationGeoFences (this.client);
+      if (areas.isEmpty ())
+        out.println ("$$ * -> ALL.");
+      else
+        for (final BtpSapTypes.GnArea area : areas)
+          out.println ("$$ " + area.getAreaShape () + " [" + area.getLatitude () + ", " + area.getLongitude () + "]"
+            + " a=" + area.getDistanceA_m () + "m b=" + area.getDistanceB_m () + "m angle=" + area.getAngle_degrees () + ".");
+    }
+    else if (splitTextFromClient.length == 2 && "clear".equalsIgnoreCase (splitTextFromClient[1].trim ()))
+      this.btpSap.getDb ().clearIndicationGeoFences (this.client);
+    else if (splitTextFromClient.length == 5 || splitTextFromClient.length == 7)
+    {
+      final BtpSapTypes.GnAreaShape shape;
+      switch (splitTextFromClient[1].toLowerCase ())
+      {
+        case "circle":
+          shape = BtpSapTypes.GnAreaShape.CIRCLE;
+          break;
+        case "rectangle":
+          shape = BtpSapTypes.GnAreaShape.RECTANGLE;
+          break;
+        case "ellipse":
+          shape = BtpSapTypes.GnAreaShape.ELLIPSE;
+          break;
+        default:
+          out.println ("$$ Illegal area shape: " + splitTextFromClient[1] + "!");
+          return;
+      }
+      if ((shape == BtpSapTypes.GnAreaShape.CIRCLE) != (splitTextFromClient.length == 5))
+      {
+        out.println ("$$ Illegal parameters!");
+        return;
+      }
+      final double latitude;
+      final double longitude;
+      try
+      {
+        latitude = Double.parseDouble (splitTextFromClient[2]);
+        longitude = Double.parseDouble (splitTextFromClient[3]);
+      }
+      catch (NumberFormatException nfe)
+      {
+        out.println ("$$ Illegal position specification: " + splitTextFromClient[2] + " " + splitTextFromClient[3] + "!");
+        return;
+      }
+      if (! (latitude >= -90.0 && latitude <= 90.0 && longitude >= -180.0 && longitude <= 180.0))
+      {
+        out.println ("$$ Illegal position specification (out of range): "
+          + splitTextFromClient[2] + " " + splitTextFromClient[3] + "!");
+        return;
+      }
+      final int distanceA_m = parseRangeBoundary (splitTextFromClient[4], 65535, "distance", out);
+      final int distanceB_m = (shape == BtpSapTypes.GnAreaShape.CIRCLE
+        ? distanceA_m
+        : parseRangeBoundary (splitTextFromClient[5], 65535, "distance", out));
+      final int angle_degrees = (shape == BtpSapTypes.GnAreaShape.CIRCLE
+        ? 0
+        : parseRangeBoundary (splitTextFromClient[6], 359, "angle", out));
+      if (distanceA_m < 0 || distanceB_m < 0 || angle_degrees < 0)
+        return;
+      if (distanceA_m == 0 || distanceB_m == 0)
+      {
+        out.println ("$$ Illegal distance specification (zero)!");
+        return;
+      }
+      this.btpSap.getDb ().addIndicationGeoFence (this.client,
+        new BtpSapTypes.DefaultGnArea (shape, latitude, longitude, distanceA_m, distanceB_m, angle_degrees));
+    }
+    else
+      out.println ("$$ Illegal parameters!");
+  }
+
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   //
   // CLI ['ind_routing']
@@ -506,7 +827,8 @@ implements Runnable
     {
       final ArrayList<BtpSapServer> servers = new ArrayList<> (this.btpSap.getDb ().getServers ());
       final String unitSpecString = splitTextFromClient[1].trim ();
-      final String urlString = splitTextFromClient[2].trim ().toLowerCase ();
+      final String rawUrlString = splitTextFromClient[2].trim ();
+      final String urlString = rawUrlString.toLowerCase ();
       final BtpSapServer unit;
       if ("*".equals (unitSpecString))
         unit = null;
@@ -562,6 +884,36 @@ implements Runnable
         }
         this.btpSap.getDb ().setIndicationRouting (this.client, unit, urlString);
       }
+      else if (this.client.getHandler ().getStreamDestination (rawUrlString) != null)
+      {
+        // Stream destinations (e.g., Unix domain socket paths) are case sensitive.
+        this.btpSap.getDb ().setIndicationRouting (this.client, unit, rawUrlString);
+      }
+      else if (urlString.startsWith (ShmTnoClientProtocolHandler.URL_SCHEME))
+      {
+        // Ring names are case sensitive.
+        final ShmTnoClientProtocolHandler sharedMemoryHandler = this.client.getHandler ().getSharedMemoryHandler ();
+        if (sharedMemoryHandler == null)
+        {
+          out.println ("$$ Shared-memory transport not available!");
+          return;
+        }
+        if (! this.local)
+        {
+          out.println ("$$ Shared-memory transport only available to local clients!");
+          return;
+        }
+        try
+        {
+          sharedMemoryHandler.attachIndicationRing (this.client, rawUrlString, ShmTnoRing.DEFAULT_CAPACITY);
+        }
+        catch (IOException | IllegalArgumentException e)
+        {
+          out.println ("$$ Cannot create shared-memory ring for url: " + rawUrlString + "!");
+          return;
+        }
+        this.btpSap.getDb ().setIndicationRouting (this.client, unit, rawUrlString);
+      }
       else
       {
         out.println ("$$ Illegal url: " + urlString + "!");
@@ -615,6 +967,127 @@ implements Runnable
       out.println ("$$ Illegal number of parameters (requires 1)!");
   }
   
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CLI ['shm_requests']
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private void cli_shm_requests (final String[] splitTextFromClient, final PrintWriter out)
+  {
+    if (splitTextFromClient.length == 2)
+    {
+      final ShmTnoClientProtocolHandler sharedMemoryHandler = this.client.getHandler ().getSharedMemoryHandler ();
+      if (sharedMemoryHandler == null)
+      {
+        out.println ("$$ Shared-memory transport not available!");
+        return;
+      }
+      final String nameString = splitTextFromClient[1].trim ();
+      if ("close".equals (nameString))
+      {
+        sharedMemoryHandler.detachRequestRing (this.client);
+        return;
+      }
+      if (! this.local)
+      {
+        out.println ("$$ Shared-memory transport only available to local clients!");
+        return;
+      }
+      try
+      {
+        sharedMemoryHandler.attachRequestRing (this.client, nameString, ShmTnoRing.DEFAULT_CAPACITY);
+      }
+      catch (IOException | IllegalArgumentException e)
+      {
+        out.println ("$$ Cannot create shared-memory ring with name: " + nameString + "!");
+      }
+    }
+    else
+      out.println ("$$ Illegal number of parameters (requires 1)!");
+  }
+  
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CLI ['ind_format']
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private void cli_ind_format (final String[] splitTextFromClient, final PrintWriter out)
+  {
+    if (splitTextFromClient.length == 1)
+    {
+      final UdpTnoIndicationEgress.Coalescing coalescing = this.client.getIndicationCoalescing ();
+      if (coalescing == null)
+        out.println ("$$ version 1.");
+      else
+        out.println ("$$ version 2: " + coalescing + ".");
+      return;
+    }
+    if (splitTextFromClient.length > 4)
+    {
+      out.println ("$$ Illegal number of parameters (requires 1 to 3)!");
+      return;
+    }
+    final String versionString = splitTextFromClient[1].trim ();
+    if ("1".equals (versionString))
+    {
+      if (splitTextFromClient.length != 2)
+      {
+        out.println ("$$ Illegal number of parameters (version 1 requires none)!");
+        return;
+      }
+      this.client.setIndicationCoalescing (null);
+      return;
+    }
+    if (! "2".equals (versionString))
+    {
+      out.println ("$$ Illegal or unsupported indication-format version: " + versionString + "!");
+      return;
+    }
+    int mtu = UdpTnoIndicationEgress.DEFAULT_COALESCING_MTU;
+    long maxDelay_ms = UdpTnoIndicationEgress.DEFAULT_COALESCING_MAX_DELAY_MS;
+    if (splitTextFromClient.length >= 3)
+    {
+      final String mtuString = splitTextFromClient[2].trim ();
+      try
+      {
+        mtu = Integer.parseInt (mtuString);
+      }
+      catch (NumberFormatException nfe)
+      {
+        out.println ("$$ Illegal mtu specification: " + mtuString + "!");
+        return;
+      }
+      if (mtu < UdpTnoIndicationEgress.MIN_COALESCING_MTU || mtu > UdpTnoIndicationEgress.MAX_DATAGRAM_SIZE)
+      {
+        out.println ("$$ Illegal mtu (out of [" + UdpTnoIndicationEgress.MIN_COALESCING_MTU
+          + ", " + UdpTnoIndicationEgress.MAX_DATAGRAM_SIZE + "] range): " + mtu + "!");
+        return;
+      }
+    }
+    if (splitTextFromClient.length == 4)
+    {
+      final String maxDelayString = splitTextFromClient[3].trim ();
+      try
+      {
+        maxDelay_ms = Long.parseLong (maxDelayString);
+      }
+      catch (NumberFormatException nfe)
+      {
+        out.println ("$$ Illegal maximum-delay specification: " + maxDelayString + "!");
+        return;
+      }
+      if (maxDelay_ms < 0 || maxDelay_ms > UdpTnoIndicationEgress.MAX_COALESCING_MAX_DELAY_MS)
+      {
+        out.println ("$$ Illegal maximum delay (out of [0, " + UdpTnoIndicationEgress.MAX_COALESCING_MAX_DELAY_MS
+          + "] range): " + maxDelay_ms + "!");
+        return;
+      }
+    }
+    this.client.setIndicationCoalescing (new UdpTnoIndicationEgress.Coalescing (mtu, maxDelay_ms));
+  }
+  
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   //
   // CLI ['exit']
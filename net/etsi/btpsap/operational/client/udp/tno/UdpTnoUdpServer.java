@@ -22,6 +22,9 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import net.etsi.btpsap.operational.events.EventRing;
+import net.etsi.btpsap.operational.events.EventType;
+import net.etsi.btpsap.operational.metrics.DropReason;
 
 /**
  *
@@ -40,6 +43,8 @@ implements Runnable
   
   private static final Logger LOG = Logger.getLogger (UdpTnoUdpServer.class.getName ());
 
+  private static final EventRing EVENTS = EventRing.getDefault ();
+
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   //
   // CONSTRUCTOR(S) / FACTORIES / CLONING
@@ -85,7 +90,7 @@ implements Runnable
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
   private DatagramSocket serverSocket = null;
-  
+
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   //
   // THREAD
@@ -128,6 +133,8 @@ implements Runnable
       try
       {
         this.serverSocket = new DatagramSocket (this);
+        if (this.handler.getSocketReceiveBufferSize () > 0)
+          this.serverSocket.setReceiveBufferSize (this.handler.getSocketReceiveBufferSize ());
       }
       catch (IOException ioe)
       {
@@ -137,15 +144,35 @@ implements Runnable
       }
     }
     LOG.log (Level.INFO, "UdpTnoUdpServer.run on {0}: Bound!", this);
+    // Used to discard datagrams when no receive buffer is available; we never wait for buffers,
+    // lest requests retained further down the pipeline (e.g., for a slow server) stall ingress altogether.
+    final DatagramPacket discardPacket = new DatagramPacket (new byte[this.handler.getRxBufferPool ().getBufferSize ()], 0);
     while (! Thread.interrupted ())
     {
+      final UdpTnoRxBuffer rxBuffer = this.handler.getRxBufferPool ().tryAcquire ();
+      if (rxBuffer == null)
+      {
+        try
+        {
+          discardPacket.setLength (discardPacket.getData ().length);
+          this.serverSocket.receive (discardPacket);
+          this.handler.getMetrics ().drop (DropReason.NO_BUFFER);
+          EVENTS.publish (LOG, EventType.NO_BUFFER, this, null, "datagram", 0L);
+        }
+        catch (IOException ioe)
+        {
+          if (Thread.interrupted ())
+            break;
+          this.handler.getMetrics ().drop (DropReason.SOCKET_ERROR);
+          EVENTS.publish (LOG, EventType.SOCKET_ERROR, this, null, ioe.getMessage (), 0L);
+        }
+        continue;
+      }
       try
       {
-        byte[] buffer = new byte[4096];
-        DatagramPacket packet = new DatagramPacket (buffer, buffer.length);
-        this.serverSocket.receive (packet);
-        LOG.log (Level.INFO, "UdpTnoUdpServer.run on {0}: Received packet.");
-        this.handler.udpPacket (packet);
+        this.serverSocket.receive (rxBuffer.getPacket ());
+        EVENTS.publish (LOG, EventType.PACKET_RECEIVED, this, rxBuffer.getPacket ().getLength ());
+        this.handler.udpPacket (rxBuffer);
       }
       catch (IOException ioe)
       {
@@ -153,10 +180,15 @@ implements Runnable
           break;
         else
         {
-          LOG.log (Level.WARNING, "UdpTnoUdpServer.run on {0}: IOException (proceeding): {1}.",
-            new Object[]{this, ioe.getMessage ()});
+          this.handler.getMetrics ().drop (DropReason.SOCKET_ERROR);
+          EVENTS.publish (LOG, EventType.SOCKET_ERROR, this, null, ioe.getMessage (), 0L);
         }
       }
+      finally
+      {
+        // Returns the buffer to the pool, unless it was retained further down the request pipeline.
+        rxBuffer.release ();
+      }
     }
     LOG.log (Level.INFO, "UdpTnoUdpServer.run on {0}: Termination!", this);
     shutdown ();
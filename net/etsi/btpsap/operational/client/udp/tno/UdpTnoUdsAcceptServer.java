@@ -0,0 +1,191 @@
+/*
+ * Copyright 2016 Jan de Jongh, TNO.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.etsi.btpsap.operational.client.udp.tno;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** Accepts (CLI) control connections of local clients on a Unix domain socket.
+ *
+ * <p>
+ * The counterpart of {@link UdpTnoTcpAcceptServer}; each accepted connection becomes a {@link UdpTnoClient}
+ * with its own {@link UdpTnoTcpClientServer}.
+ * A stale socket file at the path is removed before binding, and the socket file is removed upon shutdown.
+ *
+ */
+public class UdpTnoUdsAcceptServer
+implements Runnable
+{
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // LOG
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private static final Logger LOG = Logger.getLogger (UdpTnoUdsAcceptServer.class.getName ());
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTRUCTOR(S) / FACTORIES / CLONING
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  public UdpTnoUdsAcceptServer (final Path path, final UdpTnoUdsClientProtocolHandler handler)
+  {
+    if (path == null || handler == null)
+      throw new IllegalArgumentException ();
+    this.path = path;
+    this.handler = handler;
+  }
+
+  private final Path path;
+
+  @Override
+  public String toString ()
+  {
+    return "UdpTnoUdsAcceptServer[" + this.path + "]";
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // (PROTOCOL) HANDLER
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final UdpTnoUdsClientProtocolHandler handler;
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // SERVER CHANNEL
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private ServerSocketChannel serverChannel = null;
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // THREAD
+  //
+  // shutdown
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private Thread thread = null;
+
+  public final synchronized void shutdown ()
+  {
+    LOG.log (Level.INFO, "UdpTnoUdsAcceptServer.shutdown on {0}.", this);
+    if (this.thread != null && this.thread.isAlive () && this.thread != Thread.currentThread ())
+    {
+      this.thread.interrupt ();
+    }
+    if (this.serverChannel != null)
+      try
+      {
+        this.serverChannel.close ();
+        Files.deleteIfExists (this.path);
+        LOG.log (Level.INFO, "UdpTnoUdsAcceptServer.shutdown on {0}: Server channel closed!", this);
+      }
+      catch (IOException ioe)
+      {
+        LOG.log (Level.WARNING, "UdpTnoUdsAcceptServer.shutdown on {0}: IOException during server-channel close: {1}.",
+          new Object[]{this, ioe.getMessage ()});
+      }
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // Runnable
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  @Override
+  public final void run ()
+  {
+    LOG.log (Level.INFO, "UdpTnoUdsAcceptServer.run on {0}: Starting!", this);
+    synchronized (this)
+    {
+      if (this.thread != null)
+        throw new RuntimeException ();
+      this.thread = Thread.currentThread ();
+      try
+      {
+        Files.deleteIfExists (this.path);
+        this.serverChannel = ServerSocketChannel.open (StandardProtocolFamily.UNIX);
+        this.serverChannel.bind (UnixDomainSocketAddress.of (this.path));
+      }
+      catch (IOException ioe)
+      {
+        LOG.log (Level.WARNING, "UdpTnoUdsAcceptServer.run on {0}: Cannot bind; terminating!", this);
+        shutdown ();
+        return;
+      }
+    }
+    LOG.log (Level.INFO, "UdpTnoUdsAcceptServer.run on {0}: Bound!", this);
+    while (! Thread.interrupted ())
+    {
+      try
+      {
+        final SocketChannel clientChannel = this.serverChannel.accept ();
+        LOG.log (Level.INFO, "UdpTnoUdsAcceptServer.run on {0}: New client: {1}.", new Object[]{this, clientChannel});
+        if (! this.handler.newClient (clientChannel))
+        {
+          try
+          {
+            clientChannel.write (ByteBuffer.wrap ("client -1\n$$ Closing!\n".getBytes (StandardCharsets.US_ASCII)));
+          }
+          catch (IOException ioe)
+          {
+            LOG.log (Level.SEVERE, "Caught IOException while waving goodbye to client {0}: {1}",
+              new Object[]{clientChannel, ioe.getMessage ()});
+          }
+          try
+          {
+            clientChannel.close ();
+          }
+          catch (IOException ioe)
+          {
+            LOG.log (Level.SEVERE, "Caught IOException while waving goodbye through channel-close to client {0}: {1}",
+              new Object[]{clientChannel, ioe.getMessage ()});
+          }
+        }
+      }
+      catch (IOException ioe)
+      {
+        if (Thread.interrupted () || ! this.serverChannel.isOpen ())
+          break;
+        else
+        {
+          LOG.log (Level.WARNING, "UdpTnoUdsAcceptServer.run on {0}: IOException (proceeding): {1}.",
+            new Object[]{this, ioe.getMessage ()});
+        }
+      }
+    }
+    LOG.log (Level.INFO, "UdpTnoUdsAcceptServer.run on {0}: Termination!", this);
+    shutdown ();
+  }
+
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2016 Jan de Jongh, TNO.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.etsi.btpsap.operational.client.udp.tno;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import net.etsi.btpsap.operational.OperationalBtpSap;
+
+/** A BTP/UDP[TNO] protocol handler for local clients, serving the control CLI and the data plane on Unix domain sockets.
+ *
+ * <p>
+ * Clients connect to the control socket for the CLI (as with TCP), and send their request datagrams
+ * over (one or more) connections to the data socket, each datagram preceded by its length (32-bit, big endian);
+ * see {@link UdpTnoUdsServer}.
+ * Indications are sent likewise to {@code unix://<path>} routes, on a connection made to the client's socket at path.
+ * No IP sockets are bound.
+ *
+ * <p>
+ * Unix domain socket channels require Java 16; this class, {@link UdpTnoUdsAcceptServer} and {@link UdpTnoUdsServer}
+ * are the only classes of the handler that do, and are only loaded when a handler of this type is created.
+ *
+ */
+public class UdpTnoUdsClientProtocolHandler
+extends UdpTnoClientProtocolHandler
+{
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTRUCTOR(S) / CLONING / FACTORY
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** Creates the handler.
+   *
+   * @param btpSap            The BTP SAP, non-{@code null}.
+   * @param controlSocketPath The path of the control (CLI) socket, non-{@code null}.
+   * @param dataSocketPath    The path of the data (request) socket, non-{@code null}.
+   *
+   */
+  public UdpTnoUdsClientProtocolHandler (final OperationalBtpSap btpSap, final Path controlSocketPath, final Path dataSocketPath)
+  {
+    super ("BTP/UDS[TNO][control:" + controlSocketPath + ", data:" + dataSocketPath + "]", btpSap, -1, -1);
+    if (controlSocketPath == null || dataSocketPath == null)
+      throw new IllegalArgumentException ();
+    this.controlSocketPath = controlSocketPath;
+    this.dataSocketPath = dataSocketPath;
+    getIndicationEgress ().setStreamChannelFactory (new UdpTnoIndicationEgress.StreamChannelFactory ()
+    {
+      @Override
+      public SocketChannel openStreamChannel (final SocketAddress destination) throws IOException
+      {
+        return SocketChannel.open (StandardProtocolFamily.UNIX);
+      }
+    });
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // UNIX DOMAIN SOCKET PATHS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** The URL scheme (prefix) of indication routes to Unix domain sockets.
+   *
+   */
+  public final static String UNIX_URL_SCHEME = "unix://";
+
+  private final Path controlSocketPath;
+
+  private final Path dataSocketPath;
+
+  private final AtomicLong connectionCount = new AtomicLong ();
+
+  private String newClientName ()
+  {
+    return "uds:" + this.controlSocketPath + "#" + this.connectionCount.incrementAndGet ();
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // TRANSPORT
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  @Override
+  public final boolean isUnixDomain ()
+  {
+    return true;
+  }
+
+  @Override
+  protected final SocketAddress getControlAddress ()
+  {
+    return UnixDomainSocketAddress.of (this.controlSocketPath);
+  }
+
+  /** Removes a stale socket file at the control path, and opens a Unix domain socket server channel.
+   *
+   */
+  @Override
+  protected final ServerSocketChannel openControlChannel (final SocketAddress address) throws IOException
+  {
+    Files.deleteIfExists (this.controlSocketPath);
+    return ServerSocketChannel.open (StandardProtocolFamily.UNIX);
+  }
+
+  /** Removes the socket file at the control path.
+   *
+   */
+  @Override
+  protected final void releaseControlAddress (final SocketAddress address) throws IOException
+  {
+    Files.deleteIfExists (this.controlSocketPath);
+  }
+
+  @Override
+  protected final String getClientName (final UdpTnoNioCliServer.Session session)
+  {
+    return newClientName ();
+  }
+
+  /** Returns the Unix domain socket address of a {@code unix://<path>} URL.
+   *
+   */
+  @Override
+  protected final SocketAddress getStreamDestination (final String url)
+  {
+    if (url == null || ! url.regionMatches (true, 0, UNIX_URL_SCHEME, 0, UNIX_URL_SCHEME.length ()))
+      return null;
+    // Paths are case sensitive.
+    final String pathString = url.substring (UNIX_URL_SCHEME.length ());
+    if (pathString.isEmpty ())
+      return null;
+    try
+    {
+      return UnixDomainSocketAddress.of (pathString);
+    }
+    catch (InvalidPathException ipe)
+    {
+      return null;
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // SERVERS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private UdpTnoUdsAcceptServer udsAcceptServer = null;
+
+  private UdpTnoUdsServer udsServer = null;
+
+  @Override
+  protected final void startThreadedControlServer ()
+  {
+    this.udsAcceptServer = new UdpTnoUdsAcceptServer (this.controlSocketPath, this);
+    new Thread (this.udsAcceptServer).start ();
+  }
+
+  @Override
+  protected final boolean isControlServerActive ()
+  {
+    return super.isControlServerActive () || this.udsAcceptServer != null;
+  }
+
+  @Override
+  protected final void startDataServer ()
+  {
+    if (this.udsServer == null)
+    {
+      this.udsServer = new UdpTnoUdsServer (this.dataSocketPath, this);
+      new Thread (this.udsServer, this.udsServer.toString ()).start ();
+    }
+  }
+
+  @Override
+  protected final void stopServers ()
+  {
+    super.stopServers ();
+    if (this.udsAcceptServer != null)
+    {
+      this.udsAcceptServer.shutdown ();
+      this.udsAcceptServer = null;
+    }
+    if (this.udsServer != null)
+    {
+      this.udsServer.shutdown ();
+      this.udsServer = null;
+    }
+  }
+
+  final boolean newClient (final SocketChannel clientChannel)
+  {
+    return newClient (clientChannel, newClientName ());
+  }
+
+}
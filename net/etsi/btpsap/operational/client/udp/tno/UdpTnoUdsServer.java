@@ -0,0 +1,369 @@
+/*
+ * Copyright 2016 Jan de Jongh, TNO.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.etsi.btpsap.operational.client.udp.tno;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.etsi.btpsap.operational.events.EventRing;
+import net.etsi.btpsap.operational.events.EventType;
+import net.etsi.btpsap.operational.metrics.DropReason;
+
+/** Receives request datagrams from local clients over stream connections on a Unix domain socket.
+ *
+ * <p>
+ * The counterpart of {@link UdpTnoUdpServer}.
+ * Since the platform offers Unix domain sockets of the stream type only, each datagram on a connection
+ * is preceded by its length (32-bit, big endian); the datagrams themselves are unchanged
+ * (version 1 or version 2 request datagrams).
+ * A connection carrying an illegal length is closed, as its framing is lost.
+ *
+ * <p>
+ * All connections are served by a single thread through a selector, reading straight into pooled receive buffers.
+ * The thread never waits for a buffer: while the pool is exhausted, a connection with a datagram pending
+ * is not read from (leaving the datagram in its socket, and pushing back on its client) until a buffer is released.
+ *
+ */
+public class UdpTnoUdsServer
+implements Runnable
+{
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // LOG
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private static final Logger LOG = Logger.getLogger (UdpTnoUdsServer.class.getName ());
+
+  private static final EventRing EVENTS = EventRing.getDefault ();
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTRUCTOR(S) / FACTORIES / CLONING
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  public UdpTnoUdsServer (final Path path, final UdpTnoClientProtocolHandler handler)
+  {
+    if (path == null || handler == null)
+      throw new IllegalArgumentException ();
+    this.path = path;
+    this.handler = handler;
+  }
+
+  private final Path path;
+
+  @Override
+  public String toString ()
+  {
+    return "UdpTnoUdsServer[" + this.path + "]";
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // (PROTOCOL) HANDLER
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final UdpTnoClientProtocolHandler handler;
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // SERVER CHANNEL / SELECTOR
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private ServerSocketChannel serverChannel = null;
+
+  private Selector selector = null;
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // STALLED CONNECTIONS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** The interval at which reading from connections stalled on an exhausted buffer pool is retried.
+   *
+   */
+  private final static long STALL_RETRY_MS = 1L;
+
+  // The keys of connections not read from for lack of a receive buffer; only accessed by the selector thread.
+  private final List<SelectionKey> stalled = new ArrayList<> ();
+
+  private void stall (final SelectionKey key)
+  {
+    key.interestOps (0);
+    this.stalled.add (key);
+  }
+
+  /** Resumes reading from stalled connections, if a receive buffer is available.
+   *
+   */
+  private void resumeStalled ()
+  {
+    if (this.stalled.isEmpty () || this.handler.getRxBufferPool ().getAvailable () == 0)
+      return;
+    for (final SelectionKey key : this.stalled)
+      if (key.isValid ())
+        key.interestOps (SelectionKey.OP_READ);
+    this.stalled.clear ();
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CONNECTION
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** The framing state of a single connection.
+   *
+   */
+  private static final class Connection
+  {
+
+    private final ByteBuffer lengthBuffer = ByteBuffer.allocate (4);
+
+    private UdpTnoRxBuffer rxBuffer = null;
+
+    private int frameLength = -1;
+
+    private void reset ()
+    {
+      if (this.rxBuffer != null)
+        this.rxBuffer.release ();
+      this.rxBuffer = null;
+      this.frameLength = -1;
+      this.lengthBuffer.clear ();
+    }
+
+  }
+
+  private void close (final SelectionKey key)
+  {
+    ((Connection) key.attachment ()).reset ();
+    key.cancel ();
+    try
+    {
+      key.channel ().close ();
+    }
+    catch (IOException ioe)
+    {
+      // Ignore.
+    }
+  }
+
+  /** Reads as much as available from a connection, handing every complete datagram to the handler.
+   *
+   * <p>
+   * Stalls the connection if no receive buffer is available for its next datagram.
+   *
+   * @return Whether the connection is still open.
+   *
+   */
+  private boolean read (final SelectionKey key) throws IOException
+  {
+    final SocketChannel channel = (SocketChannel) key.channel ();
+    final Connection connection = (Connection) key.attachment ();
+    final UdpTnoRxBufferPool pool = this.handler.getRxBufferPool ();
+    while (true)
+    {
+      if (connection.frameLength < 0)
+      {
+        if (channel.read (connection.lengthBuffer) < 0)
+          return false;
+        if (connection.lengthBuffer.hasRemaining ())
+          return true;
+        final int frameLength = connection.lengthBuffer.getInt (0);
+        if (frameLength <= 0 || frameLength > pool.getBufferSize ())
+        {
+          this.handler.getMetrics ().drop (DropReason.DECODE_ERROR);
+          EVENTS.publish (LOG, EventType.DECODE_ERROR, this, null, "Illegal frame length " + frameLength, 0L);
+          return false;
+        }
+        connection.frameLength = frameLength;
+      }
+      if (connection.rxBuffer == null)
+      {
+        connection.rxBuffer = pool.tryAcquire ();
+        if (connection.rxBuffer == null)
+        {
+          stall (key);
+          return true;
+        }
+        connection.rxBuffer.getByteBuffer ().limit (connection.frameLength);
+      }
+      final ByteBuffer byteBuffer = connection.rxBuffer.getByteBuffer ();
+      if (channel.read (byteBuffer) < 0)
+        return false;
+      if (byteBuffer.hasRemaining ())
+        return true;
+      final UdpTnoRxBuffer rxBuffer = connection.rxBuffer;
+      connection.rxBuffer = null;
+      connection.reset ();
+      try
+      {
+        rxBuffer.getPacket ().setLength (byteBuffer.position ());
+        EVENTS.publish (LOG, EventType.PACKET_RECEIVED, this, byteBuffer.position ());
+        this.handler.udpPacket (rxBuffer);
+      }
+      finally
+      {
+        // Returns the buffer to the pool, unless it was retained further down the request pipeline.
+        rxBuffer.release ();
+      }
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // THREAD
+  //
+  // shutdown
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private Thread thread = null;
+
+  public final synchronized void shutdown ()
+  {
+    LOG.log (Level.INFO, "UdpTnoUdsServer.shutdown on {0}.", this);
+    if (this.thread != null && this.thread.isAlive () && this.thread != Thread.currentThread ())
+    {
+      this.thread.interrupt ();
+    }
+    if (this.serverChannel != null)
+      try
+      {
+        this.serverChannel.close ();
+        Files.deleteIfExists (this.path);
+        LOG.log (Level.INFO, "UdpTnoUdsServer.shutdown on {0}: Server channel closed!", this);
+      }
+      catch (IOException ioe)
+      {
+        LOG.log (Level.WARNING, "UdpTnoUdsServer.shutdown on {0}: IOException during server-channel close: {1}.",
+          new Object[]{this, ioe.getMessage ()});
+      }
+    if (this.selector != null)
+      this.selector.wakeup ();
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // Runnable
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  @Override
+  public final void run ()
+  {
+    LOG.log (Level.INFO, "UdpTnoUdsServer.run on {0}: Starting!", this);
+    synchronized (this)
+    {
+      if (this.thread != null)
+        throw new RuntimeException ();
+      this.thread = Thread.currentThread ();
+      try
+      {
+        Files.deleteIfExists (this.path);
+        this.selector = Selector.open ();
+        this.serverChannel = ServerSocketChannel.open (StandardProtocolFamily.UNIX);
+        this.serverChannel.bind (UnixDomainSocketAddress.of (this.path));
+        this.serverChannel.configureBlocking (false);
+        this.serverChannel.register (this.selector, SelectionKey.OP_ACCEPT);
+      }
+      catch (IOException ioe)
+      {
+        LOG.log (Level.WARNING, "UdpTnoUdsServer.run on {0}: Cannot bind; terminating!", this);
+        shutdown ();
+        return;
+      }
+    }
+    LOG.log (Level.INFO, "UdpTnoUdsServer.run on {0}: Bound!", this);
+    try
+    {
+      while (! Thread.currentThread ().isInterrupted () && this.serverChannel.isOpen ())
+      {
+        this.selector.select (this.stalled.isEmpty () ? 0L : UdpTnoUdsServer.STALL_RETRY_MS);
+        final Iterator<SelectionKey> keys = this.selector.selectedKeys ().iterator ();
+        while (keys.hasNext ())
+        {
+          final SelectionKey key = keys.next ();
+          keys.remove ();
+          if (! key.isValid ())
+            continue;
+          if (key.isAcceptable ())
+          {
+            final SocketChannel channel = this.serverChannel.accept ();
+            if (channel != null)
+            {
+              channel.configureBlocking (false);
+              channel.register (this.selector, SelectionKey.OP_READ, new Connection ());
+            }
+          }
+          else if (key.isReadable ())
+            try
+            {
+              if (! read (key))
+                close (key);
+            }
+            catch (IOException ioe)
+            {
+              this.handler.getMetrics ().drop (DropReason.SOCKET_ERROR);
+              EVENTS.publish (LOG, EventType.SOCKET_ERROR, this, null, ioe.getMessage (), 0L);
+              close (key);
+            }
+        }
+        resumeStalled ();
+      }
+    }
+    catch (IOException ioe)
+    {
+      if (this.serverChannel.isOpen ())
+        LOG.log (Level.WARNING, "UdpTnoUdsServer.run on {0}: IOException: {1}.", new Object[]{this, ioe.getMessage ()});
+    }
+    finally
+    {
+      for (final SelectionKey key : this.selector.keys ())
+        if (key.attachment () != null)
+          close (key);
+      try
+      {
+        this.selector.close ();
+      }
+      catch (IOException ioe)
+      {
+        // Ignore.
+      }
+    }
+    LOG.log (Level.INFO, "UdpTnoUdsServer.run on {0}: Termination!", this);
+    shutdown ();
+  }
+
+}
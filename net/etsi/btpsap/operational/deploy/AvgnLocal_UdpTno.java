@@ -124,6 +124,8 @@ public class AvgnLocal_UdpTno
 //    });
     sch1Server.setName (sch1Server.getName () + "[SCH1]");
     operationalBtpSapServer.registerServer (sch1Server);
+    // CCH and SCH1 often receive the same GN packet; use the line below to deliver it only once to clients receiving from both.
+//    operationalBtpSapServer.setIndicationDedupWindow_ms (1000L);
     final boolean headless = true;
     if (headless)
     {
@@ -0,0 +1,460 @@
+/*
+ * Copyright 2016 Jan de Jongh, TNO.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package net.etsi.btpsap.operational.events;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/** A preallocated, lock-free ring buffer of data-path events, drained asynchronously to {@code java.util.logging}.
+ *
+ * <p>
+ * Publishing an event never blocks and never allocates:
+ * it claims a preallocated slot, fills in its fields, and publishes the slot.
+ * If the ring is full, the event is dropped (and counted).
+ * Events are subject to a per-{@link EventType} rate limit (events per second);
+ * events exceeding it are suppressed (and counted, and reported periodically).
+ *
+ * <p>
+ * A single (daemon) drain thread takes events from the ring and logs them on the {@link Logger} they were published with.
+ * Event arguments are retained until drained; they must therefore not be mutable (e.g., pooled) objects.
+ *
+ */
+public final class EventRing
+{
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // LOG
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private static final Logger LOG = Logger.getLogger (EventRing.class.getName ());
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTRUCTOR(S) / CLONING / FACTORY
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  public EventRing (final String name, final int capacity)
+  {
+    if (capacity <= 0 || Integer.bitCount (capacity) != 1)
+      throw new IllegalArgumentException ();
+    this.name = name;
+    this.mask = capacity - 1;
+    this.slots = new Event[capacity];
+    for (int s = 0; s < capacity; s++)
+      this.slots[s] = new Event (s);
+    final int numberOfTypes = EventType.values ().length;
+    this.rateLimits = new AtomicLongArray (numberOfTypes);
+    for (int t = 0; t < numberOfTypes; t++)
+      this.rateLimits.set (t, EventRing.DEFAULT_RATE_LIMIT);
+    this.rateWindows = new AtomicLongArray (numberOfTypes);
+    this.rateCounts = new AtomicLongArray (numberOfTypes);
+    this.suppressed = new AtomicLongArray (numberOfTypes);
+  }
+
+  private final String name;
+
+  @Override
+  public String toString ()
+  {
+    return "EventRing[" + this.name + "]";
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // DEFAULT INSTANCE
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  public final static int DEFAULT_CAPACITY = 8192;
+
+  private static final class DefaultHolder
+  {
+
+    private static final EventRing INSTANCE = new EventRing ("default", EventRing.DEFAULT_CAPACITY);
+
+    static
+    {
+      INSTANCE.start ();
+    }
+
+  }
+
+  /** Returns the (started) event ring shared by all data paths in this JVM.
+   *
+   * @return The default event ring.
+   *
+   */
+  public static EventRing getDefault ()
+  {
+    return DefaultHolder.INSTANCE;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // EVENT (SLOT)
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private static final class Event
+  {
+
+    private Event (final long sequence)
+    {
+      this.sequence = sequence;
+    }
+
+    /** The sequence number of the slot; equals the claim position if free, and that position plus one if published.
+     *
+     */
+    private volatile long sequence;
+
+    private EventType type;
+
+    private Logger logger;
+
+    private Object source;
+
+    private Object argument;
+
+    private Object detail;
+
+    private long value;
+
+    private long timeMillis;
+
+    private void clear ()
+    {
+      this.type = null;
+      this.logger = null;
+      this.source = null;
+      this.argument = null;
+      this.detail = null;
+    }
+
+  }
+
+  private final Event[] slots;
+
+  private final int mask;
+
+  public final int getCapacity ()
+  {
+    return this.slots.length;
+  }
+
+  private final AtomicLong tail = new AtomicLong ();
+
+  private long head = 0L;
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // RATE LIMITING
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  public final static long DEFAULT_RATE_LIMIT = 100L;
+
+  private final AtomicLongArray rateLimits;
+
+  private final AtomicLongArray rateWindows;
+
+  private final AtomicLongArray rateCounts;
+
+  private final AtomicLongArray suppressed;
+
+  public final long getRateLimit (final EventType type)
+  {
+    return this.rateLimits.get (type.ordinal ());
+  }
+
+  /** Sets the maximum number of events of given type published per second.
+   *
+   * @param type            The event type, non-{@code null}.
+   * @param eventsPerSecond The rate limit, zero to suppress all events of the type, {@link Long#MAX_VALUE} for no limit.
+   *
+   */
+  public final void setRateLimit (final EventType type, final long eventsPerSecond)
+  {
+    if (type == null || eventsPerSecond < 0)
+      throw new IllegalArgumentException ();
+    this.rateLimits.set (type.ordinal (), eventsPerSecond);
+  }
+
+  private boolean admit (final int t, final long timeMillis)
+  {
+    final long window = timeMillis / 1000L;
+    final long currentWindow = this.rateWindows.get (t);
+    if (window != currentWindow && this.rateWindows.compareAndSet (t, currentWindow, window))
+      this.rateCounts.set (t, 0L);
+    if (this.rateCounts.incrementAndGet (t) <= this.rateLimits.get (t))
+      return true;
+    this.suppressed.incrementAndGet (t);
+    this.suppressedCount.incrementAndGet ();
+    return false;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // COUNTERS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final AtomicLong publishedCount = new AtomicLong ();
+
+  public final long getPublishedCount ()
+  {
+    return this.publishedCount.get ();
+  }
+
+  private final AtomicLong suppressedCount = new AtomicLong ();
+
+  /** Returns the number of events suppressed because of rate limiting.
+   *
+   * @return The number of suppressed events.
+   *
+   */
+  public final long getSuppressedCount ()
+  {
+    return this.suppressedCount.get ();
+  }
+
+  private final AtomicLong overrunCount = new AtomicLong ();
+
+  /** Returns the number of events dropped because the ring was full.
+   *
+   * @return The number of dropped events.
+   *
+   */
+  public final long getOverrunCount ()
+  {
+    return this.overrunCount.get ();
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLISH
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** Checks whether events of given type would be logged at all on given logger.
+   *
+   * <p>
+   * Callers may use this to avoid computing event arguments.
+   *
+   * @param logger The logger, non-{@code null}.
+   * @param type   The event type, non-{@code null}.
+   *
+   * @return Whether the event type is loggable on the logger.
+   *
+   */
+  public static boolean isEnabled (final Logger logger, final EventType type)
+  {
+    return logger.isLoggable (type.getLevel ());
+  }
+
+  public final void publish (final Logger logger, final EventType type, final Object source, final Object argument)
+  {
+    publish (logger, type, source, argument, null, 0L);
+  }
+
+  public final void publish (final Logger logger, final EventType type, final Object source, final long value)
+  {
+    publish (logger, type, source, null, null, value);
+  }
+
+  /** Publishes an event, unless its type is not loggable on given logger, it exceeds its rate limit, or the ring is full.
+   *
+   * @param logger   The logger to (eventually) log the event on, non-{@code null}.
+   * @param type     The event type, non-{@code null}.
+   * @param source   The source of the event, typically the publishing object.
+   * @param argument The (main) argument of the event.
+   * @param detail   Additional detail of the event.
+   * @param value    The numeric value of the event.
+   *
+   * @return Whether the event was published.
+   *
+   */
+  public final boolean publish (final Logger logger, final EventType type,
+    final Object source, final Object argument, final Object detail, final long value)
+  {
+    if (! logger.isLoggable (type.getLevel ()))
+      return false;
+    final long timeMillis = System.currentTimeMillis ();
+    if (! admit (type.ordinal (), timeMillis))
+      return false;
+    Event event;
+    long position = this.tail.get ();
+    while (true)
+    {
+      event = this.slots[(int) position & this.mask];
+      final long difference = event.sequence - position;
+      if (difference == 0L)
+      {
+        if (this.tail.compareAndSet (position, position + 1))
+          break;
+        position = this.tail.get ();
+      }
+      else if (difference < 0L)
+      {
+        // The slot has not been drained yet; the ring is full.
+        this.overrunCount.incrementAndGet ();
+        return false;
+      }
+      else
+        position = this.tail.get ();
+    }
+    event.type = type;
+    event.logger = logger;
+    event.source = source;
+    event.argument = argument;
+    event.detail = detail;
+    event.value = value;
+    event.timeMillis = timeMillis;
+    event.sequence = position + 1;
+    this.publishedCount.incrementAndGet ();
+    return true;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // DRAIN
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  public final static long DRAIN_INTERVAL_MILLIS = 10L;
+
+  public final static long SUPPRESSION_REPORT_INTERVAL_MILLIS = 10000L;
+
+  private volatile boolean started = false;
+
+  private Thread drainThread = null;
+
+  public final synchronized void start ()
+  {
+    if (this.started)
+      return;
+    this.started = true;
+    this.drainThread = new Thread (new Runnable ()
+    {
+      @Override
+      public void run ()
+      {
+        EventRing.this.drainLoop ();
+      }
+    }, toString ());
+    this.drainThread.setDaemon (true);
+    this.drainThread.start ();
+  }
+
+  /** Stops the drain thread, after draining all events published so far.
+   *
+   */
+  public final synchronized void shutdown ()
+  {
+    if (! this.started)
+      return;
+    this.started = false;
+    LockSupport.unpark (this.drainThread);
+    try
+    {
+      this.drainThread.join ();
+    }
+    catch (InterruptedException ie)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+    this.drainThread = null;
+  }
+
+  private void drainLoop ()
+  {
+    long lastReportMillis = System.currentTimeMillis ();
+    while (this.started)
+    {
+      if (drain () == 0)
+        LockSupport.parkNanos (TimeUnit.MILLISECONDS.toNanos (EventRing.DRAIN_INTERVAL_MILLIS));
+      final long nowMillis = System.currentTimeMillis ();
+      if (nowMillis - lastReportMillis >= EventRing.SUPPRESSION_REPORT_INTERVAL_MILLIS)
+      {
+        reportSuppressed ();
+        lastReportMillis = nowMillis;
+      }
+    }
+    drain ();
+    reportSuppressed ();
+  }
+
+  /** Logs all events published (and not yet drained).
+   *
+   * <p>
+   * Only to be called from the drain thread.
+   *
+   * @return The number of events drained.
+   *
+   */
+  @SuppressWarnings ("deprecation")
+  private int drain ()
+  {
+    int drained = 0;
+    while (true)
+    {
+      final Event event = this.slots[(int) this.head & this.mask];
+      if (event.sequence != this.head + 1)
+        return drained;
+      final LogRecord logRecord = new LogRecord (event.type.getLevel (), event.type.getPattern ());
+      logRecord.setLoggerName (event.logger.getName ());
+      // LogRecord.setMillis is deprecated as of Java 9, but its replacement (setInstant) is not available on Java 8.
+      logRecord.setMillis (event.timeMillis);
+      logRecord.setParameters (new Object[]{event.source, event.argument, event.detail, event.value});
+      final Logger logger = event.logger;
+      event.clear ();
+      // Free the slot before logging, so producers can proceed.
+      event.sequence = this.head + this.slots.length;
+      this.head++;
+      drained++;
+      try
+      {
+        logger.log (logRecord);
+      }
+      catch (RuntimeException re)
+      {
+        // Never let a misbehaving handler kill the drain thread.
+      }
+    }
+  }
+
+  private void reportSuppressed ()
+  {
+    final EventType[] types = EventType.values ();
+    for (int t = 0; t < types.length; t++)
+    {
+      final long suppressedEvents = this.suppressed.getAndSet (t, 0L);
+      if (suppressedEvents > 0L)
+        LOG.log (Level.WARNING, "{0}: Suppressed {1} {2} event(s) (rate limit {3}/s).",
+          new Object[]{this, suppressedEvents, types[t], this.rateLimits.get (t)});
+    }
+  }
+
+}
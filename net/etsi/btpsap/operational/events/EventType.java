@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016 Jan de Jongh, TNO.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package net.etsi.btpsap.operational.events;
+
+import java.util.logging.Level;
+
+/** The types of data-path events published on an {@link EventRing}.
+ *
+ * <p>
+ * Each type has a fixed log level and a {@link java.text.MessageFormat} pattern, in which
+ * {0} is the source, {1} the argument, {2} the detail and {3} the (numeric) value of the event.
+ *
+ */
+public enum EventType
+{
+
+  PACKET_RECEIVED (Level.INFO, "{0}: Received packet ({3} bytes)."),
+  REQUEST_RECEIVED (Level.FINE, "{0}: Received data from client {3}."),
+  REQUEST (Level.INFO, "{0}: Doing request from client {1}."),
+  DECODE_ERROR (Level.WARNING, "{0}: Error decoding packet: {2}."),
+  UNREGISTERED_CLIENT_ID (Level.WARNING, "{0}: Received packet from unregistered client (number): {3}."),
+  UNKNOWN_CLIENT (Level.WARNING, "{0}: Ignoring request from unknown/unregistered client {1}!"),
+  INACTIVE (Level.WARNING, "{0}: Ignoring request from client {1}; not active!"),
+  INVALID_REQUEST (Level.WARNING, "{0}: Ignoring request from client {1} with invalid or unsupported {2}!"),
+  INDICATION_RECEIVED (Level.INFO, "{0}: Received BTP packet!"),
+  INDICATION_ENCODED (Level.FINE, "Encoded received BTP packet for clients!"),
+  NO_ROUTE (Level.WARNING, "{0}: No route for indication ({2}); dropping indication!"),
+  DUPLICATE_INDICATION (Level.FINE, "{0}: Suppressed duplicate indication for client {1}."),
+  QUEUE_FULL (Level.WARNING, "{0}: Queue full; dropping {2} for {1}!"),
+  NO_BUFFER (Level.WARNING, "{0}: Receive buffer pool exhausted; dropping {2}!"),
+  SOCKET_ERROR (Level.WARNING, "{0}: IOException (proceeding): {2}."),
+  SERVER_ERROR (Level.WARNING, "{0}: Exception from server {1} while sending request: {2}.");
+
+  private EventType (final Level level, final String pattern)
+  {
+    this.level = level;
+    this.pattern = pattern;
+  }
+
+  private final Level level;
+
+  public final Level getLevel ()
+  {
+    return this.level;
+  }
+
+  private final String pattern;
+
+  public final String getPattern ()
+  {
+    return this.pattern;
+  }
+
+}
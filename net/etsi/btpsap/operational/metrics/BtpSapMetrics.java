@@ -0,0 +1,246 @@
+/*
+ * Copyright 2016 Jan de Jongh, TNO.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package net.etsi.btpsap.operational.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import net.etsi.btpsap.operational.BtpSapEntity;
+
+/** The registry of {@link EntityMetrics} of a BTP SAP, exposed as (standard) MBeans on the platform MBean server.
+ *
+ * <p>
+ * Metrics are created on first use for each entity, and are registered with JMX under
+ * {@code net.etsi.btpsap:sap=<sap>,type=<kind>,name=<entity>}.
+ * Looking up the metrics of an entity is lock-free.
+ *
+ */
+public class BtpSapMetrics
+{
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // LOG
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private static final Logger LOG = Logger.getLogger (BtpSapMetrics.class.getName ());
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTRUCTOR(S) / CLONING / FACTORY
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  public BtpSapMetrics (final String sapName)
+  {
+    if (sapName == null)
+      throw new IllegalArgumentException ();
+    this.sapName = sapName;
+    this.sapMetrics = new EntityMetrics (EntityMetrics.Kind.SAP, sapName);
+    this.detachedMetrics = new EntityMetrics (EntityMetrics.Kind.SAP, sapName + "[detached]");
+  }
+
+  private final String sapName;
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // SAP METRICS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final EntityMetrics sapMetrics;
+
+  /** Returns the metrics of the BTP SAP as a whole.
+   *
+   * <p>
+   * These include drops that cannot be attributed to a single entity.
+   *
+   * @return The metrics of the BTP SAP.
+   *
+   */
+  public final EntityMetrics getSapMetrics ()
+  {
+    return this.sapMetrics;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // ENTITY METRICS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final ConcurrentMap<BtpSapEntity, EntityMetrics> entityMetrics = new ConcurrentHashMap<> ();
+
+  /** Returns the metrics of given entity, creating (and registering) them if needed.
+   *
+   * <p>
+   * Meant for registration of the entity with the BTP SAP; data paths use {@link #lookup} instead.
+   *
+   * @param kind   The kind of entity, non-{@code null}.
+   * @param entity The entity, non-{@code null}.
+   *
+   * @return The metrics of the entity.
+   *
+   */
+  public final EntityMetrics get (final EntityMetrics.Kind kind, final BtpSapEntity entity)
+  {
+    final EntityMetrics metrics = this.entityMetrics.get (entity);
+    if (metrics != null)
+      return metrics;
+    if (kind == null || entity == null)
+      throw new IllegalArgumentException ();
+    final EntityMetrics newMetrics = new EntityMetrics (kind, entity.getName ());
+    final EntityMetrics oldMetrics = this.entityMetrics.putIfAbsent (entity, newMetrics);
+    if (oldMetrics != null)
+      return oldMetrics;
+    registerMBean (newMetrics);
+    return newMetrics;
+  }
+
+  private final EntityMetrics detachedMetrics;
+
+  /** Returns the metrics of given entity for updating on a data path, without ever creating them.
+   *
+   * <p>
+   * For an entity without metrics (e.g., one unregistered while a request or indication was in flight),
+   * a shared sink is returned that is never registered with JMX,
+   * so neither leaked metrics nor (synchronized) MBean registration end up on the data path.
+   *
+   * @param entity The entity.
+   *
+   * @return The metrics of the entity, or the shared sink; non-{@code null}.
+   *
+   */
+  public final EntityMetrics lookup (final BtpSapEntity entity)
+  {
+    final EntityMetrics metrics = (entity != null ? this.entityMetrics.get (entity) : null);
+    return metrics != null ? metrics : this.detachedMetrics;
+  }
+
+  /** Returns the metrics of given entity, if present.
+   *
+   * @param entity The entity.
+   *
+   * @return The metrics, {@code null} if none have been created (or if they have been removed).
+   *
+   */
+  public final EntityMetrics getIfPresent (final BtpSapEntity entity)
+  {
+    return entity != null ? this.entityMetrics.get (entity) : null;
+  }
+
+  /** Removes (and unregisters) the metrics of given entity, if present.
+   *
+   * @param entity The entity.
+   *
+   */
+  public final void remove (final BtpSapEntity entity)
+  {
+    if (entity == null)
+      return;
+    final EntityMetrics metrics = this.entityMetrics.remove (entity);
+    if (metrics != null)
+      unregisterMBean (metrics);
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // JMX
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  public final static String JMX_DOMAIN = "net.etsi.btpsap";
+
+  private final ConcurrentMap<EntityMetrics, ObjectName> objectNames = new ConcurrentHashMap<> ();
+
+  private boolean jmxRegistered = false;
+
+  /** Registers all metrics (present and future) with the platform MBean server.
+   *
+   */
+  public final synchronized void registerMBeans ()
+  {
+    if (this.jmxRegistered)
+      return;
+    this.jmxRegistered = true;
+    registerMBean (this.sapMetrics);
+    for (final EntityMetrics metrics : this.entityMetrics.values ())
+      registerMBean (metrics);
+  }
+
+  /** Unregisters all metrics from the platform MBean server.
+   *
+   */
+  public final synchronized void unregisterMBeans ()
+  {
+    if (! this.jmxRegistered)
+      return;
+    this.jmxRegistered = false;
+    for (final EntityMetrics metrics : this.objectNames.keySet ())
+      unregisterMBean (metrics);
+  }
+
+  private synchronized void registerMBean (final EntityMetrics metrics)
+  {
+    if (! this.jmxRegistered || this.objectNames.containsKey (metrics))
+      return;
+    final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer ();
+    try
+    {
+      ObjectName objectName = createObjectName (metrics, 0);
+      // Entity names need not be unique; disambiguate if needed.
+      for (int n = 1; mBeanServer.isRegistered (objectName); n++)
+        objectName = createObjectName (metrics, n);
+      mBeanServer.registerMBean (metrics, objectName);
+      this.objectNames.put (metrics, objectName);
+    }
+    catch (JMException jme)
+    {
+      LOG.log (Level.WARNING, "Unable to register metrics {0} with JMX: {1}.", new Object[]{metrics, jme.getMessage ()});
+    }
+  }
+
+  private synchronized void unregisterMBean (final EntityMetrics metrics)
+  {
+    final ObjectName objectName = this.objectNames.remove (metrics);
+    if (objectName == null)
+      return;
+    try
+    {
+      ManagementFactory.getPlatformMBeanServer ().unregisterMBean (objectName);
+    }
+    catch (JMException jme)
+    {
+      LOG.log (Level.WARNING, "Unable to unregister metrics {0} from JMX: {1}.", new Object[]{metrics, jme.getMessage ()});
+    }
+  }
+
+  private ObjectName createObjectName (final EntityMetrics metrics, final int n) throws JMException
+  {
+    return new ObjectName (BtpSapMetrics.JMX_DOMAIN
+      + ":sap=" + ObjectName.quote (this.sapName)
+      + ",type=" + metrics.getKind ()
+      + ",name=" + ObjectName.quote (n == 0 ? metrics.getEntityName () : (metrics.getEntityName () + "#" + n)));
+  }
+
+}
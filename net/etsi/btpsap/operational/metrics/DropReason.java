@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 Jan de Jongh, TNO.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package net.etsi.btpsap.operational.metrics;
+
+/** The reasons for dropping requests or indications, as counted by {@link EntityMetrics}.
+ *
+ */
+public enum DropReason
+{
+  /** The (claimed) client is not registered.
+   *
+   */
+  UNKNOWN_CLIENT,
+  /** The datagram could not be decoded.
+   *
+   */
+  DECODE_ERROR,
+  /** No route (server for requests, destination for indications) was found.
+   *
+   */
+  NO_ROUTE,
+  /** Sending or receiving failed at the socket level.
+   *
+   */
+  SOCKET_ERROR,
+  /** A queue was full.
+   *
+   */
+  QUEUE_FULL,
+  /** The request exceeded its maximum lifetime before it could be sent.
+   *
+   */
+  EXPIRED,
+  /** The BTP SAP was not started (or was stopped) while the request was in flight.
+   *
+   */
+  INACTIVE,
+  /** The target server is no longer registered.
+   *
+   */
+  UNKNOWN_SERVER,
+  /** The indication was received before (possibly from another server), and was suppressed.
+   *
+   */
+  DUPLICATE,
+  /** No receive buffer was available, because all buffers of the pool were in use.
+   *
+   */
+  NO_BUFFER
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2016 Jan de Jongh, TNO.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package net.etsi.btpsap.operational.metrics;
+
+/** Request, indication and drop counters (and a queue-depth gauge) for a single entity (client, server or protocol handler),
+ *  or for the BTP SAP as a whole.
+ *
+ * <p>
+ * All counters are {@link StripedCounter}s; updating them is lock-free.
+ *
+ */
+public class EntityMetrics
+implements EntityMetricsMBean
+{
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTRUCTOR(S) / CLONING / FACTORY
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  public EntityMetrics (final Kind kind, final String entityName)
+  {
+    if (kind == null || entityName == null)
+      throw new IllegalArgumentException ();
+    this.kind = kind;
+    this.entityName = entityName;
+    this.drops = new StripedCounter[DropReason.values ().length];
+    for (int d = 0; d < this.drops.length; d++)
+      this.drops[d] = new StripedCounter ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return "EntityMetrics[" + this.kind + ":" + this.entityName + "]";
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // KIND / NAME
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** The kinds of entities for which metrics are kept.
+   *
+   */
+  public enum Kind
+  {
+    SAP,
+    CLIENT,
+    SERVER,
+    CLIENT_PROTOCOL_HANDLER,
+    SERVER_PROTOCOL_HANDLER
+  }
+
+  private final Kind kind;
+
+  @Override
+  public final String getKind ()
+  {
+    return this.kind.name ();
+  }
+
+  private final String entityName;
+
+  @Override
+  public final String getEntityName ()
+  {
+    return this.entityName;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // REQUESTS / INDICATIONS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final StripedCounter requests = new StripedCounter ();
+
+  private final StripedCounter requestBytes = new StripedCounter ();
+
+  private final StripedCounter indications = new StripedCounter ();
+
+  private final StripedCounter indicationBytes = new StripedCounter ();
+
+  public final void request (final int bytes)
+  {
+    this.requests.increment ();
+    this.requestBytes.add (bytes);
+  }
+
+  public final void indication (final int bytes)
+  {
+    this.indications.increment ();
+    this.indicationBytes.add (bytes);
+  }
+
+  @Override
+  public final long getRequests ()
+  {
+    return this.requests.sum ();
+  }
+
+  @Override
+  public final long getRequestBytes ()
+  {
+    return this.requestBytes.sum ();
+  }
+
+  @Override
+  public final long getIndications ()
+  {
+    return this.indications.sum ();
+  }
+
+  @Override
+  public final long getIndicationBytes ()
+  {
+    return this.indicationBytes.sum ();
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // DROPS
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final StripedCounter[] drops;
+
+  public final void drop (final DropReason reason)
+  {
+    this.drops[reason.ordinal ()].increment ();
+  }
+
+  public final long getDrops (final DropReason reason)
+  {
+    return this.drops[reason.ordinal ()].sum ();
+  }
+
+  @Override
+  public final long getDropsUnknownClient ()
+  {
+    return getDrops (DropReason.UNKNOWN_CLIENT);
+  }
+
+  @Override
+  public final long getDropsDecodeError ()
+  {
+    return getDrops (DropReason.DECODE_ERROR);
+  }
+
+  @Override
+  public final long getDropsNoRoute ()
+  {
+    return getDrops (DropReason.NO_ROUTE);
+  }
+
+  @Override
+  public final long getDropsSocketError ()
+  {
+    return getDrops (DropReason.SOCKET_ERROR);
+  }
+
+  @Override
+  public final long getDropsQueueFull ()
+  {
+    return getDrops (DropReason.QUEUE_FULL);
+  }
+
+  @Override
+  public final long getDropsExpired ()
+  {
+    return getDrops (DropReason.EXPIRED);
+  }
+
+  @Override
+  public final long getDropsInactive ()
+  {
+    return getDrops (DropReason.INACTIVE);
+  }
+
+  @Override
+  public final long getDropsUnknownServer ()
+  {
+    return getDrops (DropReason.UNKNOWN_SERVER);
+  }
+
+  @Override
+  public final long getDropsDuplicate ()
+  {
+    return getDrops (DropReason.DUPLICATE);
+  }
+
+  @Override
+  public final long getDropsNoBuffer ()
+  {
+    return getDrops (DropReason.NO_BUFFER);
+  }
+
+  @Override
+  public final long getDropsTotal ()
+  {
+    long dropsTotal = 0L;
+    for (final StripedCounter drop : this.drops)
+      dropsTotal += drop.sum ();
+    return dropsTotal;
+  }
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // QUEUE DEPTH
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  /** A source for the (current) value of a gauge.
+   *
+   */
+  public interface Gauge
+  {
+    long get ();
+  }
+
+  private volatile Gauge queueDepthGauge = null;
+
+  /** Sets the source of the queue depth of the entity.
+   *
+   * @param queueDepthGauge The gauge, {@code null} if the entity has no queue(s).
+   *
+   */
+  public final void setQueueDepthGauge (final Gauge queueDepthGauge)
+  {
+    this.queueDepthGauge = queueDepthGauge;
+  }
+
+  @Override
+  public final long getQueueDepth ()
+  {
+    final Gauge queueDepthGauge = this.queueDepthGauge;
+    return queueDepthGauge != null ? queueDepthGauge.get () : 0L;
+  }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2016 Jan de Jongh, TNO.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package net.etsi.btpsap.operational.metrics;
+
+/** The JMX management interface of {@link EntityMetrics}.
+ *
+ */
+public interface EntityMetricsMBean
+{
+
+  String getKind ();
+
+  String getEntityName ();
+
+  long getRequests ();
+
+  long getRequestBytes ();
+
+  long getIndications ();
+
+  long getIndicationBytes ();
+
+  long getDropsUnknownClient ();
+
+  long getDropsDecodeError ();
+
+  long getDropsNoRoute ();
+
+  long getDropsSocketError ();
+
+  long getDropsQueueFull ();
+
+  long getDropsExpired ();
+
+  long getDropsInactive ();
+
+  long getDropsUnknownServer ();
+
+  long getDropsDuplicate ();
+
+  long getDropsNoBuffer ();
+
+  long getDropsTotal ();
+
+  long getQueueDepth ();
+
+}
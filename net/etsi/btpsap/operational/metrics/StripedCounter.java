@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016 Jan de Jongh, TNO.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package net.etsi.btpsap.operational.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** A lock-free counter, striped to avoid contention among updating threads.
+ *
+ * <p>
+ * A thin wrapper around a {@link LongAdder}, which only grows its (cache-line padded) cells under contention;
+ * an uncontended counter takes a few dozen bytes, which matters with many (e.g., tens of thousands of) entities.
+ * Reads sum all cells, and are therefore not atomic with respect to concurrent updates,
+ * which is fine for monitoring purposes.
+ *
+ */
+public final class StripedCounter
+{
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // ADDER
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  private final LongAdder adder = new LongAdder ();
+
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+  //
+  // UPDATE / READ
+  //
+  //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+  public final void increment ()
+  {
+    this.adder.increment ();
+  }
+
+  public final void add (final long delta)
+  {
+    this.adder.add (delta);
+  }
+
+  public final long sum ()
+  {
+    return this.adder.sum ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return Long.toString (sum ());
+  }
+
+}
@@ -15,7 +15,6 @@
  */
 package net.etsi.btpsap.operational.server.avgn.local;
 
-import java.util.logging.Level;
 import java.util.logging.Logger;
 import net.etsi.btpsap.BtpSapTypes;
 import net.etsi.btpsap.BtpSapTypes.DefaultGnPositionVector;
@@ -28,6 +27,8 @@ import net.etsi.btpsap.BtpSapTypes.GnPositionVector;
 import net.etsi.btpsap.BtpSapTypes.GnSecurityReport;
 import net.etsi.btpsap.BtpSapTypes.GnTrafficClass;
 import net.etsi.btpsap.BtpSap_DataIndContainer;
+import net.etsi.btpsap.operational.events.EventRing;
+import net.etsi.btpsap.operational.events.EventType;
 import net.gcdc.geonetworking.LongPositionVector;
 import net.gcdc.geonetworking.Optional;
 import net.gcdc.geonetworking.TrafficClass;
@@ -42,6 +43,8 @@ extends Thread
 
   private static final Logger LOG = Logger.getLogger (AvgnLocalReceptionThread.class.getName ());
 
+  private static final EventRing EVENTS = EventRing.getDefault ();
+
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   //
   // CONSTRUCTOR(S) / FACTORY / CLONING
@@ -100,7 +103,7 @@ extends Thread
       try
       {
         final BtpPacket btpPacket = this.btpSocket.receive ();
-        LOG.log (Level.INFO, "Received BTP packet!");
+        EVENTS.publish (LOG, EventType.INDICATION_RECEIVED, this, null);
         if (btpPacket == null)
           return;
         // btpSrcPort
@@ -1,7 +1,6 @@
 package net.etsi.btpsap.operational.server.avgn.local;
 
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import net.etsi.btpsap.BtpSapTypes;
@@ -12,6 +11,8 @@ import net.etsi.btpsap.operational.AbstractBtpSapEntity;
 import net.etsi.btpsap.operational.BtpSapClient;
 import net.etsi.btpsap.operational.BtpSapServer;
 import net.etsi.btpsap.operational.OperationalBtpSap;
+import net.etsi.btpsap.operational.events.EventRing;
+import net.etsi.btpsap.operational.events.EventType;
 import net.gcdc.geonetworking.Address;
 import net.gcdc.geonetworking.Area;
 import net.gcdc.geonetworking.BtpPacket;
@@ -46,6 +47,8 @@ implements BtpSapServer
   
   private static final Logger LOG = Logger.getLogger (AvgnLocalServer.class.getName ());
 
+  private static final EventRing EVENTS = EventRing.getDefault ();
+
   //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
   //
   // CONSTRUCTOR(S) / CLONING / FACTORY
@@ -193,10 +196,60 @@ implements BtpSapServer
     return this.btpSap != null;
   }
 
+  /** Creates the BTP packet (BTP header followed by the payload) for a request.
+   * 
+   * <p>
+   * The payload is copied straight from the request data into the packet.
+   * 
+   * @param request The request, non-{@code null}.
+   * @param btpA    Whether to create a BTP-A (as opposed to BTP-B) header.
+   * 
+   * @return The BTP packet.
+   * 
+   */
+  public static byte[] createBtpPacketData (final BtpSap_DataReqContainer request, final boolean btpA)
+  {
+    // XXX Code below could use some additional error-checking!
+    final int length = request.getLength ();
+    final int offset = request.getOffset ();
+    final byte [] data = request.getData ();
+    final byte [] btpPacketData = new byte[length + 4];
+    btpPacketData[0] = (byte) ((request.getBtpDestinationPort () >> 8) & 0xff);
+    btpPacketData[1] = (byte) (request.getBtpDestinationPort () & 0xff);
+    if (btpA)
+    {
+      if (request.hasBtpSrcPort ())
+      {
+        btpPacketData[2] = (byte) ((request.getBtpSrcPortAsInt () >> 8) & 0xff);
+        btpPacketData[3] = (byte) (request.getBtpSrcPortAsInt () & 0xff);
+      }
+      else
+      {
+        btpPacketData[2] = (byte) 0;
+        btpPacketData[3] = (byte) 0;
+      }
+    }
+    else
+    {
+      if (request.hasBtpDstPortInfo ())
+      {
+        btpPacketData[2] = (byte) ((request.getBtpDstPortInfoAsInt () >> 8) & 0xff);
+        btpPacketData[3] = (byte) (request.getBtpDstPortInfoAsInt () & 0xff);
+      }
+      else
+      {
+        btpPacketData[2] = (byte) 0;
+        btpPacketData[3] = (byte) 0;
+      }      
+    }
+    System.arraycopy (data, offset, btpPacketData, 4, length);
+    return btpPacketData;
+  }
+  
   @Override
   public final BtpSap_DataConf doRequest (final BtpSapClient client, final BtpSap_DataReqContainer request)
   {
-    LOG.log (Level.INFO, "Doing request from client {0}: {1}.", new Object[]{client, request});
+    EVENTS.publish (LOG, EventType.REQUEST, this, client);
     if (client == null /* XXX TODO || unregistered client */)
     {
       LOG.log (Level.WARNING, "Ignoring request from unknown/unregistered client {0}!", client);
@@ -209,7 +262,7 @@ implements BtpSapServer
     }
     if (this.btpSap == null)
     {
-      LOG.log (Level.WARNING, "Ignoring request from client {0} on inactive server {1}!", new Object[]{client, this});
+      EVENTS.publish (LOG, EventType.INACTIVE, this, client);
       return null;
     }
     // Gather required (and supported) fields from the request in order to construct a GeonetData object.
@@ -223,8 +276,7 @@ implements BtpSapServer
         upperProtocolType = UpperProtocolType.BTP_B;
         break;
       default:
-        LOG.log (Level.WARNING, "Ignoring request from client {0} with invalid BTP Type {1}!",
-          new Object[]{client, request.getBtpType ()});      
+        EVENTS.publish (LOG, EventType.INVALID_REQUEST, this, client, request.getBtpType (), 0L);
         return null;
     }
     final Destination destination;
@@ -235,9 +287,7 @@ implements BtpSapServer
           || request.getGnDestination ().getGnDestinationType () != BtpSapTypes.GnDestinationType.GN_DEST_UC
           || request.getGnDestination ().getGnUnicastAddress () == null)
         {
-          LOG.log (Level.WARNING,
-            "Ignoring request from client {0} with invalid or incompatible GnDestination {1} (should be unicast address)!",
-            new Object[]{client, request.getGnDestination ()});      
+          EVENTS.publish (LOG, EventType.INVALID_REQUEST, this, client, request.getGnDestination (), 0L);
           return null;
         }
         final Address address = new Address (request.getGnDestination ().getGnUnicastAddress ().toLong ());
@@ -258,9 +308,7 @@ implements BtpSapServer
           || request.getGnDestination ().getGnDestinationType () != BtpSapTypes.GnDestinationType.GN_DEST_GBC_AC
           || request.getGnDestination ().getGnArea () == null)
         {
-          LOG.log (Level.WARNING,
-            "Ignoring request from client {0} with invalid or incompatible GnDestination {1} (should be area-type address)!",
-            new Object[]{client, request.getGnDestination ()});
+          EVENTS.publish (LOG, EventType.INVALID_REQUEST, this, client, request.getGnDestination (), 0L);
           return null;
         }
         final double latitude = request.getGnDestination ().getGnArea ().getLatitude ();
@@ -282,9 +330,8 @@ implements BtpSapServer
             area = Area.rectangle (center, distanceA, distanceB, angle);
             break;
           default:
-            LOG.log (Level.WARNING,
-              "Ignoring request from client {0} with invalid area shape in GnDestination {1}!",
-              new Object[]{client, request.getGnDestination ().getGnArea ().getAreaShape ()});
+            EVENTS.publish (LOG, EventType.INVALID_REQUEST, this, client,
+              request.getGnDestination ().getGnArea ().getAreaShape (), 0L);
             return null;
         }
         destination = (request.getGnTransportType () == BtpSapTypes.GnTransportType.GN_GBC
@@ -292,8 +339,7 @@ implements BtpSapServer
           : Destination.geoanycast (area));
         break;
       default:
-        LOG.log (Level.WARNING, "Ignoring request from client {0} with invalid GN Transport Type {1}!",
-          new Object[]{client, request.getGnTransportType ()});      
+        EVENTS.publish (LOG, EventType.INVALID_REQUEST, this, client, request.getGnTransportType (), 0L);
         return null;
     }
     // XXX Optional is a Java-8 feature... Be careful not to draw us into Java-8, as it apparently does not run yet on Voyage...
@@ -306,43 +352,7 @@ implements BtpSapServer
     // XXX Should we supply an LPV, or can we rely on the PositionProvider by setting it to null (empty)?
     final Optional<LongPositionVector> longPositionVector;
     longPositionVector = Optional.empty ();
-    // XXX Code below could use some additional error-checking!
-    final int length = request.getLength ();
-    final int offset = request.getOffset ();
-    final byte [] data = request.getData ();
-    final byte[] payload = ((offset != 0 || length != data.length)
-      ? Arrays.copyOfRange (data, offset, offset + length)
-      : data);
-    final byte [] btpPacketData = new byte[payload.length + 4];
-    btpPacketData[0] = (byte) ((request.getBtpDestinationPort () >> 8) & 0xff);
-    btpPacketData[1] = (byte) (request.getBtpDestinationPort () & 0xff);
-    if (upperProtocolType == UpperProtocolType.BTP_A)
-    {
-      if (request.getBtpSrcPort () != null)
-      {
-        btpPacketData[2] = (byte) ((request.getBtpSrcPort () >> 8) & 0xff);
-        btpPacketData[3] = (byte) (request.getBtpSrcPort () & 0xff);
-      }
-      else
-      {
-        btpPacketData[2] = (byte) 0;
-        btpPacketData[3] = (byte) 0;
-      }
-    }
-    else
-    {
-      if (request.getBtpDstPortInfo () != null)
-      {
-        btpPacketData[2] = (byte) ((request.getBtpDstPortInfo () >> 8) & 0xff);
-        btpPacketData[3] = (byte) (request.getBtpDstPortInfo ()& 0xff);
-      }
-      else
-      {
-        btpPacketData[2] = (byte) 0;
-        btpPacketData[3] = (byte) 0;
-      }      
-    }
-    System.arraycopy (payload, 0, btpPacketData, 4, payload.length);
+    final byte [] btpPacketData = createBtpPacketData (request, upperProtocolType == UpperProtocolType.BTP_A);
     final GeonetData geonetData = new GeonetData (upperProtocolType, destination, trafficClass, longPositionVector, btpPacketData);
     final BtpPacket btpPacket = BtpPacket.fromGeonetData (geonetData);
 //    switch (request.getGnTransportType ())
@@ -394,11 +404,11 @@ implements BtpSapServer
     }
     catch (IOException ioe)
     {
-      LOG.log (Level.WARNING, "Caught IOException on BtpSocket {0}.", this.btpSocket);
+      EVENTS.publish (LOG, EventType.SOCKET_ERROR, this, this.btpSocket, ioe.getMessage (), 0L);
     }
     if (deactivated)
     {
-      LOG.log (Level.WARNING, "Ignoring request from client {0} on inactive server {1}!", new Object[]{client, this});
+      EVENTS.publish (LOG, EventType.INACTIVE, this, client);
       return null;      
     }
     // XXX